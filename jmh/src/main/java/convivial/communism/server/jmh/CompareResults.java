@@ -0,0 +1,162 @@
+package convivial.communism.server.jmh;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+**	Compares two runs of the JMH benchmarks saved as CSV (<code>-rf csv -rff file</code>), usually the
+**		checked in baseline and a new run made on the same machine. For every result in both it prints the
+**		two scores, how far apart they are, and whether that's more than the two runs' error margins
+**		together, which is what it takes to call it better or worse rather than noise. Results are matched
+**		by benchmark and parameters, so a run of just some of the benchmarks compares fine.
+**	
+**	<p>Usage: <code>java -cp benchmarks.jar convivial.communism.server.jmh.CompareResults baseline.csv new.csv</code></p>
+**/
+public class CompareResults
+{
+	private static final String PACKAGE = "convivial.communism.server.jmh.";
+	
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 2)
+		{
+			System.out.println("Usage: CompareResults baseline.csv new.csv");
+			return;
+		}
+		
+		Map<String, Result> baseline = load(args[0]);
+		Map<String, Result> current = load(args[1]);
+		System.out.println(String.format("%-50s %14s %14s %9s  %s", "benchmark", "baseline", "new", "change", "verdict"));
+		for (Map.Entry<String, Result> entry : current.entrySet())
+		{
+			Result now = entry.getValue();
+			Result before = baseline.get(entry.getKey());
+			if (before == null)
+			{
+				System.out.println(String.format("%-50s %14s %14.1f %9s  not in baseline", entry.getKey(), "", now.score, ""));
+				continue;
+			}
+			
+			double change = before.score == 0 ? 0 : (now.score - before.score) * 100 / before.score;
+			String verdict;
+			if (Math.abs(now.score - before.score) <= now.error + before.error)
+				verdict = "within noise";
+			else if ((now.score > before.score) == now.higherIsBetter())
+				verdict = "better";
+			else
+				verdict = "worse";
+			System.out.println(String.format("%-50s %14.1f %14.1f %+8.1f%%  %s (%s)", entry.getKey(), before.score, now.score, change, verdict, now.unit));
+		}
+	}
+	
+	private static Map<String, Result> load(String file) throws IOException
+	{
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			List<String> header = split(in.readLine());
+			int benchmark = header.indexOf("Benchmark");
+			int mode = header.indexOf("Mode");
+			int score = header.indexOf("Score");
+			int error = header.indexOf("Score Error (99.9%)");
+			int unit = header.indexOf("Unit");
+			if (benchmark < 0 || score < 0 || unit < 0)
+				throw new IOException(file + " isn't a JMH CSV result file.");
+			
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				List<String> fields = split(line);
+				if (fields.size() < header.size())
+					continue;
+				
+				String name = fields.get(benchmark);
+				if (name.startsWith(PACKAGE))
+					name = name.substring(PACKAGE.length());
+				StringBuilder key = new StringBuilder(name);
+				if (mode >= 0)
+					key.append(" ").append(fields.get(mode));
+				for (int i = 0; i < header.size(); ++i)
+				{
+					if (header.get(i).startsWith("Param: ") && fields.get(i).length() > 0)
+						key.append(" ").append(header.get(i).substring(7)).append("=").append(fields.get(i));
+				}
+				results.put(key.toString(), new Result(number(fields.get(score)), error < 0 ? 0 : number(fields.get(error)), fields.get(unit)));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return results;
+	}
+	
+	private static double number(String field)
+	{
+		if (field.length() == 0 || field.equals("NaN"))
+			return 0;
+		return Double.parseDouble(field);
+	}
+	
+	/**
+	**	Splits a CSV line into fields, taking the quotes off quoted ones.
+	**/
+	private static List<String> split(String line)
+	{
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); ++i)
+		{
+			char c = line.charAt(i);
+			if (c == '"')
+			{
+				if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"')
+				{
+					field.append('"');
+					++i;
+				}
+				else
+					quoted = !quoted;
+			}
+			else if (c == ',' && !quoted)
+			{
+				fields.add(field.toString());
+				field.setLength(0);
+			}
+			else
+				field.append(c);
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+	
+	private static class Result
+	{
+		double score;
+		double error;
+		String unit;
+		
+		Result(double score, double error, String unit)
+		{
+			this.score = score;
+			this.error = error;
+			this.unit = unit;
+		}
+		
+		/**
+		**	@return True for rates, like ops/s; false for times and allocation, like us/op or B/op.
+		**/
+		boolean higherIsBetter()
+		{
+			return unit.startsWith("ops/");
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package convivial.communism.server.jmh;
+
+import convivial.communism.server.bench.EchoServer;
+import convivial.communism.server.tcp.EventLoopGroup;
+import convivial.communism.server.tcp.ExecutionMode;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+**	Messages per second an <code>EchoServer</code> on the loopback address echoes, in each execution
+**		mode. Every benchmark thread is a client of its own that keeps <code>WINDOW</code> messages in
+**		flight: it writes them all at once and reads all the echoes back, so the server sees a steady
+**		pipelined load instead of one round trip at a time. One operation is one message echoed.
+**/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EchoBenchmark
+{
+	/** Size of each message in bytes. **/
+	public static final int MESSAGE_SIZE = 64;
+	/** Messages each client has in flight at once. **/
+	public static final int WINDOW = 16;
+	
+	private static final int PORT = 21100;
+	
+	@Param({"SELECTOR", "THREAD_PER_CONNECTION"})
+	public ExecutionMode mode;
+	
+	private EchoServer server;
+	
+	@Setup
+	public void start() throws InterruptedException
+	{
+		server = EchoServer.start(PORT, mode, EventLoopGroup.defaultLoopCount(), 0);
+	}
+	
+	@TearDown
+	public void stop()
+	{
+		server.stop();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(WINDOW)
+	public void echo(Client client) throws IOException
+	{
+		client.out.write(client.window);
+		client.in.readFully(client.window);
+	}
+	
+	/**
+	**	One benchmark thread's connection to the server.
+	**/
+	@State(Scope.Thread)
+	public static class Client
+	{
+		Socket socket;
+		OutputStream out;
+		DataInputStream in;
+		byte[] window;
+		
+		@Setup
+		public void connect(EchoBenchmark benchmark) throws IOException
+		{
+			socket = new Socket(InetAddress.getLoopbackAddress(), PORT);
+			socket.setTcpNoDelay(true);
+			out = socket.getOutputStream();
+			in = new DataInputStream(socket.getInputStream());
+			window = new byte[MESSAGE_SIZE * WINDOW];
+		}
+		
+		@TearDown
+		public void close() throws IOException
+		{
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package convivial.communism.server.jmh;
+
+import convivial.communism.server.bench.BroadcastFanout;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+**	How fast a <code>FanoutServer</code>, which sends every message a client sends to all the others the
+**		way <code>ChatServer</code> does, gets a message out to 10, 1000 and 10000 subscribers. One operation
+**		is one message published and delivered to every subscriber; the <code>deliveries</code> counter
+**		reports the same run as messages delivered to one subscriber each. The subscribers are read by
+**		a single thread of their own, as in <code>BroadcastFanout</code>, which does the work.
+**	
+**	<p>The server and subscribers live in the same process, so a run needs about two file descriptors
+**		per subscriber; raise <code>ulimit -n</code> for the larger sizes.</p>
+**/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FanoutBenchmark
+{
+	private static final int PORT = 21101;
+	
+	@Param({"10", "1000", "10000"})
+	public int subscribers;
+	
+	private BroadcastFanout fanout;
+	
+	@Setup
+	public void start() throws Exception
+	{
+		fanout = new BroadcastFanout(PORT, subscribers);
+		try
+		{
+			fanout.setUp();
+		}
+		catch (Exception e)
+		{
+			fanout.tearDown();
+			throw e;
+		}
+	}
+	
+	@TearDown
+	public void stop()
+	{
+		fanout.tearDown();
+	}
+	
+	@Benchmark
+	public void publish(Deliveries deliveries) throws IOException, InterruptedException
+	{
+		deliveries.deliveries += fanout.publish();
+	}
+	
+	/**
+	**	Counts messages delivered to one subscriber each, reported by JMH alongside the publishes.
+	**/
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Deliveries
+	{
+		public long deliveries;
+		
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			deliveries = 0;
+		}
+	}
+}
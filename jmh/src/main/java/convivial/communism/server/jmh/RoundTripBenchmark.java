@@ -0,0 +1,47 @@
+package convivial.communism.server.jmh;
+
+import convivial.communism.server.bench.RoundTripLatency;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+**	How long a round trip between a <code>ServerConnection</code> and an <code>EchoServer</code> takes:
+**		send a message, wait for the echo. Sampled, so JMH reports the percentiles along with the mean.
+**		The connection is driven by <code>RoundTripLatency</code>, as in the suite.
+**/
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoundTripBenchmark
+{
+	private static final int PORT = 21102;
+	
+	private RoundTripLatency latency;
+	
+	@Setup
+	public void start() throws Exception
+	{
+		latency = new RoundTripLatency(PORT);
+		latency.setUp();
+	}
+	
+	@TearDown
+	public void stop()
+	{
+		latency.tearDown();
+	}
+	
+	@Benchmark
+	public long roundTrip() throws IOException
+	{
+		return latency.roundTrip();
+	}
+}
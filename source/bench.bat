@@ -0,0 +1,3 @@
+javac convivial\communism\server\bench\*.java
+java convivial.communism.server.bench.BenchmarkSuite --compare benchmark-baseline.properties %*
+pause
\ No newline at end of file
@@ -0,0 +1,36 @@
+package convivial.communism.server;
+
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.ByteBuffer;
+
+/**
+**	Represents a class wanting to listen to datagrams from a server, through the ServerConnection in
+**		the server.udp package. The UDP counterpart of <code>ServerListener</code>.
+**	
+**	<h3>Imports:</h3>
+**	<ul>
+**		<li>import java.nio.channels.DatagramChannel;</li>
+**		<li>import java.nio.channels.SelectionKey;</li>
+**		<li>import java.nio.ByteBuffer;</li>
+**	</ul>
+**/
+public interface DatagramListener
+{
+	/**
+	**	Handles the result of being disconnected, either by calling <code>disconnect()</code> or because the
+	**		server's port turned out to be unreachable.
+	**/
+	public void disconnected();
+	
+	/**
+	**	Manages a datagram that just arrived from the server. Each call is exactly one datagram, as it was
+	**		sent. The buffer is reused for the next datagram as soon as this returns, so copy anything that
+	**		needs to live longer.
+	**	
+	**	@param key The connection's channel and its attachment.
+	**	@param channel The connection's channel.
+	**	@param data The datagram.
+	**/
+	public void receiveData(SelectionKey key, DatagramChannel channel, ByteBuffer data);
+}
@@ -0,0 +1,30 @@
+package convivial.communism.server;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+
+/**
+**	A <code>ServerListener</code> that wants whole frames instead of raw reads. When a ServerConnection
+**		has a frame decoder, <code>receiveFrame</code> is called once for every complete frame and
+**		<code>receiveData</code> isn't called at all.
+**	
+**	<h3>Imports:</h3>
+**	<ul>
+**		<li>import java.nio.channels.SelectionKey;</li>
+**		<li>import java.nio.channels.SocketChannel;</li>
+**		<li>import java.nio.ByteBuffer;</li>
+**	</ul>
+**/
+public interface FrameListener extends ServerListener
+{
+	/**
+	**	Manages one complete frame from the server. The frame is a slice of the buffer it was read
+	**		into and is only valid until this method returns; copy anything that needs to live longer.
+	**	
+	**	@param key The Server's channel and its attachment.
+	**	@param channel The server's channel.
+	**	@param frame The frame, positioned at its first byte.
+	**/
+	public void receiveFrame(SelectionKey key, SocketChannel channel, ByteBuffer frame);
+}
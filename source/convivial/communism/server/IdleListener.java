@@ -0,0 +1,17 @@
+package convivial.communism.server;
+
+/**
+**	A <code>ServerListener</code> that also wants to hear when its connection goes quiet. Needed by a
+**		ServerConnection with idle timeouts set; a typical listener sends a heartbeat on
+**		<code>WRITER_IDLE</code> and disconnects on <code>READER_IDLE</code>.
+**/
+public interface IdleListener extends ServerListener
+{
+	/**
+	**	Handles the connection having been idle for one of its idle timeouts. Called on the connection's
+	**		read thread, and again every timeout for as long as the connection stays idle.
+	**	
+	**	@param state Which kind of idleness the timeout was for.
+	**/
+	public void idle(IdleState state);
+}
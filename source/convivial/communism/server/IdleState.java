@@ -0,0 +1,14 @@
+package convivial.communism.server;
+
+/**
+**	The ways a connection can go quiet, as reported to idle callbacks once a configured idle timeout passes.
+**/
+public enum IdleState
+{
+	/** Nothing has been read from the other end for the reader idle timeout. **/
+	READER_IDLE,
+	/** Nothing has been written to the other end for the writer idle timeout. **/
+	WRITER_IDLE,
+	/** Nothing has been read or written for the all idle timeout. **/
+	ALL_IDLE
+}
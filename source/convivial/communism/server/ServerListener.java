@@ -5,8 +5,8 @@ import java.nio.channels.SocketChannel;
 import java.nio.ByteBuffer;
 
 /**
-**	Represents a class wanting to listen to input from a server. Be sure to also see ServerConnection in either
-**		the server.tcp package or the udp (if it ever gets made).
+**	Represents a class wanting to listen to input from a server. Be sure to also see ServerConnection in
+**		the server.tcp package; the udp package has its own, which takes a <code>DatagramListener</code>.
 **	
 **	<h3>Imports:</h3>
 **	<ul>
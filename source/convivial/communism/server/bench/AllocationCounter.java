@@ -0,0 +1,127 @@
+package convivial.communism.server.bench;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+**	Counts bytes allocated on the heap by the whole process, whichever threads did it: platform or
+**		virtual, still running or long gone. The JVM's per-thread counters only cover live platform
+**		threads, which misses a connection's threads once it closes and every virtual thread. Instead this
+**		goes by the heap itself: what's in use now, plus everything each garbage collection since the
+**		start has freed, which the collectors report as they finish.
+**	
+**	<p>Like the per-thread counters, this counts whole TLABs as they're handed out rather than each
+**		object, so it's only meaningful over many operations.</p>
+**/
+class AllocationCounter implements NotificationListener
+{
+	private Set<String> heapPools;
+	private AtomicLong freed;
+	private AtomicLong collections;
+	private long collectionsBefore;
+	private boolean available;
+	
+	/**
+	**	Starts listening to every garbage collector.
+	**/
+	AllocationCounter()
+	{
+		heapPools = new HashSet<String>();
+		freed = new AtomicLong();
+		collections = new AtomicLong();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP)
+				heapPools.add(pool.getName());
+		}
+		
+		available = true;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			if (collector instanceof NotificationEmitter)
+				((NotificationEmitter) collector).addNotificationListener(this, null, null);
+			else
+				available = false;
+		}
+		collectionsBefore = collectionCount();
+	}
+	
+	/**
+	**	@return Bytes allocated on the heap since the counter was made, or -1 if the JVM can't say.
+	**/
+	long allocatedBytes()
+	{
+		if (!available)
+			return -1;
+		
+		// collections are reported on another thread shortly after they finish; wait for any still on
+		// their way, or the bytes they freed would be missed
+		long deadline = System.nanoTime() + 1000000000L;
+		while (collections.get() < collectionCount() - collectionsBefore && System.nanoTime() < deadline)
+		{
+			try
+			{
+				Thread.sleep(1);
+			}
+			catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (heapPools.contains(pool.getName()))
+				used += pool.getUsage().getUsed();
+		}
+		return used + freed.get();
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; invoked by the JVM after each garbage collection.
+	**/
+	public void handleNotification(Notification notification, Object handback)
+	{
+		if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+			return;
+		
+		GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+		Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+		Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+		long bytes = 0;
+		for (String pool : heapPools)
+		{
+			MemoryUsage b = before.get(pool);
+			MemoryUsage a = after.get(pool);
+			if (b != null && a != null)
+				bytes += b.getUsed() - a.getUsed();
+		}
+		freed.addAndGet(bytes);
+		collections.incrementAndGet();
+	}
+	
+	private long collectionCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, collector.getCollectionCount());
+		return count;
+	}
+}
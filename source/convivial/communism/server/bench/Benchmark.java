@@ -0,0 +1,72 @@
+package convivial.communism.server.bench;
+
+import java.util.Map;
+
+/**
+**	One workload run by <code>BenchmarkSuite</code>. The suite calls <code>setUp</code> once, then
+**		<code>runIteration</code> a number of times to warm up, <code>reset</code>, <code>runIteration</code>
+**		some more times to measure, and finally <code>tearDown</code>. Each iteration reports how many
+**		operations it got through, and the suite turns that into operations per second and bytes allocated
+**		per operation.
+**/
+public abstract class Benchmark
+{
+	private String name;
+	
+	/**
+	**	@param name Name the suite reports and saves results under, and that selects the benchmark on the command line.
+	**/
+	protected Benchmark(String name)
+	{
+		this.name = name;
+	}
+	
+	/**
+	**	@return Name of the benchmark.
+	**/
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	**	Starts servers, opens connections and whatever else the workload needs.
+	**	
+	**	@throws Exception If the benchmark can't run on this machine; the suite reports it as skipped.
+	**/
+	public abstract void setUp() throws Exception;
+	
+	/**
+	**	Runs the workload for about the given time.
+	**	
+	**	@param nanos How long to run for.
+	**	
+	**	@return Number of operations completed.
+	**	
+	**	@throws Exception If the workload failed.
+	**/
+	public abstract long runIteration(long nanos) throws Exception;
+	
+	/**
+	**	Called between the warm up and measured iterations, to forget anything recorded while warming up.
+	**		Does nothing unless overridden.
+	**/
+	public void reset()
+	{
+	}
+	
+	/**
+	**	Adds results of the benchmark's own, like latency percentiles, to those the suite reports.
+	**		Does nothing unless overridden.
+	**	
+	**	@param results Map to put results into, keyed by a short name like <code>p99.us</code>.
+	**/
+	public void results(Map<String, Double> results)
+	{
+	}
+	
+	/**
+	**	Closes everything <code>setUp</code> opened. Called even when <code>setUp</code> failed part way.
+	**/
+	public abstract void tearDown();
+}
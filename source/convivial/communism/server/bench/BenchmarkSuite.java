@@ -0,0 +1,231 @@
+package convivial.communism.server.bench;
+
+import convivial.communism.server.tcp.ExecutionMode;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+**	Runs the server's benchmarks and prints, for each, operations per second (mean and standard
+**		deviation over the measured iterations), bytes allocated per operation by the whole process (see
+**		<code>AllocationCounter</code>), and any results of the benchmark's own. Results can be saved as a
+**		baseline and later runs compared against it, to see whether a change made things faster or slower.
+**	
+**	<p>Usage: <code>java convivial.communism.server.bench.BenchmarkSuite [options] [benchmark ...]</code>,
+**		where each benchmark named runs every benchmark whose name starts with it (<code>fanout</code> runs
+**		all the fan-out sizes) and no names runs them all. Options are:</p>
+**	<ul>
+**		<li><code>--warmup n</code>: iterations run and thrown away before measuring, default 3.</li>
+**		<li><code>--iterations n</code>: iterations measured, default 5.</li>
+**		<li><code>--time millis</code>: length of each iteration, default 1000.</li>
+**		<li><code>--save file</code>: writes the results to a properties file.</li>
+**		<li><code>--compare file</code>: prints how the results differ from those saved in a properties file.</li>
+**	</ul>
+**	
+**	<p>The baseline checked in next to the sources, <code>benchmark-baseline.properties</code>, says which
+**		machine it was recorded on; compare against a baseline made on the same machine.</p>
+**	
+**	<p>The JMH benchmarks in the <code>jmh</code> module are the ones to go by; this suite is the fallback
+**		for building and running without Maven, with nothing but a JDK.</p>
+**/
+public class BenchmarkSuite
+{
+	private static final int BASE_PORT = 21000;
+	
+	private static AllocationCounter allocation;
+	
+	public static void main(String[] args) throws Exception
+	{
+		int warmup = 3;
+		int iterations = 5;
+		long millis = 1000;
+		String save = null;
+		String compare = null;
+		List<String> selected = new ArrayList<String>();
+		
+		for (int i = 0; i < args.length; ++i)
+		{
+			if (args[i].equals("--warmup"))
+				warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--iterations"))
+				iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--time"))
+				millis = Long.parseLong(args[++i]);
+			else if (args[i].equals("--save"))
+				save = args[++i];
+			else if (args[i].equals("--compare"))
+				compare = args[++i];
+			else
+				selected.add(args[i]);
+		}
+		
+		Properties baseline = null;
+		if (compare != null)
+		{
+			baseline = new Properties();
+			InputStream in = new FileInputStream(compare);
+			try
+			{
+				baseline.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		
+		allocation = new AllocationCounter();
+		Properties results = new Properties();
+		System.out.println(warmup + " warm up and " + iterations + " measured iterations of " + millis + " ms each");
+		System.out.println(String.format("%-30s %14s %12s %10s", "benchmark", "ops/s", "+/-", "B/op"));
+		for (Benchmark benchmark : benchmarks())
+		{
+			if (!isSelected(benchmark.getName(), selected))
+				continue;
+			
+			run(benchmark, warmup, iterations, TimeUnit.MILLISECONDS.toNanos(millis), results, baseline);
+			System.gc();
+		}
+		
+		if (save != null)
+		{
+			OutputStream out = new FileOutputStream(save);
+			try
+			{
+				results.store(out, "BenchmarkSuite results; " + Runtime.getRuntime().availableProcessors() + " cores, Java "
+					+ System.getProperty("java.version") + ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+			}
+			finally
+			{
+				out.close();
+			}
+			System.out.println("Saved results to " + save);
+		}
+		System.exit(0);
+	}
+	
+	/**
+	**	@return Every benchmark the suite knows about, in the order they run.
+	**/
+	private static List<Benchmark> benchmarks()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new EchoThroughput(BASE_PORT, ExecutionMode.SELECTOR, 4));
+		benchmarks.add(new EchoThroughput(BASE_PORT + 1, ExecutionMode.THREAD_PER_CONNECTION, 4));
+		benchmarks.add(new RoundTripLatency(BASE_PORT + 2));
+		benchmarks.add(new BroadcastFanout(BASE_PORT + 3, 10));
+		benchmarks.add(new BroadcastFanout(BASE_PORT + 4, 1000));
+		benchmarks.add(new BroadcastFanout(BASE_PORT + 5, 10000));
+		benchmarks.add(new CodecBenchmark(false));
+		benchmarks.add(new CodecBenchmark(true));
+		return benchmarks;
+	}
+	
+	private static boolean isSelected(String name, List<String> selected)
+	{
+		if (selected.isEmpty())
+			return true;
+		for (String prefix : selected)
+		{
+			if (name.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+	
+	private static void run(Benchmark benchmark, int warmup, int iterations, long nanos, Properties results, Properties baseline)
+	{
+		String name = benchmark.getName();
+		try
+		{
+			try
+			{
+				benchmark.setUp();
+			}
+			catch (Exception e)
+			{
+				System.out.println(String.format("%-30s skipped: %s", name, e.getMessage()));
+				return;
+			}
+			
+			for (int i = 0; i < warmup; ++i)
+				benchmark.runIteration(nanos);
+			benchmark.reset();
+			
+			double[] rates = new double[iterations];
+			long operations = 0;
+			long allocatedBefore = allocation.allocatedBytes();
+			for (int i = 0; i < iterations; ++i)
+			{
+				long start = System.nanoTime();
+				long done = benchmark.runIteration(nanos);
+				rates[i] = done * 1e9 / (System.nanoTime() - start);
+				operations += done;
+			}
+			long allocated = allocation.allocatedBytes() - allocatedBefore;
+			
+			double mean = 0;
+			for (double rate : rates)
+				mean += rate;
+			mean /= iterations;
+			double variance = 0;
+			for (double rate : rates)
+				variance += (rate - mean) * (rate - mean);
+			double stddev = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+			double bytesPerOp = operations > 0 && allocatedBefore >= 0 ? (double) allocated / operations : -1;
+			
+			Map<String, Double> extra = new LinkedHashMap<String, Double>();
+			benchmark.results(extra);
+			
+			StringBuilder line = new StringBuilder(String.format("%-30s %14.0f %12.0f %10.1f", name, mean, stddev, bytesPerOp));
+			for (Map.Entry<String, Double> entry : extra.entrySet())
+				line.append(String.format("  %s=%.1f", entry.getKey(), entry.getValue()));
+			System.out.println(line);
+			
+			results.setProperty(name + ".ops", String.format("%.0f", mean));
+			results.setProperty(name + ".ops.stddev", String.format("%.0f", stddev));
+			results.setProperty(name + ".bytes.per.op", String.format("%.1f", bytesPerOp));
+			for (Map.Entry<String, Double> entry : extra.entrySet())
+				results.setProperty(name + "." + entry.getKey(), String.format("%.1f", entry.getValue()));
+			
+			if (baseline != null)
+				compare(name, mean, stddev, bytesPerOp, baseline);
+		}
+		catch (Exception e)
+		{
+			System.out.println(String.format("%-30s failed: %s", name, e));
+			e.printStackTrace();
+		}
+		finally
+		{
+			benchmark.tearDown();
+		}
+	}
+	
+	private static void compare(String name, double mean, double stddev, double bytesPerOp, Properties baseline)
+	{
+		String ops = baseline.getProperty(name + ".ops");
+		if (ops == null)
+		{
+			System.out.println(String.format("%-30s not in baseline", ""));
+			return;
+		}
+		
+		double before = Double.parseDouble(ops);
+		double beforeStddev = Double.parseDouble(baseline.getProperty(name + ".ops.stddev", "0"));
+		double beforeBytes = Double.parseDouble(baseline.getProperty(name + ".bytes.per.op", "-1"));
+		String verdict = Math.abs(mean - before) <= stddev + beforeStddev ? "within noise" : (mean > before ? "faster" : "slower");
+		System.out.println(String.format("%-30s %+13.1f%% vs baseline (%s), B/op %.1f -> %.1f", "", (mean - before) * 100 / before,
+			verdict, beforeBytes, bytesPerOp));
+	}
+}
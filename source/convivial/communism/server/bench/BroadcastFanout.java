@@ -0,0 +1,212 @@
+package convivial.communism.server.bench;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import convivial.communism.server.tcp.EventLoopGroup;
+
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.Iterator;
+
+/**
+**	Messages per second a <code>FanoutServer</code> can deliver when every message one client sends
+**		goes out to all the others. A publisher sends one message, waits until every subscriber has it,
+**		and sends the next; one operation is one message delivered to one subscriber. The subscribers are
+**		non-blocking channels read by a single thread of their own, so thousands of them cost one thread.
+**	
+**	<p>The server and subscribers live in the same process, so a run needs about two file descriptors
+**		per subscriber; if the process doesn't have that many the benchmark is skipped.</p>
+**/
+public class BroadcastFanout extends Benchmark
+{
+	/** Size of each message in bytes. **/
+	public static final int MESSAGE_SIZE = 64;
+	
+	private static final long DELIVERY_TIMEOUT_NANOS = 10000000000L;
+	
+	private int port;
+	private int subscribers;
+	private FanoutServer server;
+	private Socket publisher;
+	private SocketChannel[] channels;
+	private Selector selector;
+	private byte[] message;
+	private Object lock;
+	private long received;
+	private long expected;
+	private volatile boolean running;
+	
+	/**
+	**	@param port Port to run the fan-out server on.
+	**	@param subscribers Number of clients each message is delivered to.
+	**/
+	public BroadcastFanout(int port, int subscribers)
+	{
+		super("fanout-" + subscribers);
+		this.port = port;
+		this.subscribers = subscribers;
+		message = new byte[MESSAGE_SIZE];
+		lock = new Object();
+	}
+	
+	public void setUp() throws Exception
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof UnixOperatingSystemMXBean)
+		{
+			UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+			long free = unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount();
+			if (free < 2L * subscribers + 64)
+				throw new IllegalStateException("Needs about " + (2 * subscribers + 64) + " file descriptors, only " + free + " are available.");
+		}
+		
+		server = FanoutServer.start(port, EventLoopGroup.defaultLoopCount());
+		selector = Selector.open();
+		channels = new SocketChannel[subscribers];
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		for (int i = 0; i < subscribers; ++i)
+		{
+			channels[i] = SocketChannel.open(address);
+			channels[i].configureBlocking(false);
+			channels[i].register(selector, SelectionKey.OP_READ);
+		}
+		publisher = new Socket(InetAddress.getLoopbackAddress(), port);
+		publisher.setTcpNoDelay(true);
+		
+		while (server.getClientCount() < subscribers + 1)
+			Thread.sleep(10);
+		
+		running = true;
+		Thread reader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				read();
+			}
+		}, "FanoutSubscribers");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	private void read()
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		try
+		{
+			while (running)
+			{
+				selector.select();
+				long bytes = 0;
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext())
+				{
+					SelectionKey key = i.next();
+					i.remove();
+					
+					int read;
+					do
+					{
+						buffer.clear();
+						read = ((SocketChannel) key.channel()).read(buffer);
+						if (read > 0)
+							bytes += read;
+					}
+					while (read == buffer.capacity());
+					if (read < 0)
+						key.cancel();
+				}
+				
+				if (bytes > 0)
+				{
+					synchronized (lock)
+					{
+						received += bytes;
+						lock.notifyAll();
+					}
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			if (running)
+				ioe.printStackTrace();
+		}
+		catch (ClosedSelectorException cse)
+		{
+			
+		}
+	}
+	
+	public long runIteration(long nanos) throws Exception
+	{
+		long delivered = 0;
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end)
+			delivered += publish();
+		return delivered;
+	}
+	
+	/**
+	**	Sends one message and waits until every subscriber has it. Only call from one thread at a time,
+	**		after <code>setUp</code>.
+	**	
+	**	@return Number of deliveries the message made, one per subscriber.
+	**	
+	**	@throws IOException If the message didn't reach every subscriber within ten seconds.
+	**	@throws InterruptedException If interrupted while waiting.
+	**/
+	public int publish() throws IOException, InterruptedException
+	{
+		long perMessage = (long) MESSAGE_SIZE * subscribers;
+		publisher.getOutputStream().write(message);
+		expected += perMessage;
+		long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+		synchronized (lock)
+		{
+			while (received < expected)
+			{
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					throw new IOException("Only " + (received - expected + perMessage) + " of " + perMessage + " bytes were delivered.");
+				lock.wait(left / 1000000 + 1);
+			}
+		}
+		return subscribers;
+	}
+	
+	public void tearDown()
+	{
+		running = false;
+		try
+		{
+			if (publisher != null)
+				publisher.close();
+			if (selector != null)
+				selector.close();
+			if (channels != null)
+			{
+				for (SocketChannel channel : channels)
+				{
+					if (channel != null)
+						channel.close();
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+		if (server != null)
+			server.stop();
+	}
+}
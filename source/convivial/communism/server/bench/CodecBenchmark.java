@@ -0,0 +1,113 @@
+package convivial.communism.server.bench;
+
+import convivial.communism.server.codec.Field;
+import convivial.communism.server.codec.MessageDecoder;
+import convivial.communism.server.codec.MessageEncoder;
+import convivial.communism.server.codec.MessageSchema;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+
+/**
+**	Chat messages encoded into a buffer and decoded again per second, with no network involved, so the
+**		suite's bytes per operation column shows what each way of doing it costs the garbage collector.
+**		The <code>string</code> variant goes the way <code>ChatServer</code> and <code>ChatClient</code> have:
+**		<code>getBytes()</code> on the way out, a CharsetDecoder, a StringBuffer and <code>toString()</code>
+**		on the way in. The <code>flyweight</code> variant writes and reads the same fields in place with a
+**		<code>MessageEncoder</code> and <code>MessageDecoder</code>. Both carry the time and room as binary
+**		numbers alongside the text, so the only difference between them is how the text is handled.
+**/
+public class CodecBenchmark extends Benchmark
+{
+	private static final String TEXT = "hello everyone, is anybody up for a game of chess in the lobby?";
+	
+	private boolean flyweight;
+	private ByteBuffer buffer;
+	private MessageSchema chat;
+	private Field sent, room, text;
+	private MessageEncoder encoder;
+	private MessageDecoder decoder;
+	private StringBuilder line;
+	private CharsetDecoder asciiDecoder;
+	private long checksum;
+	
+	/**
+	**	@param flyweight True to use the flyweight codec, false to go through Strings.
+	**/
+	public CodecBenchmark(boolean flyweight)
+	{
+		super("codec-" + (flyweight ? "flyweight" : "string"));
+		this.flyweight = flyweight;
+	}
+	
+	public void setUp()
+	{
+		buffer = ByteBuffer.allocateDirect(1024);
+		MessageSchema.Builder builder = new MessageSchema.Builder(1, "Chat");
+		sent = builder.int64("sent");
+		room = builder.int32("room");
+		text = builder.bytes("text", 512);
+		chat = builder.build();
+		encoder = new MessageEncoder();
+		decoder = new MessageDecoder();
+		line = new StringBuilder();
+		asciiDecoder = Charset.forName("US-ASCII").newDecoder();
+	}
+	
+	public long runIteration(long nanos) throws CharacterCodingException
+	{
+		long operations = 0;
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end)
+		{
+			for (int i = 0; i < 1000; ++i)
+			{
+				if (flyweight)
+					flyweight(i);
+				else
+					strings(i);
+			}
+			operations += 1000;
+		}
+		return operations;
+	}
+	
+	public void tearDown()
+	{
+		if (checksum == 42)
+			System.out.println(); // keeps the JIT from throwing the work away
+	}
+	
+	private void flyweight(int i)
+	{
+		buffer.clear();
+		encoder.wrap(chat, buffer).putLong(sent, i).putInt(room, i & 7).putAscii(text, TEXT).finish();
+		buffer.flip();
+		
+		decoder.wrap(chat, buffer);
+		line.setLength(0);
+		decoder.getAscii(text, line);
+		checksum += decoder.getLong(sent) + decoder.getInt(room) + line.length();
+	}
+	
+	private void strings(int i) throws CharacterCodingException
+	{
+		buffer.clear();
+		buffer.putLong(i).putInt(i & 7);
+		buffer.put(TEXT.getBytes());
+		buffer.putChar('\n');
+		buffer.flip();
+		
+		long sentAt = buffer.getLong();
+		int roomNumber = buffer.getInt();
+		StringBuffer sb = new StringBuffer();
+		CharBuffer chars = asciiDecoder.decode(buffer);
+		sb.append(chars.toString());
+		String received = sb.toString();
+		if (received.contains("\n"))
+			checksum += sentAt + roomNumber + received.trim().length();
+	}
+}
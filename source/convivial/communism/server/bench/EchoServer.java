@@ -0,0 +1,136 @@
+package convivial.communism.server.bench;
+
+import convivial.communism.server.tcp.ExecutionMode;
+import convivial.communism.server.tcp.Server;
+
+import java.net.InetAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+**	A Server that sends everything it receives straight back, optionally after blocking for a while
+**		in <code>receiveData</code> to stand in for handler code that talks to a database or the like.
+**		Used by the benchmarks, which start it on a thread of its own with <code>start</code>.
+**/
+public class EchoServer extends Server
+{
+	private static ExecutionMode nextMode;
+	private static int nextLoops;
+	private static long nextBlockMillis;
+	private static EchoServer started;
+	private static CountDownLatch startedLatch;
+	
+	private long blockMillis;
+	
+	/**
+	**	Starts an echo server on the loopback address, on a thread of its own, and waits until it's running.
+	**	
+	**	@param port Port to listen on.
+	**	@param mode How the server services its clients.
+	**	@param loops Number of event loops, for <code>ExecutionMode.SELECTOR</code>.
+	**	@param blockMillis How long each <code>receiveData</code> call blocks before echoing, 0 for not at all.
+	**	
+	**	@return The running server; call <code>stop()</code> when done with it.
+	**	
+	**	@throws InterruptedException If interrupted while waiting for the server to start.
+	**	@throws IllegalStateException If the server couldn't start, say because the port is taken.
+	**/
+	public static synchronized EchoServer start(final int port, ExecutionMode mode, int loops, long blockMillis) throws InterruptedException
+	{
+		nextMode = mode;
+		nextLoops = loops;
+		nextBlockMillis = blockMillis;
+		started = null;
+		final CountDownLatch latch = startedLatch = new CountDownLatch(1);
+		
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					new EchoServer(port);
+				}
+				catch (Exception e)
+				{
+					// the console went away; the server's own threads carry on
+				}
+				finally
+				{
+					// the constructor returns early if the server couldn't bind
+					latch.countDown();
+				}
+			}
+		}, "EchoServer-" + port);
+		thread.setDaemon(true);
+		thread.start();
+		
+		latch.await();
+		if (started == null)
+			throw new IllegalStateException("Couldn't start an echo server on port " + port);
+		return started;
+	}
+	
+	private EchoServer(int port)
+	{
+		super(InetAddress.getLoopbackAddress(), port);
+	}
+	
+	/**
+	**	Shuts the server down.
+	**/
+	public void stop()
+	{
+		shutdown();
+	}
+	
+	protected void init()
+	{
+		setExecutionMode(nextMode);
+		setEventLoops(nextLoops);
+		setTcpNoDelay(true);
+		blockMillis = nextBlockMillis;
+	}
+	
+	protected void started()
+	{
+		started = this;
+		startedLatch.countDown();
+	}
+	
+	protected Object getAttachment()
+	{
+		return null;
+	}
+	
+	protected void newClient(SocketChannel channel)
+	{
+	}
+	
+	protected void disconnection(SocketChannel channel)
+	{
+	}
+	
+	protected void receiveData(SelectionKey key, SocketChannel channel, long bytesRead, ByteBuffer data)
+	{
+		if (blockMillis > 0)
+		{
+			try
+			{
+				Thread.sleep(blockMillis);
+			}
+			catch (InterruptedException ie)
+			{
+				
+			}
+		}
+		channelWrite(channel, data);
+	}
+	
+	protected void receiveConsole(String input)
+	{
+	}
+}
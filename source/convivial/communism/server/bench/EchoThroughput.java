@@ -0,0 +1,116 @@
+package convivial.communism.server.bench;
+
+import convivial.communism.server.tcp.EventLoopGroup;
+import convivial.communism.server.tcp.ExecutionMode;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+**	Messages per second an <code>EchoServer</code> can echo. Each client thread keeps a window of
+**		<code>WINDOW</code> messages in flight: it writes them all at once, reads all the echoes back and
+**		goes again, so the server sees a steady pipelined load instead of one round trip at a time.
+**/
+public class EchoThroughput extends Benchmark
+{
+	/** Size of each message in bytes. **/
+	public static final int MESSAGE_SIZE = 64;
+	/** Messages each client has in flight at once. **/
+	public static final int WINDOW = 16;
+	
+	private int port;
+	private ExecutionMode mode;
+	private int clients;
+	private EchoServer server;
+	private Socket[] sockets;
+	private AtomicLong echoed;
+	private volatile boolean running;
+	
+	/**
+	**	@param port Port to run the echo server on.
+	**	@param mode How the echo server services its clients.
+	**	@param clients Number of client threads.
+	**/
+	public EchoThroughput(int port, ExecutionMode mode, int clients)
+	{
+		super("echo-" + mode.name().toLowerCase() + "-" + clients);
+		this.port = port;
+		this.mode = mode;
+		this.clients = clients;
+		echoed = new AtomicLong();
+	}
+	
+	public void setUp() throws Exception
+	{
+		server = EchoServer.start(port, mode, EventLoopGroup.defaultLoopCount(), 0);
+		running = true;
+		sockets = new Socket[clients];
+		for (int c = 0; c < clients; ++c)
+		{
+			final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setTcpNoDelay(true);
+			sockets[c] = socket;
+			
+			Thread thread = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						OutputStream out = socket.getOutputStream();
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						byte[] window = new byte[MESSAGE_SIZE * WINDOW];
+						while (running)
+						{
+							out.write(window);
+							in.readFully(window);
+							echoed.addAndGet(WINDOW);
+						}
+					}
+					catch (IOException ioe)
+					{
+						if (running)
+							ioe.printStackTrace();
+					}
+				}
+			}, "EchoClient-" + c);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	public long runIteration(long nanos) throws Exception
+	{
+		long before = echoed.get();
+		Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		return echoed.get() - before;
+	}
+	
+	public void tearDown()
+	{
+		running = false;
+		if (sockets != null)
+		{
+			for (Socket socket : sockets)
+			{
+				try
+				{
+					if (socket != null)
+						socket.close();
+				}
+				catch (IOException ioe)
+				{
+					
+				}
+			}
+		}
+		if (server != null)
+			server.stop();
+	}
+}
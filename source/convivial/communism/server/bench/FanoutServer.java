@@ -0,0 +1,136 @@
+package convivial.communism.server.bench;
+
+import convivial.communism.server.tcp.ConnectionFilter;
+import convivial.communism.server.tcp.ExecutionMode;
+import convivial.communism.server.tcp.Server;
+
+import java.net.InetAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+**	A Server that passes everything one client sends on to every other client, like
+**		<code>ChatServer</code> without the chat. Whatever arrives is copied once into a pooled buffer and
+**		handed to <code>broadcast</code>, so this measures the server's fan-out path and not the handler.
+**		Used by <code>BroadcastFanout</code>, which starts it on a thread of its own with <code>start</code>.
+**/
+public class FanoutServer extends Server
+{
+	private static int nextLoops;
+	private static FanoutServer started;
+	private static CountDownLatch startedLatch;
+	
+	/**
+	**	Starts a fan-out server on the loopback address, on a thread of its own, and waits until it's running.
+	**	
+	**	@param port Port to listen on.
+	**	@param loops Number of event loops.
+	**	
+	**	@return The running server; call <code>stop()</code> when done with it.
+	**	
+	**	@throws InterruptedException If interrupted while waiting for the server to start.
+	**	@throws IllegalStateException If the server couldn't start, say because the port is taken.
+	**/
+	public static synchronized FanoutServer start(final int port, int loops) throws InterruptedException
+	{
+		nextLoops = loops;
+		started = null;
+		final CountDownLatch latch = startedLatch = new CountDownLatch(1);
+		
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					new FanoutServer(port);
+				}
+				catch (Exception e)
+				{
+					// the console went away; the server's own threads carry on
+				}
+				finally
+				{
+					// the constructor returns early if the server couldn't bind
+					latch.countDown();
+				}
+			}
+		}, "FanoutServer-" + port);
+		thread.setDaemon(true);
+		thread.start();
+		
+		latch.await();
+		if (started == null)
+			throw new IllegalStateException("Couldn't start a fan-out server on port " + port);
+		return started;
+	}
+	
+	private FanoutServer(int port)
+	{
+		super(InetAddress.getLoopbackAddress(), port);
+	}
+	
+	/**
+	**	@return Number of clients currently connected.
+	**/
+	public int getClientCount()
+	{
+		return super.getClientCount();
+	}
+	
+	/**
+	**	Shuts the server down.
+	**/
+	public void stop()
+	{
+		shutdown();
+	}
+	
+	protected void init()
+	{
+		setExecutionMode(ExecutionMode.SELECTOR);
+		setEventLoops(nextLoops);
+		setTcpNoDelay(true);
+		setAcceptBacklog(4096);
+	}
+	
+	protected void started()
+	{
+		started = this;
+		startedLatch.countDown();
+	}
+	
+	protected Object getAttachment()
+	{
+		return null;
+	}
+	
+	protected void newClient(SocketChannel channel)
+	{
+	}
+	
+	protected void disconnection(SocketChannel channel)
+	{
+	}
+	
+	protected void receiveData(SelectionKey key, final SocketChannel channel, long bytesRead, ByteBuffer data)
+	{
+		ByteBuffer copy = getBufferPool().acquire(data.remaining());
+		copy.put(data);
+		copy.flip();
+		broadcast(copy, new ConnectionFilter()
+		{
+			public boolean accept(SocketChannel client)
+			{
+				return client != channel;
+			}
+		}, getBufferPool().releaser());
+	}
+	
+	protected void receiveConsole(String input)
+	{
+	}
+}
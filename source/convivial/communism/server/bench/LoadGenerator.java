@@ -0,0 +1,214 @@
+package convivial.communism.server.bench;
+
+import convivial.communism.server.tcp.EventLoopGroup;
+import convivial.communism.server.tcp.ExecutionMode;
+import convivial.communism.server.tcp.Histogram;
+
+import java.net.InetSocketAddress;
+
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+**	Drives load at an echo server from many simulated clients, multiplexed over a few selector threads
+**		(<code>LoadLoop</code>s) instead of a thread per client, so one machine can hold thousands of
+**		connections. Prints throughput and latency percentiles every interval and a summary at the end.
+**	
+**	<p>Usage: <code>java convivial.communism.server.bench.LoadGenerator [options]</code>, where the options are:</p>
+**	<ul>
+**		<li><code>--host name</code>, <code>--port n</code>: server to load, default localhost:20990.</li>
+**		<li><code>--local mode</code>: starts an <code>EchoServer</code> in this process first, in the given
+**			<code>ExecutionMode</code>, like <code>selector</code>.</li>
+**		<li><code>--connections n</code>: simulated clients, default 100.</li>
+**		<li><code>--threads n</code>: selector threads the clients are spread over, default the number of cores.</li>
+**		<li><code>--size bytes</code>: size of each message, default 64.</li>
+**		<li><code>--rate n</code>: messages per second over all clients, for an open-loop run. Without it the run is
+**			closed-loop.</li>
+**		<li><code>--window n</code>: messages each client keeps in flight in a closed-loop run, default 1.</li>
+**		<li><code>--warmup seconds</code>: time to run before recording, default 5.</li>
+**		<li><code>--duration seconds</code>: time to record for, default 30.</li>
+**		<li><code>--interval seconds</code>: time between progress reports, default 5.</li>
+**	</ul>
+**	
+**	<p>The server must answer every message with as many bytes as it was sent, like <code>EchoServer</code>.
+**		Latencies are kept in <code>Histogram</code>s, so percentiles are accurate to within 12.5%.</p>
+**/
+public class LoadGenerator
+{
+	private LongAdder sent;
+	private LongAdder answered;
+	private LongAdder disconnects;
+	private Histogram total;
+	private volatile Histogram interval;
+	private volatile boolean recording;
+	
+	private LoadGenerator()
+	{
+		sent = new LongAdder();
+		answered = new LongAdder();
+		disconnects = new LongAdder();
+		total = new Histogram();
+		interval = new Histogram();
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		String host = "localhost";
+		int port = 20990;
+		String local = null;
+		int connections = 100;
+		int threads = EventLoopGroup.defaultLoopCount();
+		int size = 64;
+		double rate = 0;
+		int window = 1;
+		long warmup = 5;
+		long duration = 30;
+		long every = 5;
+		
+		for (int i = 0; i < args.length; ++i)
+		{
+			String option = args[i];
+			if (i + 1 == args.length)
+				throw new IllegalArgumentException("No value given for " + option);
+			String value = args[++i];
+			
+			if (option.equals("--host"))
+				host = value;
+			else if (option.equals("--port"))
+				port = Integer.parseInt(value);
+			else if (option.equals("--local"))
+				local = value;
+			else if (option.equals("--connections"))
+				connections = Integer.parseInt(value);
+			else if (option.equals("--threads"))
+				threads = Integer.parseInt(value);
+			else if (option.equals("--size"))
+				size = Integer.parseInt(value);
+			else if (option.equals("--rate"))
+				rate = Double.parseDouble(value);
+			else if (option.equals("--window"))
+				window = Integer.parseInt(value);
+			else if (option.equals("--warmup"))
+				warmup = Long.parseLong(value);
+			else if (option.equals("--duration"))
+				duration = Long.parseLong(value);
+			else if (option.equals("--interval"))
+				every = Long.parseLong(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		}
+		threads = Math.max(1, Math.min(threads, connections));
+		
+		EchoServer server = null;
+		if (local != null)
+		{
+			host = "localhost";
+			server = EchoServer.start(port, ExecutionMode.valueOf(local.toUpperCase()), EventLoopGroup.defaultLoopCount(), 0);
+		}
+		
+		System.out.println(connections + " connections over " + threads + " threads to " + host + ":" + port + ", " + size + " byte messages, "
+			+ (rate > 0 ? "open loop at " + rate + " messages/s" : "closed loop with " + window + " in flight per connection"));
+		
+		LoadGenerator generator = new LoadGenerator();
+		LoadLoop[] loops = new LoadLoop[threads];
+		for (int t = 0; t < threads; ++t)
+			loops[t] = new LoadLoop("LoadLoop-" + t, generator, size, window, rate / threads);
+		
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		for (int c = 0; c < connections; ++c)
+		{
+			SocketChannel channel = SocketChannel.open(address);
+			channel.socket().setTcpNoDelay(true);
+			loops[c % threads].add(channel);
+		}
+		
+		for (LoadLoop loop : loops)
+			loop.start();
+		generator.run(warmup, duration, every);
+		
+		for (LoadLoop loop : loops)
+			loop.shutdown();
+		if (server != null)
+			server.stop();
+		System.exit(0);
+	}
+	
+	private void run(long warmup, long duration, long every) throws InterruptedException
+	{
+		Thread.sleep(warmup * 1000);
+		interval = new Histogram();
+		total.reset();
+		long sentBefore = sent.sum();
+		long answeredBefore = answered.sum();
+		recording = true;
+		
+		System.out.println(String.format("%8s %12s %12s %10s %10s %10s %10s", "time s", "sent/s", "answered/s", "p50 us", "p99 us", "p99.9 us", "max us"));
+		long start = System.nanoTime();
+		long end = start + duration * 1000000000L;
+		long last = start;
+		long lastSent = sentBefore;
+		long lastAnswered = answeredBefore;
+		while (true)
+		{
+			long now = System.nanoTime();
+			if (now >= end)
+				break;
+			Thread.sleep(Math.min(every * 1000, (end - now) / 1000000 + 1));
+			
+			now = System.nanoTime();
+			Histogram finished = interval;
+			interval = new Histogram();
+			long sentNow = sent.sum();
+			long answeredNow = answered.sum();
+			print((now - start) / 1e9, (sentNow - lastSent) * 1e9 / (now - last), (answeredNow - lastAnswered) * 1e9 / (now - last), finished);
+			last = now;
+			lastSent = sentNow;
+			lastAnswered = answeredNow;
+		}
+		recording = false;
+		
+		double seconds = (last - start) / 1e9;
+		System.out.println("---");
+		print(seconds, (lastSent - sentBefore) / seconds, (lastAnswered - answeredBefore) / seconds, total);
+		System.out.println(String.format("%d answered, mean %.1f us, %d disconnections", total.getCount(), total.getMean() / 1e3, disconnects.sum()));
+	}
+	
+	private static void print(double time, double sentRate, double answeredRate, Histogram latencies)
+	{
+		System.out.println(String.format("%8.1f %12.0f %12.0f %10.1f %10.1f %10.1f %10.1f", time, sentRate, answeredRate,
+			latencies.getValueAtPercentile(50) / 1e3, latencies.getValueAtPercentile(99) / 1e3,
+			latencies.getValueAtPercentile(99.9) / 1e3, latencies.getMax() / 1e3));
+	}
+	
+	/**
+	**	Counts a message sent by one of the loops.
+	**/
+	void sent()
+	{
+		sent.increment();
+	}
+	
+	/**
+	**	Records how long a message took to be answered.
+	**	
+	**	@param nanos Time from the message being sent, or due to be sent, to its answer arriving.
+	**/
+	void answered(long nanos)
+	{
+		answered.increment();
+		if (recording)
+		{
+			interval.record(nanos);
+			total.record(nanos);
+		}
+	}
+	
+	/**
+	**	Counts a connection closed by the server or by an error.
+	**/
+	void disconnected()
+	{
+		disconnects.increment();
+	}
+}
@@ -0,0 +1,277 @@
+package convivial.communism.server.bench;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+**	One of <code>LoadGenerator</code>'s threads: a Selector driving its share of the simulated clients.
+**		Every message is answered by exactly as many bytes coming back, as an echo server does, so each
+**		connection only has to remember when each outstanding message was sent to know how long its
+**		answer took.
+**	
+**	<p>In closed-loop mode each connection keeps <code>window</code> messages in flight and sends a new
+**		one whenever an answer arrives. In open-loop mode the loop sends messages on a fixed schedule,
+**		spread over its connections in turn, whether or not earlier ones have been answered, and times
+**		each answer from when its message was <i>due</i> to be sent; so a server that stalls is charged
+**		for the whole stall instead of hiding it by slowing the generator down.</p>
+**/
+class LoadLoop extends Thread
+{
+	/**
+	**	A simulated client: its channel, data waiting to be written, and the send times of its unanswered messages.
+	**/
+	private static class Client
+	{
+		SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer output;
+		long[] sent;
+		int sentHead;
+		int sentCount;
+		long partial;
+		
+		Client(SocketChannel channel, int messageSize)
+		{
+			this.channel = channel;
+			output = ByteBuffer.allocateDirect(messageSize * 64);
+			output.flip();
+			sent = new long[64];
+		}
+		
+		void sent(long time)
+		{
+			if (sentCount == sent.length)
+			{
+				long[] bigger = new long[sent.length * 2];
+				for (int i = 0; i < sentCount; ++i)
+					bigger[i] = sent[(sentHead + i) % sent.length];
+				sent = bigger;
+				sentHead = 0;
+			}
+			sent[(sentHead + sentCount) % sent.length] = time;
+			++sentCount;
+		}
+		
+		long answered()
+		{
+			long time = sent[sentHead];
+			sentHead = (sentHead + 1) % sent.length;
+			--sentCount;
+			return time;
+		}
+	}
+	
+	private Selector selector;
+	private List<Client> clients;
+	private byte[] message;
+	private int window;
+	private long periodNanos;
+	private LoadGenerator generator;
+	private volatile boolean running;
+	
+	/**
+	**	@param name Name of the thread.
+	**	@param generator Generator that records the latencies.
+	**	@param messageSize Size of each message in bytes.
+	**	@param window Messages each connection keeps in flight, for closed-loop mode.
+	**	@param rate Messages per second this loop sends in total, or 0 for closed-loop mode.
+	**	
+	**	@throws IOException If the Selector could not be opened.
+	**/
+	LoadLoop(String name, LoadGenerator generator, int messageSize, int window, double rate) throws IOException
+	{
+		super(name);
+		setDaemon(true);
+		this.generator = generator;
+		this.window = window;
+		message = new byte[messageSize];
+		periodNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+		selector = Selector.open();
+		clients = new ArrayList<Client>();
+	}
+	
+	/**
+	**	Hands a connected channel to this loop. Only call before the loop is started.
+	**	
+	**	@param channel Connected channel; it's made non-blocking.
+	**	
+	**	@throws IOException If the channel could not be registered.
+	**/
+	void add(SocketChannel channel) throws IOException
+	{
+		Client client = new Client(channel, message.length);
+		channel.configureBlocking(false);
+		client.key = channel.register(selector, SelectionKey.OP_READ, client);
+		clients.add(client);
+	}
+	
+	/**
+	**	Stops the loop and closes its connections.
+	**/
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+	
+	public void run()
+	{
+		running = true;
+		ByteBuffer input = ByteBuffer.allocateDirect(64 * 1024);
+		long next = System.nanoTime();
+		int turn = 0;
+		try
+		{
+			if (periodNanos == 0)
+			{
+				for (Client client : clients)
+				{
+					for (int i = 0; i < window; ++i)
+						send(client, System.nanoTime());
+				}
+			}
+			
+			while (running)
+			{
+				if (periodNanos == 0)
+					selector.select();
+				else
+				{
+					long wait = next - System.nanoTime();
+					if (wait >= 1000000)
+						selector.select(wait / 1000000);
+					else
+						selector.selectNow();
+					
+					long now = System.nanoTime();
+					while (next <= now && !clients.isEmpty())
+					{
+						send(clients.get(turn), next);
+						turn = (turn + 1) % clients.size();
+						next += periodNanos;
+					}
+				}
+				
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext())
+				{
+					SelectionKey key = i.next();
+					i.remove();
+					
+					Client client = (Client) key.attachment();
+					if (key.isValid() && key.isWritable())
+						flush(client);
+					if (key.isValid() && key.isReadable())
+						read(client, input);
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			if (running)
+				ioe.printStackTrace();
+		}
+		catch (ClosedSelectorException cse)
+		{
+			
+		}
+		
+		for (Client client : clients)
+		{
+			try
+			{
+				client.channel.close();
+			}
+			catch (IOException ioe)
+			{
+				
+			}
+		}
+		try
+		{
+			selector.close();
+		}
+		catch (IOException ioe)
+		{
+			
+		}
+	}
+	
+	private void send(Client client, long time) throws IOException
+	{
+		if (!client.channel.isOpen())
+			return;
+		
+		ByteBuffer output = client.output;
+		if (output.capacity() - output.remaining() < message.length)
+		{
+			ByteBuffer bigger = ByteBuffer.allocateDirect(output.capacity() * 2);
+			bigger.put(output);
+			bigger.flip();
+			output = bigger;
+			client.output = bigger;
+		}
+		output.compact();
+		output.put(message);
+		output.flip();
+		client.sent(time);
+		generator.sent();
+		flush(client);
+	}
+	
+	private void flush(Client client) throws IOException
+	{
+		try
+		{
+			client.channel.write(client.output);
+		}
+		catch (IOException ioe)
+		{
+			close(client);
+			return;
+		}
+		client.key.interestOps(client.output.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+	
+	private void read(Client client, ByteBuffer input) throws IOException
+	{
+		int read;
+		try
+		{
+			input.clear();
+			read = client.channel.read(input);
+		}
+		catch (IOException ioe)
+		{
+			read = -1;
+		}
+		if (read < 0)
+		{
+			close(client);
+			return;
+		}
+		
+		long now = System.nanoTime();
+		client.partial += read;
+		while (client.partial >= message.length && client.sentCount > 0)
+		{
+			client.partial -= message.length;
+			generator.answered(now - client.answered());
+			if (periodNanos == 0)
+				send(client, now);
+		}
+	}
+	
+	private void close(Client client) throws IOException
+	{
+		client.key.cancel();
+		client.channel.close();
+		generator.disconnected();
+	}
+}
@@ -0,0 +1,111 @@
+package convivial.communism.server.bench;
+
+import convivial.communism.server.tcp.EventLoopGroup;
+import convivial.communism.server.tcp.ExecutionMode;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+**	Compares <code>ExecutionMode.SELECTOR</code> with <code>ExecutionMode.THREAD_PER_CONNECTION</code> on
+**		the same workload: a number of clients, each doing request/response round trips against an
+**		<code>EchoServer</code> whose handler optionally blocks for a while on every message. Prints
+**		round trips per second and mean round-trip time for each mode.
+**	
+**	<p>Usage: <code>java convivial.communism.server.bench.ModeBenchmark [clients] [roundTrips] [blockMillis]</code>,
+**		defaulting to 100 clients doing 200 round trips each against a handler that doesn't block. Try a
+**		<code>blockMillis</code> of 1 or more to see why blocking handlers want thread-per-connection.</p>
+**/
+public class ModeBenchmark
+{
+	private static final int MESSAGE_SIZE = 64;
+	private static final int BASE_PORT = 20997;
+	
+	public static void main(String[] args) throws Exception
+	{
+		int clients = args.length >= 1 ? Integer.parseInt(args[0]) : 100;
+		int roundTrips = args.length >= 2 ? Integer.parseInt(args[1]) : 200;
+		long blockMillis = args.length >= 3 ? Long.parseLong(args[2]) : 0;
+		
+		System.out.println(clients + " clients x " + roundTrips + " round trips of " + MESSAGE_SIZE + " bytes, handler blocks " + blockMillis + " ms");
+		System.out.println("mode                   round trips/s   mean rtt (us)");
+		
+		int port = BASE_PORT;
+		for (ExecutionMode mode : ExecutionMode.values())
+		{
+			EchoServer server = EchoServer.start(port, mode, EventLoopGroup.defaultLoopCount(), blockMillis);
+			run(mode, port, clients, roundTrips / 10, false); // warm up
+			run(mode, port, clients, roundTrips, true);
+			server.stop();
+			++port;
+		}
+		System.exit(0);
+	}
+	
+	private static void run(ExecutionMode mode, final int port, int clients, final int roundTrips, boolean report) throws Exception
+	{
+		final CountDownLatch ready = new CountDownLatch(clients);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(clients);
+		final AtomicLong totalNanos = new AtomicLong();
+		
+		for (int c = 0; c < clients; ++c)
+		{
+			new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+						socket.setTcpNoDelay(true);
+						OutputStream out = socket.getOutputStream();
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						byte[] message = new byte[MESSAGE_SIZE];
+						
+						ready.countDown();
+						go.await();
+						long spent = 0;
+						for (int i = 0; i < roundTrips; ++i)
+						{
+							long start = System.nanoTime();
+							out.write(message);
+							in.readFully(message);
+							spent += System.nanoTime() - start;
+						}
+						totalNanos.addAndGet(spent);
+						socket.close();
+					}
+					catch (IOException ioe)
+					{
+						ioe.printStackTrace();
+					}
+					catch (InterruptedException ie)
+					{
+						
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		
+		ready.await();
+		long start = System.nanoTime();
+		go.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		
+		if (report)
+		{
+			long total = (long) clients * roundTrips;
+			System.out.println(String.format("%-22s %14.0f %15.1f", mode, total * 1e9 / elapsed, totalNanos.get() / 1e3 / total));
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package convivial.communism.server.bench;
+
+import convivial.communism.server.ServerListener;
+import convivial.communism.server.tcp.EventLoopGroup;
+import convivial.communism.server.tcp.ExecutionMode;
+import convivial.communism.server.tcp.Histogram;
+import convivial.communism.server.tcp.ServerConnection;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+**	Round trips per second, and how long they take, between a <code>ServerConnection</code> and an
+**		<code>EchoServer</code>: send a message, wait for the echo, repeat. Besides the rate it reports the
+**		mean, median, 99th and 99.9th percentile round-trip times of the measured iterations.
+**/
+public class RoundTripLatency extends Benchmark implements ServerListener
+{
+	/** Size of each message in bytes. **/
+	public static final int MESSAGE_SIZE = 64;
+	
+	private static final long ECHO_TIMEOUT_NANOS = 10000000000L;
+	
+	private int port;
+	private EchoServer server;
+	private ServerConnection connection;
+	private Histogram latencies;
+	private ByteBuffer message;
+	private volatile Thread waiter;
+	private volatile long received;
+	
+	/**
+	**	@param port Port to run the echo server on.
+	**/
+	public RoundTripLatency(int port)
+	{
+		super("roundtrip");
+		this.port = port;
+		latencies = new Histogram();
+	}
+	
+	public void setUp() throws Exception
+	{
+		server = EchoServer.start(port, ExecutionMode.SELECTOR, EventLoopGroup.defaultLoopCount(), 0);
+		connection = new ServerConnection(this);
+		connection.setTcpNoDelay(true);
+		connection.connect("localhost", port, null);
+		message = connection.getBufferPool().acquire(MESSAGE_SIZE);
+	}
+	
+	public long runIteration(long nanos) throws Exception
+	{
+		long roundTrips = 0;
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end)
+		{
+			latencies.record(roundTrip());
+			++roundTrips;
+		}
+		return roundTrips;
+	}
+	
+	/**
+	**	Sends one message and waits for its echo. Only call from one thread at a time, after <code>setUp</code>.
+	**	
+	**	@return How long the round trip took, in nanoseconds.
+	**	
+	**	@throws IOException If the echo doesn't come back within ten seconds.
+	**/
+	public long roundTrip() throws IOException
+	{
+		long target = received + MESSAGE_SIZE;
+		message.clear().limit(MESSAGE_SIZE);
+		waiter = Thread.currentThread();
+		try
+		{
+			long start = System.nanoTime();
+			connection.send(message);
+			while (received < target)
+			{
+				LockSupport.parkNanos(this, ECHO_TIMEOUT_NANOS);
+				if (received < target && System.nanoTime() - start >= ECHO_TIMEOUT_NANOS)
+					throw new IOException("No echo within " + (ECHO_TIMEOUT_NANOS / 1000000) + " ms.");
+			}
+			return System.nanoTime() - start;
+		}
+		finally
+		{
+			waiter = null;
+		}
+	}
+	
+	public void reset()
+	{
+		latencies.reset();
+	}
+	
+	public void results(Map<String, Double> results)
+	{
+		results.put("mean.us", latencies.getMean() / 1e3);
+		results.put("p50.us", latencies.getValueAtPercentile(50) / 1e3);
+		results.put("p99.us", latencies.getValueAtPercentile(99) / 1e3);
+		results.put("p999.us", latencies.getValueAtPercentile(99.9) / 1e3);
+	}
+	
+	public void tearDown()
+	{
+		if (connection != null)
+		{
+			try
+			{
+				connection.disconnect();
+			}
+			catch (IllegalStateException ise)
+			{
+				
+			}
+			if (message != null)
+				connection.getBufferPool().release(message);
+		}
+		if (server != null)
+			server.stop();
+	}
+	
+	public void disconnected()
+	{
+	}
+	
+	public void receiveData(SelectionKey key, SocketChannel channel, long bytesRead, ByteBuffer data)
+	{
+		received += data.remaining();
+		Thread thread = waiter;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+}
@@ -0,0 +1,119 @@
+package convivial.communism.server.codec;
+
+/**
+**	A field of a <code>MessageSchema</code>, handed out by the schema's <code>Builder</code>. Keep the
+**		handle and pass it to a <code>MessageEncoder</code> or <code>MessageDecoder</code> to reach the field;
+**		the handle already knows where the field lives, so nothing is looked up by name per message.
+**/
+public final class Field
+{
+	/**
+	**	What a field holds and how many bytes it takes in the message's fixed block.
+	**/
+	public enum Type
+	{
+		/** A signed byte. **/
+		INT8(1),
+		/** A signed 16-bit integer. **/
+		INT16(2),
+		/** A signed 32-bit integer. **/
+		INT32(4),
+		/** A signed 64-bit integer. **/
+		INT64(8),
+		/** A 64-bit floating point number. **/
+		FLOAT64(8),
+		/** Up to 65535 bytes, after the fixed block behind a two byte length. **/
+		BYTES(0);
+		
+		private final int size;
+		
+		private Type(int size)
+		{
+			this.size = size;
+		}
+		
+		/**
+		**	@return Bytes the type takes in the fixed block, 0 for variable-length types.
+		**/
+		public int size()
+		{
+			return size;
+		}
+	}
+	
+	private String name;
+	private Type type;
+	private int offset;
+	private int index;
+	private int maxLength;
+	MessageSchema schema;
+	
+	/**
+	**	@param name Name of the field, for messages and <code>toString()</code>.
+	**	@param type What the field holds.
+	**	@param offset Offset in the fixed block, or -1 for variable-length fields.
+	**	@param index Position among the schema's variable-length fields, or -1 for fixed ones.
+	**	@param maxLength Longest value of a variable-length field.
+	**/
+	Field(String name, Type type, int offset, int index, int maxLength)
+	{
+		this.name = name;
+		this.type = type;
+		this.offset = offset;
+		this.index = index;
+		this.maxLength = maxLength;
+	}
+	
+	/**
+	**	@return Name of the field.
+	**/
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	**	@return What the field holds.
+	**/
+	public Type getType()
+	{
+		return type;
+	}
+	
+	/**
+	**	@return The schema the field belongs to, null until the schema is built.
+	**/
+	public MessageSchema getSchema()
+	{
+		return schema;
+	}
+	
+	/**
+	**	@return Longest value of a variable-length field, 0 for fixed ones.
+	**/
+	public int getMaxLength()
+	{
+		return maxLength;
+	}
+	
+	/**
+	**	@return Offset of a fixed field from the start of the fixed block, -1 for variable-length ones.
+	**/
+	int offset()
+	{
+		return offset;
+	}
+	
+	/**
+	**	@return Position among the schema's variable-length fields, -1 for fixed ones.
+	**/
+	int index()
+	{
+		return index;
+	}
+	
+	public String toString()
+	{
+		return name + ":" + type;
+	}
+}
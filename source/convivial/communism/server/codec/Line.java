@@ -0,0 +1,145 @@
+package convivial.communism.server.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+**	One line handed out by a <code>LineDecoder</code>: a view of the line's bytes where they already are,
+**		without the line break. Nothing is decoded until it's asked for. <code>charAt</code> reads a byte
+**		and turns it into a character on the spot, one character per byte, with bytes outside US-ASCII read
+**		as '?'; <code>toString</code> is the only thing that makes a String.
+**	
+**	<p>The decoder reuses the same <code>Line</code> for every line and its bytes may be overwritten by the
+**		next read, so a line is only valid until the decoder's next <code>nextLine</code>. Call
+**		<code>toString</code> on anything that needs to live longer.</p>
+**/
+public final class Line implements CharSequence
+{
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+	
+	Line()
+	{
+	}
+	
+	void set(ByteBuffer buffer, int offset, int length)
+	{
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	/**
+	**	@return Number of bytes, and characters, in the line.
+	**/
+	public int length()
+	{
+		return length;
+	}
+	
+	/**
+	**	@param index Position in the line, from 0.
+	**	
+	**	@return The byte at that position, as a character.
+	**/
+	public char charAt(int index)
+	{
+		byte b = byteAt(index);
+		return b >= 0 ? (char) b : '?';
+	}
+	
+	/**
+	**	@param index Position in the line, from 0.
+	**	
+	**	@return The raw byte at that position.
+	**/
+	public byte byteAt(int index)
+	{
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException("Index " + index + " is outside a line of " + length + " bytes");
+		return buffer.get(offset + index);
+	}
+	
+	/**
+	**	@return A String copy of part of the line.
+	**/
+	public CharSequence subSequence(int start, int end)
+	{
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException("Range " + start + " to " + end + " is outside a line of " + length + " bytes");
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; ++i)
+			sb.append(charAt(i));
+		return sb.toString();
+	}
+	
+	/**
+	**	Compares the line to some text without making a String, ignoring case and any whitespace around
+	**		the line, the way <code>line.toString().trim().equalsIgnoreCase(text)</code> would.
+	**	
+	**	@param text Text to compare to, with no whitespace around it.
+	**	
+	**	@return True if the line holds the text.
+	**/
+	public boolean matches(CharSequence text)
+	{
+		int start = 0;
+		int end = length;
+		while (start < end && charAt(start) <= ' ')
+			++start;
+		while (end > start && charAt(end - 1) <= ' ')
+			--end;
+		if (end - start != text.length())
+			return false;
+		
+		for (int i = start; i < end; ++i)
+		{
+			char a = charAt(i);
+			char b = text.charAt(i - start);
+			if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	**	@return The buffer holding the line's bytes, for reading them in place.
+	**/
+	public ByteBuffer getBuffer()
+	{
+		return buffer;
+	}
+	
+	/**
+	**	@return Index in <code>getBuffer()</code> of the line's first byte.
+	**/
+	public int getOffset()
+	{
+		return offset;
+	}
+	
+	/**
+	**	Copies the line's bytes into a buffer.
+	**	
+	**	@param destination Buffer in write mode; the bytes are put at its position, which is moved past them.
+	**	
+	**	@return Number of bytes copied.
+	**/
+	public int getBytes(ByteBuffer destination)
+	{
+		for (int i = 0; i < length; ++i)
+			destination.put(buffer.get(offset + i));
+		return length;
+	}
+	
+	/**
+	**	@return The line decoded into a new String.
+	**/
+	public String toString()
+	{
+		char[] chars = new char[length];
+		for (int i = 0; i < length; ++i)
+			chars[i] = charAt(i);
+		return new String(chars);
+	}
+}
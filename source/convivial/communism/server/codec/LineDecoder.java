@@ -0,0 +1,181 @@
+package convivial.communism.server.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+**	Splits a stream of bytes into lines ended by LF, CR or CR LF, however the bytes happen to arrive off
+**		the network. Give every connection its own decoder, as its attachment say, and feed it each read:
+**	
+**	<pre>
+**	Line line;
+**	while ((line = decoder.nextLine(data)) != null)
+**		handle(line);
+**	</pre>
+**	
+**	<p>Every complete line in the read comes out, not just the first. Each byte is looked at once: a line
+**		that's all in one read is handed out where it lies, and only the start of a line that's still
+**		waiting on the rest of it gets copied aside, so a long line arriving in many small reads costs no
+**		more than it would in one. Lines are handed out as a <code>Line</code>, a CharSequence over the raw
+**		bytes that doesn't make a String until asked to.</p>
+**	
+**	<p>A peer that never sends a line break would otherwise make the decoder hold on to everything it
+**		sends, so lines longer than the maximum fail with a <code>LineTooLongException</code>.</p>
+**/
+public class LineDecoder
+{
+	/** Longest line accepted when using the no-argument constructor, in bytes. **/
+	public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+	
+	private static final int INITIAL_PENDING = 256;
+	
+	private int maxLineLength;
+	private ByteBuffer pending;
+	private boolean pendingHandedOut;
+	private boolean skipLineFeed;
+	private Line line;
+	
+	/**
+	**	Creates a decoder accepting lines of up to <code>DEFAULT_MAX_LINE_LENGTH</code> bytes.
+	**/
+	public LineDecoder()
+	{
+		this(DEFAULT_MAX_LINE_LENGTH);
+	}
+	
+	/**
+	**	@param maxLineLength Longest line accepted, in bytes, not counting the line break.
+	**/
+	public LineDecoder(int maxLineLength)
+	{
+		if (maxLineLength < 1)
+			throw new IllegalArgumentException("Maximum line length must be at least 1, got " + maxLineLength);
+		
+		this.maxLineLength = maxLineLength;
+		line = new Line();
+	}
+	
+	/**
+	**	@return Longest line accepted, in bytes.
+	**/
+	public int getMaxLineLength()
+	{
+		return maxLineLength;
+	}
+	
+	/**
+	**	@return Bytes of an unfinished line held on to from earlier reads.
+	**/
+	public int getPendingLength()
+	{
+		return pending == null || pendingHandedOut ? 0 : pending.position();
+	}
+	
+	/**
+	**	Takes the next complete line off the front of the buffer, if there is one. Bytes of a line that
+	**		isn't complete yet are kept and the buffer is used up, so call this until it returns null and
+	**		then give the decoder the next read.
+	**	
+	**	@param in Buffer in read mode; its position is moved past the line and its line break.
+	**	
+	**	@return The line without its line break, valid until the next call; null once the buffer holds no
+	**		more complete lines.
+	**	
+	**	@throws LineTooLongException If a line runs past the maximum. The unfinished line is dropped.
+	**/
+	public Line nextLine(ByteBuffer in) throws LineTooLongException
+	{
+		if (pendingHandedOut)
+		{
+			pending.clear();
+			pendingHandedOut = false;
+		}
+		if (skipLineFeed && in.hasRemaining())
+		{
+			// the last read ended on a CR; a LF starting this one belongs to the same line break
+			skipLineFeed = false;
+			if (in.get(in.position()) == '\n')
+				in.position(in.position() + 1);
+		}
+		
+		int start = in.position();
+		int limit = in.limit();
+		for (int i = start; i < limit; ++i)
+		{
+			byte b = in.get(i);
+			if (b != '\n' && b != '\r')
+				continue;
+			
+			int next = i + 1;
+			if (b == '\r')
+			{
+				if (next == limit)
+					skipLineFeed = true;
+				else if (in.get(next) == '\n')
+					++next;
+			}
+			in.position(next);
+			
+			int length = i - start;
+			if (pending == null || pending.position() == 0)
+			{
+				checkLength(length);
+				line.set(in, start, length);
+			}
+			else
+			{
+				keep(in, start, length);
+				line.set(pending, 0, pending.position());
+				pendingHandedOut = true;
+			}
+			return line;
+		}
+		
+		keep(in, start, limit - start);
+		in.position(limit);
+		return null;
+	}
+	
+	/**
+	**	Forgets any unfinished line, for when the connection the decoder belongs to starts over.
+	**/
+	public void reset()
+	{
+		if (pending != null)
+			pending.clear();
+		pendingHandedOut = false;
+		skipLineFeed = false;
+	}
+	
+	private void keep(ByteBuffer in, int from, int length) throws LineTooLongException
+	{
+		if (length == 0)
+			return;
+		
+		int held = pending == null ? 0 : pending.position();
+		checkLength(held + length);
+		if (pending == null || pending.remaining() < length)
+		{
+			int capacity = pending == null ? Math.min(INITIAL_PENDING, maxLineLength) : pending.capacity();
+			while (capacity < held + length)
+				capacity = (int) Math.min((long) capacity * 2, maxLineLength);
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			if (pending != null)
+			{
+				pending.flip();
+				grown.put(pending);
+			}
+			pending = grown;
+		}
+		for (int i = 0; i < length; ++i)
+			pending.put(in.get(from + i));
+	}
+	
+	private void checkLength(int length) throws LineTooLongException
+	{
+		if (length > maxLineLength)
+		{
+			reset();
+			throw new LineTooLongException(length, maxLineLength);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package convivial.communism.server.codec;
+
+import java.io.IOException;
+
+/**
+**	Thrown when a peer sends more bytes without a line break than the <code>LineDecoder</code> allows.
+**		Whatever the peer is doing, it isn't sending lines, so the connection should be closed.
+**/
+public class LineTooLongException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	**	@param length Bytes received so far without a line break.
+	**	@param maximum Longest line the decoder accepts.
+	**/
+	public LineTooLongException(int length, int maximum)
+	{
+		super("Line of at least " + length + " bytes is longer than the maximum of " + maximum + " bytes");
+	}
+}
@@ -0,0 +1,308 @@
+package convivial.communism.server.codec;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+**	Reads messages of a <code>MessageSchema</code> straight out of a ByteBuffer, one field at a time and
+**		in place, without creating any objects. A decoder is a flyweight: <code>wrap</code> points it at a
+**		message in a buffer, and the <code>get</code> methods read fields at their offsets. Nothing is
+**		copied and the buffer's position isn't moved, so a frame handed to <code>receiveFrame</code> can be
+**		read as it is; keep one decoder per thread and wrap it again for every message.
+**	
+**	<p>To tell message types apart, look at <code>templateId(ByteBuffer)</code> before wrapping. Fixed
+**		fields a message is too old to have read as 0. Variable-length fields may be read in any order;
+**		where each one starts is worked out as they're asked for and remembered until the next wrap.</p>
+**	
+**	<pre>
+**	if (MessageDecoder.templateId(frame) == chat.getTemplateId())
+**	{
+**		decoder.wrap(chat, frame);
+**		long when = decoder.getLong(sent);
+**		decoder.getAscii(text, line); // appends to a reused StringBuilder
+**	}
+**	</pre>
+**/
+public class MessageDecoder
+{
+	private ByteBuffer buffer;
+	private ByteBuffer view, viewed;
+	private MessageSchema schema;
+	private int offset;
+	private int blockLength;
+	private int[] varOffsets;
+	private int resolvedVars;
+	private boolean swap;
+	
+	/**
+	**	Creates a decoder that isn't pointed at anything yet; call <code>wrap</code> first.
+	**/
+	public MessageDecoder()
+	{
+		varOffsets = new int[4];
+	}
+	
+	/**
+	**	Peeks at the template ID of the message at the buffer's position.
+	**	
+	**	@param buffer Buffer in read mode holding at least a message header.
+	**	
+	**	@return The message's template ID, 0 to 65535.
+	**	
+	**	@throws BufferUnderflowException If the buffer doesn't hold a whole header.
+	**/
+	public static int templateId(ByteBuffer buffer)
+	{
+		if (buffer.remaining() < MessageSchema.HEADER_LENGTH)
+			throw new BufferUnderflowException();
+		
+		short id = buffer.getShort(buffer.position());
+		if (buffer.order() != ByteOrder.BIG_ENDIAN)
+			id = Short.reverseBytes(id);
+		return id & 0xFFFF;
+	}
+	
+	/**
+	**	Points the decoder at the message starting at the buffer's position.
+	**	
+	**	@param schema Type of message the buffer holds.
+	**	@param buffer Buffer in read mode; the message lies between its position and limit.
+	**	
+	**	@return This decoder.
+	**	
+	**	@throws IllegalArgumentException If the message isn't of the schema's type.
+	**	@throws BufferUnderflowException If the buffer doesn't hold the header and fixed block.
+	**/
+	public MessageDecoder wrap(MessageSchema schema, ByteBuffer buffer)
+	{
+		int id = templateId(buffer);
+		if (id != schema.getTemplateId())
+			throw new IllegalArgumentException("Message has template ID " + id + ", not " + schema.getTemplateId() + " (" + schema.getName() + ")");
+		
+		this.buffer = buffer;
+		this.schema = schema;
+		swap = buffer.order() != ByteOrder.BIG_ENDIAN;
+		offset = buffer.position();
+		blockLength = readShort(offset + 2) & 0xFFFF;
+		if (offset + MessageSchema.HEADER_LENGTH + blockLength > buffer.limit())
+			throw new BufferUnderflowException();
+		
+		if (varOffsets.length < schema.getVarFieldCount())
+			varOffsets = new int[schema.getVarFieldCount()];
+		resolvedVars = 0;
+		return this;
+	}
+	
+	/**
+	**	@param field An <code>INT8</code> field of the wrapped schema.
+	**	
+	**	@return The field's value, 0 if the message is too old to have it.
+	**/
+	public byte getByte(Field field)
+	{
+		int at = at(field, Field.Type.INT8);
+		return at < 0 ? 0 : buffer.get(at);
+	}
+	
+	/**
+	**	@param field An <code>INT16</code> field of the wrapped schema.
+	**	
+	**	@return The field's value, 0 if the message is too old to have it.
+	**/
+	public short getShort(Field field)
+	{
+		int at = at(field, Field.Type.INT16);
+		return at < 0 ? 0 : readShort(at);
+	}
+	
+	/**
+	**	@param field An <code>INT32</code> field of the wrapped schema.
+	**	
+	**	@return The field's value, 0 if the message is too old to have it.
+	**/
+	public int getInt(Field field)
+	{
+		int at = at(field, Field.Type.INT32);
+		if (at < 0)
+			return 0;
+		int value = buffer.getInt(at);
+		return swap ? Integer.reverseBytes(value) : value;
+	}
+	
+	/**
+	**	@param field An <code>INT64</code> field of the wrapped schema.
+	**	
+	**	@return The field's value, 0 if the message is too old to have it.
+	**/
+	public long getLong(Field field)
+	{
+		int at = at(field, Field.Type.INT64);
+		if (at < 0)
+			return 0;
+		long value = buffer.getLong(at);
+		return swap ? Long.reverseBytes(value) : value;
+	}
+	
+	/**
+	**	@param field A <code>FLOAT64</code> field of the wrapped schema.
+	**	
+	**	@return The field's value, 0 if the message is too old to have it.
+	**/
+	public double getDouble(Field field)
+	{
+		int at = at(field, Field.Type.FLOAT64);
+		if (at < 0)
+			return 0;
+		long bits = buffer.getLong(at);
+		return Double.longBitsToDouble(swap ? Long.reverseBytes(bits) : bits);
+	}
+	
+	/**
+	**	@param field A <code>BYTES</code> field of the wrapped schema.
+	**	
+	**	@return Number of bytes in the field.
+	**/
+	public int getLength(Field field)
+	{
+		return readShort(varStart(field)) & 0xFFFF;
+	}
+	
+	/**
+	**	@param field A <code>BYTES</code> field of the wrapped schema.
+	**	
+	**	@return Index in the buffer of the field's first byte, for reading it in place.
+	**/
+	public int getOffset(Field field)
+	{
+		return varStart(field) + MessageSchema.VAR_LENGTH_SIZE;
+	}
+	
+	/**
+	**	Copies a variable-length field into a buffer.
+	**	
+	**	@param field A <code>BYTES</code> field of the wrapped schema.
+	**	@param destination Buffer in write mode; the bytes are put at its position, which is moved past them.
+	**	
+	**	@return Number of bytes copied.
+	**/
+	public int getBytes(Field field, ByteBuffer destination)
+	{
+		int at = getOffset(field);
+		int length = getLength(field);
+		destination.put(view(at, length));
+		return length;
+	}
+	
+	/**
+	**	Copies a variable-length field into an array.
+	**	
+	**	@param field A <code>BYTES</code> field of the wrapped schema.
+	**	@param destination Array to copy into.
+	**	@param from Index in the array of the first byte to copy to.
+	**	
+	**	@return Number of bytes copied.
+	**/
+	public int getBytes(Field field, byte[] destination, int from)
+	{
+		int at = getOffset(field);
+		int length = getLength(field);
+		view(at, length).get(destination, from, length);
+		return length;
+	}
+	
+	/**
+	**	Appends a variable-length field to a StringBuilder as one character per byte, without going through
+	**		a String or a CharsetDecoder. Bytes outside US-ASCII are appended as '?'.
+	**	
+	**	@param field A <code>BYTES</code> field of the wrapped schema.
+	**	@param destination Where to append the text; reuse it to keep from creating garbage.
+	**	
+	**	@return Number of characters appended.
+	**/
+	public int getAscii(Field field, StringBuilder destination)
+	{
+		int at = getOffset(field);
+		int length = getLength(field);
+		for (int i = 0; i < length; ++i)
+		{
+			byte b = buffer.get(at + i);
+			destination.append(b >= 0 ? (char) b : '?');
+		}
+		return length;
+	}
+	
+	/**
+	**	@return Length of the wrapped message, header included. Move the buffer's position on by this
+	**		much to get to the next message.
+	**/
+	public int getEncodedLength()
+	{
+		int count = schema.getVarFieldCount();
+		if (count == 0)
+			return MessageSchema.HEADER_LENGTH + blockLength;
+		
+		int last = resolve(count - 1);
+		return last + MessageSchema.VAR_LENGTH_SIZE + (readShort(last) & 0xFFFF) - offset;
+	}
+	
+	private int at(Field field, Field.Type type)
+	{
+		if (field.schema != schema || field.getType() != type)
+			throw new IllegalArgumentException("Field " + field + " isn't a " + type + " field of " + schema.getName());
+		if (field.offset() + type.size() > blockLength)
+			return -1;
+		return offset + MessageSchema.HEADER_LENGTH + field.offset();
+	}
+	
+	private int varStart(Field field)
+	{
+		if (field.schema != schema || field.getType() != Field.Type.BYTES)
+			throw new IllegalArgumentException("Field " + field + " isn't a BYTES field of " + schema.getName());
+		return resolve(field.index());
+	}
+	
+	/**
+	**	@return Index in the buffer of the length in front of the index'th variable-length field.
+	**/
+	private int resolve(int index)
+	{
+		while (resolvedVars <= index)
+		{
+			int at;
+			if (resolvedVars == 0)
+				at = offset + MessageSchema.HEADER_LENGTH + blockLength;
+			else
+			{
+				int previous = varOffsets[resolvedVars - 1];
+				at = previous + MessageSchema.VAR_LENGTH_SIZE + (readShort(previous) & 0xFFFF);
+			}
+			if (at + MessageSchema.VAR_LENGTH_SIZE > buffer.limit()
+				|| at + MessageSchema.VAR_LENGTH_SIZE + (readShort(at) & 0xFFFF) > buffer.limit())
+				throw new BufferUnderflowException();
+			varOffsets[resolvedVars++] = at;
+		}
+		return varOffsets[index];
+	}
+	
+	/**
+	**	@return Where bulk copies come from: a duplicate of the wrapped buffer over a field's bytes, only
+	**		made again when a different buffer is wrapped.
+	**/
+	private ByteBuffer view(int at, int length)
+	{
+		if (viewed != buffer)
+		{
+			view = buffer.duplicate();
+			viewed = buffer;
+		}
+		view.limit(at + length).position(at);
+		return view;
+	}
+	
+	private short readShort(int at)
+	{
+		short value = buffer.getShort(at);
+		return swap ? Short.reverseBytes(value) : value;
+	}
+}
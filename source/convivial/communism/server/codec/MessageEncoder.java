@@ -0,0 +1,263 @@
+package convivial.communism.server.codec;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+**	Writes messages of a <code>MessageSchema</code> straight into a ByteBuffer, one field at a time and
+**		in place, without creating any objects. An encoder is a flyweight: <code>wrap</code> points it at a
+**		buffer and a schema, the <code>put</code> methods write fields at their offsets, and
+**		<code>finish</code> moves the buffer's position past the message. Keep one encoder per thread and
+**		wrap it again for every message.
+**	
+**	<p>Fixed fields may be written in any order, and any left unwritten are 0. Variable-length fields
+**		have to be written in the order they were declared; any skipped over are left empty.</p>
+**	
+**	<pre>
+**	encoder.wrap(chat, buffer).putLong(sent, now).putInt(room, 3).putAscii(text, line).finish();
+**	</pre>
+**/
+public class MessageEncoder
+{
+	private ByteBuffer buffer;
+	private ByteBuffer view, viewed;
+	private MessageSchema schema;
+	private int offset;
+	private int limit;
+	private int nextVar;
+	private boolean swap;
+	
+	/**
+	**	Starts a message at the buffer's position: writes the header and zeroes the fixed block.
+	**	
+	**	@param schema Type of message to write.
+	**	@param buffer Buffer in write mode; the message goes between its position and limit.
+	**	
+	**	@return This encoder.
+	**	
+	**	@throws BufferOverflowException If the header and fixed block don't fit.
+	**/
+	public MessageEncoder wrap(MessageSchema schema, ByteBuffer buffer)
+	{
+		int blockLength = schema.getBlockLength();
+		offset = buffer.position();
+		limit = offset + MessageSchema.HEADER_LENGTH + blockLength;
+		if (limit > buffer.limit())
+			throw new BufferOverflowException();
+		
+		this.buffer = buffer;
+		this.schema = schema;
+		swap = buffer.order() != ByteOrder.BIG_ENDIAN;
+		nextVar = 0;
+		writeShort(offset, (short) schema.getTemplateId());
+		writeShort(offset + 2, (short) blockLength);
+		for (int i = offset + MessageSchema.HEADER_LENGTH; i < limit; ++i)
+			buffer.put(i, (byte) 0);
+		return this;
+	}
+	
+	/**
+	**	@param field An <code>INT8</code> field of the wrapped schema.
+	**	@param value Value to write.
+	**	
+	**	@return This encoder.
+	**/
+	public MessageEncoder putByte(Field field, byte value)
+	{
+		buffer.put(at(field, Field.Type.INT8), value);
+		return this;
+	}
+	
+	/**
+	**	@param field An <code>INT16</code> field of the wrapped schema.
+	**	@param value Value to write.
+	**	
+	**	@return This encoder.
+	**/
+	public MessageEncoder putShort(Field field, short value)
+	{
+		writeShort(at(field, Field.Type.INT16), value);
+		return this;
+	}
+	
+	/**
+	**	@param field An <code>INT32</code> field of the wrapped schema.
+	**	@param value Value to write.
+	**	
+	**	@return This encoder.
+	**/
+	public MessageEncoder putInt(Field field, int value)
+	{
+		int at = at(field, Field.Type.INT32);
+		buffer.putInt(at, swap ? Integer.reverseBytes(value) : value);
+		return this;
+	}
+	
+	/**
+	**	@param field An <code>INT64</code> field of the wrapped schema.
+	**	@param value Value to write.
+	**	
+	**	@return This encoder.
+	**/
+	public MessageEncoder putLong(Field field, long value)
+	{
+		int at = at(field, Field.Type.INT64);
+		buffer.putLong(at, swap ? Long.reverseBytes(value) : value);
+		return this;
+	}
+	
+	/**
+	**	@param field A <code>FLOAT64</code> field of the wrapped schema.
+	**	@param value Value to write.
+	**	
+	**	@return This encoder.
+	**/
+	public MessageEncoder putDouble(Field field, double value)
+	{
+		int at = at(field, Field.Type.FLOAT64);
+		long bits = Double.doubleToRawLongBits(value);
+		buffer.putLong(at, swap ? Long.reverseBytes(bits) : bits);
+		return this;
+	}
+	
+	/**
+	**	Writes a variable-length field from a buffer.
+	**	
+	**	@param field A <code>BYTES</code> field of the wrapped schema, not before any already written.
+	**	@param value The bytes between the buffer's position and limit. The position is left where it was.
+	**	
+	**	@return This encoder.
+	**/
+	public MessageEncoder putBytes(Field field, ByteBuffer value)
+	{
+		int length = value.remaining();
+		int at = startVar(field, length);
+		int from = value.position();
+		view(at, length).put(value);
+		value.position(from);
+		return this;
+	}
+	
+	/**
+	**	Writes a variable-length field from an array.
+	**	
+	**	@param field A <code>BYTES</code> field of the wrapped schema, not before any already written.
+	**	@param value Array holding the bytes.
+	**	@param from Index of the first byte.
+	**	@param length Number of bytes.
+	**	
+	**	@return This encoder.
+	**/
+	public MessageEncoder putBytes(Field field, byte[] value, int from, int length)
+	{
+		int at = startVar(field, length);
+		view(at, length).put(value, from, length);
+		return this;
+	}
+	
+	/**
+	**	Writes text into a variable-length field as one byte per character, without going through a
+	**		String or a CharsetEncoder. Characters outside US-ASCII are written as '?'.
+	**	
+	**	@param field A <code>BYTES</code> field of the wrapped schema, not before any already written.
+	**	@param value Text to write.
+	**	
+	**	@return This encoder.
+	**/
+	public MessageEncoder putAscii(Field field, CharSequence value)
+	{
+		int length = value.length();
+		int at = startVar(field, length);
+		for (int i = 0; i < length; ++i)
+		{
+			char c = value.charAt(i);
+			buffer.put(at + i, c < 0x80 ? (byte) c : (byte) '?');
+		}
+		return this;
+	}
+	
+	/**
+	**	Ends the message: leaves any variable-length fields not yet written empty and moves the buffer's
+	**		position to just after the message.
+	**	
+	**	@return Length of the message, header included.
+	**/
+	public int finish()
+	{
+		while (nextVar < schema.getVarFieldCount())
+		{
+			ensure(MessageSchema.VAR_LENGTH_SIZE);
+			writeShort(limit, (short) 0);
+			limit += MessageSchema.VAR_LENGTH_SIZE;
+			++nextVar;
+		}
+		buffer.position(limit);
+		return limit - offset;
+	}
+	
+	/**
+	**	@return Bytes written so far, header included.
+	**/
+	public int getEncodedLength()
+	{
+		return limit - offset;
+	}
+	
+	private int at(Field field, Field.Type type)
+	{
+		if (field.schema != schema || field.getType() != type)
+			throw new IllegalArgumentException("Field " + field + " isn't a " + type + " field of " + schema.getName());
+		return offset + MessageSchema.HEADER_LENGTH + field.offset();
+	}
+	
+	private int startVar(Field field, int length)
+	{
+		if (field.schema != schema || field.getType() != Field.Type.BYTES)
+			throw new IllegalArgumentException("Field " + field + " isn't a BYTES field of " + schema.getName());
+		if (field.index() < nextVar)
+			throw new IllegalStateException("Field " + field.getName() + " comes before a field already written; write variable-length fields in order.");
+		if (length > field.getMaxLength())
+			throw new IllegalArgumentException("Field " + field.getName() + " holds at most " + field.getMaxLength() + " bytes, not " + length);
+		
+		while (nextVar < field.index())
+		{
+			ensure(MessageSchema.VAR_LENGTH_SIZE);
+			writeShort(limit, (short) 0);
+			limit += MessageSchema.VAR_LENGTH_SIZE;
+			++nextVar;
+		}
+		ensure(MessageSchema.VAR_LENGTH_SIZE + length);
+		writeShort(limit, (short) length);
+		int at = limit + MessageSchema.VAR_LENGTH_SIZE;
+		limit = at + length;
+		++nextVar;
+		return at;
+	}
+	
+	/**
+	**	@return Where bulk copies go: a duplicate of the wrapped buffer, limited to the bytes at
+	**		<code>at</code>. Kept from one message to the next for as long as the same buffer is wrapped.
+	**/
+	private ByteBuffer view(int at, int length)
+	{
+		if (viewed != buffer)
+		{
+			view = buffer.duplicate();
+			viewed = buffer;
+		}
+		view.limit(at + length).position(at);
+		return view;
+	}
+	
+	private void ensure(int bytes)
+	{
+		if (limit + bytes > buffer.limit())
+			throw new BufferOverflowException();
+	}
+	
+	private void writeShort(int at, short value)
+	{
+		buffer.putShort(at, swap ? Short.reverseBytes(value) : value);
+	}
+}
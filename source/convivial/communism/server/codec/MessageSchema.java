@@ -0,0 +1,254 @@
+package convivial.communism.server.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+**	Describes one type of binary message: a template ID that tells it apart from other types, a block of
+**		fixed-size fields at fixed offsets, then any variable-length fields in the order they were declared.
+**		Built once with a <code>Builder</code>, then read and written with a <code>MessageDecoder</code> and
+**		<code>MessageEncoder</code> straight in the connection's ByteBuffers.
+**	
+**	<p>Every message starts with a four byte header: the template ID and the length of the fixed block,
+**		two bytes each, big-endian like every other field. Because the header carries the block length,
+**		fields can be added to the end of a schema's fixed block later on: an old decoder skips the
+**		fields it doesn't know, and a new decoder reads the missing fields of an old message as 0.</p>
+**	
+**	<pre>
+**	MessageSchema.Builder builder = new MessageSchema.Builder(1, "Chat");
+**	Field sent = builder.int64("sent");
+**	Field room = builder.int32("room");
+**	Field text = builder.bytes("text", 1024);
+**	MessageSchema chat = builder.build();
+**	</pre>
+**/
+public class MessageSchema
+{
+	/** Bytes in the header in front of every message. **/
+	public static final int HEADER_LENGTH = 4;
+	/** Bytes in the length in front of every variable-length field. **/
+	public static final int VAR_LENGTH_SIZE = 2;
+	/** Longest value any variable-length field can hold. **/
+	public static final int MAX_VAR_LENGTH = 0xFFFF;
+	
+	/**
+	**	Declares a schema's fields in order. Each method returns the handle to reach its field by.
+	**/
+	public static class Builder
+	{
+		private int templateId;
+		private String name;
+		private List<Field> fields;
+		private int blockLength;
+		private int varFields;
+		private boolean built;
+		
+		/**
+		**	@param templateId Tells this type of message apart from others on the same connection, 0 to 65535.
+		**	@param name Name of the message type.
+		**/
+		public Builder(int templateId, String name)
+		{
+			if (templateId < 0 || templateId > 0xFFFF)
+				throw new IllegalArgumentException("Template ID must be 0 to 65535, got " + templateId);
+			
+			this.templateId = templateId;
+			this.name = name;
+			fields = new ArrayList<Field>();
+		}
+		
+		/**
+		**	Declares a field holding a signed byte, next in the fixed block.
+		**	
+		**	@param name Name of the field.
+		**	
+		**	@return Handle for the field.
+		**/
+		public Field int8(String name)
+		{
+			return fixed(name, Field.Type.INT8);
+		}
+		
+		/**
+		**	Declares a field holding a signed 16-bit integer, next in the fixed block.
+		**	
+		**	@param name Name of the field.
+		**	
+		**	@return Handle for the field.
+		**/
+		public Field int16(String name)
+		{
+			return fixed(name, Field.Type.INT16);
+		}
+		
+		/**
+		**	Declares a field holding a signed 32-bit integer, next in the fixed block.
+		**	
+		**	@param name Name of the field.
+		**	
+		**	@return Handle for the field.
+		**/
+		public Field int32(String name)
+		{
+			return fixed(name, Field.Type.INT32);
+		}
+		
+		/**
+		**	Declares a field holding a signed 64-bit integer, next in the fixed block.
+		**	
+		**	@param name Name of the field.
+		**	
+		**	@return Handle for the field.
+		**/
+		public Field int64(String name)
+		{
+			return fixed(name, Field.Type.INT64);
+		}
+		
+		/**
+		**	Declares a field holding a 64-bit floating point number, next in the fixed block.
+		**	
+		**	@param name Name of the field.
+		**	
+		**	@return Handle for the field.
+		**/
+		public Field float64(String name)
+		{
+			return fixed(name, Field.Type.FLOAT64);
+		}
+		
+		/**
+		**	Declares a variable-length field, written after the fixed block. Variable-length fields have to
+		**		be written in the order they're declared.
+		**	
+		**	@param name Name of the field.
+		**	@param maxLength Longest value the field may hold, at most <code>MAX_VAR_LENGTH</code>.
+		**	
+		**	@return Handle for the field.
+		**/
+		public Field bytes(String name, int maxLength)
+		{
+			if (maxLength < 0 || maxLength > MAX_VAR_LENGTH)
+				throw new IllegalArgumentException("Field " + name + " can hold at most " + MAX_VAR_LENGTH + " bytes, not " + maxLength);
+			
+			return add(new Field(name, Field.Type.BYTES, -1, varFields++, maxLength));
+		}
+		
+		/**
+		**	@return The schema. The builder can't be used afterwards.
+		**/
+		public MessageSchema build()
+		{
+			checkNotBuilt();
+			built = true;
+			MessageSchema schema = new MessageSchema(templateId, name, blockLength, fields, varFields);
+			for (Field field : fields)
+				field.schema = schema;
+			return schema;
+		}
+		
+		private Field fixed(String name, Field.Type type)
+		{
+			if (blockLength + type.size() > 0xFFFF)
+				throw new IllegalStateException("The fixed block of " + this.name + " can't grow past 65535 bytes.");
+			
+			Field field = add(new Field(name, type, blockLength, -1, 0));
+			blockLength += type.size();
+			return field;
+		}
+		
+		private Field add(Field field)
+		{
+			checkNotBuilt();
+			for (Field other : fields)
+			{
+				if (other.getName().equals(field.getName()))
+					throw new IllegalArgumentException(name + " already has a field called " + field.getName());
+			}
+			fields.add(field);
+			return field;
+		}
+		
+		private void checkNotBuilt()
+		{
+			if (built)
+				throw new IllegalStateException("Cannot change the schema of " + name + "; it has already been built.");
+		}
+	}
+	
+	private int templateId;
+	private String name;
+	private int blockLength;
+	private List<Field> fields;
+	private int varFieldCount;
+	private int maxLength;
+	
+	private MessageSchema(int templateId, String name, int blockLength, List<Field> fields, int varFieldCount)
+	{
+		this.templateId = templateId;
+		this.name = name;
+		this.blockLength = blockLength;
+		this.fields = Collections.unmodifiableList(new ArrayList<Field>(fields));
+		this.varFieldCount = varFieldCount;
+		maxLength = HEADER_LENGTH + blockLength;
+		for (Field field : fields)
+		{
+			if (field.getType() == Field.Type.BYTES)
+				maxLength += VAR_LENGTH_SIZE + field.getMaxLength();
+		}
+	}
+	
+	/**
+	**	@return ID written in the header of every message of this type.
+	**/
+	public int getTemplateId()
+	{
+		return templateId;
+	}
+	
+	/**
+	**	@return Name of the message type.
+	**/
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	**	@return Bytes in the block of fixed-size fields.
+	**/
+	public int getBlockLength()
+	{
+		return blockLength;
+	}
+	
+	/**
+	**	@return Every field, in the order declared.
+	**/
+	public List<Field> getFields()
+	{
+		return fields;
+	}
+	
+	/**
+	**	@return Number of variable-length fields.
+	**/
+	public int getVarFieldCount()
+	{
+		return varFieldCount;
+	}
+	
+	/**
+	**	@return Longest a message of this type can be, header included; a buffer this big always has room.
+	**/
+	public int getMaxLength()
+	{
+		return maxLength;
+	}
+	
+	public String toString()
+	{
+		return name + "(" + templateId + ")" + fields;
+	}
+}
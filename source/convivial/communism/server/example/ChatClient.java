@@ -1,16 +1,15 @@
 package convivial.communism.server.example;
 
 import convivial.communism.server.ServerListener;
+import convivial.communism.server.codec.Line;
+import convivial.communism.server.codec.LineDecoder;
+import convivial.communism.server.codec.LineTooLongException;
 import convivial.communism.server.tcp.ServerConnection;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.Scanner;
 
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharacterCodingException;
-
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.ByteBuffer;
@@ -26,9 +25,8 @@ public class ChatClient implements ServerListener
 	private static boolean connected = false;
 	private static ServerConnection serverConn;
 	private static Scanner console = new Scanner(System.in);
-	private static ByteBuffer writeBuffer = ByteBuffer.allocateDirect(255);
-	private static CharsetDecoder asciiDecoder = Charset.forName("US-ASCII").newDecoder();
 	private static ChatClient listener = new ChatClient();
+	private static volatile long lastOffset = -1;
 	
 	/**
 	**	Starts up the ChatClient
@@ -80,7 +78,7 @@ public class ChatClient implements ServerListener
 		
 		try
 		{
-			serverConn = new ServerConnection(IP, port, new StringBuffer(), listener);
+			serverConn = new ServerConnection(IP, port, new LineDecoder(), listener);
 		}
 		catch (UnknownHostException uhe)
 		{
@@ -95,6 +93,10 @@ public class ChatClient implements ServerListener
 		}
 		
 		connected = true;
+		
+		// coming back after being disconnected; ask for whatever was said after the last line we saw
+		if (lastOffset >= 0)
+			sendLine("/from " + (lastOffset + 1));
 	}
 	
 	/**
@@ -116,13 +118,24 @@ public class ChatClient implements ServerListener
 		else if (input.equals(""))
 			return;
 		else
+			sendLine(input);
+	}
+	
+	/**
+	**	Sends one line of text to the server.
+	**/
+	private static void sendLine(String input)
+	{
+		int length = input.length();
+		ByteBuffer writeBuffer = serverConn.getBufferPool().acquire(length + 1);
+		for (int i = 0; i < length; ++i)
 		{
-			writeBuffer.clear();
-			writeBuffer.put(input.getBytes());
-			writeBuffer.putChar('\n');
-			writeBuffer.flip();
-			serverConn.channelWrite(writeBuffer);
+			char c = input.charAt(i);
+			writeBuffer.put(c < 0x80 ? (byte) c : (byte) '?');
 		}
+		writeBuffer.put((byte) '\n');
+		writeBuffer.flip();
+		serverConn.send(writeBuffer, serverConn.getBufferPool().releaser());
 	}
 	
 	/**
@@ -139,34 +152,49 @@ public class ChatClient implements ServerListener
 	
 	/**
 	**	The other method from <code>ServerListener</code> and handles
-	**		receiving data from the server. This method takes the
-	**		byte data, puts it into a string, checks to see if the string
-	**		contains <code>\n</code>, indicating a complete message.
+	**		receiving data from the server. This method hands the byte
+	**		data to the connection's <code>LineDecoder</code> and prints
+	**		every complete line it gives back. Room lines come tagged with
+	**		their offset in the server's chat log, <code>#&lt;offset&gt;</code>,
+	**		which is remembered and stripped so a reconnect can ask for what
+	**		was missed; a bare tag is the offset of a line we sent.
 	**	
-	**	@param key The Server's channel and its attached StringBuffer.
+	**	@param key The Server's channel and its attached LineDecoder.
 	**	@param channel The server's channel.
 	**	@param bytesRead Number of bytes read into the ByteBuffer.
 	**	@param data Actual data transmitted (plain string).
 	**/
 	public void receiveData(SelectionKey key, SocketChannel channel, long bytesRead, ByteBuffer data)
 	{
-		StringBuffer sb = (StringBuffer)key.attachment();
+		LineDecoder lines = (LineDecoder)key.attachment();
 		try
 		{
-			String str = asciiDecoder.decode(data).toString();
-			sb.append(str);
-		}
-		catch (CharacterCodingException cce)
-		{
-			cce.printStackTrace();
+			Line line;
+			while ((line = lines.nextLine(data)) != null)
+			{
+				String text = line.toString().trim();
+				if (text.startsWith("#"))
+				{
+					int space = text.indexOf(' ');
+					try
+					{
+						lastOffset = Math.max(lastOffset, Long.parseLong(space < 0 ? text.substring(1) : text.substring(1, space)));
+						if (space < 0)
+							continue;
+						text = text.substring(space + 1);
+					}
+					catch (NumberFormatException nfe)
+					{
+						// not a tag, just a line starting with '#'
+					}
+				}
+				System.out.println(text);
+			}
 		}
-		
-		String line = sb.toString();
-		if (line.contains("\n") || line.contains("\r"))
+		catch (LineTooLongException ltle)
 		{
-			line = line.trim();
-			System.out.println(line);
-			sb.delete(0, sb.length());
+			System.out.println(ltle.getMessage());
+			serverConn.disconnect();
 		}
 	}
 }
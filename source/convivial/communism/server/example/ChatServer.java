@@ -1,24 +1,29 @@
 package convivial.communism.server.example;
 
+import convivial.communism.server.codec.Line;
+import convivial.communism.server.codec.LineDecoder;
+import convivial.communism.server.codec.LineTooLongException;
+import convivial.communism.server.log.MessageLog;
+import convivial.communism.server.tcp.ConnectionFilter;
 import convivial.communism.server.tcp.Server;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.UnknownHostException;
 
 import java.nio.ByteBuffer;
 
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharacterCodingException;
-
 import java.nio.channels.*;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer extends Server
 {
-	private ArrayList<SocketChannel> clients;
-	private CharsetDecoder asciiDecoder;
+	private static final String LOBBY = "lobby";
+	
+	private ConcurrentHashMap<SocketChannel, String> rooms;
+	private Object publishLock;
 	
 	public static void main(String[] args)
 	{
@@ -48,58 +53,82 @@ public class ChatServer extends Server
 	
 	protected void init()
 	{
-		clients = new ArrayList<SocketChannel>(5);
-		asciiDecoder = Charset.forName("US-ASCII").newDecoder();
-		System.out.println("Enter 'shutdown' to quit.");
+		rooms = new ConcurrentHashMap<SocketChannel, String>();
+		publishLock = new Object();
+		try
+		{
+			// every room's messages are kept for a day, so clients coming back can catch up with /from or /since
+			MessageLog log = new MessageLog(new File("chatlog"), 4 * 1024 * 1024, MessageLog.DEFAULT_INDEX_INTERVAL);
+			log.setRetention(64 * 1024 * 1024, 1, TimeUnit.DAYS);
+			setMessageLog(log);
+		}
+		catch (IOException ioe)
+		{
+			System.out.println("Couldn't open the chat log; messages won't be kept.");
+			ioe.printStackTrace();
+		}
+	}
+	
+	protected void started()
+	{
+		System.out.println("Enter 'shutdown' to quit, or 'stats' for server statistics.");
 	}
 	
 	protected Object getAttachment()
 	{
-		return new StringBuffer();
+		return new LineDecoder();
 	}
 	
 	protected void newClient(SocketChannel channel)
 	{
-		clients.add(channel);
-		sendBroadcastMessage("login from: " + channel.socket().getInetAddress(), channel);
-		sendMessage(channel, "\n\nWelcome to Chatter Bocz! There are " + clients.size() + " users online.\n");
-		sendMessage(channel, "Type 'quit' to exit.\n");
+		join(channel, LOBBY);
+		sendMessage(channel, "\n\nWelcome to Chatter Bocz! There are " + getClientCount() + " users online.\n");
+		sendMessage(channel, "You're in the " + LOBBY + ". Type '/join <room>' to change rooms, or 'quit' to exit.\n");
 	}
 	
 	protected void disconnection(SocketChannel channel)
 	{
-		clients.remove(channel);
-		sendBroadcastMessage("logout: " + channel.socket().getInetAddress(), channel);
+		String room = rooms.remove(channel);
+		if (room != null)
+			sendRoomMessage(room, "logout: " + channel.socket().getInetAddress(), channel);
 	}
 	
 	protected void receiveData(SelectionKey key, SocketChannel channel, long bytesRead, ByteBuffer data)
 	{
-		StringBuffer sb = (StringBuffer)key.attachment();
+		LineDecoder lines = (LineDecoder)key.attachment();
 		try
 		{
-			String str = asciiDecoder.decode(data).toString();
-			sb.append(str);
-		}
-		catch (CharacterCodingException cce)
-		{
-			cce.printStackTrace();
-		}
-		
-		String line = sb.toString();
-		if (line.contains("\n") || line.contains("\r"))
-		{
-			line = line.trim();
-			if (line.toLowerCase().equals("quit"))
-			{
-				System.out.println("Got quit message from " + channel.socket().getInetAddress());
-				super.closeChannel(channel);
-			}
-			else
+			Line line;
+			while ((line = lines.nextLine(data)) != null)
 			{
-				sendBroadcastMessage(channel.socket().getInetAddress() + ": " + line, channel);
-				sb.delete(0, sb.length());
+				if (line.matches("quit"))
+				{
+					System.out.println("Got quit message from " + channel.socket().getInetAddress());
+					super.closeChannel(channel);
+					return;
+				}
+				
+				String text = line.toString().trim();
+				if (text.startsWith("/join "))
+					join(channel, text.substring(6).trim());
+				else if (text.startsWith("/from "))
+					catchUp(channel, "/from", text.substring(6).trim());
+				else if (text.startsWith("/since "))
+					catchUp(channel, "/since", text.substring(7).trim());
+				else
+				{
+					// tell the sender where its own line went, since it doesn't get a copy
+					long offset = sendRoomMessage(rooms.get(channel), channel.socket().getInetAddress() + ": " + text, channel);
+					if (offset >= 0)
+						sendMessage(channel, "#" + offset);
+				}
 			}
 		}
+		catch (LineTooLongException ltle)
+		{
+			System.out.println("Closing " + channel.socket().getInetAddress() + ": " + ltle.getMessage());
+			super.closeChannel(channel);
+		}
 	}
 	
 	protected void receiveConsole(String input)
@@ -109,37 +138,135 @@ public class ChatServer extends Server
 			sendBroadcastMessage("<Server is shutting down. Goodbye.>", null);
 			shutdown();
 		}
+		else if (input.toLowerCase().equals("stats"))
+		{
+			printStats();
+		}
 		else
 		{
 			sendBroadcastMessage("server: " + input, null);
 		}
 	}
 	
+	/**
+	**	Moves a client into a room: every room is a topic, <code>room.&lt;name&gt;</code>, and a client is
+	**		subscribed to the one it's in, so talking in a room only reaches the people in it.
+	**/
+	private void join(SocketChannel channel, String room)
+	{
+		if (room.isEmpty() || !room.matches("[A-Za-z0-9_-]+"))
+		{
+			sendMessage(channel, "Room names are letters, digits, '_' and '-' only.");
+			return;
+		}
+		
+		String old = rooms.put(channel, room);
+		if (old != null)
+		{
+			unsubscribe(channel, "room." + old);
+			sendRoomMessage(old, "left for " + room + ": " + channel.socket().getInetAddress(), channel);
+		}
+		subscribe(channel, "room." + room);
+		sendRoomMessage(room, (old == null ? "login from: " : "joined from " + old + ": ") + channel.socket().getInetAddress(), channel);
+		if (old != null)
+			sendMessage(channel, "You're in " + room + ".");
+	}
+	
+	/**
+	**	Sends a client everything said in its room from a log offset (<code>/from</code>), as tagged on the
+	**		lines it was sent, or since a time (<code>/since</code>), straight out of the chat log.
+	**/
+	private void catchUp(SocketChannel channel, String command, String from)
+	{
+		String room = rooms.get(channel);
+		if (room == null || getMessageLog() == null)
+			return;
+		
+		try
+		{
+			boolean started;
+			if (command.equals("/from"))
+				started = replay(channel, "room." + room, Long.parseLong(from));
+			else
+				started = replaySince(channel, "room." + room, Long.parseLong(from));
+			if (started)
+				System.out.println("Replaying " + room + " to " + channel.socket().getInetAddress());
+		}
+		catch (NumberFormatException nfe)
+		{
+			if (command.equals("/from"))
+				sendMessage(channel, "Usage: /from <offset>");
+			else
+				sendMessage(channel, "Usage: /since <milliseconds since the epoch>");
+		}
+	}
+	
 	private void sendMessage(SocketChannel channel, String msg)
 	{
-		prepWriteBuffer(msg);
-		super.channelWrite(channel, super.writeBuffer);
+		super.send(channel, prepWriteBuffer(msg), getBufferPool().releaser());
 	}
 	
-	private void sendBroadcastMessage(String msg, SocketChannel from)
+	private void sendBroadcastMessage(String msg, final SocketChannel from)
 	{
 		System.out.println("Sending broadcast message:\n" + msg + "\n");
-		prepWriteBuffer(msg);
-		Iterator<SocketChannel> i = clients.iterator();
-		while (i.hasNext())
+		super.broadcast(prepWriteBuffer(msg), new ConnectionFilter()
 		{
-			SocketChannel channel = i.next();
-			if (channel != from)
-				super.channelWrite(channel, super.writeBuffer);
+			public boolean accept(SocketChannel channel)
+			{
+				return channel != from;
+			}
+		}, getBufferPool().releaser());
+	}
+	
+	/**
+	**	Publishes a line to a room. With a chat log the line goes out as <code>#&lt;offset&gt; line</code>,
+	**		tagged with where it is in the log, so a client coming back can ask for everything after the last
+	**		line it got with <code>/from</code>, whatever its clock says.
+	**	
+	**	@return The line's offset in the chat log, or -1 if there's no log or no room.
+	**/
+	private long sendRoomMessage(String room, String msg, final SocketChannel from)
+	{
+		if (room == null)
+			return -1;
+		ConnectionFilter others = new ConnectionFilter()
+		{
+			public boolean accept(SocketChannel channel)
+			{
+				return channel != from;
+			}
+		};
+		
+		MessageLog log = getMessageLog();
+		if (log == null)
+		{
+			super.publish("room." + room, prepWriteBuffer(msg), others, getBufferPool().releaser());
+			return -1;
+		}
+		// this is the only place anything is appended to the log, so holding the lock from reading the next
+		// offset until the line is appended makes that offset the line's own
+		synchronized (publishLock)
+		{
+			long offset = log.getEndOffset();
+			super.publish("room." + room, prepWriteBuffer("#" + offset + " " + msg), others, getBufferPool().releaser());
+			return offset;
 		}
 	}
 	
-	private void prepWriteBuffer(String msg)
+	private ByteBuffer prepWriteBuffer(String msg)
 	{
-		super.writeBuffer.clear();
-		super.writeBuffer.put(msg.getBytes());
-		super.writeBuffer.putChar('\n');
-		super.writeBuffer.flip();
+		// one byte per character straight into the pooled buffer, rather than a byte[] from getBytes()
+		// and a two byte UTF-16 newline from putChar
+		int length = msg.length();
+		ByteBuffer buffer = getBufferPool().acquire(length + 1);
+		for (int i = 0; i < length; ++i)
+		{
+			char c = msg.charAt(i);
+			buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+		}
+		buffer.put((byte) '\n');
+		buffer.flip();
+		return buffer;
 	}		
 }
 
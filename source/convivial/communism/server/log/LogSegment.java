@@ -0,0 +1,396 @@
+package convivial.communism.server.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.zip.CRC32;
+
+/**
+**	One file of a <code>MessageLog</code>, memory-mapped at its full size when opened, plus the sparse
+**		index that goes with it. Records are laid out back to back:
+**	
+**	<pre>
+**	int    length of the whole record, header included
+**	int    CRC-32 of everything after this field
+**	long   offset
+**	long   timestamp, in milliseconds
+**	short  length of the topic
+**	byte[] topic, US-ASCII
+**	byte[] message
+**	</pre>
+**	
+**	<p>The files are named after an offset no higher than the segment's first record's, so they sort in
+**		order. That's the first record's offset itself unless the segment was created ahead of time, before
+**		anyone knew where the segment before it would fill up; the base offset is always read back from the
+**		first record, and a segment with no records yet takes the offset of the first one written to it.</p>
+**	
+**	<p>The index file holds an entry every <code>indexInterval</code> bytes or so: the record's offset from
+**		the segment's base offset, its position and its timestamp, four, four and eight bytes. Finding a
+**		record is a binary search of the index and then a short walk of the log from there.</p>
+**	
+**	<p>Only the log's appending thread writes to a segment. Readers may run alongside it on any thread:
+**		the bytes of a record are written before <code>size</code> is moved past it, and readers never look
+**		beyond the size they read.</p>
+**/
+class LogSegment
+{
+	static final int HEADER_LENGTH = 26;
+	static final int INDEX_ENTRY_LENGTH = 16;
+	
+	private static final int LENGTH = 0;
+	private static final int CRC = 4;
+	private static final int OFFSET = 8;
+	private static final int TIMESTAMP = 16;
+	private static final int TOPIC_LENGTH = 24;
+	
+	private volatile long baseOffset;
+	private File logFile, indexFile;
+	private MappedByteBuffer log, index;
+	private ByteBuffer view;
+	private CRC32 crc;
+	private int indexInterval;
+	private int lastIndexed;
+	private volatile int size;
+	private volatile int entries;
+	private volatile long nextOffset;
+	private volatile long firstTimestamp, lastTimestamp;
+	
+	/**
+	**	Opens a segment, creating its files if they don't exist yet, and works out where its last whole
+	**		record ends. Anything after that, like a record half written when the process died, is ignored
+	**		and will be written over.
+	**	
+	**	@param directory Where the log's files live.
+	**	@param nameOffset Offset the files are named after: the first record's, or lower.
+	**	@param capacity Size of the log file, in bytes.
+	**	@param indexInterval Bytes of records between index entries.
+	**/
+	LogSegment(File directory, long nameOffset, int capacity, int indexInterval) throws IOException
+	{
+		this.indexInterval = indexInterval;
+		logFile = new File(directory, name(nameOffset, ".log"));
+		indexFile = new File(directory, name(nameOffset, ".index"));
+		
+		if (logFile.exists())
+			capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(capacity, logFile.length()));
+		log = map(logFile, capacity);
+		index = map(indexFile, (capacity / indexInterval + 2) * INDEX_ENTRY_LENGTH);
+		view = log.duplicate();
+		crc = new CRC32();
+		baseOffset = isValid(0, offsetAt(0)) ? offsetAt(0) : nameOffset;
+		recover();
+	}
+	
+	/**
+	**	@return Name of a segment file, the base offset padded so the files sort in order.
+	**/
+	static String name(long baseOffset, String extension)
+	{
+		String digits = Long.toString(baseOffset);
+		StringBuilder sb = new StringBuilder(20 + extension.length());
+		for (int i = digits.length(); i < 20; ++i)
+			sb.append('0');
+		return sb.append(digits).append(extension).toString();
+	}
+	
+	/**
+	**	Writes a record at the end of the segment. The first record written to an empty segment sets its
+	**		base offset.
+	**	
+	**	@return False if the segment doesn't have room for it, in which case nothing was written.
+	**/
+	boolean append(long offset, long timestamp, String topic, ByteBuffer message)
+	{
+		int topicLength = topic.length();
+		int length = HEADER_LENGTH + topicLength + message.remaining();
+		int at = size;
+		if ((long) at + length > log.capacity())
+			return false;
+		
+		if (at == 0)
+			baseOffset = offset;
+		log.putInt(at + LENGTH, length);
+		log.putLong(at + OFFSET, offset);
+		log.putLong(at + TIMESTAMP, timestamp);
+		log.putShort(at + TOPIC_LENGTH, (short) topicLength);
+		for (int i = 0; i < topicLength; ++i)
+		{
+			char c = topic.charAt(i);
+			log.put(at + HEADER_LENGTH + i, c < 0x80 ? (byte) c : (byte) '?');
+		}
+		int from = message.position();
+		view.limit(at + length).position(at + HEADER_LENGTH + topicLength);
+		view.put(message);
+		message.position(from);
+		log.putInt(at + CRC, checksum(at, length));
+		
+		if (at == 0 || at - lastIndexed >= indexInterval)
+			addIndexEntry(offset, at, timestamp);
+		if (at == 0)
+			firstTimestamp = timestamp;
+		lastTimestamp = timestamp;
+		nextOffset = offset + 1;
+		size = at + length;
+		return true;
+	}
+	
+	/**
+	**	@return Position of the first record with an offset of at least the one given, or the segment's
+	**		size if there isn't one yet.
+	**/
+	int positionOf(long offset)
+	{
+		int end = size;
+		int count = entries;
+		int low = 0, high = count - 1, found = -1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if (baseOffset + index.getInt(middle * INDEX_ENTRY_LENGTH) <= offset)
+			{
+				found = middle;
+				low = middle + 1;
+			}
+			else
+				high = middle - 1;
+		}
+		
+		int at = found < 0 ? 0 : index.getInt(found * INDEX_ENTRY_LENGTH + 4);
+		while (at < end && offsetAt(at) < offset)
+			at += lengthAt(at);
+		return at;
+	}
+	
+	/**
+	**	@return Position of the first record with a timestamp of at least the one given, or the segment's
+	**		size if there isn't one yet.
+	**/
+	int positionOfTime(long timestamp)
+	{
+		int end = size;
+		int count = entries;
+		int low = 0, high = count - 1, found = -1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if (index.getLong(middle * INDEX_ENTRY_LENGTH + 8) < timestamp)
+			{
+				found = middle;
+				low = middle + 1;
+			}
+			else
+				high = middle - 1;
+		}
+		
+		int at = found < 0 ? 0 : index.getInt(found * INDEX_ENTRY_LENGTH + 4);
+		while (at < end && timestampAt(at) < timestamp)
+			at += lengthAt(at);
+		return at;
+	}
+	
+	int lengthAt(int at)
+	{
+		return log.getInt(at + LENGTH);
+	}
+	
+	long offsetAt(int at)
+	{
+		return log.getLong(at + OFFSET);
+	}
+	
+	long timestampAt(int at)
+	{
+		return log.getLong(at + TIMESTAMP);
+	}
+	
+	/**
+	**	@param topic Topic as US-ASCII bytes.
+	**	
+	**	@return True if the record at the position is in the topic.
+	**/
+	boolean topicEquals(int at, byte[] topic)
+	{
+		if ((log.getShort(at + TOPIC_LENGTH) & 0xFFFF) != topic.length)
+			return false;
+		for (int i = 0; i < topic.length; ++i)
+		{
+			if (log.get(at + HEADER_LENGTH + i) != topic[i])
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	**	@return Topic of the record at the position, decoded into a new String.
+	**/
+	String topicAt(int at)
+	{
+		int length = log.getShort(at + TOPIC_LENGTH) & 0xFFFF;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; ++i)
+			chars[i] = (char) log.get(at + HEADER_LENGTH + i);
+		return new String(chars);
+	}
+	
+	/**
+	**	@return A read-only view of the message of the record at the position, straight over the mapped
+	**		file; nothing is copied.
+	**/
+	ByteBuffer message(int at)
+	{
+		ByteBuffer message = log.asReadOnlyBuffer();
+		message.limit(at + lengthAt(at));
+		message.position(at + HEADER_LENGTH + (log.getShort(at + TOPIC_LENGTH) & 0xFFFF));
+		return message;
+	}
+	
+	/**
+	**	Writes any changes still only in memory out to the files.
+	**/
+	void flush()
+	{
+		log.force();
+		index.force();
+	}
+	
+	/**
+	**	@return The segment's log and index files, for deleting once it's out of the log. The mapping stays
+	**		valid for anything still reading from it until it's garbage collected, and some systems won't
+	**		delete a file until then.
+	**/
+	File[] getFiles()
+	{
+		return new File[] { logFile, indexFile };
+	}
+	
+	long getBaseOffset()
+	{
+		return baseOffset;
+	}
+	
+	/**
+	**	@return Offset the next record written to the segment would get.
+	**/
+	long getNextOffset()
+	{
+		return nextOffset;
+	}
+	
+	int getSize()
+	{
+		return size;
+	}
+	
+	long getFirstTimestamp()
+	{
+		return firstTimestamp;
+	}
+	
+	long getLastTimestamp()
+	{
+		return lastTimestamp;
+	}
+	
+	private void addIndexEntry(long offset, int at, long timestamp)
+	{
+		int slot = entries * INDEX_ENTRY_LENGTH;
+		index.putInt(slot, (int) (offset - baseOffset));
+		index.putInt(slot + 4, at);
+		index.putLong(slot + 8, timestamp);
+		lastIndexed = at;
+		entries = entries + 1;
+	}
+	
+	/**
+	**	Loads the index, dropping any entries that don't point at a whole record, then walks the log from
+	**		the last entry to find the end of the last whole record.
+	**/
+	private void recover()
+	{
+		int slots = index.capacity() / INDEX_ENTRY_LENGTH;
+		int count = 0;
+		// the first record is always at position 0, so any later entry at position 0 is an unused slot
+		while (count < slots && (count == 0 || index.getInt(count * INDEX_ENTRY_LENGTH + 4) != 0))
+			++count;
+		while (count > 0)
+		{
+			int slot = (count - 1) * INDEX_ENTRY_LENGTH;
+			int at = index.getInt(slot + 4);
+			if (isValid(at, baseOffset + index.getInt(slot)))
+				break;
+			--count;
+		}
+		for (int i = count * INDEX_ENTRY_LENGTH; i < index.capacity(); ++i)
+			index.put(i, (byte) 0);
+		
+		int at = 0;
+		long offset = baseOffset;
+		if (count > 0)
+		{
+			int slot = (count - 1) * INDEX_ENTRY_LENGTH;
+			at = index.getInt(slot + 4);
+			offset = baseOffset + index.getInt(slot);
+			lastIndexed = at;
+		}
+		entries = count;
+		if (count > 0)
+			firstTimestamp = index.getLong(8);
+		
+		while (isValid(at, offset))
+		{
+			if (count == 0 || at - lastIndexed >= indexInterval)
+			{
+				addIndexEntry(offset, at, timestampAt(at));
+				count = entries;
+			}
+			if (at == 0)
+				firstTimestamp = timestampAt(at);
+			lastTimestamp = timestampAt(at);
+			at += lengthAt(at);
+			++offset;
+		}
+		nextOffset = offset;
+		size = at;
+	}
+	
+	private boolean isValid(int at, long offset)
+	{
+		if (at < 0 || at > log.capacity() - HEADER_LENGTH)
+			return false;
+		int length = lengthAt(at);
+		if (length < HEADER_LENGTH || length > log.capacity() - at || offsetAt(at) != offset)
+			return false;
+		if ((log.getShort(at + TOPIC_LENGTH) & 0xFFFF) > length - HEADER_LENGTH)
+			return false;
+		return log.getInt(at + CRC) == checksum(at, length);
+	}
+	
+	private int checksum(int at, int length)
+	{
+		crc.reset();
+		view.limit(at + length).position(at + OFFSET);
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+	
+	private static MappedByteBuffer map(File file, int size) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			if (raf.length() < size)
+				raf.setLength(size);
+			// the mapping outlives the channel, so the file doesn't stay open
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
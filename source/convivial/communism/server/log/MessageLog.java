@@ -0,0 +1,523 @@
+package convivial.communism.server.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+**	An append-only log of messages kept on disk, for sending clients what they missed while they were
+**		away. Every message gets the next offset, counting up from 0 for the life of the log, and the time
+**		it was appended; a client that remembers either can ask for everything since.
+**	
+**	<p>The log is a directory of segments, each a file of a fixed size named after the offset of its first
+**		message (or one before it), memory-mapped in full when opened. Appending writes straight into the
+**		mapping; once a segment is full the next one takes over. The next segment is always created and
+**		mapped ahead of time on the log's own background thread, which also deletes old segments, so an
+**		append never waits on the disk unless it fills a whole segment faster than that thread can create
+**		one. Each segment has a sparse index beside it with an entry every
+**		<code>indexInterval</code> bytes, so finding an offset or a time is a binary search and a short
+**		walk, however big the log gets. Reading back never copies: <code>replay</code> hands out read-only
+**		views of the mapped files, ready to be sent as they are.</p>
+**	
+**	<p>Old segments are deleted once the log as a whole is bigger than its size limit or a segment's last
+**		message is older than the age limit; the segment being written to is always kept. Nothing is forced
+**		to disk until <code>flush</code> or <code>close</code>, though the operating system writes mapped
+**		pages out on its own, and a segment whose last message was only half written when the process died
+**		is cut back to its last whole message when the log is opened again.</p>
+**	
+**	<p>Appending is safe from any thread and is serialized, but only ever copies the message into memory;
+**		<code>replay</code> and the lookups may run on any number of threads alongside it and see every
+**		message appended before they started.</p>
+**/
+public class MessageLog implements Closeable
+{
+	/** Size of each segment file when using the short constructor. **/
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	/** Bytes of messages between index entries when using the short constructor. **/
+	public static final int DEFAULT_INDEX_INTERVAL = 4096;
+	
+	private File directory;
+	private int segmentSize;
+	private int indexInterval;
+	private ConcurrentSkipListMap<Long, LogSegment> segments;
+	private volatile LogSegment active;
+	private Future<LogSegment> next;
+	private ExecutorService background;
+	private AtomicBoolean retentionQueued;
+	private Object retentionLock;
+	private List<File> undeleted;
+	private volatile long maxBytes;
+	private volatile long maxAge;
+	private volatile boolean closed;
+	
+	/**
+	**	Opens the log in a directory, creating the directory if need be and picking up any segments already
+	**		in it.
+	**	
+	**	@param directory Where the log's files live; nothing else should be kept there.
+	**	
+	**	@throws IOException If the directory can't be created or a segment can't be mapped.
+	**/
+	public MessageLog(File directory) throws IOException
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL);
+	}
+	
+	/**
+	**	Opens the log in a directory, creating the directory if need be and picking up any segments already
+	**		in it.
+	**	
+	**	@param directory Where the log's files live; nothing else should be kept there.
+	**	@param segmentSize Size of each segment file, in bytes; also the most one message can take.
+	**	@param indexInterval Bytes of messages between index entries. Smaller makes lookups quicker and
+	**		index files bigger.
+	**	
+	**	@throws IOException If the directory can't be created or a segment can't be mapped.
+	**/
+	public MessageLog(File directory, int segmentSize, int indexInterval) throws IOException
+	{
+		if (segmentSize < LogSegment.HEADER_LENGTH + 1)
+			throw new IllegalArgumentException("Segments of " + segmentSize + " bytes can't hold a message");
+		if (indexInterval < 1)
+			throw new IllegalArgumentException("Index interval must be at least 1 byte, got " + indexInterval);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Couldn't create the log directory " + directory);
+		
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.indexInterval = indexInterval;
+		segments = new ConcurrentSkipListMap<Long, LogSegment>();
+		retentionQueued = new AtomicBoolean();
+		retentionLock = new Object();
+		undeleted = new ArrayList<File>();
+		
+		List<LogSegment> unused = new ArrayList<LogSegment>();
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				String name = file.getName();
+				if (name.endsWith(".index") && !new File(directory, name.substring(0, name.length() - 6) + ".log").exists())
+					file.delete(); // left over from a segment whose log file was deleted before it
+				if (!name.endsWith(".log"))
+					continue;
+				long nameOffset;
+				try
+				{
+					nameOffset = Long.parseLong(name.substring(0, name.length() - 4));
+				}
+				catch (NumberFormatException nfe)
+				{
+					continue; // not one of ours
+				}
+				
+				LogSegment segment = new LogSegment(directory, nameOffset, segmentSize, indexInterval);
+				if (segment.getSize() > 0)
+					segments.put(Long.valueOf(segment.getBaseOffset()), segment);
+				else
+					unused.add(segment); // created ahead of time and never written to
+			}
+		}
+		
+		// an empty log starts over at offset 0; otherwise the newest unused segment can still take over
+		// from the active one, as long as it's named after the active one's end
+		LogSegment spare = null;
+		long end = segments.isEmpty() ? 0 : segments.lastEntry().getValue().getNextOffset();
+		for (LogSegment segment : unused)
+		{
+			if (segments.isEmpty() ? segment.getBaseOffset() == 0 : segment.getBaseOffset() >= end && (spare == null || segment.getBaseOffset() > spare.getBaseOffset()))
+				spare = segment;
+		}
+		for (LogSegment segment : unused)
+		{
+			if (segment != spare)
+				delete(segment);
+		}
+		
+		if (segments.isEmpty())
+		{
+			if (spare == null)
+				spare = new LogSegment(directory, 0, segmentSize, indexInterval);
+			segments.put(Long.valueOf(0), spare);
+			spare = null;
+		}
+		active = segments.lastEntry().getValue();
+		
+		final String threadName = "MessageLog-" + directory.getName();
+		background = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (spare != null)
+		{
+			final LogSegment ready = spare;
+			next = background.submit(new Callable<LogSegment>()
+			{
+				public LogSegment call()
+				{
+					return ready;
+				}
+			});
+		}
+		else
+			prepareNext();
+	}
+	
+	/**
+	**	Deletes old segments once the log takes more than so many bytes in all, or once their last message
+	**		is older than so long. Checked on the log's background thread whenever a new segment is started
+	**		and, for age, whenever an append finds the oldest segment past it, and on the calling thread
+	**		whenever <code>enforceRetention</code> is called.
+	**	
+	**	@param maxBytes Most bytes of messages to keep, or 0 for no limit. The log can go over by up to a
+	**		segment, since the segment being written to is never deleted.
+	**	@param maxAge Longest to keep a message, or 0 for no limit.
+	**	@param unit Unit of <code>maxAge</code>.
+	**/
+	public synchronized void setRetention(long maxBytes, long maxAge, TimeUnit unit)
+	{
+		this.maxBytes = maxBytes;
+		this.maxAge = unit.toMillis(maxAge);
+	}
+	
+	/**
+	**	Appends a message, stamped with the current time.
+	**	
+	**	@param topic Topic the message belongs to, US-ASCII, for replaying one topic at a time.
+	**	@param message The message, flipped. Its position is left where it was.
+	**	
+	**	@return The message's offset.
+	**	
+	**	@throws IOException If a new segment was needed and couldn't be created.
+	**/
+	public long append(String topic, ByteBuffer message) throws IOException
+	{
+		return append(topic, message, System.currentTimeMillis());
+	}
+	
+	/**
+	**	Appends a message with a timestamp of the caller's choosing. Timestamps in the log never go backwards;
+	**		one earlier than the last message's is moved up to match it.
+	**	
+	**	@param topic Topic the message belongs to, US-ASCII, for replaying one topic at a time.
+	**	@param message The message, flipped. Its position is left where it was.
+	**	@param timestamp When the message was sent, in milliseconds since the epoch.
+	**	
+	**	@return The message's offset.
+	**	
+	**	@throws IOException If a new segment was needed and the background thread couldn't create it.
+	**	@throws IllegalArgumentException If the message and topic wouldn't fit in a segment.
+	**/
+	public synchronized long append(String topic, ByteBuffer message, long timestamp) throws IOException
+	{
+		if (closed)
+			throw new IllegalStateException("Cannot append; the log is closed.");
+		if (topic.length() > 0xFFFF || (long) LogSegment.HEADER_LENGTH + topic.length() + message.remaining() > segmentSize)
+			throw new IllegalArgumentException("A message of " + message.remaining() + " bytes under " + topic + " won't fit in a segment of " + segmentSize + " bytes");
+		
+		LogSegment segment = active;
+		long offset = segment.getNextOffset();
+		timestamp = Math.max(timestamp, segment.getLastTimestamp());
+		if (!segment.append(offset, timestamp, topic, message))
+		{
+			segment = takeNext();
+			segment.append(offset, timestamp, topic, message);
+			segments.put(Long.valueOf(offset), segment);
+			active = segment;
+			prepareNext();
+			retainSoon();
+		}
+		else if (maxAge > 0 && segments.size() > 1 && segments.firstEntry().getValue().getLastTimestamp() < timestamp - maxAge)
+			retainSoon();
+		return offset;
+	}
+	
+	/**
+	**	Waits for the segment the background thread has been getting ready, which is normally long done.
+	**/
+	private LogSegment takeNext() throws IOException
+	{
+		try
+		{
+			return next.get();
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the next log segment", ie);
+		}
+		catch (ExecutionException ee)
+		{
+			prepareNext(); // try again for the next append
+			throw new IOException("Couldn't create the next log segment", ee.getCause());
+		}
+	}
+	
+	/**
+	**	Has the background thread create and map the segment to take over from the active one. It's named
+	**		after the active segment's next offset, which its own first message can only be at or after.
+	**/
+	private void prepareNext()
+	{
+		final long nameOffset = Math.max(active.getNextOffset(), active.getBaseOffset() + 1);
+		next = background.submit(new Callable<LogSegment>()
+		{
+			public LogSegment call() throws IOException
+			{
+				return new LogSegment(directory, nameOffset, segmentSize, indexInterval);
+			}
+		});
+	}
+	
+	/**
+	**	Has the background thread enforce retention, unless it's already going to.
+	**/
+	private void retainSoon()
+	{
+		if (!retentionQueued.compareAndSet(false, true))
+			return;
+		background.execute(new Runnable()
+		{
+			public void run()
+			{
+				retentionQueued.set(false);
+				enforceRetention();
+			}
+		});
+	}
+	
+	/**
+	**	Reads messages back out in order, starting from an offset, and hands each one to the listener as a
+	**		read-only view of the mapped file. Stops at the last message appended before the replay started.
+	**	
+	**	@param fromOffset Offset of the first message wanted. Offsets already deleted by retention start the
+	**		replay at the oldest message still kept.
+	**	@param topic Only replay messages appended under this topic, or null for every message.
+	**	@param listener Gets each message.
+	**	
+	**	@return Number of messages handed to the listener.
+	**/
+	public int replay(long fromOffset, String topic, ReplayListener listener)
+	{
+		long end = getEndOffset();
+		byte[] topicBytes = null;
+		if (topic != null)
+		{
+			topicBytes = new byte[topic.length()];
+			for (int i = 0; i < topicBytes.length; ++i)
+			{
+				char c = topic.charAt(i);
+				topicBytes[i] = c < 0x80 ? (byte) c : (byte) '?';
+			}
+		}
+		
+		Map.Entry<Long, LogSegment> first = segments.floorEntry(Long.valueOf(fromOffset));
+		Iterable<LogSegment> from = first == null ? segments.values() : segments.tailMap(first.getKey(), true).values();
+		int count = 0;
+		for (LogSegment segment : from)
+		{
+			int size = segment.getSize();
+			int at = segment.positionOf(fromOffset);
+			while (at < size)
+			{
+				long offset = segment.offsetAt(at);
+				if (offset >= end)
+					return count;
+				
+				if (topicBytes == null || segment.topicEquals(at, topicBytes))
+				{
+					++count;
+					if (!listener.message(offset, segment.timestampAt(at), topic == null ? segment.topicAt(at) : topic, segment.message(at)))
+						return count;
+				}
+				at += segment.lengthAt(at);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	**	Finds the first message appended at or after a time, for replaying everything since.
+	**	
+	**	@param timestamp Time in milliseconds since the epoch.
+	**	
+	**	@return Offset of the first message no older than the time, or <code>getEndOffset()</code> if every
+	**		message is older.
+	**/
+	public long offsetFor(long timestamp)
+	{
+		for (LogSegment segment : segments.values())
+		{
+			if (segment.getSize() == 0 || segment.getLastTimestamp() < timestamp)
+				continue;
+			int at = segment.positionOfTime(timestamp);
+			if (at < segment.getSize())
+				return segment.offsetAt(at);
+		}
+		return getEndOffset();
+	}
+	
+	/**
+	**	@return Offset of the oldest message still kept.
+	**/
+	public long getStartOffset()
+	{
+		return segments.firstKey().longValue();
+	}
+	
+	/**
+	**	@return Offset the next message appended will get.
+	**/
+	public long getEndOffset()
+	{
+		return active.getNextOffset();
+	}
+	
+	/**
+	**	@return Bytes of messages kept, over every segment.
+	**/
+	public long getSize()
+	{
+		long size = 0;
+		for (LogSegment segment : segments.values())
+			size += segment.getSize();
+		return size;
+	}
+	
+	/**
+	**	@return Number of segment files.
+	**/
+	public int getSegmentCount()
+	{
+		return segments.size();
+	}
+	
+	/**
+	**	Deletes the oldest segments for as long as the log is over its size limit or they are past the age
+	**		limit. The segment being written to is never deleted. Appends never wait for this, which matters
+	**		since an append that fills a segment waits on the background thread that also runs it.
+	**	
+	**	<p>A segment's files can't be deleted on some systems while it's still mapped, which it is until
+	**		everything that read from it has been garbage collected. Files that won't go are tried again every
+	**		time retention is enforced, and once more on <code>close</code>.</p>
+	**	
+	**	@return Number of segments taken out of the log.
+	**/
+	public int enforceRetention()
+	{
+		synchronized (retentionLock)
+		{
+			retryDeletes();
+			
+			List<LogSegment> expired = new ArrayList<LogSegment>();
+			long now = System.currentTimeMillis();
+			long size = getSize();
+			for (LogSegment segment : segments.values())
+			{
+				if (segment == active)
+					break;
+				boolean tooBig = maxBytes > 0 && size > maxBytes;
+				boolean tooOld = maxAge > 0 && segment.getLastTimestamp() < now - maxAge;
+				if (!tooBig && !tooOld)
+					break;
+				expired.add(segment);
+				size -= segment.getSize();
+			}
+			for (LogSegment segment : expired)
+			{
+				segments.remove(Long.valueOf(segment.getBaseOffset()));
+				delete(segment);
+			}
+			return expired.size();
+		}
+	}
+	
+	/**
+	**	@return Number of files of segments already out of the log that are still waiting to be deleted.
+	**/
+	public int getUndeletedCount()
+	{
+		synchronized (retentionLock)
+		{
+			return undeleted.size();
+		}
+	}
+	
+	/**
+	**	Deletes a segment's files, or remembers the ones that wouldn't go to try again later. Only the files
+	**		are remembered, not the segment, so its mapping can still be garbage collected.
+	**/
+	private void delete(LogSegment segment)
+	{
+		synchronized (retentionLock)
+		{
+			for (File file : segment.getFiles())
+			{
+				if (!file.delete() && file.exists())
+				{
+					System.out.println("Couldn't delete " + file.getName() + " from " + directory + " yet; it's probably still mapped. Trying again later.");
+					undeleted.add(file);
+				}
+			}
+		}
+	}
+	
+	private void retryDeletes()
+	{
+		for (int i = undeleted.size() - 1; i >= 0; --i)
+		{
+			File file = undeleted.get(i);
+			if (file.delete() || !file.exists())
+				undeleted.remove(i);
+		}
+	}
+	
+	/**
+	**	Forces everything appended so far out to disk.
+	**/
+	public synchronized void flush()
+	{
+		for (LogSegment segment : segments.values())
+			segment.flush();
+	}
+	
+	/**
+	**	Flushes the log and stops it taking any more messages, and stops its background thread. It can
+	**		still be replayed.
+	**/
+	public synchronized void close()
+	{
+		if (closed)
+			return;
+		flush();
+		closed = true;
+		background.shutdown();
+		synchronized (retentionLock)
+		{
+			retryDeletes();
+			for (File file : undeleted)
+				System.out.println("Couldn't delete " + file.getName() + " from " + directory + "; it will be deleted again when the log is next opened.");
+		}
+	}
+}
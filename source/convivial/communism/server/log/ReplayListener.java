@@ -0,0 +1,22 @@
+package convivial.communism.server.log;
+
+import java.nio.ByteBuffer;
+
+/**
+**	Handed each message read back out of a <code>MessageLog</code> by <code>replay</code>.
+**/
+public interface ReplayListener
+{
+	/**
+	**	Handles one message. The buffer is a read-only view straight over the log's mapped file, so it can be
+	**		given to <code>Server.send</code> as it is and written to a socket without being copied first.
+	**	
+	**	@param offset The message's offset in the log.
+	**	@param timestamp When the message was appended, in milliseconds since the epoch.
+	**	@param topic Topic the message was appended under.
+	**	@param message The message, between the buffer's position and limit.
+	**	
+	**	@return True to carry on, false to stop the replay here.
+	**/
+	public boolean message(long offset, long timestamp, String topic, ByteBuffer message);
+}
@@ -0,0 +1,168 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.nio.channels.*;
+
+import java.util.Iterator;
+
+/**
+**	Accepts new clients from one listening socket on a thread of its own. The socket is non-blocking
+**		and registered for OP_ACCEPT, so each time the Selector wakes the acceptor takes up to a batch of
+**		waiting clients in a row instead of going back to sleep after every one, which is what lets a
+**		connection storm be absorbed quickly. Each accepted client is handed to the Server, which queues
+**		its registration on an event loop; the acceptor never touches a loop's Selector.
+**	
+**	<p>When accepting fails, most likely because the process is out of file descriptors, the acceptor
+**		stops selecting for OP_ACCEPT for <code>ACCEPT_BACKOFF_MILLIS</code> rather than waking straight
+**		back up to fail again; waiting clients stay in the listen backlog meanwhile.</p>
+**	
+**	<p>A Server normally has one acceptor. With several, each has its own listening socket bound to the
+**		same address with SO_REUSEPORT, and the operating system spreads incoming clients across them.</p>
+**/
+class Acceptor implements Runnable
+{
+	/** How long to stop accepting for after accepting a client fails. **/
+	static final long ACCEPT_BACKOFF_MILLIS = 100;
+	
+	private Server server;
+	private ServerSocketChannel listener;
+	private Selector selector;
+	private SelectionKey key;
+	private long resumeAt;
+	private int batch;
+	private Thread thread;
+	private volatile boolean running;
+	
+	/**
+	**	Registers the listening socket with a new Selector, but doesn't start accepting.
+	**	
+	**	@param server Server to hand accepted clients to.
+	**	@param listener Bound listening socket.
+	**	@param batch Most clients to accept in a row before selecting again.
+	**	@param name Name given to the acceptor's thread.
+	**	
+	**	@throws IOException If the Selector couldn't be opened or the socket registered.
+	**/
+	Acceptor(Server server, ServerSocketChannel listener, int batch, String name) throws IOException
+	{
+		this.server = server;
+		this.listener = listener;
+		this.batch = batch;
+		selector = Selector.open();
+		listener.configureBlocking(false);
+		key = listener.register(selector, SelectionKey.OP_ACCEPT);
+		thread = new Thread(this, name);
+	}
+	
+	/**
+	**	Starts the acceptor's thread.
+	**/
+	void start()
+	{
+		running = true;
+		thread.start();
+	}
+	
+	/**
+	**	Stops accepting, closing the listening socket and Selector once the thread notices.
+	**/
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; automatically invoked by the acceptor's thread.
+	**/
+	public void run()
+	{
+		while (running)
+		{
+			try
+			{
+				if (resumeAt == 0)
+					selector.select();
+				else
+				{
+					long wait = (resumeAt - System.nanoTime()) / 1000000;
+					if (wait > 0)
+						selector.select(wait);
+					if (System.nanoTime() - resumeAt >= 0)
+					{
+						resumeAt = 0;
+						key.interestOps(SelectionKey.OP_ACCEPT);
+					}
+					continue;
+				}
+				
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext())
+				{
+					i.next();
+					i.remove();
+					acceptBatch();
+				}
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+			catch (ClosedSelectorException cse)
+			{
+				cse.printStackTrace();
+				return;
+			}
+		}
+		
+		close();
+	}
+	
+	private void acceptBatch()
+	{
+		for (int i = 0; i < batch; ++i)
+		{
+			SocketChannel channel;
+			try
+			{
+				channel = listener.accept();
+			}
+			catch (IOException ioe)
+			{
+				// likely out of file descriptors; whoever's waiting stays in the backlog until the backoff is over
+				ioe.printStackTrace();
+				key.interestOps(0);
+				resumeAt = System.nanoTime() + ACCEPT_BACKOFF_MILLIS * 1000000;
+				if (resumeAt == 0)
+					resumeAt = 1;
+				return;
+			}
+			
+			if (channel == null)
+				return;
+			
+			try
+			{
+				server.accepted(channel);
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void close()
+	{
+		try
+		{
+			selector.close();
+			listener.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+}
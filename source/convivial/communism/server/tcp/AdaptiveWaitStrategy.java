@@ -0,0 +1,60 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+**	Spins, then yields, then parks. While traffic is flowing the thread polls with
+**		<code>selectNow()</code> like a <code>BusySpinWaitStrategy</code>; after a number of empty passes it
+**		starts calling <code>Thread.yield()</code> between polls, and once it's been idle for longer still it
+**		parks in a blocking <code>select()</code> like a <code>BlockingWaitStrategy</code>.
+**	
+**	<p>A good middle ground: bursts are handled with spin latency, while a quiet server settles down to
+**		using no CPU.</p>
+**/
+public class AdaptiveWaitStrategy implements WaitStrategy
+{
+	/** Empty passes spent spinning before yielding, when using the no-argument constructor. **/
+	public static final int DEFAULT_SPINS = 1000;
+	/** Empty passes spent yielding before parking, when using the no-argument constructor. **/
+	public static final int DEFAULT_YIELDS = 100;
+	
+	private int spins;
+	private int yields;
+	
+	/**
+	**	Creates a strategy that spins for <code>DEFAULT_SPINS</code> empty passes and yields for
+	**		<code>DEFAULT_YIELDS</code> more before parking.
+	**/
+	public AdaptiveWaitStrategy()
+	{
+		this(DEFAULT_SPINS, DEFAULT_YIELDS);
+	}
+	
+	/**
+	**	@param spins Number of empty passes to spin through before starting to yield.
+	**	@param yields Number of further empty passes to yield through before parking.
+	**/
+	public AdaptiveWaitStrategy(int spins, int yields)
+	{
+		if (spins < 0 || yields < 0)
+			throw new IllegalArgumentException("Spin and yield counts can't be negative: " + spins + ", " + yields);
+		
+		this.spins = spins;
+		this.yields = yields;
+	}
+	
+	public int select(Selector selector, int idleCount, long timeoutMillis) throws IOException
+	{
+		if (idleCount < spins)
+			return selector.selectNow();
+		
+		if (idleCount < spins + yields)
+		{
+			Thread.yield();
+			return selector.selectNow();
+		}
+		
+		return selector.select(timeoutMillis);
+	}
+}
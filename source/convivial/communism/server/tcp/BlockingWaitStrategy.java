@@ -0,0 +1,16 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+**	Blocks in <code>Selector.select()</code> until a key is ready, the selector is woken up or a timer is due. Uses no
+**		CPU while idle; the default for both Server and ServerConnection.
+**/
+public class BlockingWaitStrategy implements WaitStrategy
+{
+	public int select(Selector selector, int idleCount, long timeoutMillis) throws IOException
+	{
+		return selector.select(timeoutMillis);
+	}
+}
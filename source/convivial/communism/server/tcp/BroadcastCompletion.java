@@ -0,0 +1,59 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+**	Counts down the copies of a broadcast still waiting to be written, and tells the broadcaster's
+**		listener once the last of them has been written or has failed. Starts with one extra count held by
+**		the broadcaster itself, so the listener can't fire while copies are still being queued.
+**/
+class BroadcastCompletion implements WriteListener
+{
+	private ByteBuffer data;
+	private WriteListener listener;
+	private AtomicInteger remaining;
+	
+	BroadcastCompletion(ByteBuffer data, WriteListener listener)
+	{
+		this.data = data;
+		this.listener = listener;
+		remaining = new AtomicInteger(1);
+	}
+	
+	/**
+	**	Accounts for one more copy being queued.
+	**/
+	void add()
+	{
+		remaining.incrementAndGet();
+	}
+	
+	/**
+	**	Gives up the broadcaster's own count once every copy has been queued.
+	**/
+	void done()
+	{
+		countDown();
+	}
+	
+	public void writeComplete(SocketChannel channel, ByteBuffer copy)
+	{
+		countDown();
+	}
+	
+	public void writeFailed(SocketChannel channel, ByteBuffer copy, IOException cause)
+	{
+		countDown();
+	}
+	
+	private void countDown()
+	{
+		if (remaining.decrementAndGet() == 0)
+			listener.writeComplete(null, data);
+	}
+}
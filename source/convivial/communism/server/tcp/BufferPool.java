@@ -0,0 +1,282 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+**	Recycles direct ByteBuffers so the server doesn't keep asking the operating system for fresh
+**		native memory. Buffers come in size classes, powers of two from <code>MIN_CLASS_SIZE</code> up to
+**		the pool's largest class; a request is rounded up to the next class. Each thread keeps a small
+**		cache of released buffers per class so the common acquire/release pair on an event loop touches no
+**		shared state at all, and buffers that don't fit in a thread's cache go to a shared free list.
+**		Virtual threads skip the caches and use the shared lists directly: there are too many of them,
+**		too short-lived, for a cache of their own to ever be reused.
+**	
+**	<p>Always release exactly the buffer that was acquired (not a slice or duplicate of it), once, and
+**		don't touch it afterwards. Requests bigger than the largest class are served with an unpooled
+**		buffer, and releasing one of those is harmless.</p>
+**	
+**	<p>In debug mode the pool remembers where every outstanding buffer was acquired, rejects double
+**		releases, and <code>reportLeaks(PrintStream)</code> prints the acquisition stack trace of every
+**		buffer that was never given back. The default pool runs in debug mode when the system property
+**		<code>convivial.communism.server.debugBuffers</code> is set to <code>true</code>.</p>
+**/
+public class BufferPool
+{
+	/** Capacity of the smallest size class. **/
+	public static final int MIN_CLASS_SIZE = 256;
+	/** Capacity of the largest size class in the default pool. **/
+	public static final int DEFAULT_MAX_CLASS_SIZE = 1 << 20;
+	
+	private static final int MIN_SHIFT = 8;
+	private static final int THREAD_CACHE_BYTES = 256 * 1024;
+	private static final int SHARED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+	
+	private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_CLASS_SIZE,
+		Boolean.getBoolean("convivial.communism.server.debugBuffers"));
+	
+	private int maxClassSize;
+	private int[] threadCacheLimits;
+	private int[] sharedLimits;
+	private ConcurrentLinkedQueue<ByteBuffer>[] shared;
+	private AtomicInteger[] sharedCounts;
+	private ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+	private Map<ByteBuffer, Throwable> outstanding;
+	private WriteListener releaser;
+	
+	/**
+	**	Creates a new pool.
+	**	
+	**	@param maxClassSize Capacity of the largest pooled buffer; rounded up to a power of two.
+	**	@param debug True to track every outstanding buffer for leak detection. Slow; for testing only.
+	**/
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int maxClassSize, boolean debug)
+	{
+		if (maxClassSize < MIN_CLASS_SIZE)
+			throw new IllegalArgumentException("Largest size class must be at least " + MIN_CLASS_SIZE + ", got " + maxClassSize);
+		
+		int classes = classIndex(maxClassSize) + 1;
+		this.maxClassSize = MIN_CLASS_SIZE << (classes - 1);
+		
+		threadCacheLimits = new int[classes];
+		sharedLimits = new int[classes];
+		shared = new ConcurrentLinkedQueue[classes];
+		sharedCounts = new AtomicInteger[classes];
+		for (int i = 0; i < classes; ++i)
+		{
+			int size = MIN_CLASS_SIZE << i;
+			threadCacheLimits[i] = Math.max(1, THREAD_CACHE_BYTES / size);
+			sharedLimits[i] = Math.max(2, SHARED_BYTES_PER_CLASS / size);
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sharedCounts[i] = new AtomicInteger();
+		}
+		
+		final int classCount = classes;
+		threadCaches = new ThreadLocal<ArrayDeque<ByteBuffer>[]>()
+		{
+			protected ArrayDeque<ByteBuffer>[] initialValue()
+			{
+				ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[classCount];
+				for (int i = 0; i < classCount; ++i)
+					caches[i] = new ArrayDeque<ByteBuffer>();
+				return caches;
+			}
+		};
+		
+		if (debug)
+			outstanding = new IdentityHashMap<ByteBuffer, Throwable>();
+		
+		releaser = new WriteListener()
+		{
+			public void writeComplete(SocketChannel channel, ByteBuffer data)
+			{
+				release(data);
+			}
+			
+			public void writeFailed(SocketChannel channel, ByteBuffer data, IOException cause)
+			{
+				release(data);
+			}
+		};
+	}
+	
+	/**
+	**	@return The pool shared by every Server and ServerConnection that isn't told otherwise.
+	**/
+	public static BufferPool getDefault()
+	{
+		return DEFAULT;
+	}
+	
+	/**
+	**	@return Capacity of the largest pooled buffer.
+	**/
+	public int getMaxClassSize()
+	{
+		return maxClassSize;
+	}
+	
+	/**
+	**	Hands out a cleared direct buffer with at least the requested capacity. The buffer's limit is its
+	**		capacity, which may be larger than asked for.
+	**	
+	**	@param capacity Minimum number of bytes the buffer must hold.
+	**	
+	**	@return A buffer to give back with <code>release(ByteBuffer)</code> when done.
+	**/
+	public ByteBuffer acquire(int capacity)
+	{
+		ByteBuffer buffer;
+		if (capacity > maxClassSize)
+			buffer = ByteBuffer.allocateDirect(capacity);
+		else
+		{
+			int index = classIndex(capacity);
+			buffer = null;
+			if (!VirtualThreads.isVirtual(Thread.currentThread()))
+				buffer = threadCaches.get()[index].pollFirst();
+			if (buffer == null)
+			{
+				buffer = shared[index].poll();
+				if (buffer != null)
+					sharedCounts[index].decrementAndGet();
+				else
+					buffer = ByteBuffer.allocateDirect(MIN_CLASS_SIZE << index);
+			}
+			buffer.clear();
+		}
+		
+		if (outstanding != null)
+		{
+			synchronized (outstanding)
+			{
+				outstanding.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+			}
+		}
+		return buffer;
+	}
+	
+	/**
+	**	Gives a buffer back to the pool. The buffer must have come from <code>acquire(int)</code> and must
+	**		not be used after this call.
+	**	
+	**	@param buffer Buffer to recycle.
+	**	
+	**	@throws IllegalStateException In debug mode, if the buffer isn't currently acquired from this pool.
+	**/
+	public void release(ByteBuffer buffer)
+	{
+		if (outstanding != null)
+		{
+			synchronized (outstanding)
+			{
+				if (outstanding.remove(buffer) == null)
+					throw new IllegalStateException("Released a buffer that isn't outstanding; released twice or never acquired from this pool.");
+			}
+		}
+		
+		int capacity = buffer.capacity();
+		if (!buffer.isDirect() || capacity > maxClassSize || Integer.bitCount(capacity) != 1 || capacity < MIN_CLASS_SIZE)
+			return;
+		
+		int index = classIndex(capacity);
+		if (!VirtualThreads.isVirtual(Thread.currentThread()))
+		{
+			ArrayDeque<ByteBuffer> cache = threadCaches.get()[index];
+			if (cache.size() < threadCacheLimits[index])
+			{
+				cache.addFirst(buffer);
+				return;
+			}
+		}
+		if (sharedCounts[index].incrementAndGet() <= sharedLimits[index])
+			shared[index].add(buffer);
+		else
+			sharedCounts[index].decrementAndGet();
+	}
+	
+	/**
+	**	Gets a buffer with room for at least <code>extra</code> more bytes, keeping the contents of the
+	**		one passed in. Returns the same buffer if it already has room, otherwise copies its contents
+	**		(position 0 up to its position) into a bigger one and releases the old one.
+	**	
+	**	@param buffer Buffer in write mode, as acquired from this pool.
+	**	@param extra Number of bytes about to be put into the buffer.
+	**	
+	**	@return A buffer in write mode holding the same contents, with at least <code>extra</code> bytes remaining.
+	**/
+	public ByteBuffer grow(ByteBuffer buffer, int extra)
+	{
+		if (buffer.remaining() >= extra)
+			return buffer;
+		
+		ByteBuffer bigger = acquire(buffer.position() + extra);
+		buffer.flip();
+		bigger.put(buffer);
+		release(buffer);
+		return bigger;
+	}
+	
+	/**
+	**	Returns a listener that releases every buffer it hears about back to this pool, whether the
+	**		write succeeded or not. Pass it to <code>send</code> along with a buffer acquired from this pool
+	**		to have the buffer recycled once it has been written.
+	**	
+	**	@return A listener shared by every caller of this pool.
+	**/
+	public WriteListener releaser()
+	{
+		return releaser;
+	}
+	
+	/**
+	**	@return Number of buffers acquired but not yet released, or -1 if the pool isn't in debug mode.
+	**/
+	public int getOutstandingCount()
+	{
+		if (outstanding == null)
+			return -1;
+		
+		synchronized (outstanding)
+		{
+			return outstanding.size();
+		}
+	}
+	
+	/**
+	**	Prints where every outstanding buffer was acquired. Does nothing unless the pool is in debug mode.
+	**	
+	**	@param out Stream to print to, like <code>System.err</code>.
+	**	
+	**	@return Number of outstanding buffers reported.
+	**/
+	public int reportLeaks(PrintStream out)
+	{
+		if (outstanding == null)
+			return 0;
+		
+		synchronized (outstanding)
+		{
+			for (Throwable acquiredAt : outstanding.values())
+				acquiredAt.printStackTrace(out);
+			return outstanding.size();
+		}
+	}
+	
+	private static int classIndex(int capacity)
+	{
+		if (capacity <= MIN_CLASS_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+	}
+}
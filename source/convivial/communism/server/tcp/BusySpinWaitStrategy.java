@@ -0,0 +1,17 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+**	Never blocks; polls with <code>Selector.selectNow()</code> on every pass. Gives the lowest possible
+**		latency between bytes arriving and <code>receiveData</code> being called, but keeps one core
+**		fully busy per thread using it, so only pick this when there are cores to spare.
+**/
+public class BusySpinWaitStrategy implements WaitStrategy
+{
+	public int select(Selector selector, int idleCount, long timeoutMillis) throws IOException
+	{
+		return selector.selectNow();
+	}
+}
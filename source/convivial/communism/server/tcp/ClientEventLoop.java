@@ -0,0 +1,277 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+**	A selector thread driving one or more <code>ServerConnection</code>s: the client side's counterpart
+**		of <code>EventLoop</code>. A ServerConnection that isn't given a <code>ClientEventLoopGroup</code> gets a
+**		loop of its own, run on its own read thread; otherwise it shares one of the group's loops with
+**		every other connection the group hands that loop. Either way every read, flush, scheduled task and
+**		listener callback for a connection happens on its loop's thread.
+**	
+**	<p>Other threads never touch the Selector directly; anything they need done is handed over through
+**		<code>execute(Runnable)</code>, which queues the task and wakes the selector up.</p>
+**/
+class ClientEventLoop implements Runnable
+{
+	private Selector selector;
+	private WaitStrategy waitStrategy;
+	private ByteBuffer[] gather;
+	private ArrayList<ServerConnection> dirty;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private TimingWheel timers;
+	private Map<SelectableChannel, ServerConnection> connections;
+	private volatile Thread thread;
+	private volatile boolean running;
+	private volatile boolean terminated;
+	
+	/**
+	**	Opens the loop's Selector, but does not start running it.
+	**	
+	**	@param waitStrategy How the loop waits for its Selector.
+	**	
+	**	@throws IOException If the Selector could not be opened.
+	**/
+	ClientEventLoop(WaitStrategy waitStrategy) throws IOException
+	{
+		this.waitStrategy = waitStrategy;
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		timers = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(Server.DEFAULT_TIMER_TICK_MILLIS), Server.TIMER_WHEEL_SIZE);
+		gather = new ByteBuffer[OutboundQueue.GATHER_LIMIT];
+		dirty = new ArrayList<ServerConnection>();
+		connections = new ConcurrentHashMap<SelectableChannel, ServerConnection>();
+		running = true;
+	}
+	
+	/**
+	**	Stops the loop once its thread notices. Connections still on the loop are disconnected, and the
+	**		Selector is closed.
+	**/
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+	
+	/**
+	**	@return True if the calling thread is this loop's thread.
+	**/
+	boolean inLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+	
+	/**
+	**	@return Number of connections currently on this loop.
+	**/
+	int getConnectionCount()
+	{
+		return connections.size();
+	}
+	
+	/**
+	**	@return Array for gathering writes, shared by every connection on this loop. Only use on the loop's thread.
+	**/
+	ByteBuffer[] getGather()
+	{
+		return gather;
+	}
+	
+	/**
+	**	Queues a task to be run on this loop's thread and wakes the loop up. Once the loop has stopped,
+	**		tasks are run straight away on the calling thread, so clean up handed to a stopped loop still happens.
+	**	
+	**	@param task Work to perform on the loop's thread.
+	**/
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+		if (terminated)
+			runTasks();
+		else if (!inLoop())
+			selector.wakeup();
+	}
+	
+	/**
+	**	Schedules a task to run on this loop's thread after a delay. Safe to call from any thread.
+	**	
+	**	@param task Work to perform on the loop's thread.
+	**	@param delayNanos How long from now, in nanoseconds.
+	**	
+	**	@return A handle for cancelling the task.
+	**/
+	Timeout schedule(Runnable task, long delayNanos)
+	{
+		Timeout timeout = timers.schedule(task, delayNanos);
+		if (!inLoop())
+			selector.wakeup();
+		return timeout;
+	}
+	
+	/**
+	**	Registers a connected channel for reading on the loop's thread, then calls the connection's
+	**		<code>registered</code>.
+	**	
+	**	@param connection Connection the channel belongs to.
+	**	@param channel Connected, non-blocking channel.
+	**	@param attachment Object to attach to the channel's SelectionKey.
+	**/
+	void register(final ServerConnection connection, final SocketChannel channel, final Object attachment)
+	{
+		connections.put(channel, connection);
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					connection.registered(channel.register(selector, SelectionKey.OP_READ, attachment));
+				}
+				catch (IOException ioe)
+				{
+					ioe.printStackTrace();
+					connection.close();
+				}
+			}
+		});
+	}
+	
+	/**
+	**	Takes a connection off the loop on the loop's thread, then calls its <code>deregistered</code>.
+	**	
+	**	@param connection Connection whose channel has been closed.
+	**	@param channel The connection's channel.
+	**/
+	void deregister(final ServerConnection connection, final SocketChannel channel)
+	{
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				connections.remove(channel);
+				connection.deregistered();
+			}
+		});
+	}
+	
+	/**
+	**	Has the connection flushed at the end of the current pass. Only call on the loop's thread.
+	**	
+	**	@param connection Connection with written but unflushed data.
+	**/
+	void markDirty(ServerConnection connection)
+	{
+		dirty.add(connection);
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; invoked by the thread running this loop.
+	**/
+	public void run()
+	{
+		thread = Thread.currentThread();
+		int idleCount = 0;
+		while (running)
+		{
+			try
+			{
+				// tasks first: one queued on this thread while handling the last pass's keys didn't wake the selector
+				int tasksRun = runTasks();
+				int ready = waitStrategy.select(selector, idleCount, timers.selectTimeout(System.nanoTime()));
+				if (ready == 0 && tasksRun == 0)
+				{
+					if (idleCount < Integer.MAX_VALUE)
+						++idleCount;
+				}
+				else
+					idleCount = 0;
+				
+				Set<SelectionKey> readyKeys = selector.selectedKeys();
+				Iterator<SelectionKey> i = readyKeys.iterator();
+				while (i.hasNext())
+				{
+					SelectionKey key = i.next();
+					i.remove();
+					ServerConnection connection = connections.get(key.channel());
+					if (connection == null)
+					{
+						key.cancel();
+						continue;
+					}
+					
+					if (key.isValid() && key.isWritable())
+						connection.flushNow();
+					if (key.isValid() && key.isReadable())
+						connection.read(key);
+				}
+				
+				timers.expire(System.nanoTime());
+				flushDirty();
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		runTasks();
+		for (ServerConnection connection : connections.values())
+			connection.close();
+		terminated = true;
+		runTasks();
+		try
+		{
+			selector.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+	
+	private void flushDirty()
+	{
+		for (int i = 0; i < dirty.size(); ++i)
+		{
+			ServerConnection connection = dirty.get(i);
+			connection.clearDirty();
+			connection.flushNow();
+		}
+		dirty.clear();
+	}
+	
+	private int runTasks()
+	{
+		int count = 0;
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		{
+			++count;
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return count;
+	}
+}
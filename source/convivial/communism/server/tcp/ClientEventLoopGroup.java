@@ -0,0 +1,110 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+**	A fixed set of threads shared by any number of <code>ServerConnection</code>s, so a program holding
+**		thousands of connections to servers doesn't need thousands of read threads. Hand the group to each
+**		connection with <code>setEventLoopGroup</code> before connecting; the group gives it one of its
+**		loops, and every callback, scheduled task and idle timeout of that connection then runs on that
+**		loop's thread.
+**	
+**	<p>The group's threads are daemon threads, so they don't keep the program alive on their own.
+**		<code>shutdown()</code> disconnects every connection still using the group and stops the threads.</p>
+**/
+public class ClientEventLoopGroup
+{
+	private ClientEventLoop[] loops;
+	private EventLoopGroup.Chooser chooser;
+	private AtomicInteger nextIndex;
+	
+	/**
+	**	Starts a group whose loops block on their Selectors while there's nothing to do, and hand new
+	**		connections to the loop with the fewest.
+	**	
+	**	@param count Number of threads, must be at least 1.
+	**	
+	**	@throws IOException If a Selector could not be opened.
+	**/
+	public ClientEventLoopGroup(int count) throws IOException
+	{
+		this(count, EventLoopGroup.Chooser.LEAST_LOADED, new BlockingWaitStrategy());
+	}
+	
+	/**
+	**	Starts a group with a thread for each loop.
+	**	
+	**	@param count Number of threads, must be at least 1.
+	**	@param chooser Strategy used to pick a loop for each new connection.
+	**	@param waitStrategy How each loop waits for its Selector.
+	**	
+	**	@throws IOException If a Selector could not be opened.
+	**/
+	public ClientEventLoopGroup(int count, EventLoopGroup.Chooser chooser, WaitStrategy waitStrategy) throws IOException
+	{
+		if (count < 1)
+			throw new IllegalArgumentException("A ClientEventLoopGroup needs at least one loop, got " + count);
+		
+		this.chooser = chooser;
+		nextIndex = new AtomicInteger();
+		loops = new ClientEventLoop[count];
+		for (int i = 0; i < count; ++i)
+			loops[i] = new ClientEventLoop(waitStrategy);
+		for (int i = 0; i < count; ++i)
+		{
+			Thread thread = new Thread(loops[i], "ClientEventLoop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	**	@return Number of loops in this group.
+	**/
+	public int size()
+	{
+		return loops.length;
+	}
+	
+	/**
+	**	@return Number of connections currently using this group.
+	**/
+	public int getConnectionCount()
+	{
+		int count = 0;
+		for (ClientEventLoop loop : loops)
+			count += loop.getConnectionCount();
+		return count;
+	}
+	
+	/**
+	**	Disconnects every connection still using the group, telling each one's listener, and stops the
+	**		group's threads. Connections can't use the group afterwards.
+	**/
+	public void shutdown()
+	{
+		for (ClientEventLoop loop : loops)
+			loop.shutdown();
+	}
+	
+	/**
+	**	@return The loop the next connection should use.
+	**/
+	ClientEventLoop next()
+	{
+		if (chooser == EventLoopGroup.Chooser.LEAST_LOADED)
+		{
+			ClientEventLoop best = loops[0];
+			for (int i = 1; i < loops.length; ++i)
+			{
+				if (loops[i].getConnectionCount() < best.getConnectionCount())
+					best = loops[i];
+			}
+			return best;
+		}
+		
+		return loops[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+}
@@ -0,0 +1,110 @@
+package convivial.communism.server.tcp;
+
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+**	Settings for compressing frames between a <code>Server</code> and its <code>ServerConnection</code>s.
+**		Give one to <code>Server.setCompression</code> and to each <code>ServerConnection.setCompression</code>;
+**		frames sent with <code>sendFrame</code> or <code>broadcastFrame</code> are then deflated on the way
+**		out and inflated again before <code>receiveFrame</code> sees them. Compression works on whole frames,
+**		so it needs a frame decoder on both ends.
+**	
+**	<p>Each message is compressed on its own, so messages can still be handled one at a time and a lost
+**		connection loses nothing but its own frames. On its own that does little for short messages, which
+**		is where a preset dictionary comes in: a few kilobytes of text typical of the traffic (common words,
+**		field names, greetings) that both ends load before every message, so even a short message can refer
+**		back to it. Messages shorter than the threshold, or that don't get any smaller, are sent as they are.</p>
+**	
+**	<p>The two ends negotiate when they connect: the client first sends a hello frame naming the version
+**		of the format and the dictionary it holds, and the server answers with its own, sending frames as
+**		they are until then. The dictionary is only used once both have said they hold the same one. A
+**		client that doesn't send a hello, or says in it that it won't compress, is only ever sent frames
+**		as they are. A Compression holds no per-connection state and may be shared by any number of
+**		connections.</p>
+**/
+public class Compression
+{
+	/** Messages shorter than this many bytes are sent uncompressed unless the threshold is set otherwise. **/
+	public static final int DEFAULT_THRESHOLD = 64;
+	
+	private int level;
+	private int threshold;
+	private byte[] dictionary;
+	private int dictionaryId;
+	
+	/**
+	**	Compresses messages of <code>DEFAULT_THRESHOLD</code> bytes or more at the default level, without a dictionary.
+	**/
+	public Compression()
+	{
+		this(Deflater.DEFAULT_COMPRESSION, DEFAULT_THRESHOLD, null);
+	}
+	
+	/**
+	**	Compresses messages of <code>DEFAULT_THRESHOLD</code> bytes or more at the default level, using a
+	**		preset dictionary when the peer holds the same one.
+	**	
+	**	@param dictionary Text typical of the traffic, most common strings last; may be null.
+	**/
+	public Compression(byte[] dictionary)
+	{
+		this(Deflater.DEFAULT_COMPRESSION, DEFAULT_THRESHOLD, dictionary);
+	}
+	
+	/**
+	**	@param level Deflate level, 0 to 9 or <code>Deflater.DEFAULT_COMPRESSION</code>.
+	**	@param threshold Messages shorter than this many bytes are sent uncompressed.
+	**	@param dictionary Text typical of the traffic, most common strings last; may be null. It is
+	**		copied, so later changes to the array have no effect.
+	**/
+	public Compression(int level, int threshold, byte[] dictionary)
+	{
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("Compression level must be 0 to 9, got " + level);
+		if (threshold < 0)
+			throw new IllegalArgumentException("Compression threshold can't be negative, got " + threshold);
+		
+		this.level = level;
+		this.threshold = threshold;
+		if (dictionary != null && dictionary.length > 0)
+		{
+			this.dictionary = dictionary.clone();
+			Adler32 adler = new Adler32();
+			adler.update(this.dictionary, 0, this.dictionary.length);
+			dictionaryId = (int) adler.getValue();
+		}
+	}
+	
+	/**
+	**	@return Deflate level messages are compressed at.
+	**/
+	public int getLevel()
+	{
+		return level;
+	}
+	
+	/**
+	**	@return Messages shorter than this many bytes are sent uncompressed.
+	**/
+	public int getThreshold()
+	{
+		return threshold;
+	}
+	
+	/**
+	**	@return Identifies the preset dictionary to peers: its Adler-32 checksum, as in zlib, or 0 without one.
+	**/
+	public int getDictionaryId()
+	{
+		return dictionaryId;
+	}
+	
+	/**
+	**	@return The preset dictionary, or null without one. Don't change it.
+	**/
+	byte[] getDictionary()
+	{
+		return dictionary;
+	}
+}
@@ -0,0 +1,362 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+**	One connection's end of frame compression, holding the connection's <code>Deflater</code> and
+**		<code>Inflater</code> so they're created once rather than per message. Each is only created the
+**		first time a message needs it, since zlib's state runs to a few hundred kilobytes outside the heap,
+**		and is let go of by <code>end()</code> when the connection closes.
+**	
+**	<p>Each end's frames go as they are until it sends its hello: a magic number, the format version and
+**		the <code>Compression.getDictionaryId()</code> of the dictionary it holds. Every frame after the hello
+**		starts with a flag byte: <code>STORED</code> and the message as it is, or <code>DEFLATED</code> (or
+**		<code>DEFLATED_WITH_DICTIONARY</code>), the message's length as four bytes, then the message as a raw
+**		deflate stream. A message is only deflated with the dictionary once the peer's hello has shown it
+**		holds the same one.</p>
+**	
+**	<p>The client speaks first: its hello is the first frame it sends. The server sends nothing compressed,
+**		and no hello, until it has the client's; it answers with its own and compresses from then on. A
+**		client whose first frame isn't a hello, or is a hello with version <code>NONE</code>, doesn't
+**		compress, so frames go both ways as they are and its first frame is handed on as a message. A
+**		frame only counts as a hello if it's exactly the length of one and has the magic number and a
+**		version this end knows; anything else is a message. The end that sent its hello first keeps
+**		looking for the peer's until it comes, taking everything before it as it is.</p>
+**	
+**	<p>Encoding may happen on any thread; decoding only ever happens on the one thread reading the
+**		connection at the time.</p>
+**/
+class CompressionCodec
+{
+	/** Starts every hello: "zlib" in ASCII. **/
+	static final int HELLO_MAGIC = 0x7A6C6962;
+	/** Version of the format, sent in the hello. **/
+	static final byte VERSION = 1;
+	/** Version in the hello of a peer that won't compress: frames go both ways uncompressed. **/
+	static final byte NONE = 0;
+	/** Length of a hello's body. **/
+	static final int HELLO_LENGTH = 9;
+	/** Flag for a message sent as it is. **/
+	static final byte STORED = 0;
+	/** Flag for a message deflated without a dictionary. **/
+	static final byte DEFLATED = 1;
+	/** Flag for a message deflated with the preset dictionary. **/
+	static final byte DEFLATED_WITH_DICTIONARY = 2;
+	
+	private static final int UNKNOWN = 0;
+	private static final int PLAIN = 1;
+	private static final int COMPRESSING = 2;
+	
+	private Compression compression;
+	private BufferPool pool;
+	private Deflater deflater;
+	private Inflater inflater;
+	private Object inflateLock;
+	private byte[] deflateIn, deflateOut;
+	private byte[] inflateIn, inflateOut;
+	private ByteBuffer inflated;
+	private boolean ended;
+	private volatile boolean sending;
+	private volatile int peer;
+	private volatile boolean sharedDictionary;
+	
+	/**
+	**	Creates a codec that sends frames as they are until <code>hello</code> is called.
+	**	
+	**	@param compression Settings shared by every connection.
+	**	@param pool Pool the encoded and inflated frames are borrowed from.
+	**/
+	CompressionCodec(Compression compression, BufferPool pool)
+	{
+		this(compression, pool, false);
+		sending = false;
+	}
+	
+	/**
+	**	Creates a codec that only encodes, for messages going to many peers at once.
+	**	
+	**	@param compression Settings shared by every connection.
+	**	@param pool Pool the encoded frames are borrowed from.
+	**	@param sharedDictionary True to deflate with the dictionary, for peers known to hold it.
+	**/
+	CompressionCodec(Compression compression, BufferPool pool, boolean sharedDictionary)
+	{
+		this.compression = compression;
+		this.sharedDictionary = sharedDictionary;
+		this.pool = pool;
+		sending = true;
+		inflateLock = new Object();
+		deflateIn = deflateOut = inflateIn = inflateOut = new byte[0];
+	}
+	
+	/**
+	**	@return True once the peer's hello has shown it holds the same dictionary as this end.
+	**/
+	boolean usesDictionary()
+	{
+		return sharedDictionary;
+	}
+	
+	/**
+	**	@return True once this end has sent its hello, so its frames are in the compressed format.
+	**/
+	boolean isCompressing()
+	{
+		return sending;
+	}
+	
+	/**
+	**	@return True if the peer's hello has come but this end hasn't answered it with its own yet.
+	**/
+	boolean isHelloDue()
+	{
+		return peer == COMPRESSING && !sending;
+	}
+	
+	/**
+	**	Builds this end's hello frame; every frame encoded after this is in the compressed format. Queue
+	**		it under the codec's lock, along with every other frame encoded for the connection, so no frame
+	**		encoded before the hello can be queued after it.
+	**	
+	**	@param decoder Frame format in use on the connection.
+	**	
+	**	@return The whole frame in a pooled buffer, flipped; give it back once sent.
+	**/
+	synchronized ByteBuffer hello(LengthFieldFrameDecoder decoder)
+	{
+		sending = true;
+		ByteBuffer out = pool.acquire(decoder.getHeaderLength() + HELLO_LENGTH);
+		writeHeader(out, decoder, HELLO_LENGTH);
+		out.putInt(HELLO_MAGIC);
+		out.put(VERSION);
+		out.putInt(compression.getDictionaryId());
+		out.flip();
+		return out;
+	}
+	
+	/**
+	**	Builds the frame for a message, deflating it if it's long enough and deflating makes it smaller,
+	**		or as it is if this end hasn't sent its hello. Bytes of the header before the length field are
+	**		left zero.
+	**	
+	**	@param decoder Frame format in use on the connection.
+	**	@param body The message, flipped. Its position is left where it was.
+	**	
+	**	@return The whole frame in a pooled buffer, flipped; give it back once sent.
+	**/
+	ByteBuffer encode(LengthFieldFrameDecoder decoder, ByteBuffer body)
+	{
+		if (!sending)
+			return decoder.encode(pool, body);
+		
+		int length = body.remaining();
+		if (length > 0 && length >= compression.getThreshold())
+		{
+			ByteBuffer out = deflate(decoder, body);
+			if (out != null)
+				return out;
+		}
+		
+		ByteBuffer out = pool.acquire(decoder.getHeaderLength() + 1 + length);
+		writeHeader(out, decoder, 1 + length);
+		out.put(STORED);
+		out.put(body.duplicate());
+		out.flip();
+		return out;
+	}
+	
+	/**
+	**	Turns a frame from the peer back into the message that was sent. The peer's hello is taken in
+	**		here and not passed on, and frames sent before it are messages as they are. If this end hasn't
+	**		sent a hello, the peer's first frame decides: if it isn't a hello, the peer doesn't compress.
+	**	
+	**	@param frame Frame as delivered by the frame decoder, header stripped.
+	**	@param maxLength Longest message accepted once inflated.
+	**	
+	**	@return The message, or null if the frame was the hello. Valid until <code>recycle()</code>.
+	**	
+	**	@throws IOException If the frame isn't in the format, or inflates to more than the maximum.
+	**/
+	ByteBuffer decode(ByteBuffer frame, int maxLength) throws IOException
+	{
+		int at = frame.position();
+		if (peer == UNKNOWN)
+		{
+			if (!isHello(frame))
+			{
+				if (!sending)
+					peer = PLAIN; // the peer's first frame, and no hello; it doesn't compress
+				return frame;
+			}
+			if (frame.get(at + 4) == NONE)
+			{
+				peer = PLAIN;
+				sending = false;
+				return null;
+			}
+			
+			int dictionaryId = frame.getInt(at + 5);
+			sharedDictionary = dictionaryId != 0 && dictionaryId == compression.getDictionaryId();
+			peer = COMPRESSING;
+			return null;
+		}
+		if (peer == PLAIN)
+			return frame;
+		
+		if (!frame.hasRemaining())
+			throw new ZipException("Compressed frame is missing its flag");
+		byte flag = frame.get(at);
+		if (flag == STORED)
+		{
+			ByteBuffer body = frame.duplicate();
+			body.position(at + 1);
+			return body.slice();
+		}
+		if (flag != DEFLATED && flag != DEFLATED_WITH_DICTIONARY)
+			throw new ZipException("Unknown compression flag " + flag);
+		if (frame.remaining() < 5)
+			throw new ZipException("Compressed frame is missing its length");
+		
+		int length = frame.getInt(at + 1);
+		if (length < 0 || length > maxLength)
+			throw new FrameTooLongException(length & 0xFFFFFFFFL, maxLength);
+		int compressed = frame.remaining() - 5;
+		if (inflateIn.length < compressed)
+			inflateIn = new byte[compressed];
+		if (inflateOut.length < length)
+			inflateOut = new byte[length];
+		ByteBuffer input = frame.duplicate();
+		input.position(at + 5);
+		input.get(inflateIn, 0, compressed);
+		if (flag == DEFLATED_WITH_DICTIONARY && compression.getDictionary() == null)
+			throw new ZipException("Peer compressed with a dictionary this end doesn't hold");
+		
+		int done = 0;
+		synchronized (inflateLock)
+		{
+			if (ended)
+				throw new ClosedChannelException();
+			if (inflater == null)
+				inflater = new Inflater(true);
+			
+			inflater.reset();
+			if (flag == DEFLATED_WITH_DICTIONARY)
+				inflater.setDictionary(compression.getDictionary());
+			inflater.setInput(inflateIn, 0, compressed);
+			try
+			{
+				while (done < length)
+				{
+					int n = inflater.inflate(inflateOut, done, length - done);
+					if (n == 0 && (inflater.finished() || inflater.needsInput()))
+						break;
+					done += n;
+				}
+			}
+			catch (DataFormatException dfe)
+			{
+				throw new ZipException("Corrupt compressed frame: " + dfe.getMessage());
+			}
+		}
+		if (done != length)
+			throw new ZipException("Compressed frame inflated to " + done + " bytes instead of " + length);
+		
+		inflated = pool.acquire(length);
+		inflated.put(inflateOut, 0, length);
+		inflated.flip();
+		return inflated;
+	}
+	
+	/**
+	**	Gives back the buffer the last message returned by <code>decode</code> was inflated into, if it was.
+	**/
+	void recycle()
+	{
+		if (inflated != null)
+		{
+			pool.release(inflated);
+			inflated = null;
+		}
+	}
+	
+	/**
+	**	Lets go of the Deflater and Inflater. Messages encoded afterwards are sent uncompressed, and
+	**		decoding one that's compressed fails.
+	**/
+	void end()
+	{
+		synchronized (this)
+		{
+			ended = true;
+			if (deflater != null)
+				deflater.end();
+		}
+		synchronized (inflateLock)
+		{
+			if (inflater != null)
+				inflater.end();
+		}
+	}
+	
+	private static boolean isHello(ByteBuffer frame)
+	{
+		int at = frame.position();
+		if (frame.remaining() != HELLO_LENGTH || frame.getInt(at) != HELLO_MAGIC)
+			return false;
+		byte version = frame.get(at + 4);
+		return version == VERSION || (version == NONE && frame.getInt(at + 5) == 0);
+	}
+	
+	private ByteBuffer deflate(LengthFieldFrameDecoder decoder, ByteBuffer body)
+	{
+		int length = body.remaining();
+		boolean dictionary = sharedDictionary;
+		synchronized (this)
+		{
+			if (ended)
+				return null;
+			if (deflater == null)
+				deflater = new Deflater(compression.getLevel(), true);
+			if (deflateIn.length < length)
+			{
+				deflateIn = new byte[length];
+				deflateOut = new byte[length];
+			}
+			body.duplicate().get(deflateIn, 0, length);
+			
+			deflater.reset();
+			if (dictionary)
+				deflater.setDictionary(compression.getDictionary());
+			deflater.setInput(deflateIn, 0, length);
+			deflater.finish();
+			int compressed = 0;
+			while (!deflater.finished() && compressed < length)
+				compressed += deflater.deflate(deflateOut, compressed, length - compressed);
+			if (!deflater.finished() || compressed + 4 >= length)
+				return null; // not worth it; the four byte length would eat the savings
+			
+			ByteBuffer out = pool.acquire(decoder.getHeaderLength() + 5 + compressed);
+			writeHeader(out, decoder, 5 + compressed);
+			out.put(dictionary ? DEFLATED_WITH_DICTIONARY : DEFLATED);
+			out.putInt(length);
+			out.put(deflateOut, 0, compressed);
+			out.flip();
+			return out;
+		}
+	}
+	
+	private static void writeHeader(ByteBuffer out, LengthFieldFrameDecoder decoder, int bodyLength)
+	{
+		for (int i = 0; i < decoder.getHeaderLength(); ++i)
+			out.put(out.position() + i, (byte) 0);
+		decoder.writeHeader(out, bodyLength);
+	}
+}
@@ -0,0 +1,176 @@
+package convivial.communism.server.tcp;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+**	The Server's bookkeeping for one accepted client: the loop that owns it and the data waiting
+**		to be written to it. The Server only ever asks a connection to flush, react to a write or close
+**		through the methods here, so <code>ThreadConnection</code> can service a client without a loop.
+**/
+class Connection
+{
+	/** Reads paused because too many messages are waiting for the handler pool. **/
+	static final int PAUSED_BY_HANDLERS = 1;
+	/** Reads paused because the connection itself is over its high watermark. **/
+	static final int PAUSED_BY_WRITES = 2;
+	/** Reads paused by the Server subclass. **/
+	static final int PAUSED_BY_SERVER = 4;
+	
+	final SocketChannel channel;
+	final EventLoop loop;
+	
+	/** The connection's ID, handed out by the Server's <code>ConnectionRegistry</code> before anyone else can see it. **/
+	long id;
+	
+	final OutboundQueue outbound;
+	
+	/** The channel's key in its loop's Selector, null until the loop has registered it. Loop thread only. **/
+	SelectionKey key;
+	
+	/** How much to read from the channel next. Loop thread only. **/
+	final ReadSize readSize;
+	
+	/** Start of a frame that hasn't completely arrived yet. Loop thread only. **/
+	final FrameBuffer frames;
+	
+	/** Set while the connection is on its loop's list of connections to flush at the end of the pass. Loop thread only. **/
+	boolean dirty;
+	
+	/** Set while a flush of this connection is queued on its loop but hasn't run yet. **/
+	final AtomicBoolean flushScheduled;
+	
+	/** Set while more than the high watermark is waiting to be written. **/
+	final AtomicBoolean unwritable;
+	
+	/** When the connection last went over its high watermark, from <code>System.nanoTime()</code>, or 0 while it's writable. **/
+	volatile long unwritableSince;
+	
+	/** Writability the Server subclass was last told about. Only touched through <code>execute</code>. **/
+	boolean notifiedWritable;
+	
+	/** Reasons reads are paused, a mix of the <code>PAUSED_BY_</code> bits; reading only happens at 0. Only touched through <code>execute</code>. **/
+	int readPauses;
+	
+	/** Watches for idle timeouts, null if the Server has none. Set before the connection's first read. **/
+	IdleMonitor idle;
+	
+	/** Messages waiting for the Server's handler pool, null if callbacks run on the loop. Set before the loop sees the connection. **/
+	HandlerQueue handlers;
+	
+	/** Compresses and decompresses the connection's frames, null if the Server has no compression. Set before the Server knows about the connection. **/
+	CompressionCodec codec;
+	
+	/** Replay out of the Server's message log still being sent, or null. Only touched through <code>execute</code>. **/
+	ReplayCursor replay;
+	
+	Connection(SocketChannel channel, EventLoop loop, ReadSize readSize, ServerMetrics metrics)
+	{
+		this.channel = channel;
+		this.loop = loop;
+		this.readSize = readSize;
+		outbound = new OutboundQueue(metrics);
+		frames = new FrameBuffer();
+		flushScheduled = new AtomicBoolean();
+		unwritable = new AtomicBoolean();
+		notifiedWritable = true;
+	}
+	
+	/**
+	**	Runs a task that touches the connection's loop-only state: right away on the loop's thread,
+	**		otherwise queued on the loop. Safe to call from any thread.
+	**	
+	**	@param task Work to do for this connection.
+	**/
+	void execute(Runnable task)
+	{
+		if (loop.inLoop())
+			task.run();
+		else
+			loop.execute(task);
+	}
+	
+	/**
+	**	Queues a task to run on the connection's loop on a later pass, even when called on the loop
+	**		itself. Safe to call from any thread.
+	**	
+	**	@param task Work to do for this connection.
+	**/
+	void executeLater(Runnable task)
+	{
+		loop.execute(task);
+	}
+	
+	/**
+	**	Schedules a task to run through <code>execute</code> after a delay. Safe to call from any thread.
+	**	
+	**	@param task Work to do for this connection.
+	**	@param delayNanos How long from now, in nanoseconds.
+	**	
+	**	@return A handle for cancelling the task.
+	**/
+	Timeout schedule(Runnable task, long delayNanos)
+	{
+		return loop.schedule(task, delayNanos);
+	}
+	
+	/**
+	**	Pauses or resumes reading for one reason; reading carries on only once no reason is left.
+	**		Must be run through <code>execute</code>.
+	**	
+	**	@param reason One of the <code>PAUSED_BY_</code> bits.
+	**	@param paused True to pause for this reason, false to take the reason away.
+	**/
+	void setReadPaused(int reason, boolean paused)
+	{
+		int before = readPauses;
+		readPauses = paused ? before | reason : before & ~reason;
+		if ((before == 0) == (readPauses == 0) || key == null || !key.isValid())
+			return;
+		
+		if (readPauses == 0)
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		else
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+	}
+	
+	/**
+	**	Gets queued data written out as soon as possible. Safe to call from any thread.
+	**/
+	void flushSoon()
+	{
+		loop.scheduleFlush(this);
+	}
+	
+	/**
+	**	Reacts to data having been queued without a flush, as the flush policy says. Safe to call from any thread.
+	**	
+	**	@param policy The Server's flush policy.
+	**/
+	void written(FlushPolicy policy)
+	{
+		loop.written(this, policy);
+	}
+	
+	/**
+	**	Closes the connection; the disconnection callback happens on the loop. Safe to call from any
+	**		thread, but only closes right away when called on the loop's thread.
+	**/
+	void close()
+	{
+		if (loop.inLoop())
+			loop.close(this);
+		else
+		{
+			loop.execute(new Runnable()
+			{
+				public void run()
+				{
+					loop.close(Connection.this);
+				}
+			});
+		}
+	}
+}
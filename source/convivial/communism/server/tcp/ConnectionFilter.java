@@ -0,0 +1,17 @@
+package convivial.communism.server.tcp;
+
+import java.nio.channels.SocketChannel;
+
+/**
+**	Picks which clients a <code>Server.broadcast</code> goes out to. Called once per connected client,
+**		on the thread doing the broadcast.
+**/
+public interface ConnectionFilter
+{
+	/**
+	**	@param channel A client connected to the server.
+	**	
+	**	@return True if the broadcast should be sent to that client.
+	**/
+	public boolean accept(SocketChannel channel);
+}
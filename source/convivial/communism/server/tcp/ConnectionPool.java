@@ -0,0 +1,617 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+**	Keeps connections to one or more servers open for reuse, so a task can borrow a connected
+**		<code>ServerConnection</code> with <code>acquire</code> and hand it back with <code>release</code>
+**		instead of paying for a TCP handshake and a thread every time. Each endpoint (server) gets
+**		between <code>min</code> and <code>max</code> connections; the pool opens more as they're asked for,
+**		and closes ones left idle too long down to <code>min</code> again.
+**	
+**	<p>Callers waiting for a connection are served in the order they started waiting. Which endpoint a
+**		caller gets is decided by the pool's <code>Balance</code>. A background check every so often drops
+**		idle connections that were lost or fail the pool's <code>HealthCheck</code>, closes idle ones past
+**		their timeout, and tops every endpoint back up to <code>min</code>. An endpoint that refuses a
+**		connection is passed over until the next check, as long as another endpoint has a connection to spare.</p>
+**	
+**	<p>Configure the pool with its setters, then call <code>start()</code>; the setters throw an
+**		IllegalStateException afterwards. Connections come from the pool's <code>Factory</code>, which
+**		sets each one's listener and options; the pool connects them.</p>
+**/
+public class ConnectionPool
+{
+	/**
+	**	Strategies for picking the endpoint a caller's connection comes from.
+	**/
+	public enum Balance
+	{
+		/** Hands out each endpoint in turn. **/
+		ROUND_ROBIN,
+		/** Hands out the endpoint with the fewest connections currently borrowed. **/
+		LEAST_OUTSTANDING
+	}
+	
+	/**
+	**	Makes the pool's connections, not yet connected.
+	**/
+	public interface Factory
+	{
+		/**
+		**	@return A new, unconnected connection with its listener set.
+		**/
+		public ServerConnection newConnection();
+	}
+	
+	/**
+	**	Decides whether an idle connection is still fit to hand out, beyond it still being connected.
+	**/
+	public interface HealthCheck
+	{
+		/**
+		**	Called on the pool's timer thread, on an idle connection no one else is using.
+		**	
+		**	@param connection Connection to check.
+		**	
+		**	@return False to have the connection closed and dropped from the pool.
+		**/
+		public boolean isHealthy(ServerConnection connection);
+	}
+	
+	/**
+	**	A server the pool connects to, with its connections.
+	**/
+	private static class Endpoint
+	{
+		String host;
+		int port;
+		ConcurrentLinkedDeque<Idle> idle;
+		AtomicInteger open;
+		AtomicInteger borrowed;
+		volatile long downUntil;
+		volatile int waiters;
+		
+		Endpoint(String host, int port)
+		{
+			this.host = host;
+			this.port = port;
+			idle = new ConcurrentLinkedDeque<Idle>();
+			open = new AtomicInteger();
+			borrowed = new AtomicInteger();
+		}
+		
+		/**
+		**	Wakes anyone in <code>take</code> waiting for one of the endpoint's connections to come back or
+		**		be closed. Cheap when no one is waiting, which is nearly always.
+		**/
+		void changed()
+		{
+			if (waiters == 0)
+				return;
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	**	A connection waiting in the pool, and since when.
+	**/
+	private static class Idle
+	{
+		ServerConnection connection;
+		long since;
+		
+		Idle(ServerConnection connection)
+		{
+			this.connection = connection;
+			since = System.nanoTime();
+		}
+	}
+	
+	private Factory factory;
+	private List<Endpoint> endpoints;
+	private Map<ServerConnection, Endpoint> owners;
+	private Balance balance;
+	private HealthCheck healthCheck;
+	private int min, max;
+	private long idleTimeoutNanos;
+	private long checkIntervalNanos;
+	private Semaphore permits;
+	private AtomicInteger nextIndex;
+	private WheelTimer timer;
+	private volatile boolean running;
+	private volatile boolean closed;
+	
+	/**
+	**	Creates a pool with no endpoints, 0 to 8 connections per endpoint, round robin balancing, a 60
+	**		second idle timeout and a check every 5 seconds.
+	**	
+	**	@param factory Makes the pool's connections.
+	**/
+	public ConnectionPool(Factory factory)
+	{
+		this.factory = factory;
+		endpoints = new ArrayList<Endpoint>();
+		owners = new ConcurrentHashMap<ServerConnection, Endpoint>();
+		balance = Balance.ROUND_ROBIN;
+		max = 8;
+		idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+		checkIntervalNanos = TimeUnit.SECONDS.toNanos(5);
+		nextIndex = new AtomicInteger();
+	}
+	
+	/**
+	**	Adds a server for the pool to connect to.
+	**	
+	**	@param host Host name or address of the server.
+	**	@param port Port to connect to.
+	**/
+	public void addEndpoint(String host, int port)
+	{
+		checkNotRunning();
+		endpoints.add(new Endpoint(host, port));
+	}
+	
+	/**
+	**	Sets how many connections each endpoint has.
+	**	
+	**	@param min Connections kept open even when idle.
+	**	@param max Most connections open at once.
+	**/
+	public void setSize(int min, int max)
+	{
+		checkNotRunning();
+		if (min < 0 || max < 1 || max < min)
+			throw new IllegalArgumentException("Bad pool sizes: min " + min + ", max " + max);
+		
+		this.min = min;
+		this.max = max;
+	}
+	
+	/**
+	**	Sets how endpoints are picked. Defaults to <code>Balance.ROUND_ROBIN</code>.
+	**	
+	**	@param balance Strategy for picking an endpoint.
+	**/
+	public void setBalance(Balance balance)
+	{
+		checkNotRunning();
+		this.balance = balance;
+	}
+	
+	/**
+	**	Sets how long a connection beyond <code>min</code> may sit idle before it's closed.
+	**	
+	**	@param timeout Idle timeout.
+	**	@param unit Unit of the timeout.
+	**/
+	public void setIdleTimeout(long timeout, TimeUnit unit)
+	{
+		checkNotRunning();
+		idleTimeoutNanos = unit.toNanos(timeout);
+	}
+	
+	/**
+	**	Sets how often idle connections are checked and endpoints topped up, and what else to check
+	**		them with besides being connected.
+	**	
+	**	@param interval Time between checks.
+	**	@param unit Unit of the interval.
+	**	@param healthCheck Extra check, or null for none.
+	**/
+	public void setHealthCheck(long interval, TimeUnit unit, HealthCheck healthCheck)
+	{
+		checkNotRunning();
+		if (interval <= 0)
+			throw new IllegalArgumentException("Check interval must be positive, got " + interval);
+		
+		checkIntervalNanos = unit.toNanos(interval);
+		this.healthCheck = healthCheck;
+	}
+	
+	/**
+	**	Opens <code>min</code> connections to every endpoint and starts the background checks.
+	**	
+	**	@throws IllegalStateException If already started, or there are no endpoints.
+	**/
+	public void start()
+	{
+		checkNotRunning();
+		if (endpoints.isEmpty())
+			throw new IllegalStateException("No endpoints to connect to; call addEndpoint first.");
+		
+		running = true;
+		permits = new Semaphore(max * endpoints.size(), true);
+		timer = new WheelTimer(TimeUnit.MILLISECONDS.toNanos(Server.DEFAULT_TIMER_TICK_MILLIS), "ConnectionPool-timer");
+		timer.start();
+		for (Endpoint endpoint : endpoints)
+			topUp(endpoint);
+		timer.schedule(new Runnable()
+		{
+			public void run()
+			{
+				check();
+				if (!closed)
+					timer.schedule(this, checkIntervalNanos);
+			}
+		}, checkIntervalNanos);
+	}
+	
+	/**
+	**	Borrows a connection, waiting as long as it takes for one to be free.
+	**	
+	**	@return A connected connection, for the caller's use alone until it's passed to <code>release</code>.
+	**	
+	**	@throws IOException If a new connection was needed and couldn't be made.
+	**	@throws InterruptedException If interrupted while waiting.
+	**	@throws IllegalStateException If the pool is closed, before or while waiting.
+	**/
+	public ServerConnection acquire() throws IOException, InterruptedException
+	{
+		checkRunning();
+		permits.acquire();
+		return take();
+	}
+	
+	/**
+	**	Borrows a connection, waiting at most the given time for one to be free.
+	**	
+	**	@param timeout Longest time to wait.
+	**	@param unit Unit of the timeout.
+	**	
+	**	@return A connected connection, for the caller's use alone until it's passed to <code>release</code>.
+	**	
+	**	@throws IOException If a new connection was needed and couldn't be made.
+	**	@throws InterruptedException If interrupted while waiting.
+	**	@throws TimeoutException If every connection stayed borrowed for the whole timeout.
+	**	@throws IllegalStateException If the pool is closed, before or while waiting.
+	**/
+	public ServerConnection acquire(long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException
+	{
+		checkRunning();
+		if (!permits.tryAcquire(timeout, unit))
+			throw new TimeoutException("No connection was free within " + timeout + " " + unit.toString().toLowerCase());
+		return take();
+	}
+	
+	/**
+	**	Hands a borrowed connection back. A connection that has been disconnected is dropped from the pool.
+	**	
+	**	@param connection Connection from <code>acquire</code>; don't use it after this.
+	**/
+	public void release(ServerConnection connection)
+	{
+		Endpoint endpoint = owners.get(connection);
+		if (endpoint == null)
+			throw new IllegalArgumentException("Connection doesn't belong to this pool.");
+		
+		if (closed || !connection.isConnected())
+			drop(endpoint, connection);
+		else
+		{
+			endpoint.idle.addFirst(new Idle(connection));
+			endpoint.changed();
+		}
+		endpoint.borrowed.decrementAndGet();
+		permits.release();
+	}
+	
+	/**
+	**	Hands back a borrowed connection that shouldn't be used again, like after a protocol error,
+	**		disconnecting it.
+	**	
+	**	@param connection Connection from <code>acquire</code>; don't use it after this.
+	**/
+	public void invalidate(ServerConnection connection)
+	{
+		disconnect(connection);
+		release(connection);
+	}
+	
+	/**
+	**	@return Number of connections open to all endpoints, borrowed or not.
+	**/
+	public int getOpenCount()
+	{
+		int count = 0;
+		for (Endpoint endpoint : endpoints)
+			count += endpoint.open.get();
+		return count;
+	}
+	
+	/**
+	**	@return Number of connections currently borrowed.
+	**/
+	public int getBorrowedCount()
+	{
+		int count = 0;
+		for (Endpoint endpoint : endpoints)
+			count += endpoint.borrowed.get();
+		return count;
+	}
+	
+	/**
+	**	Stops the background checks and disconnects every idle connection. Borrowed connections are
+	**		disconnected as they're released. Callers waiting in <code>acquire</code> get an
+	**		IllegalStateException.
+	**/
+	public void close()
+	{
+		if (closed)
+			return;
+		
+		closed = true;
+		if (timer != null)
+			timer.shutdown();
+		for (Endpoint endpoint : endpoints)
+		{
+			Idle idle;
+			while ((idle = endpoint.idle.pollFirst()) != null)
+				drop(endpoint, idle.connection);
+			synchronized (endpoint)
+			{
+				endpoint.notifyAll();
+			}
+		}
+		// wakes the first caller waiting for a permit, which hands it on to the next as it gives up
+		if (permits != null)
+			permits.release();
+	}
+	
+	/**
+	**	Gets a connection for a caller holding a permit, giving the permit back if it can't.
+	**/
+	private ServerConnection take() throws IOException, InterruptedException
+	{
+		if (closed)
+		{
+			permits.release();
+			throw new IllegalStateException("Pool is closed.");
+		}
+		
+		Endpoint endpoint = choose();
+		boolean taken = false;
+		try
+		{
+			while (true)
+			{
+				if (closed)
+					throw new IllegalStateException("Pool is closed.");
+				
+				Idle idle;
+				while ((idle = endpoint.idle.pollFirst()) != null)
+				{
+					if (idle.connection.isConnected())
+					{
+						taken = true;
+						return idle.connection;
+					}
+					drop(endpoint, idle.connection);
+				}
+				
+				ServerConnection connection = open(endpoint);
+				if (connection != null)
+				{
+					taken = true;
+					return connection;
+				}
+				
+				// every connection not borrowed is being checked or opened; wait for one to come back
+				synchronized (endpoint)
+				{
+					++endpoint.waiters;
+					try
+					{
+						while (!closed && endpoint.idle.isEmpty() && endpoint.open.get() >= max)
+							endpoint.wait();
+					}
+					finally
+					{
+						--endpoint.waiters;
+					}
+				}
+			}
+		}
+		finally
+		{
+			if (!taken)
+			{
+				endpoint.borrowed.decrementAndGet();
+				permits.release();
+			}
+		}
+	}
+	
+	/**
+	**	Picks an endpoint with a connection to spare and counts a borrow against it. The caller holds a
+	**		permit, so at least one endpoint has one; going round again only happens when another caller
+	**		took the last one first, and then the next pick finds another.
+	**/
+	private Endpoint choose()
+	{
+		while (true)
+		{
+			Endpoint best = pick(true);
+			if (best == null)
+				best = pick(false);
+			if (best != null)
+			{
+				int borrowed = best.borrowed.get();
+				if (borrowed < max && best.borrowed.compareAndSet(borrowed, borrowed + 1))
+					return best;
+			}
+		}
+	}
+	
+	private Endpoint pick(boolean upOnly)
+	{
+		long now = System.nanoTime();
+		int count = endpoints.size();
+		Endpoint best = null;
+		if (balance == Balance.LEAST_OUTSTANDING)
+		{
+			for (Endpoint endpoint : endpoints)
+			{
+				if (isAvailable(endpoint, upOnly, now) && (best == null || endpoint.borrowed.get() < best.borrowed.get()))
+					best = endpoint;
+			}
+		}
+		else
+		{
+			int start = nextIndex.getAndIncrement() & Integer.MAX_VALUE;
+			for (int i = 0; i < count && best == null; ++i)
+			{
+				Endpoint endpoint = endpoints.get((start + i) % count);
+				if (isAvailable(endpoint, upOnly, now))
+					best = endpoint;
+			}
+		}
+		return best;
+	}
+	
+	private boolean isAvailable(Endpoint endpoint, boolean upOnly, long now)
+	{
+		if (endpoint.borrowed.get() >= max)
+			return false;
+		return !upOnly || endpoint.downUntil == 0 || now - endpoint.downUntil >= 0;
+	}
+	
+	/**
+	**	Connects a new connection to the endpoint, unless it already has <code>max</code> open.
+	**	
+	**	@return The new connection, or null if the endpoint is full.
+	**/
+	private ServerConnection open(Endpoint endpoint) throws IOException
+	{
+		int open;
+		do
+		{
+			open = endpoint.open.get();
+			if (open >= max)
+				return null;
+		}
+		while (!endpoint.open.compareAndSet(open, open + 1));
+		
+		ServerConnection connection = factory.newConnection();
+		try
+		{
+			connection.connect(endpoint.host, endpoint.port, null);
+		}
+		catch (IOException ioe)
+		{
+			endpoint.open.decrementAndGet();
+			if (endpoint.downUntil == 0)
+				ioe.printStackTrace();
+			endpoint.downUntil = System.nanoTime() + checkIntervalNanos;
+			throw ioe;
+		}
+		endpoint.downUntil = 0;
+		owners.put(connection, endpoint);
+		return connection;
+	}
+	
+	private void check()
+	{
+		long now = System.nanoTime();
+		for (Endpoint endpoint : endpoints)
+		{
+			for (Idle idle : endpoint.idle.toArray(new Idle[0]))
+			{
+				if (!endpoint.idle.remove(idle))
+					continue;
+				
+				ServerConnection connection = idle.connection;
+				if (!connection.isConnected() || (endpoint.open.get() > min && now - idle.since >= idleTimeoutNanos))
+					drop(endpoint, connection);
+				else if (healthCheck != null && !isHealthy(connection))
+					drop(endpoint, connection);
+				else
+				{
+					endpoint.idle.addLast(idle);
+					endpoint.changed();
+				}
+			}
+			topUp(endpoint);
+		}
+	}
+	
+	private boolean isHealthy(ServerConnection connection)
+	{
+		try
+		{
+			return healthCheck.isHealthy(connection);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	private void topUp(Endpoint endpoint)
+	{
+		while (!closed && endpoint.open.get() < min)
+		{
+			try
+			{
+				ServerConnection connection = open(endpoint);
+				if (connection == null)
+					return;
+				endpoint.idle.addLast(new Idle(connection));
+				endpoint.changed();
+			}
+			catch (IOException ioe)
+			{
+				return;
+			}
+		}
+	}
+	
+	private void drop(Endpoint endpoint, ServerConnection connection)
+	{
+		disconnect(connection);
+		if (owners.remove(connection) != null)
+		{
+			endpoint.open.decrementAndGet();
+			endpoint.changed();
+		}
+	}
+	
+	private static void disconnect(ServerConnection connection)
+	{
+		try
+		{
+			connection.disconnect();
+		}
+		catch (IllegalStateException ise)
+		{
+			
+		}
+	}
+	
+	private void checkNotRunning()
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the pool once it's started.");
+	}
+	
+	private void checkRunning()
+	{
+		if (!running)
+			throw new IllegalStateException("Pool isn't started; call start() first.");
+		if (closed)
+			throw new IllegalStateException("Pool is closed.");
+	}
+}
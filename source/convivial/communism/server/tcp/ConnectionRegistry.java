@@ -0,0 +1,99 @@
+package convivial.communism.server.tcp;
+
+import java.nio.channels.SocketChannel;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+**	Every client a Server currently knows about, findable by channel or by ID in constant time. Each
+**		connection gets a numeric ID when it's added, counting up from 1 and never reused for the life of
+**		the Server, so an ID can be stored or logged without worrying that it'll come to mean somebody else.
+**	
+**	<p>Adding, removing and looking up are safe from any thread. Iterating never copies and never throws
+**		<code>ConcurrentModificationException</code>: it sees every connection that was there when it started
+**		and still is, and may or may not see ones added or removed along the way.</p>
+**/
+class ConnectionRegistry
+{
+	private ConcurrentHashMap<SocketChannel, Connection> byChannel;
+	private ConcurrentHashMap<Long, Connection> byId;
+	private Set<SocketChannel> channels;
+	private AtomicLong nextId;
+	
+	ConnectionRegistry()
+	{
+		byChannel = new ConcurrentHashMap<SocketChannel, Connection>();
+		byId = new ConcurrentHashMap<Long, Connection>();
+		channels = Collections.unmodifiableSet(byChannel.keySet());
+		nextId = new AtomicLong();
+	}
+	
+	/**
+	**	Gives the connection its ID and registers it.
+	**	
+	**	@param connection Newly accepted connection.
+	**/
+	void add(Connection connection)
+	{
+		connection.id = nextId.incrementAndGet();
+		byId.put(Long.valueOf(connection.id), connection);
+		byChannel.put(connection.channel, connection);
+	}
+	
+	/**
+	**	@param channel Client to forget.
+	**	
+	**	@return The client's connection, or null if it wasn't registered.
+	**/
+	Connection remove(SocketChannel channel)
+	{
+		Connection connection = byChannel.remove(channel);
+		if (connection != null)
+			byId.remove(Long.valueOf(connection.id));
+		return connection;
+	}
+	
+	/**
+	**	@return The channel's connection, or null if it isn't registered.
+	**/
+	Connection get(SocketChannel channel)
+	{
+		return byChannel.get(channel);
+	}
+	
+	/**
+	**	@return The connection with that ID, or null if it's gone or never existed.
+	**/
+	Connection get(long id)
+	{
+		return byId.get(Long.valueOf(id));
+	}
+	
+	/**
+	**	@return Number of registered connections.
+	**/
+	int size()
+	{
+		return byChannel.size();
+	}
+	
+	/**
+	**	@return Every registered connection.
+	**/
+	Iterable<Connection> connections()
+	{
+		return byChannel.values();
+	}
+	
+	/**
+	**	@return Every registered client's channel, read-only, since this goes out to subclasses of Server
+	**		and removing one here would leave it half registered.
+	**/
+	Iterable<SocketChannel> channels()
+	{
+		return channels;
+	}
+}
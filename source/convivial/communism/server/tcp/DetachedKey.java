@@ -0,0 +1,57 @@
+package convivial.communism.server.tcp;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+**	A SelectionKey that belongs to no Selector, handed to callbacks for clients serviced by their own
+**		thread so <code>key.attachment()</code> works the same as it does in selector mode. It's always
+**		"ready to read" and changing its interest set does nothing; cancelling it just makes it invalid.
+**/
+class DetachedKey extends SelectionKey
+{
+	private SelectableChannel channel;
+	private volatile boolean cancelled;
+	
+	DetachedKey(SelectableChannel channel, Object attachment)
+	{
+		this.channel = channel;
+		attach(attachment);
+	}
+	
+	public SelectableChannel channel()
+	{
+		return channel;
+	}
+	
+	public Selector selector()
+	{
+		return null;
+	}
+	
+	public boolean isValid()
+	{
+		return !cancelled && channel.isOpen();
+	}
+	
+	public void cancel()
+	{
+		cancelled = true;
+	}
+	
+	public int interestOps()
+	{
+		return OP_READ;
+	}
+	
+	public SelectionKey interestOps(int ops)
+	{
+		return this;
+	}
+	
+	public int readyOps()
+	{
+		return OP_READ;
+	}
+}
@@ -0,0 +1,510 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+**	A single selector thread belonging to an <code>EventLoopGroup</code>. Every channel registered
+**		with an EventLoop is read by this loop's thread only, and the Server's <code>newClient</code>,
+**		<code>receiveData</code> and <code>disconnection</code> callbacks for that channel are always
+**		invoked from this thread, unless the Server offloads <code>receiveData</code> and
+**		<code>receiveFrame</code> to its handler pool, in which case the loop only queues copies of what
+**		it reads on the connection's <code>HandlerQueue</code>.
+**	
+**	<p>Reads go into a buffer borrowed from the Server's <code>BufferPool</code> for the length of the
+**		<code>receiveData</code> call, sized by the connection's own <code>ReadSize</code>, so connections
+**		sending big messages get big reads without every idle connection holding a big buffer.</p>
+**	
+**	<p>Each loop also keeps a <code>TimingWheel</code> for its connections' idle timeouts and any tasks
+**		scheduled to run on it later; while anything is scheduled the loop wakes up every tick to run it.</p>
+**	
+**	<p>Other threads never touch the Selector directly. Anything they need done (registering a newly
+**		accepted channel, flushing queued writes, closing a channel) is handed over through <code>execute(Runnable)</code>,
+**		which queues the task and wakes the selector up so the loop runs it on its next pass.</p>
+**/
+class EventLoop implements Runnable
+{
+	private Server server;
+	private Selector selector;
+	private WaitStrategy waitStrategy;
+	private ByteBuffer[] gather;
+	private ArrayList<Connection> dirty;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private TimingWheel timers;
+	private AtomicInteger channelCount;
+	private Thread thread;
+	private volatile boolean running;
+	
+	/**
+	**	Opens the loop's Selector, but does not start the loop's thread.
+	**	
+	**	@param server Server whose callbacks this loop invokes.
+	**	@param name Name given to the loop's thread.
+	**	@param waitStrategy How the loop waits for its Selector.
+	**	
+	**	@throws IOException If the Selector could not be opened.
+	**/
+	EventLoop(Server server, String name, WaitStrategy waitStrategy) throws IOException
+	{
+		this.server = server;
+		this.waitStrategy = waitStrategy;
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		timers = new TimingWheel(server.getTimerTick(), Server.TIMER_WHEEL_SIZE);
+		gather = new ByteBuffer[OutboundQueue.GATHER_LIMIT];
+		dirty = new ArrayList<Connection>();
+		channelCount = new AtomicInteger();
+		thread = new Thread(this, name);
+	}
+	
+	/**
+	**	Starts the loop's thread.
+	**/
+	void start()
+	{
+		running = true;
+		thread.start();
+	}
+	
+	/**
+	**	Stops the loop and closes its Selector once the loop's thread notices.
+	**/
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+	
+	/**
+	**	@return True if the calling thread is this loop's thread.
+	**/
+	boolean inLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+	
+	/**
+	**	@return Number of channels currently registered with this loop.
+	**/
+	int getChannelCount()
+	{
+		return channelCount.get();
+	}
+	
+	/**
+	**	Queues a task to be run on this loop's thread and wakes the loop up.
+	**	
+	**	@param task Work to perform on the loop's thread.
+	**/
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	**	Schedules a task to run on this loop's thread after a delay. Safe to call from any thread.
+	**	
+	**	@param task Work to perform on the loop's thread.
+	**	@param delayNanos How long from now, in nanoseconds.
+	**	
+	**	@return A handle for cancelling the task.
+	**/
+	Timeout schedule(Runnable task, long delayNanos)
+	{
+		Timeout timeout = timers.schedule(task, delayNanos);
+		if (!inLoop())
+			selector.wakeup();
+		return timeout;
+	}
+	
+	/**
+	**	Hands a newly accepted channel over to this loop. The channel is registered for reading and
+	**		<code>newClient</code> is called on the loop's thread. The Server knows about the connection
+	**		as soon as this method returns, so data may be sent to it straight away; anything queued before
+	**		the channel is registered gets flushed as soon as it is.
+	**	
+	**	@param channel Newly accepted, non-blocking channel.
+	**	@param attachment Object to attach to the channel's SelectionKey.
+	**/
+	void register(SocketChannel channel, final Object attachment)
+	{
+		final Connection connection = new Connection(channel, this, server.newReadSize(), server.getMetrics());
+		if (server.getHandlerPool() != null)
+			connection.handlers = new HandlerQueue(server, connection, server.getHandlerPool());
+		server.addConnection(connection);
+		channelCount.incrementAndGet();
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					int ops = connection.readPauses == 0 ? SelectionKey.OP_READ : 0;
+					connection.key = connection.channel.register(selector, ops, attachment);
+				}
+				catch (ClosedChannelException cce)
+				{
+					server.removeConnection(connection.channel);
+					connection.outbound.fail(connection.channel, cce);
+					if (connection.handlers != null)
+						connection.handlers.close();
+					if (connection.codec != null)
+						connection.codec.end();
+					channelCount.decrementAndGet();
+					return;
+				}
+				server.startIdleMonitor(connection);
+				if (!connection.outbound.isEmpty())
+					flush(connection); // anything sent from this loop before the channel was registered
+				server.connected(connection);
+			}
+		});
+	}
+	
+	/**
+	**	Gets queued data written to the connection as soon as possible. When called on this loop's thread
+	**		the write is attempted right away, otherwise a flush is queued on the loop (at most one at a time).
+	**	
+	**	@param connection Connection owned by this loop that has data waiting to be written.
+	**/
+	void scheduleFlush(final Connection connection)
+	{
+		if (inLoop())
+		{
+			flush(connection);
+			return;
+		}
+		
+		if (connection.flushScheduled.compareAndSet(false, true))
+		{
+			execute(new Runnable()
+			{
+				public void run()
+				{
+					connection.flushScheduled.set(false);
+					flush(connection);
+				}
+			});
+		}
+	}
+	
+	/**
+	**	Decides, by the flush policy, what happens after data is queued on a connection without being
+	**		flushed: an immediate flush if enough is waiting, a flush at the end of this pass if written
+	**		from the loop's own thread, a queued flush if written from elsewhere, or nothing at all.
+	**	
+	**	@param connection Connection owned by this loop that just had data queued.
+	**	@param policy The Server's flush policy.
+	**/
+	void written(Connection connection, FlushPolicy policy)
+	{
+		if (policy.overThreshold(connection.outbound.getPendingBytes()))
+			scheduleFlush(connection);
+		else if (policy.flushesAtEndOfLoop())
+		{
+			if (!inLoop())
+				scheduleFlush(connection);
+			else if (!connection.dirty)
+			{
+				connection.dirty = true;
+				dirty.add(connection);
+			}
+		}
+	}
+	
+	/**
+	**	Gets queued data written to a batch of connections owned by this loop, with a single trip through
+	**		the task queue for the whole batch.
+	**	
+	**	@param batch Connections owned by this loop that have data waiting to be written.
+	**/
+	void scheduleFlush(final List<Connection> batch)
+	{
+		if (inLoop())
+		{
+			for (Connection connection : batch)
+				flush(connection);
+			return;
+		}
+		
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				for (Connection connection : batch)
+					flush(connection);
+			}
+		});
+	}
+	
+	/**
+	**	Closes the channel and notifies the Server of the disconnection. Anything still waiting to be
+	**		written to the channel is failed. Must be called on this loop's thread.
+	**	
+	**	@param connection Connection to close.
+	**/
+	void close(Connection connection)
+	{
+		if (!connection.channel.isOpen())
+			return;
+		
+		try
+		{
+			connection.channel.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+		server.removeConnection(connection.channel);
+		connection.outbound.fail(connection.channel, new ClosedChannelException());
+		connection.frames.release(server.getBufferPool());
+		if (connection.handlers != null)
+			connection.handlers.close();
+		if (connection.idle != null)
+			connection.idle.stop();
+		if (connection.codec != null)
+			connection.codec.end();
+		channelCount.decrementAndGet();
+		server.disconnection(connection.channel);
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; automatically invoked by the loop's thread.
+	**/
+	public void run()
+	{
+		ServerMetrics metrics = server.getMetrics();
+		int idleCount = 0;
+		while (running)
+		{
+			try
+			{
+				long start = System.nanoTime();
+				int tasksRun = runTasks();
+				long busy = System.nanoTime() - start;
+				int ready = waitStrategy.select(selector, idleCount, timers.selectTimeout(System.nanoTime()));
+				start = System.nanoTime();
+				if (ready == 0 && tasksRun == 0)
+				{
+					if (idleCount < Integer.MAX_VALUE)
+						++idleCount;
+				}
+				else
+					idleCount = 0;
+				
+				Set<SelectionKey> readyKeys = selector.selectedKeys();
+				Iterator<SelectionKey> i = readyKeys.iterator();
+				while (i.hasNext())
+				{
+					SelectionKey key = i.next();
+					i.remove();
+					Connection connection = server.getConnection((SocketChannel) key.channel());
+					if (connection == null)
+					{
+						key.cancel();
+						continue;
+					}
+					
+					try
+					{
+						if (key.isValid() && key.isWritable())
+							flush(connection);
+						if (key.isValid() && key.isReadable())
+							read(key, connection);
+					}
+					catch (CancelledKeyException cke)
+					{
+						// cancelled while the key was being handled
+						close(connection);
+					}
+					catch (RuntimeException re)
+					{
+						// a callback or a codec failing for one client mustn't take the loop down for the rest
+						re.printStackTrace();
+						close(connection);
+					}
+				}
+				
+				timers.expire(System.nanoTime());
+				flushDirty();
+				if (ready > 0 || tasksRun > 0)
+					metrics.loopPass(busy + System.nanoTime() - start);
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+			catch (ClosedSelectorException cse)
+			{
+				cse.printStackTrace();
+			}
+			catch (RuntimeException re)
+			{
+				re.printStackTrace();
+			}
+		}
+		
+		closeSelector();
+	}
+	
+	private void read(SelectionKey key, Connection connection)
+	{
+		SocketChannel channel = connection.channel;
+		BufferPool pool = server.getBufferPool();
+		LengthFieldFrameDecoder decoder = server.getFrameDecoder();
+		ByteBuffer readBuffer;
+		if (decoder == null)
+			readBuffer = pool.acquire(connection.readSize.next());
+		else
+			readBuffer = connection.frames.readBuffer(pool, connection.readSize.next());
+		
+		boolean kept = false;
+		try
+		{
+			int room = readBuffer.remaining();
+			long bytesRead = -1;
+			try
+			{
+				bytesRead = channel.read(readBuffer);
+			}
+			catch (IOException ioe)
+			{
+				key.cancel();
+				close(connection);
+				return;
+			}
+			if (bytesRead == -1)
+			{
+				close(connection);
+				return;
+			}
+			
+			server.getMetrics().read(bytesRead);
+			connection.readSize.record(bytesRead, room);
+			if (connection.idle != null)
+				connection.idle.read();
+			readBuffer.flip();
+			if (decoder == null)
+			{
+				if (connection.handlers == null)
+					server.dispatchData(key, channel, bytesRead, readBuffer);
+				else
+					connection.handlers.add(key, bytesRead, readBuffer, false);
+			}
+			else
+			{
+				ByteBuffer frame;
+				while (channel.isOpen() && (frame = decoder.nextFrame(readBuffer)) != null)
+				{
+					server.getMetrics().frameDecoded();
+					if (connection.handlers == null)
+						server.dispatchFrame(key, connection, frame);
+					else
+						connection.handlers.add(key, frame.remaining(), frame, true);
+				}
+				if (channel.isOpen())
+				{
+					kept = true;
+					connection.frames.keep(readBuffer, decoder, pool);
+				}
+			}
+		}
+		catch (FrameTooLongException ftle)
+		{
+			ftle.printStackTrace();
+			close(connection);
+		}
+		finally
+		{
+			if (!kept)
+				pool.release(readBuffer);
+		}
+	}
+	
+	private void flushDirty()
+	{
+		for (int i = 0; i < dirty.size(); ++i)
+		{
+			Connection connection = dirty.get(i);
+			connection.dirty = false;
+			flush(connection);
+		}
+		dirty.clear();
+	}
+	
+	private void flush(Connection connection)
+	{
+		SelectionKey key = connection.key;
+		if (key == null)
+			return; // not registered yet; the registration task flushes whatever is waiting
+		if (!key.isValid())
+		{
+			connection.outbound.fail(connection.channel, new ClosedChannelException());
+			return;
+		}
+		
+		try
+		{
+			long before = connection.outbound.getBytesWritten();
+			if (connection.outbound.flush(connection.channel, gather))
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			else
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			if (connection.idle != null && connection.outbound.getBytesWritten() != before)
+				connection.idle.wrote();
+			server.drained(connection);
+		}
+		catch (IOException ioe)
+		{
+			key.cancel();
+			close(connection);
+		}
+		catch (CancelledKeyException cke)
+		{
+			// cancelled since the key was checked
+			close(connection);
+		}
+	}
+	
+	private int runTasks()
+	{
+		int count = 0;
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		{
+			++count;
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return count;
+	}
+	
+	private void closeSelector()
+	{
+		try
+		{
+			selector.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+**	A fixed set of <code>EventLoop</code>s that a Server spreads its accepted connections across. Each
+**		loop runs its own Selector on its own thread, so reading from clients scales with the number of
+**		loops instead of being capped by a single thread.
+**	
+**	<p>Which loop receives a new connection is decided by the group's <code>Chooser</code>.</p>
+**/
+public class EventLoopGroup
+{
+	/**
+	**	Strategies for picking the loop a newly accepted connection is handed to.
+	**/
+	public enum Chooser
+	{
+		/** Hands connections to each loop in turn. **/
+		ROUND_ROBIN,
+		/** Hands connections to the loop currently holding the fewest channels. **/
+		LEAST_LOADED
+	}
+	
+	private EventLoop[] loops;
+	private Chooser chooser;
+	private AtomicInteger nextIndex;
+	
+	/**
+	**	Opens a Selector for each loop, but does not start any threads.
+	**	
+	**	@param server Server whose callbacks the loops invoke.
+	**	@param count Number of loops, must be at least 1.
+	**	@param chooser Strategy used to pick a loop for each new connection.
+	**	@param waitStrategy How each loop waits for its Selector.
+	**	
+	**	@throws IOException If a Selector could not be opened.
+	**/
+	EventLoopGroup(Server server, int count, Chooser chooser, WaitStrategy waitStrategy) throws IOException
+	{
+		if (count < 1)
+			throw new IllegalArgumentException("An EventLoopGroup needs at least one loop, got " + count);
+		
+		this.chooser = chooser;
+		nextIndex = new AtomicInteger();
+		loops = new EventLoop[count];
+		for (int i = 0; i < count; ++i)
+			loops[i] = new EventLoop(server, "EventLoop-" + i, waitStrategy);
+	}
+	
+	/**
+	**	@return The number of cores on this machine, the default number of loops.
+	**/
+	public static int defaultLoopCount()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	**	@return Number of loops in this group.
+	**/
+	public int size()
+	{
+		return loops.length;
+	}
+	
+	/**
+	**	Starts every loop's thread.
+	**/
+	void start()
+	{
+		for (EventLoop loop : loops)
+			loop.start();
+	}
+	
+	/**
+	**	Stops every loop.
+	**/
+	void shutdown()
+	{
+		for (EventLoop loop : loops)
+			loop.shutdown();
+	}
+	
+	/**
+	**	@return The loop the next new connection should be handed to.
+	**/
+	EventLoop next()
+	{
+		if (chooser == Chooser.LEAST_LOADED)
+		{
+			EventLoop best = loops[0];
+			for (int i = 1; i < loops.length; ++i)
+			{
+				if (loops[i].getChannelCount() < best.getChannelCount())
+					best = loops[i];
+			}
+			return best;
+		}
+		
+		return loops[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+}
@@ -0,0 +1,20 @@
+package convivial.communism.server.tcp;
+
+/**
+**	How a Server runs the code that services its clients.
+**/
+public enum ExecutionMode
+{
+	/**
+	**	Clients are multiplexed over a small group of event loops, each a selector thread. Uses the
+	**		fewest threads, but a callback that blocks holds up every other client on the same loop.
+	**/
+	SELECTOR,
+	
+	/**
+	**	Every client gets its own virtual thread doing blocking reads, so callbacks are free to block (on a
+	**		database, say) without holding anyone else up. Needs Java 21 or later; on older runtimes each
+	**		client gets a platform thread instead, which only suits a modest number of clients.
+	**/
+	THREAD_PER_CONNECTION
+}
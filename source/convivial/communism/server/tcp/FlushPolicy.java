@@ -0,0 +1,79 @@
+package convivial.communism.server.tcp;
+
+/**
+**	Decides when data queued with <code>write</code> (as opposed to <code>send</code>, which always
+**		flushes) actually gets written to the socket. Holding writes back lets several small messages go
+**		out in one gathering write, one syscall and as few TCP segments as possible, instead of one of
+**		each per message. <code>flush</code> always writes everything out regardless of the policy.
+**	
+**	<p>With <code>END_OF_LOOP</code>, writes made on a connection's own I/O thread (from inside
+**		<code>receiveData</code>, say) are flushed together once the thread has handled everything that was
+**		ready; writes from any other thread get a flush queued on the I/O thread. A byte threshold flushes as
+**		soon as that much data is waiting, whatever thread wrote it.</p>
+**/
+public class FlushPolicy
+{
+	/** Only flush when told to. Data written from other threads sits in the queue until then. **/
+	public static final FlushPolicy MANUAL = new FlushPolicy(false, 0);
+	/** Flush everything written during a pass of the I/O thread at the end of that pass. The default. **/
+	public static final FlushPolicy END_OF_LOOP = new FlushPolicy(true, 0);
+	
+	private boolean endOfLoop;
+	private int byteThreshold;
+	
+	private FlushPolicy(boolean endOfLoop, int byteThreshold)
+	{
+		this.endOfLoop = endOfLoop;
+		this.byteThreshold = byteThreshold;
+	}
+	
+	/**
+	**	@param threshold Number of waiting bytes that triggers a flush.
+	**	
+	**	@return A policy that only flushes once <code>threshold</code> bytes are waiting (or when told to).
+	**/
+	public static FlushPolicy bytes(int threshold)
+	{
+		if (threshold < 1)
+			throw new IllegalArgumentException("Byte threshold must be positive, got " + threshold);
+		return new FlushPolicy(false, threshold);
+	}
+	
+	/**
+	**	@param threshold Number of waiting bytes that triggers a flush.
+	**	
+	**	@return A policy that flushes at the end of each loop pass, and sooner if <code>threshold</code> bytes are waiting.
+	**/
+	public static FlushPolicy endOfLoopOrBytes(int threshold)
+	{
+		if (threshold < 1)
+			throw new IllegalArgumentException("Byte threshold must be positive, got " + threshold);
+		return new FlushPolicy(true, threshold);
+	}
+	
+	/**
+	**	@return True if writes get flushed at the end of the I/O thread's pass.
+	**/
+	public boolean flushesAtEndOfLoop()
+	{
+		return endOfLoop;
+	}
+	
+	/**
+	**	@return Number of waiting bytes that triggers a flush, or 0 if the amount waiting doesn't matter.
+	**/
+	public int getByteThreshold()
+	{
+		return byteThreshold;
+	}
+	
+	/**
+	**	@param pendingBytes Bytes currently waiting to be written.
+	**	
+	**	@return True if that many waiting bytes should be flushed right away.
+	**/
+	boolean overThreshold(long pendingBytes)
+	{
+		return byteThreshold > 0 && pendingBytes >= byteThreshold;
+	}
+}
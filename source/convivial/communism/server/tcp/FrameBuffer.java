@@ -0,0 +1,79 @@
+package convivial.communism.server.tcp;
+
+import java.nio.ByteBuffer;
+
+/**
+**	Holds on to the start of a frame that hasn't completely arrived yet, for one connection. Only
+**		connections with a partial frame keep a buffer between reads; everyone else reads into a buffer
+**		borrowed from the pool and gives it straight back. Only used by the thread servicing the connection.
+**/
+class FrameBuffer
+{
+	private ByteBuffer pending;
+	private int needed;
+	
+	/**
+	**	Gets the buffer the next read should go into, in write mode. When a partial frame is held it's that
+	**		buffer (grown if the rest of the frame can't fit), otherwise a fresh one from the pool.
+	**	
+	**	@param pool Pool to borrow from.
+	**	@param readSize Size to borrow when no partial frame is held.
+	**	
+	**	@return Buffer to read into, handed back through <code>keep</code> afterwards.
+	**/
+	ByteBuffer readBuffer(BufferPool pool, int readSize)
+	{
+		if (pending == null)
+			return pool.acquire(readSize);
+		
+		ByteBuffer buffer = pool.grow(pending, Math.max(needed, 1));
+		pending = null;
+		return buffer;
+	}
+	
+	/**
+	**	Takes back a buffer after every complete frame has been taken out of it. Whatever's left is the
+	**		start of the next frame and is moved to the front of the buffer and held; if nothing's left
+	**		the buffer goes back to the pool.
+	**	
+	**	@param buffer Buffer from <code>readBuffer</code>, in read mode.
+	**	@param decoder Decoder the frames were taken out with.
+	**	@param pool Pool the buffer came from.
+	**	
+	**	@throws FrameTooLongException If the partial frame is announced as too long; the buffer is released.
+	**/
+	void keep(ByteBuffer buffer, LengthFieldFrameDecoder decoder, BufferPool pool) throws FrameTooLongException
+	{
+		if (!buffer.hasRemaining())
+		{
+			pool.release(buffer);
+			return;
+		}
+		
+		try
+		{
+			needed = decoder.bytesNeeded(buffer);
+		}
+		catch (FrameTooLongException ftle)
+		{
+			pool.release(buffer);
+			throw ftle;
+		}
+		buffer.compact();
+		pending = buffer;
+	}
+	
+	/**
+	**	Gives any held partial frame back to the pool; the connection is going away.
+	**	
+	**	@param pool Pool the buffer came from.
+	**/
+	void release(BufferPool pool)
+	{
+		if (pending != null)
+		{
+			pool.release(pending);
+			pending = null;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+/**
+**	Thrown when a peer announces a frame longer than the <code>LengthFieldFrameDecoder</code> allows.
+**		The connection can't be trusted to be in sync after that, so it gets closed.
+**/
+public class FrameTooLongException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	**	@param length Length of the frame the peer announced, header included.
+	**	@param maximum Largest frame the decoder accepts.
+	**/
+	public FrameTooLongException(long length, int maximum)
+	{
+		super("Frame of " + length + " bytes is longer than the maximum of " + maximum + " bytes");
+	}
+}
@@ -0,0 +1,88 @@
+package convivial.communism.server.tcp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+**	A bounded pool of worker threads that a Server's callbacks get offloaded to, keeping slow handler
+**		code off the event loops. Per-client ordering isn't the pool's job; each client's
+**		<code>HandlerQueue</code> makes sure only one of its messages is ever with the pool at a time.
+**/
+class HandlerPool
+{
+	private ThreadPoolExecutor executor;
+	private HandlerRejection rejection;
+	private int maxPending;
+	
+	/**
+	**	@param threads Number of worker threads.
+	**	@param queueCapacity Number of clients' work that can wait for a free worker.
+	**	@param rejection What to do when a client's work can't be queued.
+	**	@param maxPending Messages a client may have waiting before its reads are paused.
+	**/
+	HandlerPool(int threads, int queueCapacity, HandlerRejection rejection, int maxPending)
+	{
+		this.rejection = rejection;
+		this.maxPending = maxPending;
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory()
+			{
+				private AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread(Runnable task)
+				{
+					Thread thread = new Thread(task, "Handler-" + count.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+	
+	/**
+	**	@return What to do when a client's work can't be queued.
+	**/
+	HandlerRejection getRejection()
+	{
+		return rejection;
+	}
+	
+	/**
+	**	@return Messages a client may have waiting before its reads are paused.
+	**/
+	int getMaxPending()
+	{
+		return maxPending;
+	}
+	
+	/**
+	**	Hands a client's work to the pool.
+	**	
+	**	@param queue The client's queue of waiting messages.
+	**	
+	**	@return False if the pool is saturated and didn't take it.
+	**/
+	boolean submit(HandlerQueue queue)
+	{
+		try
+		{
+			executor.execute(queue);
+			return true;
+		}
+		catch (RejectedExecutionException ree)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	**	Stops the workers once they've finished what they're doing.
+	**/
+	void shutdown()
+	{
+		executor.shutdown();
+	}
+}
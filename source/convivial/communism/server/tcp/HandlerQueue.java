@@ -0,0 +1,191 @@
+package convivial.communism.server.tcp;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+**	One client's messages waiting for the Server's handler pool. The event loop adds messages (copied
+**		out of the read buffer, which the loop reuses) and at most one worker at a time takes them off, so
+**		a client's messages are handled strictly in the order they arrived and never two at once, while
+**		different clients' messages are handled in parallel.
+**	
+**	<p>A worker handles a short batch and then goes to the back of the pool's queue, so a chatty client
+**		can't hog a worker. When a client has <code>maxPending</code> messages waiting its reads are paused,
+**		which pushes back on the client through TCP, and they're resumed once half of those are handled.</p>
+**/
+class HandlerQueue implements Runnable
+{
+	private static final int BATCH = 16;
+	
+	private Server server;
+	private Connection connection;
+	private HandlerPool pool;
+	private ConcurrentLinkedQueue<Message> messages;
+	private AtomicInteger size;
+	private AtomicBoolean scheduled;
+	private AtomicBoolean readsPaused;
+	private volatile boolean closed;
+	
+	HandlerQueue(Server server, Connection connection, HandlerPool pool)
+	{
+		this.server = server;
+		this.connection = connection;
+		this.pool = pool;
+		messages = new ConcurrentLinkedQueue<Message>();
+		size = new AtomicInteger();
+		scheduled = new AtomicBoolean();
+		readsPaused = new AtomicBoolean();
+	}
+	
+	/**
+	**	Queues a copy of a message for the pool. Loop thread only.
+	**	
+	**	@param key The client's key.
+	**	@param bytesRead Bytes read, passed on to <code>receiveData</code>.
+	**	@param data The message; copied, so the caller can reuse it as soon as this returns.
+	**	@param frame True to have <code>receiveFrame</code> handle it, false for <code>receiveData</code>.
+	**/
+	void add(SelectionKey key, long bytesRead, ByteBuffer data, boolean frame)
+	{
+		ByteBuffer copy = server.getBufferPool().acquire(data.remaining());
+		copy.put(data);
+		copy.flip();
+		messages.add(new Message(key, bytesRead, copy, frame));
+		
+		if (size.incrementAndGet() >= pool.getMaxPending() && readsPaused.compareAndSet(false, true))
+			connection.setReadPaused(Connection.PAUSED_BY_HANDLERS, true);
+		
+		if (scheduled.compareAndSet(false, true) && !pool.submit(this))
+			rejected();
+	}
+	
+	/**
+	**	@return Number of messages waiting, including one being handled.
+	**/
+	int getSize()
+	{
+		return size.get();
+	}
+	
+	/**
+	**	Throws away whatever's still waiting; the client is gone. Loop thread only.
+	**/
+	void close()
+	{
+		closed = true;
+		if (scheduled.compareAndSet(false, true))
+		{
+			discard();
+			scheduled.set(false);
+		}
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; automatically invoked by a worker thread.
+	**/
+	public void run()
+	{
+		while (true)
+		{
+			for (int i = 0; i < BATCH && !closed; ++i)
+			{
+				Message message = messages.poll();
+				if (message == null)
+					break;
+				handle(message);
+			}
+			
+			if (closed)
+				discard();
+			
+			scheduled.set(false);
+			if (messages.isEmpty() || !scheduled.compareAndSet(false, true))
+				return;
+			if (pool.submit(this))
+				return;
+			// the pool is saturated; carry on with this client on this thread rather than lose its place
+		}
+	}
+	
+	private void handle(Message message)
+	{
+		try
+		{
+			if (message.frame)
+				server.dispatchFrame(message.key, connection, message.data);
+			else
+				server.dispatchData(message.key, connection.channel, message.bytesRead, message.data);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			server.getBufferPool().release(message.data);
+		}
+		
+		// only the worker that clears the flag posts the resume, so there's at most one per pause; the loop
+		// checks the flag again in case it has paused reads once more in the meantime
+		if (size.decrementAndGet() <= pool.getMaxPending() / 2 && readsPaused.compareAndSet(true, false))
+		{
+			connection.loop.execute(new Runnable()
+			{
+				public void run()
+				{
+					if (!readsPaused.get())
+						connection.setReadPaused(Connection.PAUSED_BY_HANDLERS, false);
+				}
+			});
+		}
+	}
+	
+	private void rejected()
+	{
+		switch (pool.getRejection())
+		{
+			case CALLER_RUNS:
+				run();
+				break;
+			case DROP_MESSAGES:
+				discard();
+				scheduled.set(false);
+				break;
+			default:
+				discard();
+				scheduled.set(false);
+				connection.close();
+				break;
+		}
+	}
+	
+	private void discard()
+	{
+		Message message;
+		while ((message = messages.poll()) != null)
+		{
+			size.decrementAndGet();
+			server.getBufferPool().release(message.data);
+		}
+	}
+	
+	private static class Message
+	{
+		SelectionKey key;
+		long bytesRead;
+		ByteBuffer data;
+		boolean frame;
+		
+		Message(SelectionKey key, long bytesRead, ByteBuffer data, boolean frame)
+		{
+			this.key = key;
+			this.bytesRead = bytesRead;
+			this.data = data;
+			this.frame = frame;
+		}
+	}
+}
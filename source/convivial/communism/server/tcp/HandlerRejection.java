@@ -0,0 +1,15 @@
+package convivial.communism.server.tcp;
+
+/**
+**	What a Server does with a client's message when its handler pool is saturated: every worker is
+**		busy and the pool's queue is full.
+**/
+public enum HandlerRejection
+{
+	/** Run the handler on the client's event loop instead, slowing its reads down until the pool catches up. **/
+	CALLER_RUNS,
+	/** Throw away the client's waiting messages. Only for protocols that can stand losing messages. **/
+	DROP_MESSAGES,
+	/** Disconnect the client whose message couldn't be queued. **/
+	CLOSE_CONNECTION
+}
@@ -0,0 +1,164 @@
+package convivial.communism.server.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+**	Counts how often values (usually latencies in nanoseconds) fall into log-linear buckets: each power
+**		of two is split into eight equal buckets, so any value is placed within 12.5% of itself in a
+**		fixed 4K of counters, from 0 up to <code>Long.MAX_VALUE</code>. Recording is a couple of shifts and
+**		an atomic increment, cheap enough for every read on an event loop, and safe from any number of
+**		threads at once.
+**	
+**	<p>Reading while other threads record is fine; the figures just might not all come from quite the
+**		same instant.</p>
+**/
+public class Histogram
+{
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	
+	private AtomicLongArray counts;
+	private LongAdder count;
+	private LongAdder sum;
+	private AtomicLong max;
+	
+	/**
+	**	Creates an empty histogram.
+	**/
+	public Histogram()
+	{
+		counts = new AtomicLongArray(64 * SUB_BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+	
+	/**
+	**	Records one value. Negative values are recorded as 0.
+	**	
+	**	@param value Value to record.
+	**/
+	public void record(long value)
+	{
+		if (value < 0)
+			value = 0;
+		
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		
+		long highest = max.get();
+		while (value > highest && !max.compareAndSet(highest, value))
+			highest = max.get();
+	}
+	
+	/**
+	**	Adds everything recorded in another histogram to this one, like for combining the histograms of
+	**		several threads.
+	**	
+	**	@param other Histogram to add in.
+	**/
+	public void add(Histogram other)
+	{
+		for (int i = 0; i < counts.length(); ++i)
+		{
+			long n = other.counts.get(i);
+			if (n != 0)
+				counts.addAndGet(i, n);
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		
+		long otherMax = other.getMax();
+		long highest = max.get();
+		while (otherMax > highest && !max.compareAndSet(highest, otherMax))
+			highest = max.get();
+	}
+	
+	/**
+	**	Forgets everything recorded so far.
+	**/
+	public void reset()
+	{
+		for (int i = 0; i < counts.length(); ++i)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+	
+	/**
+	**	@return Number of values recorded.
+	**/
+	public long getCount()
+	{
+		return count.sum();
+	}
+	
+	/**
+	**	@return Mean of the values recorded, or 0 if there are none.
+	**/
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+	
+	/**
+	**	@return Largest value recorded, or 0 if there are none.
+	**/
+	public long getMax()
+	{
+		return max.get();
+	}
+	
+	/**
+	**	Finds the value that the given percentage of recorded values are at or below, to within the
+	**		histogram's precision (it answers with the top of the value's bucket, capped at the maximum).
+	**	
+	**	@param percentile Percentage, from 0 to 100, like 99.9.
+	**	
+	**	@return The value at that percentile, or 0 if nothing has been recorded.
+	**/
+	public long getValueAtPercentile(double percentile)
+	{
+		long total = 0;
+		for (int i = 0; i < counts.length(); ++i)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+		
+		long wanted = Math.max((long) Math.ceil(Math.min(percentile, 100) / 100 * total), 1);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); ++i)
+		{
+			seen += counts.get(i);
+			if (seen >= wanted)
+				return Math.min(highestIn(i), getMax());
+		}
+		return getMax();
+	}
+	
+	private static int bucketOf(long value)
+	{
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	private static long highestIn(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		long highest = lowest + (1L << (exponent - SUB_BITS)) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
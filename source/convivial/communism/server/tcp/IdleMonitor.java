@@ -0,0 +1,128 @@
+package convivial.communism.server.tcp;
+
+import convivial.communism.server.IdleState;
+
+/**
+**	Watches one connection for reader, writer and all idle timeouts. Reads and writes only record the
+**		time; nothing is rescheduled on every read. Instead each kind of timeout has one timer, and when it
+**		fires it checks the recorded time: if the connection really was idle the whole timeout the
+**		callback is made and the timer set for another full timeout, otherwise the timer is just set for
+**		whatever's left. That's at most three timers per connection however busy it is.
+**/
+abstract class IdleMonitor
+{
+	private long[] timeouts;
+	private Timeout[] timers;
+	private volatile long lastRead, lastWrite;
+	private volatile boolean stopped;
+	
+	/**
+	**	@param readerIdle Reader idle timeout in nanoseconds, or 0 for none.
+	**	@param writerIdle Writer idle timeout in nanoseconds, or 0 for none.
+	**	@param allIdle All idle timeout in nanoseconds, or 0 for none.
+	**/
+	IdleMonitor(long readerIdle, long writerIdle, long allIdle)
+	{
+		timeouts = new long[] { readerIdle, writerIdle, allIdle };
+		timers = new Timeout[3];
+	}
+	
+	/**
+	**	Schedules a check on the thread the idle callback should be made on.
+	**	
+	**	@param task The check.
+	**	@param delayNanos How long from now, in nanoseconds.
+	**	
+	**	@return Handle for cancelling the check.
+	**/
+	abstract Timeout schedule(Runnable task, long delayNanos);
+	
+	/**
+	**	Makes the idle callback.
+	**	
+	**	@param state Which timeout passed.
+	**/
+	abstract void idle(IdleState state);
+	
+	/**
+	**	Starts the clocks, counting the connection as active right now.
+	**/
+	void start()
+	{
+		long now = System.nanoTime();
+		lastRead = now;
+		lastWrite = now;
+		IdleState[] states = IdleState.values();
+		for (int i = 0; i < timeouts.length; ++i)
+		{
+			if (timeouts[i] > 0)
+				timers[i] = schedule(new Check(i, states[i]), timeouts[i]);
+		}
+	}
+	
+	/**
+	**	Stops every timer; no idle callback happens after this returns, unless one is already running.
+	**/
+	void stop()
+	{
+		stopped = true;
+		for (int i = 0; i < timers.length; ++i)
+		{
+			Timeout timer = timers[i];
+			if (timer != null)
+				timer.cancel();
+		}
+	}
+	
+	/**
+	**	Records that something was just read from the connection.
+	**/
+	void read()
+	{
+		lastRead = System.nanoTime();
+	}
+	
+	/**
+	**	Records that something was just written to the connection.
+	**/
+	void wrote()
+	{
+		lastWrite = System.nanoTime();
+	}
+	
+	private class Check implements Runnable
+	{
+		private int index;
+		private IdleState state;
+		
+		Check(int index, IdleState state)
+		{
+			this.index = index;
+			this.state = state;
+		}
+		
+		public void run()
+		{
+			if (stopped)
+				return;
+			
+			long last;
+			if (state == IdleState.READER_IDLE)
+				last = lastRead;
+			else if (state == IdleState.WRITER_IDLE)
+				last = lastWrite;
+			else
+				last = Math.max(lastRead, lastWrite);
+			
+			long left = last + timeouts[index] - System.nanoTime();
+			if (left > 0)
+			{
+				timers[index] = schedule(this, left);
+				return;
+			}
+			
+			timers[index] = schedule(this, timeouts[index]);
+			idle(state);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package convivial.communism.server.tcp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+**	Splits a stream of bytes into frames that each start with a header holding the frame's length.
+**		Give one to <code>Server.setFrameDecoder</code> or <code>ServerConnection.setFrameDecoder</code> and
+**		only complete frames are delivered, however the bytes happen to arrive off the network.
+**	
+**	<p>The header is <code>lengthFieldOffset</code> bytes of anything (a message type, say), then the
+**		length field itself, <code>lengthFieldLength</code> bytes long (1, 2, 4 or 8) in the decoder's byte
+**		order. By default the length counts only the bytes after the header; when it counts something else,
+**		like the whole frame, <code>lengthAdjustment</code> is added to it to get the number of bytes that
+**		follow the header.</p>
+**	
+**	<p>Frames are handed out as slices of the buffer the bytes were read into, so nothing gets copied.
+**		A frame is only valid for the length of the callback it's passed to; copy anything that needs to
+**		live longer. A decoder holds no per-connection state and may be shared by any number of connections.</p>
+**/
+public class LengthFieldFrameDecoder
+{
+	/** Largest frame accepted when using the short constructor, header included. **/
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 20;
+	
+	private int lengthFieldOffset;
+	private int lengthFieldLength;
+	private int lengthAdjustment;
+	private int headerLength;
+	private boolean stripHeader;
+	private int maxFrameLength;
+	private ByteOrder byteOrder;
+	
+	/**
+	**	Creates a decoder for frames that are nothing but a big-endian length field followed by that many
+	**		bytes. The header is stripped from delivered frames.
+	**	
+	**	@param lengthFieldLength Size of the length field: 1, 2, 4 or 8 bytes.
+	**/
+	public LengthFieldFrameDecoder(int lengthFieldLength)
+	{
+		this(0, lengthFieldLength, 0, true, DEFAULT_MAX_FRAME_LENGTH, ByteOrder.BIG_ENDIAN);
+	}
+	
+	/**
+	**	Creates a decoder for any length-prefixed format.
+	**	
+	**	@param lengthFieldOffset Number of header bytes before the length field.
+	**	@param lengthFieldLength Size of the length field: 1, 2, 4 or 8 bytes.
+	**	@param lengthAdjustment Added to the length field to get the number of bytes after the header;
+	**		use <code>-(lengthFieldOffset + lengthFieldLength)</code> when the length counts the whole frame.
+	**	@param stripHeader True to deliver frames without their header.
+	**	@param maxFrameLength Largest frame accepted, header included.
+	**	@param byteOrder Byte order the length field is written in.
+	**/
+	public LengthFieldFrameDecoder(int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment, boolean stripHeader, int maxFrameLength, ByteOrder byteOrder)
+	{
+		if (lengthFieldLength != 1 && lengthFieldLength != 2 && lengthFieldLength != 4 && lengthFieldLength != 8)
+			throw new IllegalArgumentException("Length field must be 1, 2, 4 or 8 bytes, got " + lengthFieldLength);
+		if (lengthFieldOffset < 0)
+			throw new IllegalArgumentException("Length field offset can't be negative: " + lengthFieldOffset);
+		if (maxFrameLength < lengthFieldOffset + lengthFieldLength)
+			throw new IllegalArgumentException("Maximum frame length " + maxFrameLength + " can't even hold the header");
+		
+		this.lengthFieldOffset = lengthFieldOffset;
+		this.lengthFieldLength = lengthFieldLength;
+		this.lengthAdjustment = lengthAdjustment;
+		this.stripHeader = stripHeader;
+		this.maxFrameLength = maxFrameLength;
+		this.byteOrder = byteOrder;
+		headerLength = lengthFieldOffset + lengthFieldLength;
+	}
+	
+	/**
+	**	@return Number of bytes in each frame's header.
+	**/
+	public int getHeaderLength()
+	{
+		return headerLength;
+	}
+	
+	/**
+	**	@return Largest frame accepted, header included.
+	**/
+	public int getMaxFrameLength()
+	{
+		return maxFrameLength;
+	}
+	
+	/**
+	**	Writes a length field announcing a body of the given size, at the buffer's position plus
+	**		<code>lengthFieldOffset</code>, and moves the position past the header. Anything that goes before
+	**		the length field should be put there first with absolute puts.
+	**	
+	**	@param out Buffer in write mode with room for the header.
+	**	@param bodyLength Number of bytes that will follow the header.
+	**/
+	public void writeHeader(ByteBuffer out, int bodyLength)
+	{
+		long length = (long) bodyLength - lengthAdjustment;
+		int at = out.position() + lengthFieldOffset;
+		ByteOrder order = out.order();
+		out.order(byteOrder);
+		switch (lengthFieldLength)
+		{
+			case 1: out.put(at, (byte) length); break;
+			case 2: out.putShort(at, (short) length); break;
+			case 4: out.putInt(at, (int) length); break;
+			default: out.putLong(at, length); break;
+		}
+		out.order(order);
+		out.position(out.position() + headerLength);
+	}
+	
+	/**
+	**	Builds a whole frame holding the body: the header, with any bytes before the length field left
+	**		zero, then the body.
+	**	
+	**	@param pool Pool to borrow the frame's buffer from.
+	**	@param body Body of the frame, flipped. Its position is left where it was.
+	**	
+	**	@return The frame, flipped, in a buffer to give back to the pool once sent.
+	**/
+	public ByteBuffer encode(BufferPool pool, ByteBuffer body)
+	{
+		ByteBuffer out = pool.acquire(headerLength + body.remaining());
+		for (int i = 0; i < headerLength; ++i)
+			out.put(i, (byte) 0);
+		writeHeader(out, body.remaining());
+		out.put(body.duplicate());
+		out.flip();
+		return out;
+	}
+	
+	/**
+	**	Takes the next complete frame off the front of the buffer, if there is one.
+	**	
+	**	@param in Buffer in read mode; its position is moved past the frame returned.
+	**	
+	**	@return A slice holding the frame, or null if the buffer doesn't hold a whole frame yet.
+	**	
+	**	@throws FrameTooLongException If the next frame is longer than the maximum.
+	**/
+	public ByteBuffer nextFrame(ByteBuffer in) throws FrameTooLongException
+	{
+		long frameLength = frameLength(in);
+		if (frameLength < 0 || in.remaining() < frameLength)
+			return null;
+		
+		int start = in.position();
+		int end = start + (int) frameLength;
+		int limit = in.limit();
+		
+		in.limit(end);
+		if (stripHeader)
+			in.position(start + headerLength);
+		ByteBuffer frame = in.slice();
+		in.limit(limit);
+		in.position(end);
+		return frame;
+	}
+	
+	/**
+	**	Works out how many more bytes have to arrive before the frame at the front of the buffer is complete.
+	**	
+	**	@param in Buffer in read mode holding the start of a frame.
+	**	
+	**	@return Number of bytes still missing, 0 if a whole frame is already there.
+	**	
+	**	@throws FrameTooLongException If the frame is longer than the maximum.
+	**/
+	public int bytesNeeded(ByteBuffer in) throws FrameTooLongException
+	{
+		long frameLength = frameLength(in);
+		if (frameLength < 0)
+			return headerLength - in.remaining();
+		return (int) Math.max(0, frameLength - in.remaining());
+	}
+	
+	private long frameLength(ByteBuffer in) throws FrameTooLongException
+	{
+		if (in.remaining() < headerLength)
+			return -1;
+		
+		int at = in.position() + lengthFieldOffset;
+		long length;
+		ByteOrder order = in.order();
+		in.order(byteOrder);
+		switch (lengthFieldLength)
+		{
+			case 1: length = in.get(at) & 0xFF; break;
+			case 2: length = in.getShort(at) & 0xFFFF; break;
+			case 4: length = in.getInt(at) & 0xFFFFFFFFL; break;
+			default: length = in.getLong(at); break;
+		}
+		in.order(order);
+		
+		long frameLength = length + lengthAdjustment + headerLength;
+		if (frameLength < headerLength || frameLength > maxFrameLength)
+			throw new FrameTooLongException(frameLength, maxFrameLength);
+		return frameLength;
+	}
+}
@@ -0,0 +1,177 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+**	Data waiting to be written to one channel. Any thread may add to the queue, but only the thread
+**		servicing the channel may flush or fail it, which lets a flush peek at the head of the queue
+**		and leave a partially written buffer there until the socket has room for the rest.
+**	
+**	<p>Once the queue has been failed it stays closed: anything added afterwards is failed straight
+**		away, by the thread adding it, so every write is either completed or failed exactly once.</p>
+**	
+**	<p>A flush hands as many queued buffers as fit in the caller's scratch array to a single gathering
+**		write, so a burst of small messages costs one syscall instead of one each.</p>
+**/
+class OutboundQueue
+{
+	/** Size of the scratch arrays handed to <code>flush</code>; the most buffers a single write gathers. **/
+	static final int GATHER_LIMIT = 64;
+	
+	private ConcurrentLinkedQueue<PendingWrite> pending;
+	private AtomicLong pendingBytes;
+	private volatile long bytesWritten;
+	private volatile IOException failure;
+	private volatile SocketChannel failedChannel;
+	private ServerMetrics metrics;
+	
+	/**
+	**	@param metrics Metrics to count writes in, or null.
+	**/
+	OutboundQueue(ServerMetrics metrics)
+	{
+		this.metrics = metrics;
+		pending = new ConcurrentLinkedQueue<PendingWrite>();
+		pendingBytes = new AtomicLong();
+	}
+	
+	/**
+	**	Queues data to be written. Never blocks. If the queue has already been failed, the data is failed
+	**		too, before this returns.
+	**	
+	**	@param data Flipped buffer to write; must not be touched until the listener hears about it.
+	**	@param listener Told when the data has been written or has failed, may be null.
+	**/
+	void add(ByteBuffer data, WriteListener listener)
+	{
+		pendingBytes.addAndGet(data.remaining());
+		pending.add(new PendingWrite(data, listener));
+		
+		// checked after adding, so either this sees the failure or the failing thread sees the data
+		IOException cause = failure;
+		if (cause != null)
+			drain(failedChannel, cause);
+	}
+	
+	/**
+	**	@return Number of bytes queued and not yet written.
+	**/
+	long getPendingBytes()
+	{
+		return pendingBytes.get();
+	}
+	
+	/**
+	**	@return Number of bytes written by <code>flush</code> so far, over the queue's whole life.
+	**/
+	long getBytesWritten()
+	{
+		return bytesWritten;
+	}
+	
+	/**
+	**	@return True if nothing is waiting to be written.
+	**/
+	boolean isEmpty()
+	{
+		return pending.isEmpty();
+	}
+	
+	/**
+	**	Writes as much queued data as the socket will currently take without blocking, gathering up to
+	**		<code>scratch.length</code> buffers into each write.
+	**	
+	**	@param channel Non-blocking channel to write to.
+	**	@param scratch Array to gather buffers into; only used for the length of the call.
+	**	
+	**	@return True if the queue was completely drained, false if the socket filled up first.
+	**	
+	**	@throws IOException If the write fails; the data being written stays at the head of the queue.
+	**/
+	boolean flush(SocketChannel channel, ByteBuffer[] scratch) throws IOException
+	{
+		while (true)
+		{
+			int count = 0;
+			Iterator<PendingWrite> i = pending.iterator();
+			while (count < scratch.length && i.hasNext())
+				scratch[count++] = i.next().data;
+			if (count == 0)
+				return true;
+			
+			long written;
+			try
+			{
+				written = count == 1 ? channel.write(scratch[0]) : channel.write(scratch, 0, count);
+			}
+			finally
+			{
+				for (int j = 0; j < count; ++j)
+					scratch[j] = null;
+			}
+			pendingBytes.addAndGet(-written);
+			bytesWritten += written; // only the servicing thread flushes
+			if (metrics != null)
+				metrics.wrote(written);
+			
+			PendingWrite write;
+			while ((write = pending.peek()) != null && !write.data.hasRemaining())
+			{
+				pending.poll();
+				if (write.listener != null)
+					write.listener.writeComplete(channel, write.data);
+				--count;
+			}
+			
+			if (count > 0)
+				return false;
+		}
+	}
+	
+	/**
+	**	Empties the queue for good, telling every listener its data will never be written. Whatever is
+	**		added afterwards is failed with the same cause.
+	**	
+	**	@param channel Channel the data was meant for.
+	**	@param cause Why the data will not be written.
+	**/
+	void fail(SocketChannel channel, IOException cause)
+	{
+		if (failure == null)
+		{
+			failedChannel = channel;
+			failure = cause;
+		}
+		drain(channel, cause);
+	}
+	
+	private void drain(SocketChannel channel, IOException cause)
+	{
+		PendingWrite write;
+		while ((write = pending.poll()) != null)
+		{
+			pendingBytes.addAndGet(-write.data.remaining());
+			if (write.listener != null)
+				write.listener.writeFailed(channel, write.data, cause);
+		}
+	}
+	
+	private static class PendingWrite
+	{
+		ByteBuffer data;
+		WriteListener listener;
+		
+		PendingWrite(ByteBuffer data, WriteListener listener)
+		{
+			this.data = data;
+			this.listener = listener;
+		}
+	}
+}
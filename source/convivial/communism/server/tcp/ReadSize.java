@@ -0,0 +1,61 @@
+package convivial.communism.server.tcp;
+
+/**
+**	Picks how big a buffer to read a connection's next chunk into. Starts at an initial size, doubles
+**		whenever a read fills the whole buffer (so a connection sending large messages quickly gets large
+**		reads and fewer syscalls), and halves again after a couple of reads that used under a quarter of it.
+**		Only ever used by the one thread servicing the connection.
+**/
+class ReadSize
+{
+	private int initial;
+	private int maximum;
+	private int current;
+	private boolean shrinkNext;
+	
+	/**
+	**	@param initial Size of the first read, and the smallest size ever used.
+	**	@param maximum Largest size ever used.
+	**/
+	ReadSize(int initial, int maximum)
+	{
+		this.initial = initial;
+		this.maximum = maximum;
+		current = initial;
+	}
+	
+	/**
+	**	@return Number of bytes to make room for on the next read.
+	**/
+	int next()
+	{
+		return current;
+	}
+	
+	/**
+	**	Adjusts the next size based on how the last read went.
+	**	
+	**	@param bytesRead Bytes the last read produced.
+	**	@param capacity Room that read had; may be larger than <code>next()</code> asked for.
+	**/
+	void record(long bytesRead, int capacity)
+	{
+		if (bytesRead >= capacity)
+		{
+			current = Math.min(maximum, Math.max(current, capacity) << 1);
+			shrinkNext = false;
+		}
+		else if (bytesRead < current >> 2 && current > initial)
+		{
+			if (shrinkNext)
+			{
+				current = Math.max(initial, current >> 1);
+				shrinkNext = false;
+			}
+			else
+				shrinkNext = true;
+		}
+		else
+			shrinkNext = false;
+	}
+}
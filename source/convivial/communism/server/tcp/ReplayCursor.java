@@ -0,0 +1,69 @@
+package convivial.communism.server.tcp;
+
+import convivial.communism.server.log.ReplayListener;
+
+import java.nio.ByteBuffer;
+
+/**
+**	Where a client's replay out of the Server's message log has got to. The Server queues a batch of
+**		messages at a time, through <code>ReplayListener</code>, and comes back for the next batch once the
+**		client has drained most of the last one, so a client asking for a lot never has more than about a
+**		batch waiting in its outbound queue or pins more than that of the log's mapped files.
+**	
+**	<p>Only touched on the thread servicing its connection.</p>
+**/
+class ReplayCursor implements ReplayListener
+{
+	/** Topic being replayed, or null for every topic. **/
+	final String topic;
+	
+	/** Offset to carry on from. **/
+	long nextOffset;
+	
+	/** Messages still allowed before the replay stops, however many the log holds. **/
+	int remaining;
+	
+	/** Set while the next batch is queued to run on the connection's thread. **/
+	boolean scheduled;
+	
+	private Server server;
+	private Connection connection;
+	private int batchBytes;
+	private long queued;
+	
+	ReplayCursor(Server server, Connection connection, String topic, long fromOffset, int maxMessages, int batchBytes)
+	{
+		this.server = server;
+		this.connection = connection;
+		this.topic = topic;
+		this.batchBytes = batchBytes;
+		nextOffset = fromOffset;
+		remaining = maxMessages;
+	}
+	
+	/**
+	**	Starts a batch: the listener takes messages until it has queued <code>batchBytes</code> of them or
+	**		used up the replay's allowance.
+	**/
+	void startBatch()
+	{
+		queued = 0;
+	}
+	
+	/**
+	**	@return True if the last batch stopped early because there was nothing more to send.
+	**/
+	boolean isFinished()
+	{
+		return remaining == 0 || queued < batchBytes;
+	}
+	
+	public boolean message(long offset, long timestamp, String topic, ByteBuffer message)
+	{
+		queued += message.remaining();
+		nextOffset = offset + 1;
+		--remaining;
+		server.queueReplayed(connection, message);
+		return remaining > 0 && queued < batchBytes;
+	}
+}
@@ -0,0 +1,289 @@
+package convivial.communism.server.tcp;
+
+import convivial.communism.server.FrameListener;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+**	Sends requests to a server over a <code>ServerConnection</code> and hands back each response as a
+**		<code>CompletableFuture</code>, so any number of requests can be in flight on one connection at once
+**		instead of waiting out a round trip per request. Responses are matched to requests by a
+**		correlation ID, so the server may answer them in any order.
+**	
+**	<p>Every message, both ways, is a frame made of a 4-byte big-endian length, an 8-byte correlation ID
+**		and the body, the length counting the ID and body. A server answers a request by sending back a
+**		frame with the request's ID: give it the decoder from <code>newFrameDecoder()</code>, read the ID
+**		with <code>getCorrelationId</code> in <code>receiveFrame</code> and build the response with
+**		<code>encode</code>. A server that echoes every frame back, like <code>EchoServer</code>, answers
+**		each request with its own body.</p>
+**	
+**	<p>Futures are completed on the connection's read thread (or its <code>ClientEventLoopGroup</code>
+**		thread), so anything chained onto them with the non-async methods runs there too and shouldn't
+**		block. Requests that go unanswered for their timeout fail with a <code>TimeoutException</code>, and
+**		all outstanding requests fail with a <code>ClosedChannelException</code> when the connection is lost.</p>
+**/
+public class RequestClient
+{
+	/** Bytes in front of every body: the length field and the correlation ID. **/
+	public static final int HEADER_LENGTH = 12;
+	/** Timeout of requests made without one, in milliseconds, unless changed with <code>setDefaultTimeout</code>. **/
+	public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+	
+	private static final LengthFieldFrameDecoder FRAME_DECODER = new LengthFieldFrameDecoder(4);
+	
+	/**
+	**	A request waiting for its response.
+	**/
+	private static class Pending
+	{
+		CompletableFuture<ByteBuffer> future;
+		Timeout timeout;
+		
+		Pending()
+		{
+			future = new CompletableFuture<ByteBuffer>();
+		}
+	}
+	
+	private ServerConnection connection;
+	private BufferPool bufferPool;
+	private Map<Long, Pending> pending;
+	private AtomicLong nextId;
+	private long defaultTimeoutNanos;
+	private WriteListener sent;
+	
+	/**
+	**	Gets ready to connect to a server, but does not connect to one yet. Configure the connection
+	**		through <code>getConnection()</code> before calling <code>connect</code>.
+	**/
+	public RequestClient()
+	{
+		connection = new ServerConnection(new FrameListener()
+		{
+			public void receiveFrame(SelectionKey key, SocketChannel channel, ByteBuffer frame)
+			{
+				received(frame);
+			}
+			
+			public void receiveData(SelectionKey key, SocketChannel channel, long bytesRead, ByteBuffer data)
+			{
+			}
+			
+			public void disconnected()
+			{
+				failAll(new ClosedChannelException());
+			}
+		});
+		connection.setFrameDecoder(FRAME_DECODER);
+		pending = new ConcurrentHashMap<Long, Pending>();
+		nextId = new AtomicLong();
+		defaultTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS);
+		sent = new WriteListener()
+		{
+			public void writeComplete(SocketChannel channel, ByteBuffer data)
+			{
+				bufferPool.release(data);
+			}
+			
+			public void writeFailed(SocketChannel channel, ByteBuffer data, IOException cause)
+			{
+				fail(data.getLong(4), cause);
+				bufferPool.release(data);
+			}
+		};
+	}
+	
+	/**
+	**	@return A decoder for the frames requests and responses are sent in, for the server to use.
+	**/
+	public static LengthFieldFrameDecoder newFrameDecoder()
+	{
+		return new LengthFieldFrameDecoder(4);
+	}
+	
+	/**
+	**	Reads the correlation ID of a frame delivered by <code>newFrameDecoder()</code>'s decoder, and moves
+	**		the frame's position past it, onto the body.
+	**	
+	**	@param frame Frame as passed to <code>receiveFrame</code>.
+	**	
+	**	@return The ID to answer the frame with.
+	**/
+	public static long getCorrelationId(ByteBuffer frame)
+	{
+		return frame.getLong();
+	}
+	
+	/**
+	**	Builds a complete frame, ready to send, in a buffer from the pool.
+	**	
+	**	@param pool Pool to take the buffer from; release it back there once sent.
+	**	@param id Correlation ID of the request being answered.
+	**	@param body Body of the frame, already flipped. Left as it was.
+	**	
+	**	@return The frame, flipped.
+	**/
+	public static ByteBuffer encode(BufferPool pool, long id, ByteBuffer body)
+	{
+		ByteBuffer out = pool.acquire(HEADER_LENGTH + body.remaining());
+		FRAME_DECODER.writeHeader(out, 8 + body.remaining());
+		out.putLong(id);
+		out.put(body.duplicate());
+		out.flip();
+		return out;
+	}
+	
+	/**
+	**	@return The connection requests go out on, for setting options before <code>connect</code>. Don't
+	**		change its listener or frame decoder.
+	**/
+	public ServerConnection getConnection()
+	{
+		return connection;
+	}
+	
+	/**
+	**	Sets the timeout of requests made without one.
+	**	
+	**	@param timeout How long to wait for a response.
+	**	@param unit Unit of the timeout.
+	**/
+	public void setDefaultTimeout(long timeout, TimeUnit unit)
+	{
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Timeout must be positive, got " + timeout);
+		
+		defaultTimeoutNanos = unit.toNanos(timeout);
+	}
+	
+	/**
+	**	Connects to a server.
+	**	
+	**	@param host Host name or address of the server.
+	**	@param port Port to connect to.
+	**	
+	**	@throws IOException If the connection could not be made.
+	**/
+	public void connect(String host, int port) throws IOException
+	{
+		bufferPool = connection.getBufferPool();
+		connection.connect(host, port, null);
+	}
+	
+	/**
+	**	Disconnects from the server; every request still waiting for a response fails.
+	**/
+	public void disconnect()
+	{
+		connection.disconnect();
+	}
+	
+	/**
+	**	@return Number of requests sent and not yet answered, timed out or failed.
+	**/
+	public int getOutstanding()
+	{
+		return pending.size();
+	}
+	
+	/**
+	**	Sends a request with the default timeout.
+	**	
+	**	@param body Body of the request, already flipped. Copied, so it can be reused as soon as this returns.
+	**	
+	**	@return The response body, or a failure if it doesn't arrive in time or the connection is lost.
+	**/
+	public CompletableFuture<ByteBuffer> request(ByteBuffer body)
+	{
+		return request(body, defaultTimeoutNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	**	Sends a request without waiting for earlier ones to be answered.
+	**	
+	**	@param body Body of the request, already flipped. Copied, so it can be reused as soon as this returns.
+	**	@param timeout How long to wait for the response.
+	**	@param unit Unit of the timeout.
+	**	
+	**	@return The response body, or a failure if it doesn't arrive in time or the connection is lost.
+	**/
+	public CompletableFuture<ByteBuffer> request(ByteBuffer body, long timeout, TimeUnit unit)
+	{
+		final long id = nextId.incrementAndGet();
+		Pending request = new Pending();
+		if (!connection.isConnected())
+		{
+			request.future.completeExceptionally(new ClosedChannelException());
+			return request.future;
+		}
+		
+		pending.put(id, request);
+		if (!connection.isConnected())
+		{
+			// dropped since the check above, maybe after the disconnect had already failed everything pending
+			fail(id, new ClosedChannelException());
+			return request.future;
+		}
+		try
+		{
+			request.timeout = connection.schedule(new Runnable()
+			{
+				public void run()
+				{
+					fail(id, new TimeoutException("No response to request " + id + " in time."));
+				}
+			}, timeout, unit);
+		}
+		catch (IllegalStateException ise)
+		{
+			fail(id, new ClosedChannelException());
+			return request.future;
+		}
+		
+		connection.send(encode(bufferPool, id, body), sent);
+		return request.future;
+	}
+	
+	private void received(ByteBuffer frame)
+	{
+		Pending request = pending.remove(getCorrelationId(frame));
+		if (request == null)
+			return;
+		
+		if (request.timeout != null)
+			request.timeout.cancel();
+		ByteBuffer response = ByteBuffer.allocate(frame.remaining());
+		response.put(frame);
+		response.flip();
+		request.future.complete(response);
+	}
+	
+	private void fail(long id, Throwable cause)
+	{
+		Pending request = pending.remove(id);
+		if (request == null)
+			return;
+		
+		if (request.timeout != null)
+			request.timeout.cancel();
+		request.future.completeExceptionally(cause);
+	}
+	
+	private void failAll(Throwable cause)
+	{
+		for (Long id : pending.keySet())
+			fail(id, cause);
+	}
+}
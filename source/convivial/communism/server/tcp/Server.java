@@ -1,15 +1,28 @@
 package convivial.communism.server.tcp;
 
+import convivial.communism.server.IdleState;
+import convivial.communism.server.log.MessageLog;
+
 import java.io.*;
 
+import java.lang.management.ManagementFactory;
+
 import java.net.*;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
 **	Runs a Server. This class is meant to be extended and run stand-alone. It consumes the thread that ran
@@ -21,6 +34,10 @@ import java.util.Set;
 **		the few nessecary methods and be able to run a full server doing whatever you want with the
 **		the data being received and sending data out.</p>
 **	
+**	<p>Clients are spread across a group of event loops, each running its own selector thread (one per
+**		core unless <code>setEventLoops(int)</code> says otherwise). A client's <code>newClient</code>,
+**		<code>receiveData</code> and <code>disconnection</code> calls always happen on the loop that owns it.</p>
+**	
 **	<p>For an example, see <code>convivial.communism.server.example.ChatServer</code> source.</p>
 **	
 **	<br>
@@ -39,6 +56,7 @@ import java.util.Set;
 **	<li>protected void disconnection(SocketChannel channel) </li>
 **	<li>protected void receiveData(SelectionKey key, SocketChannel channel, long bytesRead, ByteBuffer data) </li>
 **	<li>protected void receiveConsole(String input)</li>
+**	<li>protected void receiveFrame(SelectionKey key, SocketChannel channel, ByteBuffer frame) (optional)</li>
 **	</ul>
 **	</code>
 **/
@@ -47,13 +65,52 @@ public abstract class Server
 	/** A ByteBuffer of size 255 bytes for use in any way the subclass wants. **/
 	protected ByteBuffer writeBuffer;
 	
-	private ByteBuffer readBuffer;
-	private ServerSocketChannel sSockChan;
-	private Selector readSelector;
-	private Thread acceptThread, readThread;
-	private boolean running;
+	/** Size of the first read from each client, and the smallest read buffer ever used. **/
+	public static final int DEFAULT_READ_BUFFER_INITIAL = 1024;
+	/** Largest read buffer a busy client's reads grow to. **/
+	public static final int DEFAULT_READ_BUFFER_MAXIMUM = 64 * 1024;
+	/** Most clients an acceptor takes in a row before checking its Selector again. **/
+	public static final int DEFAULT_ACCEPT_BATCH = 64;
+	/** Resolution of timers and idle timeouts, in milliseconds, unless <code>setTimerTick</code> says otherwise. **/
+	public static final int DEFAULT_TIMER_TICK_MILLIS = 10;
+	/** Buckets in each timing wheel; a turn of the wheel is this many ticks. **/
+	static final int TIMER_WHEEL_SIZE = 512;
+	/** Messages a client may have waiting for the handler pool before its reads are paused. **/
+	public static final int DEFAULT_MAX_PENDING_MESSAGES = 64;
+	/** Most messages one <code>replay</code> sends, unless <code>setReplayLimits</code> says otherwise. **/
+	public static final int DEFAULT_MAX_REPLAY_MESSAGES = 10000;
+	/** Bytes of replayed messages queued for a client at a time, unless <code>setReplayLimits</code> says otherwise. **/
+	public static final int DEFAULT_REPLAY_BATCH_BYTES = 256 * 1024;
 	
-	private static final int CHANNEL_NAP_TIME = 10; // 100 fps
+	private InetSocketAddress address;
+	private Acceptor[] acceptors;
+	private int acceptorCount, acceptBacklog, acceptBatch;
+	private EventLoopGroup loops;
+	private int loopCount;
+	private EventLoopGroup.Chooser chooser;
+	private WaitStrategy waitStrategy;
+	private BufferPool bufferPool;
+	private int readBufferInitial, readBufferMaximum;
+	private LengthFieldFrameDecoder frameDecoder;
+	private Compression compression;
+	private CompressionCodec[] broadcastCodecs;
+	private FlushPolicy flushPolicy;
+	private SocketOptions socketOptions;
+	private ExecutionMode executionMode;
+	private HandlerPool handlerPool;
+	private int lowWaterMark, highWaterMark;
+	private boolean pauseReadsWhenUnwritable;
+	private long slowConsumerTimeout;
+	private ServerMetrics metrics;
+	private ObjectName metricsName;
+	private long timerTick;
+	private long readerIdle, writerIdle, allIdle;
+	private WheelTimer timer;
+	private ConnectionRegistry connections;
+	private TopicIndex topics;
+	private MessageLog messageLog;
+	private int maxReplayMessages, replayBatchBytes;
+	private boolean running;
 	
 	/**
 	**	Creates a new server that runs on port 10997.
@@ -98,15 +155,37 @@ public abstract class Server
 	public Server(InetAddress ip, int port)
 	{
 		writeBuffer = ByteBuffer.allocateDirect(255);
-		readBuffer = ByteBuffer.allocateDirect(255);
+		loopCount = EventLoopGroup.defaultLoopCount();
+		chooser = EventLoopGroup.Chooser.ROUND_ROBIN;
+		waitStrategy = new BlockingWaitStrategy();
+		bufferPool = BufferPool.getDefault();
+		readBufferInitial = DEFAULT_READ_BUFFER_INITIAL;
+		readBufferMaximum = DEFAULT_READ_BUFFER_MAXIMUM;
+		flushPolicy = FlushPolicy.END_OF_LOOP;
+		socketOptions = new SocketOptions();
+		executionMode = ExecutionMode.SELECTOR;
+		connections = new ConnectionRegistry();
+		topics = new TopicIndex();
+		metrics = new ServerMetrics(connections);
+		address = new InetSocketAddress(ip, port);
+		acceptorCount = 1;
+		acceptBatch = DEFAULT_ACCEPT_BATCH;
+		timerTick = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMER_TICK_MILLIS);
+		maxReplayMessages = DEFAULT_MAX_REPLAY_MESSAGES;
+		replayBatchBytes = DEFAULT_REPLAY_BATCH_BYTES;
+		
+		init();
+		
+		if (compression != null)
+		{
+			if (frameDecoder == null)
+				throw new IllegalStateException("Compression works on frames; set a frame decoder as well.");
+			broadcastCodecs = new CompressionCodec[] { new CompressionCodec(compression, bufferPool, false), new CompressionCodec(compression, bufferPool, true) };
+		}
 		
 		try
 		{
-			sSockChan = ServerSocketChannel.open();
-			sSockChan.socket().bind(new InetSocketAddress(ip, port));
-			
-			readSelector = Selector.open();
-			
+			acceptors = bind();
 			System.out.println("Starting server at address: " + ip.getHostAddress() + " on port: " + port);
 		}
 		catch (IOException ioe)
@@ -114,26 +193,53 @@ public abstract class Server
 			ioe.printStackTrace();
 			return;
 		}
+		registerMetrics();
 		
-		init();
+		if (executionMode == ExecutionMode.SELECTOR)
+		{
+			try
+			{
+				loops = new EventLoopGroup(this, loopCount, chooser, waitStrategy);
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+				return;
+			}
+		}
+		else
+			timer = new WheelTimer(timerTick, "Timer");
 		
 		running = true;
 		
-		acceptThread = new Thread(new AcceptConnections());
-		acceptThread.start();
-		readThread = new Thread(new ReadMessages());
-		readThread.start();
+		if (loops != null)
+			loops.start();
+		else
+			timer.start();
+		for (Acceptor acceptor : acceptors)
+			acceptor.start();
 		
+		started();
 		terminalInput();
 	}
 	
 	/**
 	**	Handles initialization procedures needed by the sub-class. Generally these calls
 	**		would happen in the constructor, but this class is set up to never run past
-	**		this server's constructor, so this method is needed.
+	**		this server's constructor, so this method is needed. The server's port isn't
+	**		bound until this returns.
 	**/
 	protected abstract void init();
 	
+	/**
+	**	Manages a reaction to the server being up: bound, with its threads running and accepting clients.
+	**		Called once, on the thread that created the server, just before it starts reading the console.
+	**		Does nothing unless overridden.
+	**/
+	protected void started()
+	{
+	}
+	
 	/**
 	**	Returns the object to attach to a newly accepted channel. Each SelectionKey can have
 	**		any object as an attachment, and this method gets called whenever a new acception
@@ -173,6 +279,52 @@ public abstract class Server
 	**/
 	protected abstract void receiveData(SelectionKey key, SocketChannel channel, long bytesRead, ByteBuffer data);
 	
+	/**
+	**	Manipulates one complete frame received from some client. Only called when the server has a frame
+	**		decoder (see <code>setFrameDecoder</code>), in which case <code>receiveData</code> isn't called at all.
+	**		Does nothing unless overridden.
+	**	
+	**	<p>The frame is a slice of the buffer it was read into, so it costs no copying, but it's only valid
+	**		until this method returns; copy anything that needs to live longer.</p>
+	**	
+	**	@param key The client who sent the frame.
+	**	@param channel Client's SocketChannel.
+	**	@param frame The frame, positioned at its first byte.
+	**/
+	protected void receiveFrame(SelectionKey key, SocketChannel channel, ByteBuffer frame)
+	{
+	}
+	
+	/**
+	**	Manages a reaction to a client crossing one of its write buffer watermarks (see
+	**		<code>setWriteBufferWaterMarks</code>): false once more than the high watermark is waiting to be
+	**		written to it, true again once that has drained below the low watermark. A proxy-like server
+	**		would <code>pauseReads</code> on whichever clients feed this one when it goes unwritable, and
+	**		<code>resumeReads</code> when it comes back. Called on the client's event loop (or, in
+	**		<code>ExecutionMode.THREAD_PER_CONNECTION</code>, its writer thread), never twice in a row with the
+	**		same value. Does nothing unless overridden.
+	**	
+	**	@param channel Client whose writability changed.
+	**	@param writable True if the client can take more data again, false if it's falling behind.
+	**/
+	protected void writabilityChanged(SocketChannel channel, boolean writable)
+	{
+	}
+	
+	/**
+	**	Manages a reaction to a client going quiet for one of the idle timeouts (see <code>setIdleTimeouts</code>).
+	**		Called on the client's event loop (or, in <code>ExecutionMode.THREAD_PER_CONNECTION</code>, on the
+	**		client's writer thread, possibly while its reader thread is in <code>receiveData</code>), and again
+	**		every timeout for as long as the client stays idle. A typical server sends a heartbeat on <code>WRITER_IDLE</code> and calls
+	**		<code>closeChannel</code> on <code>READER_IDLE</code> to get rid of dead peers. Does nothing unless overridden.
+	**	
+	**	@param channel The idle client.
+	**	@param state Which kind of idleness the timeout was for.
+	**/
+	protected void idle(SocketChannel channel, IdleState state)
+	{
+	}
+	
 	/**
 	**	Handles commands being typed in from the console. Implement commands
 	**		for the server here, generally at least one command that will
@@ -183,176 +335,1527 @@ public abstract class Server
 	protected abstract void receiveConsole(String input);
 	
 	/**
-	**	Shuts the server down.
+	**	Returns every client currently connected, straight from the server's own registry. Safe to use
+	**		from any thread at any time: iterating never copies the clients and never throws
+	**		<code>ConcurrentModificationException</code>, though clients connecting or disconnecting
+	**		meanwhile may or may not show up. A client shows up before its <code>newClient</code> call and
+	**		is gone before its <code>disconnection</code> call.
+	**	
+	**	@return The connected clients.
 	**/
-	protected void shutdown()
+	protected Iterable<SocketChannel> getClients()
 	{
-		running = false;
-		acceptThread.interrupt();
-		readThread.interrupt();
+		return connections.channels();
 	}
 	
 	/**
-	**	Writes out the passed ByteBuffer of data to the specified channel.
-	**		Make sure to call <code>flip()</code> on the writeBuffer before calling
-	**		this method.
+	**	@return Number of clients currently connected.
+	**/
+	protected int getClientCount()
+	{
+		return connections.size();
+	}
+	
+	/**
+	**	Returns the ID the server gave a client when it connected. IDs count up from 1 and are never
+	**		reused while the server runs, so they're safe to hold on to, log, or send to other clients.
 	**	
-	**	@param channel Client to send data to.
-	**	@param writeBuffer Data to send.
+	**	@param channel A connected client.
+	**	
+	**	@return The client's ID, or -1 if it isn't connected.
 	**/
-	protected void channelWrite(SocketChannel channel, ByteBuffer writeBuffer)
+	protected long getClientId(SocketChannel channel)
+	{
+		Connection connection = connections.get(channel);
+		return connection == null ? -1 : connection.id;
+	}
+	
+	/**
+	**	Finds a client by the ID the server gave it.
+	**	
+	**	@param id ID from <code>getClientId</code>.
+	**	
+	**	@return The client, or null if it has disconnected.
+	**/
+	protected SocketChannel getClient(long id)
+	{
+		Connection connection = connections.get(id);
+		return connection == null ? null : connection.channel;
+	}
+	
+	/**
+	**	Sets how clients are serviced. Defaults to <code>ExecutionMode.SELECTOR</code>, a few event loops
+	**		shared by every client. <code>ExecutionMode.THREAD_PER_CONNECTION</code> gives each client its own
+	**		virtual thread doing blocking reads instead, so <code>receiveData</code> and the other callbacks can
+	**		block without holding up anyone else; the event loop settings are ignored in that mode. Only takes
+	**		effect when called from <code>init()</code>.
+	**	
+	**	@param executionMode How to service clients.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setExecutionMode(ExecutionMode executionMode)
 	{
-		long bytesWritten = 0;
-		long bytesToWrite = writeBuffer.remaining();
+		if (running)
+			throw new IllegalStateException("Cannot change the execution mode; server is already running.");
 		
-		try
-		{
-			while (bytesWritten != bytesToWrite)
-			{
-				bytesWritten += channel.write(writeBuffer);
-				try
-				{
-					Thread.sleep(CHANNEL_NAP_TIME);
-				}
-				catch (InterruptedException ie)
-				{
-					ie.printStackTrace();
-				}
-			}
-		}
-		catch (ClosedChannelException cce)
-		{
-			cce.printStackTrace();
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();
-		}
+		this.executionMode = executionMode;
+	}
+	
+	/**
+	**	Sets how many event loops (selector threads) read from the server's clients. Defaults to the
+	**		number of cores on the machine. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param count Number of event loops, must be at least 1.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setEventLoops(int count)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the number of event loops; server is already running.");
+		if (count < 1)
+			throw new IllegalArgumentException("Need at least one event loop, got " + count);
 		
-		writeBuffer.rewind();
+		loopCount = count;
 	}
 	
-	private void terminalInput()
+	/**
+	**	Sets how newly accepted clients are spread across the event loops. Defaults to
+	**		<code>EventLoopGroup.Chooser.ROUND_ROBIN</code>. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param chooser Strategy for picking each new client's event loop.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setLoopChooser(EventLoopGroup.Chooser chooser)
 	{
-		Scanner console = new Scanner(System.in);
-		String input;
-		while (running)
-		{
-			input = console.nextLine();
-			receiveConsole(input);
-		}
+		if (running)
+			throw new IllegalStateException("Cannot change the loop chooser; server is already running.");
+		
+		this.chooser = chooser;
 	}
 	
-	protected void closeChannel(SocketChannel channel)
+	/**
+	**	Sets how the event loops wait for clients to have something ready. Defaults to a
+	**		<code>BlockingWaitStrategy</code>, which uses no CPU while idle; a <code>BusySpinWaitStrategy</code>
+	**		gives the lowest latency at the cost of a fully busy core per loop, and an
+	**		<code>AdaptiveWaitStrategy</code> sits in between. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param waitStrategy How the event loops wait for their selectors.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setWaitStrategy(WaitStrategy waitStrategy)
 	{
-		try
-		{
-			channel.close();
-		}
-		catch (IOException ioe)
-		{
-			ioe.printStackTrace();
-		}
-		disconnection(channel);
+		if (running)
+			throw new IllegalStateException("Cannot change the wait strategy; server is already running.");
+		
+		this.waitStrategy = waitStrategy;
 	}
 	
-	private class AcceptConnections implements Runnable
+	/**
+	**	Sets the sizes of the buffers data from clients is read into. Each client starts with reads of
+	**		<code>initial</code> bytes, grows towards <code>maximum</code> while its reads keep filling the
+	**		buffer, and shrinks back when they stop. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param initial Size of the first read, and the smallest size ever used.
+	**	@param maximum Largest size a client's reads grow to.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setReadBufferSize(int initial, int maximum)
 	{
-		public void run()
-		{
-			while (running)
-			{
-				try
-				{
-					SocketChannel channel = sSockChan.accept();
-					channel.configureBlocking(false);
-					readSelector.wakeup();
-					channel.register(readSelector, SelectionKey.OP_READ, getAttachment());
-					newClient(channel);
-				}
-				catch (NotYetBoundException nybe)
-				{
-					nybe.printStackTrace();
-					shutdown();
-				}
-				catch (ClosedByInterruptException cbie)
-				{
-					System.out.println("AcceptConnections has been interrupted");
-				}
-				catch (ClosedChannelException cce)
-				{
-					cce.printStackTrace();
-				}
-				catch (IOException ioe)
-				{
-					ioe.printStackTrace();
-				}
-				catch (Exception e)
-				{
-					e.printStackTrace();
-				}
-			}
-		}
+		if (running)
+			throw new IllegalStateException("Cannot change read buffer sizes; server is already running.");
+		if (initial < 1 || maximum < initial)
+			throw new IllegalArgumentException("Bad read buffer sizes: initial " + initial + ", maximum " + maximum);
+		
+		readBufferInitial = initial;
+		readBufferMaximum = maximum;
 	}
 	
-	private class ReadMessages implements Runnable
+	/**
+	**	Has data from clients split into length-prefixed frames before it's handed over. With a decoder set,
+	**		<code>receiveFrame</code> gets called once per complete frame instead of <code>receiveData</code>
+	**		being called for every read, and clients announcing frames over the decoder's maximum are
+	**		disconnected. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param frameDecoder Decoder describing the frame format, or null to receive raw reads.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setFrameDecoder(LengthFieldFrameDecoder frameDecoder)
 	{
-		public void run()
-		{
-			while (running)
-			{
-				try
-				{
-					readSelector.select();
-					Thread.sleep(CHANNEL_NAP_TIME); // Some odd bug where this method runs too fast and nothing gets handled...... : [
-					Set<SelectionKey> readyKeys = readSelector.selectedKeys();
-					Iterator<SelectionKey> i = readyKeys.iterator();
-					while (i.hasNext())
-					{
-						SelectionKey key = i.next();
-						i.remove();
-						SocketChannel channel = (SocketChannel) key.channel();
-						readBuffer.clear();
-						long bytesRead = -1;
-						try
-						{
-							bytesRead = channel.read(readBuffer);
-						}
-						catch (IOException ioe)
-						{
-							key.cancel();
-							closeChannel(channel);
-							continue;
-						}
-						if (bytesRead == -1)
-							closeChannel(channel);
-						else
-						{
-							readBuffer.flip();
-							receiveData(key, channel, bytesRead, readBuffer);
-							readBuffer.clear();
-						}
-					}
-				}
-				catch (IOException ioe)
-				{
-					ioe.printStackTrace();
-				}
-				catch (ClosedSelectorException cse)
-				{
-					cse.printStackTrace();
-				}
-				catch (InterruptedException ie)
-				{
-					
-				}
-			}
-		}
+		if (running)
+			throw new IllegalStateException("Cannot change the frame decoder; server is already running.");
+		
+		this.frameDecoder = frameDecoder;
 	}
-}
-
-
-
-
-
-
+	
+	/**
+	**	@return The decoder splitting client data into frames, or null if clients' data is passed on raw.
+	**/
+	protected LengthFieldFrameDecoder getFrameDecoder()
+	{
+		return frameDecoder;
+	}
+	
+	/**
+	**	Compresses the frames sent with <code>sendFrame</code> and <code>broadcastFrame</code>, and has every
+	**		frame from clients decompressed before <code>receiveFrame</code> sees it, for clients that set the
+	**		same kind of compression on their <code>ServerConnection</code>; the two ends start by swapping
+	**		hello frames, the client's first (see <code>Compression</code>). Frames go to a client as they are
+	**		until its hello comes, so clients that don't compress get nothing but plain frames. Needs a frame
+	**		decoder as well. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param compression Compression settings, or null to send frames as they are.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setCompression(Compression compression)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change compression; server is already running.");
+		
+		this.compression = compression;
+	}
+	
+	/**
+	**	Keeps everything published with <code>publish</code> in a message log, so clients that missed some
+	**		of it can have it sent again with <code>replay</code> or <code>replaySince</code>. The server closes
+	**		the log when it shuts down. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param messageLog Log to append to, or null to keep nothing.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setMessageLog(MessageLog messageLog)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the message log; server is already running.");
+		
+		this.messageLog = messageLog;
+	}
+	
+	/**
+	**	Limits how much a <code>replay</code> sends a client. A replay stops after <code>maxMessages</code>
+	**		messages however many more the log holds, and queues only about <code>batchBytes</code> at a time,
+	**		queueing the next batch once the client has taken most of the last one (and is writable again, with
+	**		<code>setWriteBufferWaterMarks</code>). Defaults to <code>DEFAULT_MAX_REPLAY_MESSAGES</code> and
+	**		<code>DEFAULT_REPLAY_BATCH_BYTES</code>. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param maxMessages Most messages one replay sends, at least 1.
+	**	@param batchBytes Bytes of messages queued for the client at a time, at least 1.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setReplayLimits(int maxMessages, int batchBytes)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the replay limits; server is already running.");
+		if (maxMessages < 1 || batchBytes < 1)
+			throw new IllegalArgumentException("Bad replay limits: " + maxMessages + " messages, batches of " + batchBytes + " bytes");
+		
+		maxReplayMessages = maxMessages;
+		replayBatchBytes = batchBytes;
+	}
+	
+	/**
+	**	@return The log published messages are kept in, or null if they aren't kept.
+	**/
+	protected MessageLog getMessageLog()
+	{
+		return messageLog;
+	}
+	
+	/**
+	**	@return The server's compression settings, or null if frames are sent as they are.
+	**/
+	protected Compression getCompression()
+	{
+		return compression;
+	}
+	
+	/**
+	**	Sets when data queued with <code>write</code> gets flushed to the socket. Defaults to
+	**		<code>FlushPolicy.END_OF_LOOP</code>. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param flushPolicy When to flush written data.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setFlushPolicy(FlushPolicy flushPolicy)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the flush policy; server is already running.");
+		
+		this.flushPolicy = flushPolicy;
+	}
+	
+	/**
+	**	Moves <code>receiveData</code> and <code>receiveFrame</code> off the event loops and onto a bounded
+	**		pool of worker threads, so slow handler code doesn't hold up every other client on the same loop.
+	**		Each client still gets its messages handled one at a time, in the order they arrived; different
+	**		clients' messages are handled in parallel. The data handed over is a copy that's only valid until
+	**		the callback returns, same as without the pool. Only takes effect when called from <code>init()</code>,
+	**		and is ignored in <code>ExecutionMode.THREAD_PER_CONNECTION</code>, where every client has a thread already.
+	**	
+	**	<p>A client with <code>maxPending</code> messages waiting has its reads paused until the pool catches
+	**		up, so a flood from one client backs up in its own socket instead of in the server's memory.
+	**		When the pool itself is saturated, <code>rejection</code> decides what happens. A message that's
+	**		already being handled when its client disconnects still finishes, so <code>disconnection</code>
+	**		can run alongside the client's last <code>receiveData</code>.</p>
+	**	
+	**	@param threads Number of worker threads.
+	**	@param queueCapacity Number of clients' work that can wait for a free worker.
+	**	@param rejection What to do with a client's messages when the pool is saturated.
+	**	@param maxPending Messages a client may have waiting before its reads are paused; see <code>DEFAULT_MAX_PENDING_MESSAGES</code>.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setHandlerPool(int threads, int queueCapacity, HandlerRejection rejection, int maxPending)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the handler pool; server is already running.");
+		if (threads < 1 || queueCapacity < 1 || maxPending < 1)
+			throw new IllegalArgumentException("Bad handler pool: " + threads + " threads, queue of " + queueCapacity + ", " + maxPending + " pending");
+		
+		if (handlerPool != null)
+			handlerPool.shutdown();
+		handlerPool = new HandlerPool(threads, queueCapacity, rejection, maxPending);
+	}
+	
+	/**
+	**	Sets limits on how much data may be waiting to be written to each client. Once more than
+	**		<code>high</code> bytes are waiting the client counts as unwritable: <code>writabilityChanged</code>
+	**		is called, <code>isWritable</code> says false, and the client's reads may be paused (see
+	**		<code>setPauseReadsWhenUnwritable</code>) or the client evicted (see <code>setSlowConsumerTimeout</code>).
+	**		It turns writable again once the backlog drains to <code>low</code> bytes or less. Data is never
+	**		refused either way; it's up to the subclass to stop producing. Off (no limit) unless called.
+	**		Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param low Bytes waiting at or below which an unwritable client turns writable again.
+	**	@param high Bytes waiting above which a client turns unwritable.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setWriteBufferWaterMarks(int low, int high)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the write buffer watermarks; server is already running.");
+		if (low < 0 || high < 1 || low > high)
+			throw new IllegalArgumentException("Bad write buffer watermarks: low " + low + ", high " + high);
+		
+		lowWaterMark = low;
+		highWaterMark = high;
+	}
+	
+	/**
+	**	Has the server stop reading from a client for as long as that client is unwritable, so a client
+	**		that sends requests without reading the replies can't make the server queue replies forever.
+	**		Needs <code>setWriteBufferWaterMarks</code>. Off unless called. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param pause True to pause an unwritable client's reads.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setPauseReadsWhenUnwritable(boolean pause)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change read pausing; server is already running.");
+		
+		pauseReadsWhenUnwritable = pause;
+	}
+	
+	/**
+	**	Sets the resolution of the server's timers: idle timeouts, the slow consumer timeout and tasks
+	**		passed to <code>schedule</code> run on the first tick at or after they're due. Defaults to
+	**		<code>DEFAULT_TIMER_TICK_MILLIS</code>. A coarser tick means fewer wakeups while timers are pending.
+	**		Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param millis Length of a tick, in milliseconds.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setTimerTick(long millis)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the timer tick; server is already running.");
+		if (millis < 1)
+			throw new IllegalArgumentException("Timer tick must be at least 1ms, got " + millis);
+		
+		timerTick = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	/**
+	**	Has <code>idle</code> called for clients that go quiet: nothing read from them for
+	**		<code>readerIdle</code>, nothing written to them for <code>writerIdle</code>, or neither for
+	**		<code>allIdle</code>. Each timeout is a timer on the client's event loop, rescheduled only when it
+	**		fires, so reads and writes cost nothing more than noting the time. Off unless called. Only
+	**		takes effect when called from <code>init()</code>.
+	**	
+	**	@param readerIdle Reader idle timeout, or 0 for none.
+	**	@param writerIdle Writer idle timeout, or 0 for none.
+	**	@param allIdle All idle timeout, or 0 for none.
+	**	@param unit Unit of the three timeouts.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setIdleTimeouts(long readerIdle, long writerIdle, long allIdle, TimeUnit unit)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change idle timeouts; server is already running.");
+		if (readerIdle < 0 || writerIdle < 0 || allIdle < 0)
+			throw new IllegalArgumentException("Idle timeouts can't be negative: " + readerIdle + ", " + writerIdle + ", " + allIdle);
+		
+		this.readerIdle = unit.toNanos(readerIdle);
+		this.writerIdle = unit.toNanos(writerIdle);
+		this.allIdle = unit.toNanos(allIdle);
+	}
+	
+	/**
+	**	Runs a task on one of the event loops after a delay (on the timer thread in
+	**		<code>ExecutionMode.THREAD_PER_CONNECTION</code>). Safe to call from any thread. Tasks run on the
+	**		first timer tick at or after the delay and must not block, since they hold up the loop's clients.
+	**	
+	**	@param task Work to do.
+	**	@param delay How long from now.
+	**	@param unit Unit of the delay.
+	**	
+	**	@return A handle for cancelling the task.
+	**/
+	protected Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		if (loops == null)
+			return timer.schedule(task, unit.toNanos(delay));
+		return loops.next().schedule(task, unit.toNanos(delay));
+	}
+	
+	/**
+	**	Runs a task for one client after a delay, on the client's event loop, so it never runs alongside
+	**		the client's own callbacks. In <code>ExecutionMode.THREAD_PER_CONNECTION</code> it runs on the
+	**		client's writer thread instead, one at a time with the client's other timers and
+	**		<code>writabilityChanged</code> calls, but possibly while the client's reader thread is in
+	**		<code>receiveData</code> or <code>receiveFrame</code>; guard anything the two share. Handy for
+	**		per-client heartbeats and request timeouts. Safe to call from any thread.
+	**	
+	**	@param channel Client the task is for.
+	**	@param task Work to do.
+	**	@param delay How long from now.
+	**	@param unit Unit of the delay.
+	**	
+	**	@return A handle for cancelling the task, or null if the client isn't connected.
+	**/
+	protected Timeout schedule(SocketChannel channel, Runnable task, long delay, TimeUnit unit)
+	{
+		Connection connection = connections.get(channel);
+		if (connection == null)
+			return null;
+		return connection.schedule(task, unit.toNanos(delay));
+	}
+	
+	/**
+	**	Disconnects clients that stay unwritable for longer than the timeout, counting each one (see
+	**		<code>getEvictionCount</code>). A timer is started whenever a client goes unwritable. Needs
+	**		<code>setWriteBufferWaterMarks</code>. Off unless called. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param millis How long a client may stay over its high watermark, in milliseconds, or 0 for no limit.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setSlowConsumerTimeout(long millis)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the slow consumer timeout; server is already running.");
+		if (millis < 0)
+			throw new IllegalArgumentException("Slow consumer timeout can't be negative, got " + millis);
+		
+		slowConsumerTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	/**
+	**	@return Number of clients disconnected so far for staying unwritable too long.
+	**/
+	protected long getEvictionCount()
+	{
+		return metrics.getEvictions();
+	}
+	
+	/**
+	**	Tells whether a client is keeping up with what's sent to it. Always true without watermarks.
+	**	
+	**	@param channel Client to check.
+	**	
+	**	@return False if more than the high watermark is waiting to be written to the client.
+	**/
+	protected boolean isWritable(SocketChannel channel)
+	{
+		Connection connection = connections.get(channel);
+		return connection == null || !connection.unwritable.get();
+	}
+	
+	/**
+	**	Stops reading from a client until <code>resumeReads</code> is called, leaving its data in the socket
+	**		so TCP slows the client down. Safe to call from any thread; takes effect on the client's next pass.
+	**	
+	**	@param channel Client to stop reading from.
+	**/
+	protected void pauseReads(SocketChannel channel)
+	{
+		setReadPaused(channel, true);
+	}
+	
+	/**
+	**	Starts reading from a client again after <code>pauseReads</code>. Reads stay paused if the server
+	**		itself is holding them back for the client's own backlog. Safe to call from any thread.
+	**	
+	**	@param channel Client to read from again.
+	**/
+	protected void resumeReads(SocketChannel channel)
+	{
+		setReadPaused(channel, false);
+	}
+	
+	/**
+	**	Turns Nagle's algorithm off (true) or on (false) for every client accepted from now on. Left at the
+	**		operating system's default unless called. Turning it off suits request/response protocols,
+	**		especially along with <code>write</code> and <code>flush</code> to batch messages by hand.
+	**	
+	**	@param on True to set TCP_NODELAY on each client's socket.
+	**/
+	protected void setTcpNoDelay(boolean on)
+	{
+		socketOptions.tcpNoDelay = Boolean.valueOf(on);
+	}
+	
+	/**
+	**	Sets SO_SNDBUF for every client accepted from now on. Left at the operating system's default unless called.
+	**	
+	**	@param size Size of each client socket's send buffer, in bytes.
+	**/
+	protected void setSendBufferSize(int size)
+	{
+		socketOptions.sendBufferSize = Integer.valueOf(size);
+	}
+	
+	/**
+	**	Sets SO_RCVBUF for every client accepted from now on. Left at the operating system's default unless
+	**		called. When called from <code>init()</code> it's set on the listening sockets as well, so sizes
+	**		over 64K can take effect in the TCP handshake of new clients.
+	**	
+	**	@param size Size of each client socket's receive buffer, in bytes.
+	**/
+	protected void setReceiveBufferSize(int size)
+	{
+		socketOptions.receiveBufferSize = Integer.valueOf(size);
+	}
+	
+	/**
+	**	Sets the listen backlog: how many clients the operating system holds on to, connected but not yet
+	**		accepted, before it starts refusing more. Raise it to ride out connection storms, like every
+	**		client reconnecting after a deploy. Defaults to the operating system's choice (the JDK asks for 50).
+	**		Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param backlog Clients to hold, or 0 for the default.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setAcceptBacklog(int backlog)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the accept backlog; server is already running.");
+		if (backlog < 0)
+			throw new IllegalArgumentException("Accept backlog can't be negative, got " + backlog);
+		
+		acceptBacklog = backlog;
+	}
+	
+	/**
+	**	Sets how many waiting clients an acceptor takes in a row each time it wakes up, before it checks
+	**		its Selector again. Defaults to <code>DEFAULT_ACCEPT_BATCH</code>. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param batch Clients to accept per wakeup, at least 1.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setAcceptBatch(int batch)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the accept batch; server is already running.");
+		if (batch < 1)
+			throw new IllegalArgumentException("Accept batch must be at least 1, got " + batch);
+		
+		acceptBatch = batch;
+	}
+	
+	/**
+	**	Sets how many threads accept new clients. Defaults to 1, which is plenty unless clients connect by
+	**		the tens of thousands per second. With more than one, each acceptor listens on its own socket bound
+	**		to the same address with SO_REUSEPORT and the operating system spreads new clients across them,
+	**		so they never contend with each other. Where SO_REUSEPORT isn't available (it's mostly a Linux
+	**		thing) the server falls back to a single acceptor. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param count Number of acceptors, at least 1.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setAcceptors(int count)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the number of acceptors; server is already running.");
+		if (count < 1)
+			throw new IllegalArgumentException("Need at least one acceptor, got " + count);
+		
+		acceptorCount = count;
+	}
+	
+	/**
+	**	Sets the pool read buffers are borrowed from and <code>channelWrite</code> copies into. Defaults to
+	**		<code>BufferPool.getDefault()</code>. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param bufferPool Pool of direct buffers for this server to use.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setBufferPool(BufferPool bufferPool)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the buffer pool; server is already running.");
+		
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	**	Returns the pool of direct buffers this server reads into. Subclasses can acquire buffers from it
+	**		to build outgoing messages in, and pass <code>getBufferPool().releaser()</code> to
+	**		<code>send</code> to have them recycled once they've been written.
+	**	
+	**	@return This server's buffer pool.
+	**/
+	protected BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+	
+	/**
+	**	Returns the server's metrics: traffic counters, loop and handler timings, and queue depths. They're
+	**		also registered with the platform MBean server for JMX clients.
+	**	
+	**	@return This server's metrics.
+	**/
+	protected ServerMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	**	Prints the server's metrics to <code>System.out</code>, with rates since the last time they were
+	**		printed. Meant to be wired to a console command, like <code>stats</code>, in <code>receiveConsole</code>.
+	**/
+	protected void printStats()
+	{
+		metrics.report(System.out);
+	}
+	
+	/**
+	**	Shuts the server down.
+	**/
+	protected void shutdown()
+	{
+		running = false;
+		if (acceptors != null)
+		{
+			for (Acceptor acceptor : acceptors)
+				acceptor.shutdown();
+		}
+		if (loops != null)
+			loops.shutdown();
+		if (handlerPool != null)
+			handlerPool.shutdown();
+		if (timer != null)
+			timer.shutdown();
+		if (messageLog != null)
+			messageLog.close();
+		unregisterMetrics();
+	}
+	
+	/**
+	**	Queues data to be written to the specified channel and returns immediately. The client's event
+	**		loop writes the data out as the socket has room for it, so a slow client never holds up the
+	**		calling thread. Make sure to call <code>flip()</code> on the buffer before calling this method.
+	**	
+	**	<p>The buffer belongs to the server until it has been written; don't change it afterwards, and use
+	**		<code>send(SocketChannel, ByteBuffer, WriteListener)</code> if you need to know when it's free again.</p>
+	**	
+	**	@param channel Client to send data to.
+	**	@param data Data to send.
+	**/
+	protected void send(SocketChannel channel, ByteBuffer data)
+	{
+		send(channel, data, null);
+	}
+	
+	/**
+	**	Queues data to be written to the specified channel and returns immediately. The listener is told
+	**		on the client's event loop once every byte has been written to the socket, or if the data
+	**		could never be written (like when the client disconnects first).
+	**	
+	**	@param channel Client to send data to.
+	**	@param data Data to send, already flipped. Don't touch it until the listener hears about it.
+	**	@param listener Told when the write completes or fails, may be null.
+	**/
+	protected void send(SocketChannel channel, ByteBuffer data, WriteListener listener)
+	{
+		Connection connection = connections.get(channel);
+		if (connection == null)
+		{
+			if (listener != null)
+				listener.writeFailed(channel, data, new ClosedChannelException());
+			return;
+		}
+		
+		connection.outbound.add(data, listener);
+		queued(connection);
+		connection.flushSoon();
+	}
+	
+	/**
+	**	Queues data to be written to the specified channel without necessarily writing it yet. When it
+	**		actually goes out is up to the flush policy (see <code>setFlushPolicy</code>) or an explicit
+	**		<code>flush</code>; in between, everything written to a client gets sent with as few gathering
+	**		writes as possible. The buffer belongs to the server until it has been written.
+	**	
+	**	@param channel Client to send data to.
+	**	@param data Data to send, already flipped.
+	**/
+	protected void write(SocketChannel channel, ByteBuffer data)
+	{
+		write(channel, data, null);
+	}
+	
+	/**
+	**	Queues data to be written to the specified channel without necessarily writing it yet, like
+	**		<code>write(SocketChannel, ByteBuffer)</code>, and tells the listener once it has been written or has failed.
+	**	
+	**	@param channel Client to send data to.
+	**	@param data Data to send, already flipped. Don't touch it until the listener hears about it.
+	**	@param listener Told when the write completes or fails, may be null.
+	**/
+	protected void write(SocketChannel channel, ByteBuffer data, WriteListener listener)
+	{
+		Connection connection = connections.get(channel);
+		if (connection == null)
+		{
+			if (listener != null)
+				listener.writeFailed(channel, data, new ClosedChannelException());
+			return;
+		}
+		
+		connection.outbound.add(data, listener);
+		queued(connection);
+		connection.written(flushPolicy);
+	}
+	
+	/**
+	**	Gets everything queued for the specified channel written out as soon as the socket allows,
+	**		whatever the flush policy. Returns immediately.
+	**	
+	**	@param channel Client whose queued data should be written.
+	**/
+	protected void flush(SocketChannel channel)
+	{
+		Connection connection = connections.get(channel);
+		if (connection != null)
+			connection.flushSoon();
+	}
+	
+	/**
+	**	Sends the same data to every client the filter accepts. The data is encoded once by the caller and
+	**		shared: each client gets a read-only view of the buffer in its outbound queue, and each event loop
+	**		writes out to its own clients in parallel with the others, so this returns without waiting on any
+	**		socket. Make sure to call <code>flip()</code> on the buffer before calling this method, and don't
+	**		change it afterwards.
+	**	
+	**	@param data Data to send.
+	**	@param filter Picks which clients get the data, or null for every client.
+	**	
+	**	@return Number of clients the data was queued for.
+	**/
+	protected int broadcast(ByteBuffer data, ConnectionFilter filter)
+	{
+		return broadcast(data, filter, null);
+	}
+	
+	/**
+	**	Sends the same data to every client the filter accepts, like <code>broadcast(ByteBuffer, ConnectionFilter)</code>,
+	**		and tells the listener once every client's copy has been written or has failed (say, because
+	**		that client disconnected). The listener's <code>writeComplete</code> is called exactly once, with a
+	**		null channel and the original buffer, which makes <code>getBufferPool().releaser()</code> a handy
+	**		listener for a broadcast built in a pooled buffer.
+	**	
+	**	@param data Data to send, already flipped. Don't touch it until the listener hears about it.
+	**	@param filter Picks which clients get the data, or null for every client.
+	**	@param listener Told when every copy is done with, may be null.
+	**	
+	**	@return Number of clients the data was queued for.
+	**/
+	protected int broadcast(ByteBuffer data, ConnectionFilter filter, WriteListener listener)
+	{
+		return deliver(connections.connections(), data, filter, listener);
+	}
+	
+	/**
+	**	Subscribes a client to a topic, so it gets what's published to it. Topics are names made of
+	**		segments split by dots, like <code>room.lobby</code>; subscribe to <code>room.*</code> for
+	**		every topic with one segment after <code>room</code>, or <code>room.#</code> for every topic
+	**		under <code>room</code> at any depth, <code>room</code> itself included. Subscriptions last until
+	**		they're unsubscribed or the client disconnects. Safe to call from any thread.
+	**	
+	**	@param channel A connected client.
+	**	@param pattern Topic to subscribe to, with or without wildcards.
+	**	
+	**	@return True if the client is now subscribed, false if it already was or isn't connected.
+	**	
+	**	@throws IllegalArgumentException If the pattern isn't a valid topic.
+	**/
+	protected boolean subscribe(SocketChannel channel, String pattern)
+	{
+		Connection connection = connections.get(channel);
+		if (connection == null || !topics.subscribe(connection, pattern))
+			return false;
+		
+		// the client may have disconnected while it was being subscribed, after its subscriptions were dropped
+		if (connections.get(channel) != connection)
+		{
+			topics.unsubscribeAll(connection);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	**	Ends one of a client's subscriptions. Safe to call from any thread.
+	**	
+	**	@param channel A connected client.
+	**	@param pattern Pattern exactly as it was passed to <code>subscribe</code>.
+	**	
+	**	@return True if the client was subscribed to the pattern.
+	**/
+	protected boolean unsubscribe(SocketChannel channel, String pattern)
+	{
+		Connection connection = connections.get(channel);
+		return connection != null && topics.unsubscribe(connection, pattern);
+	}
+	
+	/**
+	**	@param channel A connected client.
+	**	
+	**	@return Every pattern the client is subscribed to, empty if none.
+	**/
+	protected Collection<String> getSubscriptions(SocketChannel channel)
+	{
+		Connection connection = connections.get(channel);
+		if (connection == null)
+			return Collections.emptySet();
+		return topics.patterns(connection);
+	}
+	
+	/**
+	**	@return Number of clients subscribed to at least one topic.
+	**/
+	protected int getSubscriberCount()
+	{
+		return topics.subscriberCount();
+	}
+	
+	/**
+	**	Sends the same data to every client subscribed to the topic, like <code>broadcast</code> does for
+	**		every client. The subscribers are looked up in the server's topic index rather than by going
+	**		through every client, so publishing to a topic costs time in proportion to its subscribers. A client
+	**		subscribed to the topic by more than one pattern gets the data once. With a message log (see
+	**		<code>setMessageLog</code>) the data is appended to it first, whether anybody is subscribed or not.
+	**	
+	**	@param topic Topic to publish to, without wildcards.
+	**	@param data Data to send, already flipped. Don't change it afterwards.
+	**	@param filter Picks which of the subscribers get the data, or null for all of them.
+	**	
+	**	@return Number of clients the data was queued for.
+	**	
+	**	@throws IllegalArgumentException If the topic isn't valid or holds wildcards.
+	**/
+	protected int publish(String topic, ByteBuffer data, ConnectionFilter filter)
+	{
+		return publish(topic, data, filter, null);
+	}
+	
+	/**
+	**	Sends the same data to every client subscribed to the topic, like
+	**		<code>publish(String, ByteBuffer, ConnectionFilter)</code>, and tells the listener once every copy
+	**		is done with, the way <code>broadcast(ByteBuffer, ConnectionFilter, WriteListener)</code> does. The
+	**		listener is told even when nobody is subscribed.
+	**	
+	**	@param topic Topic to publish to, without wildcards.
+	**	@param data Data to send, already flipped. Don't touch it until the listener hears about it.
+	**	@param filter Picks which of the subscribers get the data, or null for all of them.
+	**	@param listener Told when every copy is done with, may be null.
+	**	
+	**	@return Number of clients the data was queued for.
+	**	
+	**	@throws IllegalArgumentException If the topic isn't valid or holds wildcards.
+	**/
+	protected int publish(String topic, ByteBuffer data, ConnectionFilter filter, WriteListener listener)
+	{
+		Collection<Connection> subscribers = topics.subscribers(topic);
+		if (messageLog != null)
+		{
+			try
+			{
+				messageLog.append(topic, data);
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+		}
+		return deliver(subscribers, data, filter, listener);
+	}
+	
+	/**
+	**	Sends a client every message published to a topic from an offset on, out of the message log, up to
+	**		the replay limits (see <code>setReplayLimits</code>). The messages are queued as read-only views of
+	**		the log's mapped files, so nothing is copied on the way to the socket, and a batch at a time: the
+	**		first on the client's event loop soon after this is called, and each one after that once the client
+	**		has taken most of the one before, so a client asking for a lot never has more than about a batch
+	**		waiting. A new replay for the same client takes over from any that's still going. Returns before
+	**		anything is queued. Safe to call from any thread.
+	**	
+	**	@param channel Client to send the messages to.
+	**	@param topic Topic to replay, without wildcards, or null for every topic.
+	**	@param fromOffset Offset of the first message to send.
+	**	
+	**	@return True if the replay has started, false if the client isn't connected.
+	**	
+	**	@throws IllegalStateException If the server has no message log.
+	**/
+	protected boolean replay(SocketChannel channel, String topic, long fromOffset)
+	{
+		if (messageLog == null)
+			throw new IllegalStateException("Cannot replay; the server has no message log.");
+		
+		final Connection connection = connections.get(channel);
+		if (connection == null)
+			return false;
+		
+		final ReplayCursor cursor = new ReplayCursor(this, connection, topic, fromOffset, maxReplayMessages, replayBatchBytes);
+		connection.execute(new Runnable()
+		{
+			public void run()
+			{
+				connection.replay = cursor;
+				continueReplay(connection, cursor);
+			}
+		});
+		return true;
+	}
+	
+	/**
+	**	Sends a client every message published to a topic from a time on, out of the message log, like
+	**		<code>replay</code>.
+	**	
+	**	@param channel Client to send the messages to.
+	**	@param topic Topic to replay, without wildcards, or null for every topic.
+	**	@param timestamp Time of the first message to send, in milliseconds since the epoch.
+	**	
+	**	@return True if the replay has started, false if the client isn't connected.
+	**	
+	**	@throws IllegalStateException If the server has no message log.
+	**/
+	protected boolean replaySince(SocketChannel channel, String topic, long timestamp)
+	{
+		if (messageLog == null)
+			throw new IllegalStateException("Cannot replay; the server has no message log.");
+		
+		return replay(channel, topic, messageLog.offsetFor(timestamp));
+	}
+	
+	/**
+	**	Queues the next batch of a replay and flushes it, or does nothing if the client has gone or a newer
+	**		replay has taken over. Run on the connection's own thread.
+	**/
+	private void continueReplay(Connection connection, ReplayCursor cursor)
+	{
+		cursor.scheduled = false;
+		if (connection.replay != cursor || !connection.channel.isOpen())
+			return;
+		
+		cursor.startBatch();
+		messageLog.replay(cursor.nextOffset, cursor.topic, cursor);
+		if (cursor.isFinished())
+			connection.replay = null;
+		connection.flushSoon();
+	}
+	
+	/**
+	**	Queues one replayed message for a connection, for <code>ReplayCursor</code>.
+	**/
+	void queueReplayed(Connection connection, ByteBuffer message)
+	{
+		connection.outbound.add(message, null);
+		queued(connection);
+	}
+	
+	/**
+	**	Queues the data for each of the targets the filter accepts, then has every event loop involved flush
+	**		its share of them in one go.
+	**/
+	private int deliver(Iterable<Connection> targets, ByteBuffer data, ConnectionFilter filter, WriteListener listener)
+	{
+		BroadcastCompletion completion = null;
+		if (listener != null)
+			completion = new BroadcastCompletion(data, listener);
+		
+		IdentityHashMap<EventLoop, List<Connection>> batches = new IdentityHashMap<EventLoop, List<Connection>>();
+		int count = 0;
+		for (Connection connection : targets)
+		{
+			CompressionCodec codec = connection.codec;
+			if (codec == null)
+			{
+				if (!offer(connection, data, filter, completion))
+					continue;
+			}
+			else
+			{
+				// a frame picked by whether the client compresses has to be queued before that can change
+				synchronized (codec)
+				{
+					if (!offer(connection, data, filter, completion))
+						continue;
+				}
+			}
+			++count;
+			
+			if (connection.loop == null)
+			{
+				connection.flushSoon();
+				continue;
+			}
+			
+			List<Connection> batch = batches.get(connection.loop);
+			if (batch == null)
+			{
+				batch = new ArrayList<Connection>();
+				batches.put(connection.loop, batch);
+			}
+			batch.add(connection);
+		}
+		
+		for (Map.Entry<EventLoop, List<Connection>> entry : batches.entrySet())
+			entry.getKey().scheduleFlush(entry.getValue());
+		
+		if (completion != null)
+			completion.done();
+		return count;
+	}
+	
+	private boolean offer(Connection connection, ByteBuffer data, ConnectionFilter filter, BroadcastCompletion completion)
+	{
+		if (filter != null && !filter.accept(connection.channel))
+			return false;
+		
+		if (completion != null)
+			completion.add();
+		connection.outbound.add(data.asReadOnlyBuffer(), completion);
+		queued(connection);
+		return true;
+	}
+	
+	/**
+	**	Sends a message to the specified channel as one frame: the frame decoder's header, then the message,
+	**		compressed if the server has compression and the message is worth compressing. The frame is built
+	**		in a pooled buffer, so the message can be reused as soon as this returns.
+	**	
+	**	@param channel Client to send the message to.
+	**	@param body The message, already flipped. Its position is left where it was.
+	**	
+	**	@throws IllegalStateException If the server has no frame decoder.
+	**/
+	protected void sendFrame(SocketChannel channel, ByteBuffer body)
+	{
+		if (frameDecoder == null)
+			throw new IllegalStateException("Cannot send a frame; the server has no frame decoder.");
+		
+		Connection connection = connections.get(channel);
+		if (connection == null)
+			return;
+		CompressionCodec codec = connection.codec;
+		if (codec == null)
+		{
+			send(channel, frameDecoder.encode(bufferPool, body), bufferPool.releaser());
+			return;
+		}
+		
+		// encoded and queued in one go, so the frame can't end up on the wrong side of the codec's hello
+		synchronized (codec)
+		{
+			connection.outbound.add(codec.encode(frameDecoder, body), bufferPool.releaser());
+		}
+		queued(connection);
+		connection.flushSoon();
+	}
+	
+	/**
+	**	Sends the same message as one frame to every client the filter accepts, like <code>sendFrame</code>.
+	**		The message is framed (and compressed) once for each kind of client there can be with the server's
+	**		settings: holding the server's dictionary or not, or not compressing (yet, or at all). Each result is shared
+	**		the way <code>broadcast</code> does it.
+	**	
+	**	@param body The message, already flipped. Its position is left where it was.
+	**	@param filter Picks which clients get the message, or null for every client.
+	**	
+	**	@return Number of clients the message was queued for.
+	**	
+	**	@throws IllegalStateException If the server has no frame decoder.
+	**/
+	protected int broadcastFrame(ByteBuffer body, final ConnectionFilter filter)
+	{
+		if (frameDecoder == null)
+			throw new IllegalStateException("Cannot send a frame; the server has no frame decoder.");
+		
+		if (compression == null)
+			return broadcast(frameDecoder.encode(bufferPool, body), filter, bufferPool.releaser());
+		
+		int count = broadcast(frameDecoder.encode(bufferPool, body), new ConnectionFilter()
+		{
+			public boolean accept(SocketChannel channel)
+			{
+				if (filter != null && !filter.accept(channel))
+					return false;
+				Connection connection = connections.get(channel);
+				return connection != null && !connection.codec.isCompressing();
+			}
+		}, bufferPool.releaser());
+		for (int i = 0; i < broadcastCodecs.length; ++i)
+		{
+			final boolean dictionary = broadcastCodecs[i].usesDictionary();
+			if (dictionary && compression.getDictionaryId() == 0)
+				continue;
+			
+			ConnectionFilter matching = new ConnectionFilter()
+			{
+				public boolean accept(SocketChannel channel)
+				{
+					if (filter != null && !filter.accept(channel))
+						return false;
+					Connection connection = connections.get(channel);
+					return connection != null && connection.codec.isCompressing() && connection.codec.usesDictionary() == dictionary;
+				}
+			};
+			count += broadcast(broadcastCodecs[i].encode(frameDecoder, body), matching, bufferPool.releaser());
+		}
+		return count;
+	}
+	
+	/**
+	**	Writes out the passed ByteBuffer of data to the specified channel.
+	**		Make sure to call <code>flip()</code> on the writeBuffer before calling
+	**		this method.
+	**	
+	**	<p>The data is copied into a pooled buffer and queued with <code>send</code>, so this method returns
+	**		right away and the buffer can be reused as soon as it does. Use <code>send</code> directly to
+	**		avoid the copy.</p>
+	**	
+	**	@param channel Client to send data to.
+	**	@param writeBuffer Data to send.
+	**/
+	protected void channelWrite(SocketChannel channel, ByteBuffer writeBuffer)
+	{
+		ByteBuffer copy = bufferPool.acquire(writeBuffer.remaining());
+		copy.put(writeBuffer);
+		copy.flip();
+		send(channel, copy, bufferPool.releaser());
+		
+		writeBuffer.rewind();
+	}
+	
+	private void terminalInput()
+	{
+		Scanner console = new Scanner(System.in);
+		String input;
+		while (running)
+		{
+			input = console.nextLine();
+			receiveConsole(input);
+		}
+	}
+	
+	/**
+	**	Closes the connection to a client. The <code>disconnection</code> callback is always invoked
+	**		on the event loop (or thread) that owns the client, so when called from any other thread the
+	**		close is handed over and this method returns before it happens.
+	**	
+	**	@param channel Client to disconnect.
+	**/
+	protected void closeChannel(SocketChannel channel)
+	{
+		Connection connection = connections.get(channel);
+		if (connection == null)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+			return;
+		}
+		
+		connection.close();
+	}
+	
+	private void setReadPaused(SocketChannel channel, final boolean paused)
+	{
+		final Connection connection = connections.get(channel);
+		if (connection == null)
+			return;
+		
+		connection.execute(new Runnable()
+		{
+			public void run()
+			{
+				connection.setReadPaused(Connection.PAUSED_BY_SERVER, paused);
+			}
+		});
+	}
+	
+	/**
+	**	Checks a connection against the high watermark after data was queued on it. Any thread.
+	**/
+	private void queued(final Connection connection)
+	{
+		if (highWaterMark > 0 && connection.outbound.getPendingBytes() > highWaterMark && connection.unwritable.compareAndSet(false, true))
+		{
+			final long since = System.nanoTime();
+			connection.unwritableSince = since;
+			notifyWritability(connection);
+			if (slowConsumerTimeout > 0)
+			{
+				connection.schedule(new Runnable()
+				{
+					public void run()
+					{
+						evictIfStillUnwritable(connection, since);
+					}
+				}, slowConsumerTimeout);
+			}
+		}
+	}
+	
+	/**
+	**	Checks a connection against the low watermark after some of its data was written. Called by
+	**		whichever thread flushes the connection.
+	**/
+	void drained(final Connection connection)
+	{
+		if (connection.unwritable.get() && connection.outbound.getPendingBytes() <= lowWaterMark && connection.unwritable.compareAndSet(true, false))
+		{
+			connection.unwritableSince = 0;
+			notifyWritability(connection);
+		}
+		
+		// the next batch of a replay waits until most of the last one is out; it's queued rather than run
+		// here so a socket that keeps taking everything doesn't turn a long replay into deep recursion
+		final ReplayCursor cursor = connection.replay;
+		if (cursor != null && !cursor.scheduled && !connection.unwritable.get() && connection.outbound.getPendingBytes() <= replayBatchBytes / 2)
+		{
+			cursor.scheduled = true;
+			connection.executeLater(new Runnable()
+			{
+				public void run()
+				{
+					continueReplay(connection, cursor);
+				}
+			});
+		}
+	}
+	
+	/**
+	**	Tells the subclass about the connection's writability as it stands when the notification runs, on
+	**		the connection's loop, skipping it if nothing changed since the last one; flips from different
+	**		threads can't arrive out of order that way.
+	**/
+	private void notifyWritability(final Connection connection)
+	{
+		connection.execute(new Runnable()
+		{
+			public void run()
+			{
+				boolean writable = !connection.unwritable.get();
+				if (writable == connection.notifiedWritable || !connection.channel.isOpen())
+					return;
+				
+				connection.notifiedWritable = writable;
+				if (pauseReadsWhenUnwritable)
+					connection.setReadPaused(Connection.PAUSED_BY_WRITES, !writable);
+				writabilityChanged(connection.channel, writable);
+			}
+		});
+	}
+	
+	/**
+	**	Opens and binds the listening sockets, one per acceptor.
+	**/
+	private Acceptor[] bind() throws IOException
+	{
+		int count = acceptorCount;
+		if (count > 1)
+		{
+			ServerSocketChannel probe = ServerSocketChannel.open();
+			if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+			{
+				System.out.println("SO_REUSEPORT isn't supported here; using a single acceptor.");
+				count = 1;
+			}
+			probe.close();
+		}
+		
+		Acceptor[] bound = new Acceptor[count];
+		for (int i = 0; i < count; ++i)
+		{
+			ServerSocketChannel listener = ServerSocketChannel.open();
+			if (count > 1)
+				listener.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+			if (socketOptions.receiveBufferSize != null)
+				listener.setOption(StandardSocketOptions.SO_RCVBUF, socketOptions.receiveBufferSize);
+			listener.bind(address, acceptBacklog);
+			bound[i] = new Acceptor(this, listener, acceptBatch, "Acceptor-" + i);
+		}
+		return bound;
+	}
+	
+	/**
+	**	Takes on a client an <code>Acceptor</code> just accepted: sets its socket options and hands it to an
+	**		event loop, or to a thread of its own. Called on the acceptor's thread.
+	**	
+	**	@param channel Newly accepted client.
+	**/
+	void accepted(SocketChannel channel) throws IOException
+	{
+		metrics.accepted();
+		try
+		{
+			socketOptions.apply(channel.socket());
+		}
+		catch (SocketException se)
+		{
+			se.printStackTrace();
+		}
+		
+		if (loops == null)
+		{
+			ThreadConnection connection = new ThreadConnection(this, channel, getAttachment(), newReadSize());
+			addConnection(connection);
+			connection.start();
+		}
+		else
+		{
+			channel.configureBlocking(false);
+			loops.next().register(channel, getAttachment());
+		}
+	}
+	
+	/**
+	**	Disconnects a client that has stayed unwritable since the time given, the whole slow consumer timeout.
+	**/
+	private void evictIfStillUnwritable(Connection connection, long since)
+	{
+		if (!connection.unwritable.get() || connection.unwritableSince != since || !connection.channel.isOpen())
+			return;
+		
+		metrics.evicted();
+		System.out.println("Evicting slow client " + connection.channel.socket().getRemoteSocketAddress()
+			+ " with " + connection.outbound.getPendingBytes() + " bytes waiting");
+		connection.close();
+	}
+	
+	/**
+	**	Calls <code>receiveData</code>, timing it for the metrics.
+	**/
+	void dispatchData(SelectionKey key, SocketChannel channel, long bytesRead, ByteBuffer data)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			receiveData(key, channel, bytesRead, data);
+		}
+		finally
+		{
+			metrics.handled(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	**	Calls <code>receiveFrame</code>, timing it for the metrics. With compression the frame is
+	**		decompressed first, and a client whose frames can't be is disconnected.
+	**/
+	void dispatchFrame(SelectionKey key, Connection connection, ByteBuffer frame)
+	{
+		CompressionCodec codec = connection.codec;
+		if (codec != null)
+		{
+			try
+			{
+				frame = codec.decode(frame, frameDecoder.getMaxFrameLength());
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+				connection.close();
+				return;
+			}
+			if (frame == null)
+			{
+				if (codec.isHelloDue())
+					answerHello(connection);
+				return;
+			}
+		}
+		
+		long start = System.nanoTime();
+		try
+		{
+			receiveFrame(key, connection.channel, frame);
+		}
+		finally
+		{
+			metrics.handled(System.nanoTime() - start);
+			if (codec != null)
+				codec.recycle();
+		}
+	}
+	
+	/**
+	**	Answers a client's compression hello with the server's, after which the server's frames to it are compressed.
+	**/
+	private void answerHello(Connection connection)
+	{
+		CompressionCodec codec = connection.codec;
+		synchronized (codec)
+		{
+			if (!codec.isHelloDue())
+				return;
+			connection.outbound.add(codec.hello(frameDecoder), bufferPool.releaser());
+		}
+		queued(connection);
+		connection.flushSoon();
+	}
+	
+	/**
+	**	Calls <code>newClient</code>.
+	**/
+	void connected(Connection connection)
+	{
+		newClient(connection.channel);
+	}
+	
+	private void registerMetrics()
+	{
+		try
+		{
+			metricsName = new ObjectName("convivial.communism.server:type=Server,name="
+				+ ObjectName.quote(address.getAddress().getHostAddress() + ":" + address.getPort()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+		}
+		catch (JMException jme)
+		{
+			jme.printStackTrace();
+			metricsName = null;
+		}
+	}
+	
+	private void unregisterMetrics()
+	{
+		if (metricsName == null)
+			return;
+		
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		}
+		catch (JMException jme)
+		{
+			jme.printStackTrace();
+		}
+		metricsName = null;
+	}
+	
+	/**
+	**	Sets up idle timeouts for a connection, if the server has any, just before its <code>newClient</code> call.
+	**/
+	void startIdleMonitor(final Connection connection)
+	{
+		if (readerIdle == 0 && writerIdle == 0 && allIdle == 0)
+			return;
+		
+		connection.idle = new IdleMonitor(readerIdle, writerIdle, allIdle)
+		{
+			Timeout schedule(Runnable task, long delayNanos)
+			{
+				return connection.schedule(task, delayNanos);
+			}
+			
+			void idle(IdleState state)
+			{
+				if (connection.channel.isOpen())
+					Server.this.idle(connection.channel, state);
+			}
+		};
+		connection.idle.start();
+	}
+	
+	long getTimerTick()
+	{
+		return timerTick;
+	}
+	
+	WheelTimer getTimer()
+	{
+		return timer;
+	}
+	
+	HandlerPool getHandlerPool()
+	{
+		return loops == null ? null : handlerPool;
+	}
+	
+	ReadSize newReadSize()
+	{
+		return new ReadSize(readBufferInitial, readBufferMaximum);
+	}
+	
+	void addConnection(Connection connection)
+	{
+		if (compression != null)
+			connection.codec = new CompressionCodec(compression, bufferPool); // says hello once the client has
+		connections.add(connection);
+	}
+	
+	Connection removeConnection(SocketChannel channel)
+	{
+		Connection connection = connections.remove(channel);
+		if (connection != null)
+		{
+			topics.unsubscribeAll(connection);
+			metrics.closed();
+		}
+		return connection;
+	}
+	
+	Connection getConnection(SocketChannel channel)
+	{
+		return connections.get(channel);
+	}
+}
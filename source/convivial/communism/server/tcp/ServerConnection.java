@@ -1,29 +1,49 @@
 package convivial.communism.server.tcp;
 
+import convivial.communism.server.FrameListener;
+import convivial.communism.server.IdleListener;
+import convivial.communism.server.IdleState;
 import convivial.communism.server.ServerListener;
 
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.Set;
-import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
 **	Represents a connection to a tcp-based server. Note that in order for this class to be useful you
 **		need to implement a <code>ServerListener</code>, unless you only want outgoing messages (and even then could
 **		not tell when the connection has been lost).
+**	
+**	<p>By default each connection runs a read thread and Selector of its own. Programs holding many
+**		connections can share a fixed set of threads between them instead, by giving each one the same
+**		<code>ClientEventLoopGroup</code> with <code>setEventLoopGroup</code> before connecting; the
+**		listener's callbacks are still made per connection, just from one of the group's threads.</p>
 **/
 public class ServerConnection implements Runnable
 {
-	private static final int WRITE_NAP_TIME = 10;
-	
-	private ByteBuffer readBuffer;
-	private boolean running;
+	private BufferPool bufferPool;
+	private ReadSize readSize;
+	private LengthFieldFrameDecoder frameDecoder;
+	private FrameBuffer frames;
+	private Compression compression;
+	private volatile CompressionCodec codec;
+	private volatile boolean running;
 	private SocketChannel channel;
-	private Selector readSelector;
-	private Thread readThread;
+	private SelectionKey channelKey;
+	private WaitStrategy waitStrategy;
+	private ClientEventLoopGroup group;
+	private volatile ClientEventLoop loop;
 	private ServerListener sl;
+	private volatile OutboundQueue outbound;
+	private AtomicBoolean flushScheduled;
+	private boolean dirty;
+	private FlushPolicy flushPolicy;
+	private SocketOptions socketOptions;
+	private long readerIdle, writerIdle, allIdle;
+	private IdleMonitor idle;
 	
 	/**
 	** Gets ready to connect to a server, but does not connect to one yet.
@@ -31,7 +51,14 @@ public class ServerConnection implements Runnable
 	**/
 	public ServerConnection()
 	{
-		readBuffer = ByteBuffer.allocateDirect(255);
+		bufferPool = BufferPool.getDefault();
+		readSize = new ReadSize(Server.DEFAULT_READ_BUFFER_INITIAL, Server.DEFAULT_READ_BUFFER_MAXIMUM);
+		waitStrategy = new BlockingWaitStrategy();
+		outbound = new OutboundQueue(null);
+		frames = new FrameBuffer();
+		flushScheduled = new AtomicBoolean();
+		flushPolicy = FlushPolicy.END_OF_LOOP;
+		socketOptions = new SocketOptions();
 	}
 	
 	/**
@@ -74,6 +101,192 @@ public class ServerConnection implements Runnable
 		this.sl = sl;
 	}
 	
+	/**
+	**	Sets how the read thread waits for data from the server. Defaults to a <code>BlockingWaitStrategy</code>;
+	**		see <code>WaitStrategy</code> for the trade-offs. Takes effect on the next call to <code>connect</code>.
+	**		Not used when connected through a <code>ClientEventLoopGroup</code>, whose loops have a wait strategy of their own.
+	**	
+	**	@param waitStrategy How the read thread waits for its selector.
+	**/
+	public void setWaitStrategy(WaitStrategy waitStrategy)
+	{
+		this.waitStrategy = waitStrategy;
+	}
+	
+	/**
+	**	Has the connection share one of the group's threads instead of starting a read thread of its own.
+	**		The listener's callbacks, scheduled tasks and idle timeouts then all run on that thread, which
+	**		also serves the group's other connections, so they shouldn't block. Takes effect on the next call
+	**		to <code>connect</code>.
+	**	
+	**	@param group Group to share, or null for a read thread of its own.
+	**/
+	public void setEventLoopGroup(ClientEventLoopGroup group)
+	{
+		this.group = group;
+	}
+	
+	/**
+	**	@return True between a successful <code>connect</code> and the connection being disconnected, by
+	**		either side.
+	**/
+	public boolean isConnected()
+	{
+		return running;
+	}
+	
+	/**
+	**	Sets the pool read buffers are borrowed from and <code>channelWrite</code> copies into. Defaults to
+	**		<code>BufferPool.getDefault()</code>. Takes effect on the next call to <code>connect</code>.
+	**	
+	**	@param bufferPool Pool of direct buffers for this connection to use.
+	**/
+	public void setBufferPool(BufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	**	@return The pool of direct buffers this connection reads into.
+	**/
+	public BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+	
+	/**
+	**	Sets the sizes of the buffers data from the server is read into. Reads start at <code>initial</code>
+	**		bytes, grow towards <code>maximum</code> while they keep filling the buffer, and shrink back when they
+	**		stop. Takes effect on the next call to <code>connect</code>.
+	**	
+	**	@param initial Size of the first read, and the smallest size ever used.
+	**	@param maximum Largest size reads grow to.
+	**/
+	public void setReadBufferSize(int initial, int maximum)
+	{
+		if (initial < 1 || maximum < initial)
+			throw new IllegalArgumentException("Bad read buffer sizes: initial " + initial + ", maximum " + maximum);
+		
+		readSize = new ReadSize(initial, maximum);
+	}
+	
+	/**
+	**	Has data from the server split into length-prefixed frames before it's handed over. With a decoder
+	**		set, the listener must be a <code>FrameListener</code>; its <code>receiveFrame</code> gets called once
+	**		per complete frame and <code>receiveData</code> isn't called at all. Takes effect on the next call
+	**		to <code>connect</code>.
+	**	
+	**	@param frameDecoder Decoder describing the frame format, or null to receive raw reads.
+	**	
+	**	@see convivial.communism.server.FrameListener
+	**/
+	public void setFrameDecoder(LengthFieldFrameDecoder frameDecoder)
+	{
+		this.frameDecoder = frameDecoder;
+	}
+	
+	/**
+	**	Compresses the frames sent with <code>sendFrame</code>, and has every frame from the server
+	**		decompressed before the listener sees it. The server must have compression set as well (see
+	**		<code>Compression</code>), and so must a frame decoder here. Takes effect on the next call to
+	**		<code>connect</code>.
+	**	
+	**	@param compression Compression settings, or null to send frames as they are.
+	**/
+	public void setCompression(Compression compression)
+	{
+		this.compression = compression;
+	}
+	
+	/**
+	**	Sets when data queued with <code>write</code> gets flushed to the socket. Defaults to
+	**		<code>FlushPolicy.END_OF_LOOP</code>.
+	**	
+	**	@param flushPolicy When to flush written data.
+	**/
+	public void setFlushPolicy(FlushPolicy flushPolicy)
+	{
+		this.flushPolicy = flushPolicy;
+	}
+	
+	/**
+	**	Turns Nagle's algorithm off (true) or on (false). Left at the operating system's default unless
+	**		called. Takes effect on the next call to <code>connect</code>.
+	**	
+	**	@param on True to set TCP_NODELAY on the socket.
+	**/
+	public void setTcpNoDelay(boolean on)
+	{
+		socketOptions.tcpNoDelay = Boolean.valueOf(on);
+	}
+	
+	/**
+	**	Sets SO_SNDBUF. Left at the operating system's default unless called. Takes effect on the next
+	**		call to <code>connect</code>.
+	**	
+	**	@param size Size of the socket's send buffer, in bytes.
+	**/
+	public void setSendBufferSize(int size)
+	{
+		socketOptions.sendBufferSize = Integer.valueOf(size);
+	}
+	
+	/**
+	**	Sets SO_RCVBUF. Left at the operating system's default unless called. Takes effect on the next
+	**		call to <code>connect</code>, before the TCP handshake.
+	**	
+	**	@param size Size of the socket's receive buffer, in bytes.
+	**/
+	public void setReceiveBufferSize(int size)
+	{
+		socketOptions.receiveBufferSize = Integer.valueOf(size);
+	}
+	
+	/**
+	**	Has the listener's <code>idle</code> called when the connection goes quiet: nothing read from the
+	**		server for <code>readerIdle</code>, nothing written to it for <code>writerIdle</code>, or neither for
+	**		<code>allIdle</code>. The listener must be an <code>IdleListener</code>. Off unless called. Takes
+	**		effect on the next call to <code>connect</code>.
+	**	
+	**	@param readerIdle Reader idle timeout, or 0 for none.
+	**	@param writerIdle Writer idle timeout, or 0 for none.
+	**	@param allIdle All idle timeout, or 0 for none.
+	**	@param unit Unit of the three timeouts.
+	**	
+	**	@see convivial.communism.server.IdleListener
+	**/
+	public void setIdleTimeouts(long readerIdle, long writerIdle, long allIdle, TimeUnit unit)
+	{
+		if (readerIdle < 0 || writerIdle < 0 || allIdle < 0)
+			throw new IllegalArgumentException("Idle timeouts can't be negative: " + readerIdle + ", " + writerIdle + ", " + allIdle);
+		
+		this.readerIdle = unit.toNanos(readerIdle);
+		this.writerIdle = unit.toNanos(writerIdle);
+		this.allIdle = unit.toNanos(allIdle);
+	}
+	
+	/**
+	**	Runs a task on the read thread after a delay, so it never runs alongside the listener's callbacks.
+	**		Handy for heartbeats and request timeouts. Safe to call from any thread while connected. Tasks
+	**		run on the first timer tick (every <code>Server.DEFAULT_TIMER_TICK_MILLIS</code>) at or after the delay.
+	**	
+	**	@param task Work to do.
+	**	@param delay How long from now.
+	**	@param unit Unit of the delay.
+	**	
+	**	@return A handle for cancelling the task.
+	**	
+	**	@throws IllegalStateException If not connected.
+	**/
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		ClientEventLoop loop = this.loop;
+		if (loop == null)
+			throw new IllegalStateException("Not connected to any server.");
+		
+		return loop.schedule(task, unit.toNanos(delay));
+	}
+	
 	/**
 	**	Connects to the intended server; does nothing if the <code>ServerConnection</code> is already
 	**		connected to a server. If this class is already connected, it throws an IllegalStateException.
@@ -84,7 +297,9 @@ public class ServerConnection implements Runnable
 	**	
 	**	@throws UnknownHostException If the Internet Address cannot be found.
 	**	@throws IOException If a general I/O error has occured... Could be a lot things.
-	**	@throws IllegalStateException If this <code>ServerConnection</code> is already connected to a server.
+	**	@throws IllegalStateException If this <code>ServerConnection</code> is already connected to a server,
+	**		has a frame decoder but its listener isn't a <code>FrameListener</code>, or has idle timeouts
+	**		but its listener isn't an <code>IdleListener</code>.
 	**	
 	**	@see convivial.communism.server.ServerListener
 	**/
@@ -92,15 +307,36 @@ public class ServerConnection implements Runnable
 	{
 		if (running == true)
 			throw new IllegalStateException("Cannot connect to a new server; already connected to a server. Call disconnect() first.");
+		if (frameDecoder != null && !(sl instanceof FrameListener))
+			throw new IllegalStateException("A frame decoder is set, so the listener must be a FrameListener.");
+		if ((readerIdle > 0 || writerIdle > 0 || allIdle > 0) && !(sl instanceof IdleListener))
+			throw new IllegalStateException("Idle timeouts are set, so the listener must be an IdleListener.");
+		if (compression != null && frameDecoder == null)
+			throw new IllegalStateException("Compression works on frames; set a frame decoder as well.");
 		
-		readSelector = Selector.open();
 		InetAddress addr = InetAddress.getByName(host);
-		channel = SocketChannel.open(new InetSocketAddress(addr, port));
+		channel = SocketChannel.open();
+		socketOptions.apply(channel.socket());
+		channel.connect(new InetSocketAddress(addr, port));
 		channel.configureBlocking(false);
-		channel.register(readSelector, SelectionKey.OP_READ, attachment);
 		
-		readThread = new Thread(this);
-		readThread.start();
+		channelKey = null;
+		dirty = false;
+		outbound = new OutboundQueue(null); // the last connection's queue was failed for good when it closed
+		codec = null;
+		if (compression != null)
+		{
+			codec = new CompressionCodec(compression, bufferPool);
+			outbound.add(codec.hello(frameDecoder), bufferPool.releaser());
+		}
+		if (group != null)
+			loop = group.next();
+		else
+			loop = new ClientEventLoop(waitStrategy);
+		running = true;
+		loop.register(this, channel, attachment);
+		if (group == null)
+			new Thread(this).start();
 	}
 	
 	/**
@@ -109,59 +345,11 @@ public class ServerConnection implements Runnable
 	**/
 	public void run()
 	{
-		if (running)
-			throw new IllegalStateException("Cannot run(); already connected to a server. Call disconnect() first.");
-		
-		running = true;
+		ClientEventLoop loop = this.loop;
+		if (group != null || loop == null || loop.inLoop())
+			throw new IllegalStateException("Cannot run(); only the connection's own read thread runs it.");
 		
-		while (running)
-		{
-			try
-			{
-				readSelector.select();
-				
-				Set<SelectionKey> readyKeys = readSelector.selectedKeys();
-				Iterator<SelectionKey> i = readyKeys.iterator();
-				while (i.hasNext())
-				{
-					SelectionKey key = i.next();
-					i.remove();
-					SocketChannel channel = (SocketChannel) key.channel();
-					readBuffer.clear();
-					
-					long nbytes = 0;
-					try
-					{
-						nbytes = channel.read(readBuffer);
-					}
-					catch (ClosedChannelException cce)
-					{
-						break;
-					}
-					catch (IOException ioe)
-					{
-						key.cancel();
-						disconnect();
-					}
-					
-					if (nbytes == -1)
-						disconnect();
-					else
-					{
-						readBuffer.flip();
-						sl.receiveData(key, channel, nbytes, readBuffer);
-					}
-				}
-			}
-			catch (IOException ioe)
-			{
-				ioe.printStackTrace();
-			}
-			catch (Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
+		loop.run();
 	}
 	
 	/**
@@ -175,62 +363,367 @@ public class ServerConnection implements Runnable
 	**/
 	public void disconnect()
 	{
-		if (!running)
+		if (!close())
 			throw new IllegalStateException("Not connected to any server.");
+	}
+	
+	/**
+	**	Disconnects, like <code>disconnect()</code>, unless already disconnected.
+	**	
+	**	@return False if the connection was already disconnected.
+	**/
+	boolean close()
+	{
+		synchronized (this)
+		{
+			if (!running)
+				return false;
+			running = false;
+		}
 		
 		sl.disconnected();
-		running = false;
+		if (idle != null)
+			idle.stop();
 		try
 		{
 			channel.close();
-			readThread.interrupt();
-			readSelector.close();
 		}
 		catch (IOException ioe)
 		{
 			ioe.printStackTrace();
 		}
+		if (codec != null)
+			codec.end();
+		loop.deregister(this, channel);
+		if (group == null)
+			loop.shutdown();
+		return true;
 	}
 	
 	/**
-	**	Writes out data to the server. This method <i><b>could</b></i>
-	**		take a long while depending on how fast data gets written down the channel
-	**		and how much data there is to write, and the calling thread performs this
-	**		operation. Create a new thread to write out data if this is a problem.
+	**	Queues data to be written to the server and returns immediately. The read thread writes the data
+	**		out as the socket has room for it. Make sure to call flip() on the buffer prior to this method,
+	**		and don't change the buffer afterwards.
+	**	
+	**	@param data Data to send to the server.
+	**/
+	public void send(ByteBuffer data)
+	{
+		send(data, null);
+	}
+	
+	/**
+	**	Queues data to be written to the server and returns immediately. The listener is told on the read
+	**		thread once every byte has been written to the socket, or if the data could never be written.
+	**	
+	**	@param data Data to send to the server, already flipped. Don't touch it until the listener hears about it.
+	**	@param listener Told when the write completes or fails, may be null.
+	**/
+	public void send(ByteBuffer data, WriteListener listener)
+	{
+		if (channel == null || !channel.isOpen())
+		{
+			if (listener != null)
+				listener.writeFailed(channel, data, new ClosedChannelException());
+			return;
+		}
+		
+		outbound.add(data, listener);
+		flush();
+	}
+	
+	/**
+	**	Queues data to be written to the server without necessarily writing it yet. When it actually goes
+	**		out is up to the flush policy (see <code>setFlushPolicy</code>) or an explicit <code>flush</code>;
+	**		in between, everything written gets sent with as few gathering writes as possible.
+	**	
+	**	@param data Data to send to the server, already flipped. Don't change it afterwards.
+	**/
+	public void write(ByteBuffer data)
+	{
+		write(data, null);
+	}
+	
+	/**
+	**	Queues data to be written to the server without necessarily writing it yet, like
+	**		<code>write(ByteBuffer)</code>, and tells the listener once it has been written or has failed.
+	**	
+	**	@param data Data to send to the server, already flipped. Don't touch it until the listener hears about it.
+	**	@param listener Told when the write completes or fails, may be null.
+	**/
+	public void write(ByteBuffer data, WriteListener listener)
+	{
+		if (channel == null || !channel.isOpen())
+		{
+			if (listener != null)
+				listener.writeFailed(channel, data, new ClosedChannelException());
+			return;
+		}
+		
+		outbound.add(data, listener);
+		if (flushPolicy.overThreshold(outbound.getPendingBytes()))
+			flush();
+		else if (flushPolicy.flushesAtEndOfLoop())
+		{
+			ClientEventLoop loop = this.loop;
+			if (loop.inLoop())
+			{
+				if (!dirty)
+				{
+					dirty = true;
+					loop.markDirty(this);
+				}
+			}
+			else
+				flush();
+		}
+	}
+	
+	/**
+	**	Gets everything queued written out to the server as soon as the socket allows, whatever the
+	**		flush policy. Returns immediately.
+	**/
+	public void flush()
+	{
+		ClientEventLoop loop = this.loop;
+		if (loop == null)
+			return;
+		
+		if (loop.inLoop())
+			flushNow();
+		else if (flushScheduled.compareAndSet(false, true))
+		{
+			loop.execute(new Runnable()
+			{
+				public void run()
+				{
+					flushScheduled.set(false);
+					flushNow();
+				}
+			});
+		}
+	}
+	
+	/**
+	**	Sends a message to the server as one frame: the frame decoder's header, then the message,
+	**		compressed if compression is set and the message is worth compressing. The frame is built in a
+	**		pooled buffer, so the message can be reused as soon as this returns.
+	**	
+	**	@param body The message, already flipped. Its position is left where it was.
+	**	
+	**	@throws IllegalStateException If there's no frame decoder.
+	**/
+	public void sendFrame(ByteBuffer body)
+	{
+		LengthFieldFrameDecoder decoder = frameDecoder;
+		if (decoder == null)
+			throw new IllegalStateException("Cannot send a frame; there's no frame decoder.");
+		
+		CompressionCodec codec = this.codec;
+		if (codec == null)
+			send(decoder.encode(bufferPool, body), bufferPool.releaser());
+		else
+			send(codec.encode(decoder, body), bufferPool.releaser());
+	}
+	
+	/**
+	**	Writes out data to the server. The data is copied into a pooled buffer and queued with <code>send</code>, so this
+	**		method returns right away and the buffer can be reused as soon as it does. Use <code>send</code>
+	**		directly to avoid the copy.
 	**	
 	**	@param writeBuffer Data to send to the server. Make sure to call flip(); on the buffer prior to this method.
 	**/
 	public void channelWrite(ByteBuffer writeBuffer)
 	{
-		long nbytes = 0;
-		long toWrite = writeBuffer.remaining();
+		ByteBuffer copy = bufferPool.acquire(writeBuffer.remaining());
+		copy.put(writeBuffer);
+		copy.flip();
+		send(copy, bufferPool.releaser());
 		
+		writeBuffer.rewind();
+	}
+	
+	/**
+	**	Reads whatever the server has sent and hands it to the listener. Called by the loop's thread.
+	**	
+	**	@param key The channel's key, ready for reading.
+	**/
+	void read(SelectionKey key)
+	{
+		LengthFieldFrameDecoder decoder = frameDecoder;
+		ByteBuffer readBuffer;
+		if (decoder == null)
+			readBuffer = bufferPool.acquire(readSize.next());
+		else
+			readBuffer = frames.readBuffer(bufferPool, readSize.next());
+		
+		boolean kept = false;
 		try
 		{
-			while (nbytes != toWrite)
+			int room = readBuffer.remaining();
+			long nbytes = 0;
+			try
+			{
+				nbytes = channel.read(readBuffer);
+			}
+			catch (ClosedChannelException cce)
+			{
+				return;
+			}
+			catch (IOException ioe)
 			{
-				nbytes += channel.write(writeBuffer);
+				key.cancel();
+				close();
+				return;
 			}
 			
-			try
+			if (nbytes == -1)
 			{
-				Thread.sleep(WRITE_NAP_TIME);
+				close();
+				return;
 			}
-			catch (InterruptedException ie)
+			
+			readSize.record(nbytes, room);
+			if (idle != null)
+				idle.read();
+			readBuffer.flip();
+			if (decoder == null)
+				sl.receiveData(key, channel, nbytes, readBuffer);
+			else
 			{
-				
+				FrameListener fl = (FrameListener) sl;
+				ByteBuffer frame;
+				while (running && (frame = decoder.nextFrame(readBuffer)) != null)
+					receiveFrame(fl, key, decoder, frame);
+				if (running)
+				{
+					kept = true;
+					frames.keep(readBuffer, decoder, bufferPool);
+				}
 			}
 		}
-		catch (ClosedChannelException cce)
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+			close();
+		}
+		finally
 		{
-			cce.printStackTrace();
+			if (!kept)
+				bufferPool.release(readBuffer);
 		}
-		catch (Exception e)
+	}
+	
+	private void receiveFrame(FrameListener fl, SelectionKey key, LengthFieldFrameDecoder decoder, ByteBuffer frame) throws IOException
+	{
+		CompressionCodec codec = this.codec;
+		if (codec == null)
 		{
-			e.printStackTrace();
+			fl.receiveFrame(key, channel, frame);
+			return;
 		}
 		
-		writeBuffer.rewind();
+		frame = codec.decode(frame, decoder.getMaxFrameLength());
+		if (frame == null)
+			return;
+		try
+		{
+			fl.receiveFrame(key, channel, frame);
+		}
+		finally
+		{
+			codec.recycle();
+		}
+	}
+	
+	/**
+	**	Writes out as much queued data as the socket takes. Called by the loop's thread.
+	**/
+	void flushNow()
+	{
+		if (channelKey == null)
+			return;
+		if (!channelKey.isValid())
+		{
+			outbound.fail(channel, new ClosedChannelException());
+			return;
+		}
+		
+		try
+		{
+			long before = outbound.getBytesWritten();
+			if (outbound.flush(channel, loop.getGather()))
+				channelKey.interestOps(channelKey.interestOps() & ~SelectionKey.OP_WRITE);
+			else
+				channelKey.interestOps(channelKey.interestOps() | SelectionKey.OP_WRITE);
+			if (idle != null && outbound.getBytesWritten() != before)
+				idle.wrote();
+		}
+		catch (IOException ioe)
+		{
+			channelKey.cancel();
+			close();
+		}
+	}
+	
+	private void startIdleMonitor()
+	{
+		idle = null;
+		if (readerIdle == 0 && writerIdle == 0 && allIdle == 0)
+			return;
+		
+		final IdleListener listener = (IdleListener) sl;
+		idle = new IdleMonitor(readerIdle, writerIdle, allIdle)
+		{
+			Timeout schedule(Runnable task, long delayNanos)
+			{
+				return loop.schedule(task, delayNanos);
+			}
+			
+			void idle(IdleState state)
+			{
+				if (running)
+					listener.idle(state);
+			}
+		};
+		idle.start();
+	}
+	
+	/**
+	**	Called on the loop's thread once the channel is registered with the loop's Selector.
+	**	
+	**	@param key The channel's key.
+	**/
+	void registered(SelectionKey key)
+	{
+		channelKey = key;
+		if (!running)
+		{
+			key.cancel();
+			return;
+		}
+		
+		startIdleMonitor();
+		if (!outbound.isEmpty())
+			flushNow();
+	}
+	
+	/**
+	**	Called on the loop's thread once the connection is off the loop, to fail whatever was never
+	**		written and give back the buffers it held.
+	**/
+	void deregistered()
+	{
+		outbound.fail(channel, new ClosedChannelException());
+		frames.release(bufferPool);
+	}
+	
+	/**
+	**	Forgets that the connection has unflushed writes, as the loop is about to flush it.
+	**/
+	void clearDirty()
+	{
+		dirty = false;
 	}
 }
 
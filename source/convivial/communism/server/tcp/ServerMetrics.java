@@ -0,0 +1,246 @@
+package convivial.communism.server.tcp;
+
+import java.io.PrintStream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+**	Running totals and timings for one Server: clients accepted and closed, socket reads and writes and
+**		the bytes they moved, frames decoded, messages handled, how long event loop passes and handler
+**		calls take, and how much is queued up. Counters are <code>LongAdder</code>s, which spread
+**		concurrent updates across cells instead of fighting over one, so every loop can count every read
+**		without slowing the others down. Queue depths aren't counted as they change; they're added up from
+**		the clients when asked for.
+**	
+**	<p>The Server registers its metrics as a JMX MBean (see <code>ServerMetricsMBean</code>) and prints them
+**		with <code>printStats()</code>.</p>
+**/
+public class ServerMetrics implements ServerMetricsMBean
+{
+	private ConnectionRegistry connections;
+	private LongAdder accepted, closed, evictions;
+	private LongAdder readCalls, bytesRead, writeCalls, bytesWritten;
+	private LongAdder framesDecoded, messagesHandled;
+	private Histogram loopTime, handlerTime;
+	private long lastReportTime;
+	private long[] lastReport;
+	
+	ServerMetrics(ConnectionRegistry connections)
+	{
+		this.connections = connections;
+		accepted = new LongAdder();
+		closed = new LongAdder();
+		evictions = new LongAdder();
+		readCalls = new LongAdder();
+		bytesRead = new LongAdder();
+		writeCalls = new LongAdder();
+		bytesWritten = new LongAdder();
+		framesDecoded = new LongAdder();
+		messagesHandled = new LongAdder();
+		loopTime = new Histogram();
+		handlerTime = new Histogram();
+		lastReportTime = System.nanoTime();
+		lastReport = new long[5];
+	}
+	
+	void accepted()
+	{
+		accepted.increment();
+	}
+	
+	void closed()
+	{
+		closed.increment();
+	}
+	
+	void evicted()
+	{
+		evictions.increment();
+	}
+	
+	void read(long bytes)
+	{
+		readCalls.increment();
+		if (bytes > 0)
+			bytesRead.add(bytes);
+	}
+	
+	void wrote(long bytes)
+	{
+		writeCalls.increment();
+		bytesWritten.add(bytes);
+	}
+	
+	void frameDecoded()
+	{
+		framesDecoded.increment();
+	}
+	
+	void handled(long nanos)
+	{
+		messagesHandled.increment();
+		handlerTime.record(nanos);
+	}
+	
+	void loopPass(long nanos)
+	{
+		loopTime.record(nanos);
+	}
+	
+	/**
+	**	@return Time event loops spend on each pass, not counting waiting, in nanoseconds.
+	**/
+	public Histogram getLoopTime()
+	{
+		return loopTime;
+	}
+	
+	/**
+	**	@return Time spent in each <code>receiveData</code> or <code>receiveFrame</code> call, in nanoseconds.
+	**/
+	public Histogram getHandlerTime()
+	{
+		return handlerTime;
+	}
+	
+	public int getConnections()
+	{
+		return connections.size();
+	}
+	
+	public long getAccepted()
+	{
+		return accepted.sum();
+	}
+	
+	public long getClosed()
+	{
+		return closed.sum();
+	}
+	
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+	
+	public long getReadCalls()
+	{
+		return readCalls.sum();
+	}
+	
+	public long getBytesRead()
+	{
+		return bytesRead.sum();
+	}
+	
+	public long getWriteCalls()
+	{
+		return writeCalls.sum();
+	}
+	
+	public long getBytesWritten()
+	{
+		return bytesWritten.sum();
+	}
+	
+	public long getFramesDecoded()
+	{
+		return framesDecoded.sum();
+	}
+	
+	public long getMessagesHandled()
+	{
+		return messagesHandled.sum();
+	}
+	
+	public long getOutboundQueuedBytes()
+	{
+		long total = 0;
+		for (Connection connection : connections.connections())
+			total += connection.outbound.getPendingBytes();
+		return total;
+	}
+	
+	public long getMaxOutboundQueuedBytes()
+	{
+		long most = 0;
+		for (Connection connection : connections.connections())
+			most = Math.max(most, connection.outbound.getPendingBytes());
+		return most;
+	}
+	
+	public long getHandlerQueuedMessages()
+	{
+		long total = 0;
+		for (Connection connection : connections.connections())
+		{
+			if (connection.handlers != null)
+				total += connection.handlers.getSize();
+		}
+		return total;
+	}
+	
+	public double getLoopTimeMeanMicros()
+	{
+		return loopTime.getMean() / 1000;
+	}
+	
+	public double getLoopTimeP99Micros()
+	{
+		return loopTime.getValueAtPercentile(99) / 1000.0;
+	}
+	
+	public double getHandlerTimeMeanMicros()
+	{
+		return handlerTime.getMean() / 1000;
+	}
+	
+	public double getHandlerTimeP99Micros()
+	{
+		return handlerTime.getValueAtPercentile(99) / 1000.0;
+	}
+	
+	public double getHandlerTimeMaxMicros()
+	{
+		return handlerTime.getMax() / 1000.0;
+	}
+	
+	/**
+	**	Prints every metric, with rates worked out over the time since the last report (or since the
+	**		server started).
+	**	
+	**	@param out Stream to print to, like <code>System.out</code>.
+	**/
+	public synchronized void report(PrintStream out)
+	{
+		long now = System.nanoTime();
+		double seconds = Math.max((now - lastReportTime) / (double) TimeUnit.SECONDS.toNanos(1), 0.001);
+		long[] current = { getAccepted(), getBytesRead(), getBytesWritten(), getMessagesHandled(), getReadCalls() };
+		double[] rates = new double[current.length];
+		for (int i = 0; i < current.length; ++i)
+			rates[i] = (current[i] - lastReport[i]) / seconds;
+		lastReport = current;
+		lastReportTime = now;
+		
+		out.println(String.format("Clients:   %d connected, %d accepted (%.1f/s), %d closed, %d evicted",
+			getConnections(), current[0], rates[0], getClosed(), getEvictions()));
+		out.println(String.format("Reads:     %d calls (%.1f/s), %d bytes (%.1f/s)",
+			current[4], rates[4], current[1], rates[1]));
+		out.println(String.format("Writes:    %d calls, %d bytes (%.1f/s)",
+			getWriteCalls(), current[2], rates[2]));
+		out.println(String.format("Messages:  %d handled (%.1f/s), %d frames decoded",
+			current[3], rates[3], getFramesDecoded()));
+		out.println(String.format("Queued:    %d bytes outbound (at most %d for one client), %d messages for handlers",
+			getOutboundQueuedBytes(), getMaxOutboundQueuedBytes(), getHandlerQueuedMessages()));
+		printTimes(out, "Loop pass", loopTime);
+		printTimes(out, "Handler", handlerTime);
+	}
+	
+	private static void printTimes(PrintStream out, String name, Histogram times)
+	{
+		out.println(String.format("%-10s mean %.1fus, p50 %.1fus, p99 %.1fus, p99.9 %.1fus, max %.1fus (%d samples)",
+			name + ":", times.getMean() / 1000, times.getValueAtPercentile(50) / 1000.0, times.getValueAtPercentile(99) / 1000.0,
+			times.getValueAtPercentile(99.9) / 1000.0, times.getMax() / 1000.0, times.getCount()));
+	}
+}
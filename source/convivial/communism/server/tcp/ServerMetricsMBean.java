@@ -0,0 +1,46 @@
+package convivial.communism.server.tcp;
+
+/**
+**	What a Server's <code>ServerMetrics</code> shows through JMX, under
+**		<code>convivial.communism.server:type=Server,name=</code><i>address:port</i>, for jconsole,
+**		VisualVM or any other JMX client. Times are in microseconds.
+**/
+public interface ServerMetricsMBean
+{
+	/** @return Clients connected right now. **/
+	public int getConnections();
+	/** @return Clients accepted since the server started. **/
+	public long getAccepted();
+	/** @return Clients disconnected since the server started. **/
+	public long getClosed();
+	/** @return Clients disconnected for being slow consumers. **/
+	public long getEvictions();
+	/** @return Socket reads made. **/
+	public long getReadCalls();
+	/** @return Bytes read from clients. **/
+	public long getBytesRead();
+	/** @return Socket writes made. **/
+	public long getWriteCalls();
+	/** @return Bytes written to clients. **/
+	public long getBytesWritten();
+	/** @return Frames split out by the frame decoder. **/
+	public long getFramesDecoded();
+	/** @return Calls made to <code>receiveData</code> and <code>receiveFrame</code>. **/
+	public long getMessagesHandled();
+	/** @return Bytes waiting to be written, across every client. **/
+	public long getOutboundQueuedBytes();
+	/** @return Most bytes waiting to be written to any one client. **/
+	public long getMaxOutboundQueuedBytes();
+	/** @return Messages waiting for the handler pool, across every client. **/
+	public long getHandlerQueuedMessages();
+	/** @return Mean time an event loop spends on one pass, not counting waiting. **/
+	public double getLoopTimeMeanMicros();
+	/** @return 99th percentile of the time an event loop spends on one pass, not counting waiting. **/
+	public double getLoopTimeP99Micros();
+	/** @return Mean time spent in one <code>receiveData</code> or <code>receiveFrame</code> call. **/
+	public double getHandlerTimeMeanMicros();
+	/** @return 99th percentile of the time spent in one <code>receiveData</code> or <code>receiveFrame</code> call. **/
+	public double getHandlerTimeP99Micros();
+	/** @return Longest time spent in one <code>receiveData</code> or <code>receiveFrame</code> call. **/
+	public double getHandlerTimeMaxMicros();
+}
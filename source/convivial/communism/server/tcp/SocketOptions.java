@@ -0,0 +1,32 @@
+package convivial.communism.server.tcp;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+**	Socket options to set on every connection, each left at the operating system's default until
+**		someone asks for something else.
+**/
+class SocketOptions
+{
+	Boolean tcpNoDelay;
+	Integer sendBufferSize;
+	Integer receiveBufferSize;
+	
+	/**
+	**	Sets every option that has been asked for on the socket.
+	**	
+	**	@param socket Socket to configure.
+	**	
+	**	@throws SocketException If the operating system refuses one of them.
+	**/
+	void apply(Socket socket) throws SocketException
+	{
+		if (tcpNoDelay != null)
+			socket.setTcpNoDelay(tcpNoDelay.booleanValue());
+		if (sendBufferSize != null)
+			socket.setSendBufferSize(sendBufferSize.intValue());
+		if (receiveBufferSize != null)
+			socket.setReceiveBufferSize(receiveBufferSize.intValue());
+	}
+}
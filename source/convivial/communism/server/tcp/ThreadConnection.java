@@ -0,0 +1,302 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+**	A client serviced by threads of its own instead of an event loop, for
+**		<code>ExecutionMode.THREAD_PER_CONNECTION</code>. A reader thread does blocking reads and makes every
+**		callback for the client, from <code>newClient</code> through <code>disconnection</code>. Queued writes
+**		are drained by a writer thread that lives as long as the connection and parks whenever there's
+**		nothing to flush, so a caller never blocks on a slow client. Both are virtual threads where the
+**		runtime has them.
+**	
+**	<p>The writer thread is also the connection's serial executor: everything other threads hand over
+**		through <code>execute</code> (writability changes, read pauses) and every timer for the client, like
+**		its idle timeouts, runs there one task at a time, in the order it was handed over. No lock is held
+**		while a task runs, so a task may block or send to other clients; it holds up the client's writes
+**		while it does, but never its reads.</p>
+**	
+**	<p>Pausing reads just parks the reader thread before its next read until every reason to pause is
+**		gone; the blocking socket then pushes back on the client the same way a cleared OP_READ does.</p>
+**	
+**	<p>Only the writer thread ever flushes the outbound queue, and it fails whatever is left once the
+**		reader has finished with the client, so a write is never reported twice.</p>
+**/
+class ThreadConnection extends Connection implements Runnable
+{
+	private Server server;
+	private ByteBuffer[] gather;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private volatile Thread writer;
+	private volatile boolean finished;
+	
+	ThreadConnection(Server server, SocketChannel channel, Object attachment, ReadSize readSize)
+	{
+		super(channel, null, readSize, server.getMetrics());
+		this.server = server;
+		key = new DetachedKey(channel, attachment);
+		gather = new ByteBuffer[OutboundQueue.GATHER_LIMIT];
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+	
+	/**
+	**	Starts the writer thread, then the reader thread.
+	**/
+	void start()
+	{
+		String address = String.valueOf(channel.socket().getRemoteSocketAddress());
+		VirtualThreads.start(new Runnable()
+		{
+			public void run()
+			{
+				write();
+			}
+		}, "Writer-" + address);
+		VirtualThreads.start(this, "Client-" + address);
+	}
+	
+	void flushSoon()
+	{
+		if (flushScheduled.compareAndSet(false, true))
+			wakeWriter();
+	}
+	
+	void written(FlushPolicy policy)
+	{
+		if (policy.flushesAtEndOfLoop() || policy.overThreshold(outbound.getPendingBytes()))
+			flushSoon();
+	}
+	
+	/**
+	**	Runs the task on the writer thread: right away when called there, otherwise queued behind
+	**		anything handed over before it.
+	**/
+	void execute(Runnable task)
+	{
+		if (Thread.currentThread() == writer)
+			task.run();
+		else
+		{
+			tasks.add(task);
+			wakeWriter();
+		}
+	}
+	
+	void executeLater(Runnable task)
+	{
+		tasks.add(task);
+		wakeWriter();
+	}
+	
+	Timeout schedule(final Runnable task, long delayNanos)
+	{
+		return server.getTimer().schedule(new Runnable()
+		{
+			public void run()
+			{
+				execute(task);
+			}
+		}, delayNanos);
+	}
+	
+	synchronized void setReadPaused(int reason, boolean paused)
+	{
+		readPauses = paused ? readPauses | reason : readPauses & ~reason;
+		notifyAll();
+	}
+	
+	/**
+	**	Closes the channel, which knocks the reader thread out of its blocking read (or its pause); it
+	**		then makes the disconnection callback.
+	**/
+	void close()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+		synchronized (this)
+		{
+			notifyAll();
+		}
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; automatically invoked by the reader thread.
+	**/
+	public void run()
+	{
+		BufferPool pool = server.getBufferPool();
+		LengthFieldFrameDecoder decoder = server.getFrameDecoder();
+		try
+		{
+			server.startIdleMonitor(this);
+			server.connected(this);
+			while (awaitReads())
+			{
+				ByteBuffer readBuffer;
+				if (decoder == null)
+					readBuffer = pool.acquire(readSize.next());
+				else
+					readBuffer = frames.readBuffer(pool, readSize.next());
+				
+				boolean kept = false;
+				try
+				{
+					int room = readBuffer.remaining();
+					long bytesRead = channel.read(readBuffer);
+					if (bytesRead == -1)
+						break;
+					
+					server.getMetrics().read(bytesRead);
+					readSize.record(bytesRead, room);
+					if (idle != null)
+						idle.read();
+					readBuffer.flip();
+					if (decoder == null)
+						server.dispatchData(key, channel, bytesRead, readBuffer);
+					else
+					{
+						ByteBuffer frame;
+						while (channel.isOpen() && (frame = decoder.nextFrame(readBuffer)) != null)
+						{
+							server.getMetrics().frameDecoded();
+							server.dispatchFrame(key, this, frame);
+						}
+						if (channel.isOpen())
+						{
+							kept = true;
+							frames.keep(readBuffer, decoder, pool);
+						}
+					}
+				}
+				finally
+				{
+					if (!kept)
+						pool.release(readBuffer);
+				}
+			}
+		}
+		catch (FrameTooLongException ftle)
+		{
+			ftle.printStackTrace();
+		}
+		catch (IOException ioe)
+		{
+			// closed from another thread, or the client went away
+		}
+		catch (RuntimeException re)
+		{
+			// thrown by a callback; the client is dropped, but cleaned up like any other
+			re.printStackTrace();
+		}
+		finally
+		{
+			close();
+			if (idle != null)
+				idle.stop();
+			server.removeConnection(channel);
+			finished = true; // the writer is the only thread allowed to empty the queue; it fails what's left and stops
+			wakeWriter();
+			frames.release(pool);
+			if (codec != null)
+				codec.end();
+			server.disconnection(channel);
+		}
+	}
+	
+	private synchronized boolean awaitReads()
+	{
+		while (readPauses != 0 && channel.isOpen())
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ie)
+			{
+				return false;
+			}
+		}
+		return channel.isOpen();
+	}
+	
+	/**
+	**	Runs on the writer thread for the life of the connection, running handed over tasks and flushing
+	**		whenever asked to, and parking in between.
+	**/
+	private void write()
+	{
+		writer = Thread.currentThread(); // before the first look at the flags, so no wakeup is missed
+		while (true)
+		{
+			runTasks();
+			if (flushScheduled.compareAndSet(true, false))
+				drain();
+			if (finished)
+			{
+				runTasks();
+				outbound.fail(channel, new ClosedChannelException());
+				return;
+			}
+			if (!flushScheduled.get() && tasks.isEmpty())
+				LockSupport.park(this);
+		}
+	}
+	
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void wakeWriter()
+	{
+		Thread thread = writer;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+	
+	private void drain()
+	{
+		try
+		{
+			long before = outbound.getBytesWritten();
+			outbound.flush(channel, gather);
+			if (idle != null && outbound.getBytesWritten() != before)
+				idle.wrote();
+			server.drained(this);
+		}
+		catch (IOException ioe)
+		{
+			outbound.fail(channel, ioe);
+			close();
+		}
+		catch (RuntimeException re)
+		{
+			// thrown by a callback; the writer has to outlive it to fail what's left at the end
+			re.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package convivial.communism.server.tcp;
+
+/**
+**	A handle on a task scheduled to run later, returned by the <code>schedule</code> methods of Server
+**		and ServerConnection.
+**/
+public interface Timeout
+{
+	/**
+	**	Stops the task from running, if it hasn't already. Safe to call from any thread.
+	**	
+	**	@return True if this call cancelled it, false if it had already run or been cancelled.
+	**/
+	public boolean cancel();
+	
+	/**
+	**	@return True if the task has been cancelled.
+	**/
+	public boolean isCancelled();
+	
+	/**
+	**	@return True if the task's time has come and it has run (or is running).
+	**/
+	public boolean isExpired();
+}
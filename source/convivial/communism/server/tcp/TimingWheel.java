@@ -0,0 +1,256 @@
+package convivial.communism.server.tcp;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+**	A hashed timing wheel: a ring of buckets, one per tick, with each scheduled task filed in the bucket
+**		its deadline falls in. Scheduling and cancelling are constant time however many tasks there are,
+**		and each tick only looks at one bucket, so a loop can keep several timers per connection for a
+**		million connections without a thread or a heap entry per timer. The price is resolution: a task
+**		runs on the first tick at or after its deadline, never before it.
+**	
+**	<p>The wheel is driven by a single owner thread (an event loop, usually) calling <code>expire</code>;
+**		tasks run on that thread. Any thread may schedule or cancel. Those go through queues the owner
+**		drains on its next <code>expire</code>, so the buckets themselves are only ever touched by the owner.</p>
+**/
+class TimingWheel
+{
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+	
+	private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE = AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+	
+	private long tickNanos;
+	private long startTime;
+	private Bucket[] buckets;
+	private int mask;
+	private long tick;
+	private int count;
+	private ConcurrentLinkedQueue<WheelTimeout> scheduled;
+	private ConcurrentLinkedQueue<WheelTimeout> cancelled;
+	
+	/**
+	**	@param tickNanos Length of one tick, the wheel's resolution, in nanoseconds.
+	**	@param wheelSize Number of buckets; rounded up to a power of two.
+	**/
+	TimingWheel(long tickNanos, int wheelSize)
+	{
+		if (tickNanos < 1 || wheelSize < 1)
+			throw new IllegalArgumentException("Bad timing wheel: tick " + tickNanos + "ns, " + wheelSize + " buckets");
+		
+		this.tickNanos = tickNanos;
+		int size = Integer.highestOneBit(wheelSize - 1) << 1;
+		if (size < wheelSize)
+			size = wheelSize;
+		buckets = new Bucket[size];
+		for (int i = 0; i < size; ++i)
+			buckets[i] = new Bucket();
+		mask = size - 1;
+		startTime = System.nanoTime();
+		scheduled = new ConcurrentLinkedQueue<WheelTimeout>();
+		cancelled = new ConcurrentLinkedQueue<WheelTimeout>();
+	}
+	
+	/**
+	**	Schedules a task to run on the owner thread after a delay. Safe to call from any thread, but the
+	**		owner only notices on its next <code>expire</code>, so wake it up if it might be asleep.
+	**	
+	**	@param task Work to do.
+	**	@param delayNanos How long from now, in nanoseconds.
+	**	
+	**	@return A handle for cancelling the task.
+	**/
+	Timeout schedule(Runnable task, long delayNanos)
+	{
+		WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() + Math.max(delayNanos, 0));
+		scheduled.add(timeout);
+		return timeout;
+	}
+	
+	/**
+	**	Runs every task whose deadline has passed. Owner thread only.
+	**	
+	**	@param now The current <code>System.nanoTime()</code>.
+	**	
+	**	@return Number of tasks run.
+	**/
+	int expire(long now)
+	{
+		long target = (now - startTime) / tickNanos;
+		if (count == 0 && tick < target)
+			tick = target; // nothing filed; skip the empty ticks instead of walking through them
+		
+		transferScheduled();
+		removeCancelled();
+		
+		int run = 0;
+		long last = Math.min(target, tick + mask);
+		for (long t = tick; t <= last; ++t)
+			run += buckets[(int) (t & mask)].expire(target);
+		if (target >= tick)
+			tick = target + 1;
+		return run;
+	}
+	
+	/**
+	**	Tells the owner how long it may sleep before the next call to <code>expire</code>.
+	**	
+	**	@param now The current <code>System.nanoTime()</code>.
+	**	
+	**	@return Nanoseconds until the next tick is due, 0 if it's due already, or -1 if nothing is scheduled.
+	**/
+	long nextTickDelay(long now)
+	{
+		if (count == 0 && scheduled.isEmpty())
+			return -1;
+		return Math.max(startTime + tick * tickNanos - now, 0);
+	}
+	
+	/**
+	**	Converts <code>nextTickDelay</code> into a timeout for <code>Selector.select(long)</code>.
+	**	
+	**	@param now The current <code>System.nanoTime()</code>.
+	**	
+	**	@return Milliseconds the owner may block for, at least 1, or 0 to block until woken up.
+	**/
+	long selectTimeout(long now)
+	{
+		long delay = nextTickDelay(now);
+		if (delay < 0)
+			return 0;
+		return Math.max((delay + 999999) / 1000000, 1);
+	}
+	
+	private void transferScheduled()
+	{
+		WheelTimeout timeout;
+		while ((timeout = scheduled.poll()) != null)
+		{
+			if (timeout.state != PENDING)
+				continue;
+			
+			long ticks = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+			timeout.deadlineTick = Math.max(ticks, tick);
+			buckets[(int) (timeout.deadlineTick & mask)].add(timeout);
+			++count;
+		}
+	}
+	
+	private void removeCancelled()
+	{
+		WheelTimeout timeout;
+		while ((timeout = cancelled.poll()) != null)
+		{
+			if (timeout.bucket != null)
+			{
+				timeout.bucket.remove(timeout);
+				--count;
+			}
+		}
+	}
+	
+	private class WheelTimeout implements Timeout
+	{
+		Runnable task;
+		long deadline;
+		long deadlineTick;
+		volatile int state;
+		Bucket bucket;
+		WheelTimeout prev, next;
+		
+		WheelTimeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		public boolean cancel()
+		{
+			if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+				return false;
+			cancelled.add(this);
+			return true;
+		}
+		
+		public boolean isCancelled()
+		{
+			return state == CANCELLED;
+		}
+		
+		public boolean isExpired()
+		{
+			return state == EXPIRED;
+		}
+	}
+	
+	/**
+	**	A doubly linked list of the tasks filed under one slot of the wheel, so any of them can be
+	**		unlinked in constant time.
+	**/
+	private class Bucket
+	{
+		private WheelTimeout head, tail;
+		
+		void add(WheelTimeout timeout)
+		{
+			timeout.bucket = this;
+			timeout.prev = tail;
+			timeout.next = null;
+			if (tail == null)
+				head = timeout;
+			else
+				tail.next = timeout;
+			tail = timeout;
+		}
+		
+		void remove(WheelTimeout timeout)
+		{
+			if (timeout.prev == null)
+				head = timeout.next;
+			else
+				timeout.prev.next = timeout.next;
+			if (timeout.next == null)
+				tail = timeout.prev;
+			else
+				timeout.next.prev = timeout.prev;
+			timeout.bucket = null;
+			timeout.prev = null;
+			timeout.next = null;
+		}
+		
+		/**
+		**	Runs and unlinks every task in the bucket due by the tick given; tasks a whole turn of the wheel
+		**		or more away stay where they are.
+		**/
+		int expire(long uptoTick)
+		{
+			int run = 0;
+			WheelTimeout timeout = head;
+			while (timeout != null)
+			{
+				WheelTimeout next = timeout.next;
+				if (timeout.deadlineTick <= uptoTick)
+				{
+					remove(timeout);
+					--count;
+					if (STATE.compareAndSet(timeout, PENDING, EXPIRED))
+					{
+						++run;
+						try
+						{
+							timeout.task.run();
+						}
+						catch (Exception e)
+						{
+							e.printStackTrace();
+						}
+					}
+				}
+				timeout = next;
+			}
+			return run;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package convivial.communism.server.tcp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+**	Which clients are subscribed to which topics, for <code>Server.publish</code>. Topics are names made of
+**		segments split by dots, like <code>room.lobby</code>. A subscription may use <code>*</code> for any one
+**		segment (<code>room.*</code>) and end in <code>#</code> for any number of segments, none included
+**		(<code>room.#</code> matches <code>room</code>, <code>room.lobby</code> and <code>room.lobby.ops</code>).
+**	
+**	<p>Subscriptions are kept in a trie with one node per segment, each holding the clients subscribed right
+**		there. Finding a topic's subscribers walks one path per matching wildcard, so it costs time in
+**		proportion to the number of segments and subscribers, however many clients and topics there are.
+**		Lookups take no locks and may run on any number of threads at once; subscribing and unsubscribing
+**		are serialized with each other, and a lookup running alongside one sees either the old or the new
+**		subscriptions.</p>
+**/
+class TopicIndex
+{
+	/** Matches any one segment of a topic. **/
+	static final String ANY_SEGMENT = "*";
+	/** Matches the rest of a topic, however many segments that is. **/
+	static final String ANY_SEGMENTS = "#";
+	
+	private static class Node
+	{
+		final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+		final Set<Connection> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+		
+		boolean isEmpty()
+		{
+			return children.isEmpty() && subscribers.isEmpty();
+		}
+	}
+	
+	private Node root;
+	private ConcurrentHashMap<Connection, Set<String>> byConnection;
+	private Object writeLock;
+	
+	TopicIndex()
+	{
+		root = new Node();
+		byConnection = new ConcurrentHashMap<Connection, Set<String>>();
+		writeLock = new Object();
+	}
+	
+	/**
+	**	@param connection Client to subscribe.
+	**	@param pattern Topic, with or without wildcards.
+	**	
+	**	@return True if the client wasn't already subscribed to the pattern.
+	**/
+	boolean subscribe(Connection connection, String pattern)
+	{
+		String[] segments = split(pattern, true);
+		synchronized (writeLock)
+		{
+			Node node = root;
+			for (String segment : segments)
+			{
+				Node child = node.children.get(segment);
+				if (child == null)
+				{
+					child = new Node();
+					node.children.put(segment, child);
+				}
+				node = child;
+			}
+			if (!node.subscribers.add(connection))
+				return false;
+			
+			Set<String> patterns = byConnection.get(connection);
+			if (patterns == null)
+			{
+				patterns = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				byConnection.put(connection, patterns);
+			}
+			patterns.add(pattern);
+			return true;
+		}
+	}
+	
+	/**
+	**	@param connection Client to unsubscribe.
+	**	@param pattern Pattern exactly as it was subscribed to.
+	**	
+	**	@return True if the client was subscribed to the pattern.
+	**/
+	boolean unsubscribe(Connection connection, String pattern)
+	{
+		String[] segments = split(pattern, true);
+		synchronized (writeLock)
+		{
+			if (!remove(root, segments, 0, connection))
+				return false;
+			
+			Set<String> patterns = byConnection.get(connection);
+			if (patterns != null)
+			{
+				patterns.remove(pattern);
+				if (patterns.isEmpty())
+					byConnection.remove(connection);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	**	Drops every subscription the client has, for when it disconnects.
+	**	
+	**	@param connection Client to forget.
+	**/
+	void unsubscribeAll(Connection connection)
+	{
+		synchronized (writeLock)
+		{
+			Set<String> patterns = byConnection.remove(connection);
+			if (patterns == null)
+				return;
+			for (String pattern : patterns)
+				remove(root, split(pattern, true), 0, connection);
+		}
+	}
+	
+	/**
+	**	@return Every pattern the client is subscribed to; empty if none.
+	**/
+	Collection<String> patterns(Connection connection)
+	{
+		Set<String> patterns = byConnection.get(connection);
+		if (patterns == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(patterns);
+	}
+	
+	/**
+	**	Finds every client subscribed to a topic by any pattern. A client with several matching
+	**		subscriptions is only in there once.
+	**	
+	**	@param topic Topic without wildcards.
+	**	
+	**	@return The subscribers, which may be a live view of the index; don't hold on to it.
+	**/
+	Collection<Connection> subscribers(String topic)
+	{
+		String[] segments = split(topic, false);
+		List<Set<Connection>> matches = new ArrayList<Set<Connection>>(2);
+		match(root, segments, 0, matches);
+		
+		if (matches.isEmpty())
+			return Collections.emptySet();
+		if (matches.size() == 1)
+			return matches.get(0);
+		
+		// more than one pattern matched; a client subscribed by several of them should still get one copy
+		Set<Connection> union = new HashSet<Connection>();
+		for (Set<Connection> match : matches)
+			union.addAll(match);
+		return union;
+	}
+	
+	/**
+	**	@return Number of clients subscribed to anything.
+	**/
+	int subscriberCount()
+	{
+		return byConnection.size();
+	}
+	
+	private void match(Node node, String[] segments, int depth, List<Set<Connection>> matches)
+	{
+		Node rest = node.children.get(ANY_SEGMENTS);
+		if (rest != null && !rest.subscribers.isEmpty())
+			matches.add(rest.subscribers);
+		
+		if (depth == segments.length)
+		{
+			if (!node.subscribers.isEmpty())
+				matches.add(node.subscribers);
+			return;
+		}
+		
+		Node exact = node.children.get(segments[depth]);
+		if (exact != null)
+			match(exact, segments, depth + 1, matches);
+		Node any = node.children.get(ANY_SEGMENT);
+		if (any != null)
+			match(any, segments, depth + 1, matches);
+	}
+	
+	/**
+	**	Removes the client from the node at the end of the path, and any nodes left with nothing in them.
+	**	
+	**	@return True if the client was subscribed there.
+	**/
+	private boolean remove(Node node, String[] segments, int depth, Connection connection)
+	{
+		if (depth == segments.length)
+			return node.subscribers.remove(connection);
+		
+		Node child = node.children.get(segments[depth]);
+		if (child == null || !remove(child, segments, depth + 1, connection))
+			return false;
+		if (child.isEmpty())
+			node.children.remove(segments[depth], child);
+		return true;
+	}
+	
+	/**
+	**	@param wildcards True if the topic is a subscription pattern and may hold wildcards.
+	**	
+	**	@throws IllegalArgumentException If the topic is empty, has an empty segment, or puts a wildcard
+	**		where it can't go.
+	**/
+	private static String[] split(String topic, boolean wildcards)
+	{
+		if (topic.isEmpty())
+			throw new IllegalArgumentException("A topic can't be empty");
+		
+		String[] segments = topic.split("\\.", -1);
+		for (int i = 0; i < segments.length; ++i)
+		{
+			String segment = segments[i];
+			if (segment.isEmpty())
+				throw new IllegalArgumentException("Topic " + topic + " has an empty segment");
+			
+			boolean any = segment.equals(ANY_SEGMENT);
+			boolean rest = segment.equals(ANY_SEGMENTS);
+			if ((any || rest) && !wildcards)
+				throw new IllegalArgumentException("Topic " + topic + " can't hold wildcards; only subscriptions can");
+			if (rest && i != segments.length - 1)
+				throw new IllegalArgumentException("Topic " + topic + " can only have " + ANY_SEGMENTS + " as its last segment");
+			if (!any && !rest && (segment.contains(ANY_SEGMENT) || segment.contains(ANY_SEGMENTS)))
+				throw new IllegalArgumentException("Topic " + topic + " has a wildcard inside a segment; wildcards take a whole segment");
+		}
+		return segments;
+	}
+}
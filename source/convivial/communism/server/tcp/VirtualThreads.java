@@ -0,0 +1,102 @@
+package convivial.communism.server.tcp;
+
+import java.lang.reflect.Method;
+
+/**
+**	Creates virtual threads when the runtime has them (Java 21 and later) and platform threads when it
+**		doesn't. Goes through reflection so the rest of the library still builds and runs on older Javas.
+**/
+class VirtualThreads
+{
+	private static Method ofVirtual;
+	private static Method name;
+	private static Method unstarted;
+	private static Method isVirtual;
+	private static boolean warned;
+	
+	static
+	{
+		try
+		{
+			Method of = Thread.class.getMethod("ofVirtual");
+			Method nameMethod = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class);
+			Method unstartedMethod = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			Method isVirtualMethod = Thread.class.getMethod("isVirtual");
+			of.invoke(null); // throws on runtimes where virtual threads are still a preview feature
+			ofVirtual = of;
+			name = nameMethod;
+			unstarted = unstartedMethod;
+			isVirtual = isVirtualMethod;
+		}
+		catch (Exception e)
+		{
+			ofVirtual = null;
+		}
+	}
+	
+	/**
+	**	@return True if this runtime can create virtual threads.
+	**/
+	static boolean available()
+	{
+		return ofVirtual != null;
+	}
+	
+	/**
+	**	@param thread Any thread.
+	**	
+	**	@return True if the thread is a virtual thread.
+	**/
+	static boolean isVirtual(Thread thread)
+	{
+		if (isVirtual == null)
+			return false;
+		
+		try
+		{
+			return ((Boolean) isVirtual.invoke(thread)).booleanValue();
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	**	Starts a new thread running the task: virtual if possible, otherwise a daemon platform thread.
+	**	
+	**	@param task Work for the thread to do.
+	**	@param threadName Name to give the thread.
+	**	
+	**	@return The started thread.
+	**/
+	static Thread start(Runnable task, String threadName)
+	{
+		Thread thread = null;
+		if (ofVirtual != null)
+		{
+			try
+			{
+				thread = (Thread) unstarted.invoke(name.invoke(ofVirtual.invoke(null), threadName), task);
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		if (thread == null)
+		{
+			if (!warned)
+			{
+				warned = true;
+				System.out.println("Virtual threads need Java 21 or later; using a platform thread per connection instead.");
+			}
+			thread = new Thread(task, threadName);
+			thread.setDaemon(true);
+		}
+		
+		thread.start();
+		return thread;
+	}
+}
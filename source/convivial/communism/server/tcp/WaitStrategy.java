@@ -0,0 +1,35 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+**	Decides how an I/O thread waits for its Selector to have something ready. Blocking in
+**		<code>select()</code> leaves the thread asleep until there's work, at the cost of the time it
+**		takes the operating system to wake it; spinning on <code>selectNow()</code> reacts within
+**		microseconds but keeps a core busy even when nothing is happening.
+**	
+**	<p>Strategies keep no state of their own, so one instance may be shared by any number of threads.
+**		Whatever adapting they do is driven by the <code>idleCount</code> the caller passes in.</p>
+**	
+**	@see BlockingWaitStrategy
+**	@see BusySpinWaitStrategy
+**	@see AdaptiveWaitStrategy
+**/
+public interface WaitStrategy
+{
+	/**
+	**	Waits (or not) for keys on the Selector to become ready. Implementations must return promptly
+	**		after <code>selector.wakeup()</code> is called, since that's how other threads hand work over,
+	**		and must not block for longer than the timeout, since that's when the caller's next timer is due.
+	**	
+	**	@param selector Selector to wait on.
+	**	@param idleCount How many passes in a row the caller has found nothing at all to do.
+	**	@param timeoutMillis Longest to block, in milliseconds, or 0 to block until there's something to do.
+	**	
+	**	@return The number of keys whose ready sets were updated, like <code>Selector.select()</code>.
+	**	
+	**	@throws IOException If the Selector throws one.
+	**/
+	public int select(Selector selector, int idleCount, long timeoutMillis) throws IOException;
+}
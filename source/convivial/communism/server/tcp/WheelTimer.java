@@ -0,0 +1,71 @@
+package convivial.communism.server.tcp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+**	A <code>TimingWheel</code> driven by a thread of its own, for when there's no event loop to drive
+**		one, like a Server in <code>ExecutionMode.THREAD_PER_CONNECTION</code>. Tasks run on the timer's
+**		thread. The thread sleeps between ticks only while something is scheduled, and otherwise until
+**		something is.
+**/
+class WheelTimer implements Runnable
+{
+	private TimingWheel wheel;
+	private Thread thread;
+	private volatile boolean running;
+	
+	/**
+	**	@param tickNanos Length of one tick, in nanoseconds.
+	**	@param name Name given to the timer's thread.
+	**/
+	WheelTimer(long tickNanos, String name)
+	{
+		wheel = new TimingWheel(tickNanos, Server.TIMER_WHEEL_SIZE);
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+	}
+	
+	void start()
+	{
+		running = true;
+		thread.start();
+	}
+	
+	void shutdown()
+	{
+		running = false;
+		LockSupport.unpark(thread);
+	}
+	
+	/**
+	**	Schedules a task to run on the timer's thread. Safe to call from any thread.
+	**	
+	**	@param task Work to do.
+	**	@param delayNanos How long from now, in nanoseconds.
+	**	
+	**	@return A handle for cancelling the task.
+	**/
+	Timeout schedule(Runnable task, long delayNanos)
+	{
+		Timeout timeout = wheel.schedule(task, delayNanos);
+		LockSupport.unpark(thread);
+		return timeout;
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; automatically invoked by the timer's thread.
+	**/
+	public void run()
+	{
+		while (running)
+		{
+			long now = System.nanoTime();
+			wheel.expire(now);
+			long delay = wheel.nextTickDelay(now);
+			if (delay < 0)
+				LockSupport.park(this);
+			else if (delay > 0)
+				LockSupport.parkNanos(this, delay);
+		}
+	}
+}
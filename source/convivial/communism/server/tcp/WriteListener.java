@@ -0,0 +1,34 @@
+package convivial.communism.server.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+**	Gets told when data handed to one of the asynchronous send methods has actually been written to
+**		the socket, or could not be. Both methods are called on the thread that services the channel
+**		(the client's event loop for a Server, the read thread for a ServerConnection), so keep them short.
+**	
+**	<p>The ByteBuffer passed to send belongs to the connection until one of these methods is called
+**		for it, after which the caller is free to reuse or recycle it.</p>
+**/
+public interface WriteListener
+{
+	/**
+	**	Handles every byte of a buffer having been written to the socket.
+	**	
+	**	@param channel Channel the data was written to.
+	**	@param data The buffer that was passed to send, now with no bytes remaining.
+	**/
+	public void writeComplete(SocketChannel channel, ByteBuffer data);
+	
+	/**
+	**	Handles a buffer that could not be written, generally because the channel was closed before
+	**		it got its turn or the write failed.
+	**	
+	**	@param channel Channel the data was meant for.
+	**	@param data The buffer that was passed to send, possibly partially written.
+	**	@param cause Why the data could not be written.
+	**/
+	public void writeFailed(SocketChannel channel, ByteBuffer data, IOException cause);
+}
@@ -0,0 +1,115 @@
+package convivial.communism.server.udp;
+
+import convivial.communism.server.tcp.BufferPool;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+**	Datagrams waiting to be sent on a DatagramChannel, each in a buffer borrowed from a
+**		<code>BufferPool</code> and given back once sent. Anything may add to the queue; only the selector
+**		thread that owns the channel flushes it.
+**/
+class DatagramQueue
+{
+	/**
+	**	One datagram and where it's going.
+	**/
+	private static class Datagram
+	{
+		SocketAddress target;
+		ByteBuffer data;
+		
+		Datagram(SocketAddress target, ByteBuffer data)
+		{
+			this.target = target;
+			this.data = data;
+		}
+	}
+	
+	private BufferPool bufferPool;
+	private ConcurrentLinkedQueue<Datagram> pending;
+	
+	/**
+	**	@param bufferPool Pool the queued copies are borrowed from.
+	**/
+	DatagramQueue(BufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+		pending = new ConcurrentLinkedQueue<Datagram>();
+	}
+	
+	/**
+	**	Queues a copy of the data. The data's position is left where it was.
+	**	
+	**	@param target Where to send it, or null for the address a connected channel is connected to.
+	**	@param data Datagram to send, already flipped.
+	**/
+	void add(SocketAddress target, ByteBuffer data)
+	{
+		ByteBuffer copy = bufferPool.acquire(data.remaining());
+		copy.put(data.duplicate());
+		copy.flip();
+		pending.add(new Datagram(target, copy));
+	}
+	
+	/**
+	**	@return True if nothing is waiting to be sent.
+	**/
+	boolean isEmpty()
+	{
+		return pending.isEmpty();
+	}
+	
+	/**
+	**	Sends as many queued datagrams as the socket takes. A datagram that fails to send (say, because
+	**		its target can't be reached) is dropped; that's UDP.
+	**	
+	**	@param channel Channel to send on.
+	**	
+	**	@return Number of datagrams sent, or -1 if the socket's send buffer filled up first and the rest
+	**		are still waiting.
+	**/
+	int flush(DatagramChannel channel)
+	{
+		int sent = 0;
+		Datagram datagram;
+		while ((datagram = pending.peek()) != null)
+		{
+			try
+			{
+				int written;
+				if (datagram.target == null)
+					written = channel.write(datagram.data);
+				else
+					written = channel.send(datagram.data, datagram.target);
+				if (written == 0 && datagram.data.hasRemaining())
+					return -1;
+				++sent;
+			}
+			catch (IOException ioe)
+			{
+				
+			}
+			pending.poll();
+			bufferPool.release(datagram.data);
+		}
+		return sent;
+	}
+	
+	/**
+	**	Drops everything still queued.
+	**/
+	void clear()
+	{
+		Datagram datagram;
+		while ((datagram = pending.poll()) != null)
+			bufferPool.release(datagram.data);
+	}
+}
@@ -0,0 +1,525 @@
+package convivial.communism.server.udp;
+
+import convivial.communism.server.tcp.BufferPool;
+
+import java.io.IOException;
+
+import java.net.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+**	Runs a UDP server, the datagram counterpart of the Server in the server.tcp package. Like that one it
+**		is meant to be extended and run stand-alone, and consumes the thread that creates it reading the
+**		console, while a thread of its own receives and sends datagrams.
+**	
+**	<p>There are no connections in UDP, so there's no <code>newClient</code> or <code>disconnection</code>;
+**		every datagram arrives on its own with the address it came from, and replies go out with
+**		<code>send</code>. Datagrams can be lost, duplicated or arrive out of order, but one that's lost
+**		doesn't hold up the ones behind it, which suits position and telemetry updates where only the
+**		latest value matters.</p>
+**	
+**	<p>Each time the selector wakes up the server receives up to <code>setReceiveBatch</code> datagrams
+**		in a row into one reusable direct buffer, then sends everything queued with <code>send</code> in
+**		one go. A server that wants to know who it's talking to can keep a session table (see
+**		<code>setSessionTimeout</code>): a <code>Session</code> per peer address, started by the peer's first
+**		datagram and expired once the peer has been quiet for the timeout.</p>
+**	
+**	<br>
+**	<h2>Import these:</h2>
+**	<code>
+**	import java.net.SocketAddress;<br>
+**	import java.nio.ByteBuffer;
+**	</code>
+**	<br>
+**	<h2>Override these:</h2>
+**	<code>
+**	<ul>
+**	<li>protected void init()</li>
+**	<li>protected void receiveData(SocketAddress from, Session session, ByteBuffer data)</li>
+**	<li>protected void receiveConsole(String input)</li>
+**	<li>protected Object getAttachment() (optional)</li>
+**	<li>protected void newPeer(Session session) (optional)</li>
+**	<li>protected void peerExpired(Session session) (optional)</li>
+**	</ul>
+**	</code>
+**/
+public abstract class Server implements Runnable
+{
+	/** Largest datagram received unless <code>setMaxDatagramSize</code> says otherwise: the most UDP over IPv4 carries. **/
+	public static final int DEFAULT_MAX_DATAGRAM_SIZE = 65507;
+	/** Most datagrams received in a row before the server sends what's queued and checks its selector again. **/
+	public static final int DEFAULT_RECEIVE_BATCH = 64;
+	
+	private InetSocketAddress address;
+	private DatagramChannel channel;
+	private Selector selector;
+	private SelectionKey key;
+	private Thread loopThread;
+	private BufferPool bufferPool;
+	private DatagramQueue outbound;
+	private AtomicBoolean wakeupPending;
+	private int maxDatagramSize, receiveBatch;
+	private Integer receiveBufferSize, sendBufferSize;
+	private long sessionTimeout;
+	private Map<SocketAddress, Session> sessions;
+	private volatile boolean running;
+	
+	/**
+	**	Creates a new server that runs on port 10997.
+	**/
+	public Server() throws UnknownHostException
+	{
+		this(10997);
+	}
+	
+	/**
+	**	Creates a new server using the specified port number.
+	**	
+	**	@param port Network port to run the server on.
+	**/
+	public Server(int port) throws UnknownHostException
+	{
+		this(InetAddress.getLocalHost(), port);
+	}
+	
+	/**
+	**	Creates a new server running on the specified IPAddress and Port number.
+	**	
+	**	@param ipName InternetAddress in a String format, like 10.0.0.8
+	**	@param port Port number to receive datagrams on.
+	**	
+	**	@throws UnknownHostException if <code>java.net.InetAddress</code> doesn't like the passed <code>ipName</code>.
+	**/
+	public Server(String ipName, int port) throws UnknownHostException
+	{
+		this(InetAddress.getByName(ipName), port);
+	}
+	
+	/**
+	**	Starts up the server using the InetAddress and Port to receive datagrams on.
+	**	
+	**	@param ip Internet Address to run the server on.
+	**	@param port Port number to receive datagrams on.
+	**/
+	public Server(InetAddress ip, int port)
+	{
+		address = new InetSocketAddress(ip, port);
+		bufferPool = BufferPool.getDefault();
+		wakeupPending = new AtomicBoolean();
+		maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+		receiveBatch = DEFAULT_RECEIVE_BATCH;
+		
+		init();
+		
+		outbound = new DatagramQueue(bufferPool);
+		if (sessionTimeout > 0)
+			sessions = new ConcurrentHashMap<SocketAddress, Session>();
+		try
+		{
+			selector = Selector.open();
+			channel = DatagramChannel.open();
+			if (receiveBufferSize != null)
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+			if (sendBufferSize != null)
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+			channel.bind(address);
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ);
+			System.out.println("Starting udp server at address: " + ip.getHostAddress() + " on port: " + port);
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+			return;
+		}
+		
+		running = true;
+		loopThread = new Thread(this, "DatagramLoop");
+		loopThread.start();
+		
+		started();
+		terminalInput();
+	}
+	
+	/**
+	**	Initializes any variables that the subclass may contain. Called before the server binds its port,
+	**		so this is where the setters go.
+	**/
+	protected abstract void init();
+	
+	/**
+	**	Manages a reaction to the server being up: bound, with its thread running.
+	**		Called once, on the thread that created the server, just before it starts reading the console.
+	**		Does nothing unless overridden.
+	**/
+	protected void started()
+	{
+	}
+	
+	/**
+	**	Returns the object to attach to a new session. Only called when the server keeps a session table.
+	**	
+	**	@return Object to keep with the session, may be null; returns null unless overridden.
+	**/
+	protected Object getAttachment()
+	{
+		return null;
+	}
+	
+	/**
+	**	Manages a peer being heard from for the first time since its last session expired, if it had one.
+	**		Only called when the server keeps a session table, on the server's thread, just before the
+	**		peer's first datagram is passed to <code>receiveData</code>. Does nothing unless overridden.
+	**	
+	**	@param session The peer's new session.
+	**/
+	protected void newPeer(Session session)
+	{
+	}
+	
+	/**
+	**	Manages a peer's session expiring after it has been quiet for the session timeout. Called on the
+	**		server's thread. Does nothing unless overridden.
+	**	
+	**	@param session The expired session.
+	**/
+	protected void peerExpired(Session session)
+	{
+	}
+	
+	/**
+	**	Manages a datagram that just arrived, on the server's thread. The buffer is reused for the next
+	**		datagram as soon as this returns, so copy anything that needs to live longer.
+	**	
+	**	@param from Address the datagram came from, and where to <code>send</code> a reply.
+	**	@param session The peer's session, or null if the server keeps no session table.
+	**	@param data The datagram.
+	**/
+	protected abstract void receiveData(SocketAddress from, Session session, ByteBuffer data);
+	
+	/**
+	**	Manages input from the console.
+	**	
+	**	@param input What was typed on the console.
+	**/
+	protected abstract void receiveConsole(String input);
+	
+	/**
+	**	Sets the pool the copies made by <code>send</code> are borrowed from. Defaults to
+	**		<code>BufferPool.getDefault()</code>. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param bufferPool Pool of direct buffers for the server to use.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setBufferPool(BufferPool bufferPool)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the buffer pool; server is already running.");
+		
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	**	Sets the largest datagram the server receives; anything longer is cut short. Defaults to
+	**		<code>DEFAULT_MAX_DATAGRAM_SIZE</code>. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param size Size of the receive buffer, in bytes.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setMaxDatagramSize(int size)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the datagram size; server is already running.");
+		if (size < 1)
+			throw new IllegalArgumentException("Datagram size must be positive, got " + size);
+		
+		maxDatagramSize = size;
+	}
+	
+	/**
+	**	Sets how many datagrams are received in a row before the server sends what's queued and checks
+	**		its selector again. Defaults to <code>DEFAULT_RECEIVE_BATCH</code>. Only takes effect when called
+	**		from <code>init()</code>.
+	**	
+	**	@param batch Most datagrams received per wakeup, at least 1.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setReceiveBatch(int batch)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the receive batch; server is already running.");
+		if (batch < 1)
+			throw new IllegalArgumentException("Receive batch must be at least 1, got " + batch);
+		
+		receiveBatch = batch;
+	}
+	
+	/**
+	**	Sets SO_RCVBUF, the datagrams the operating system holds for the server while it's busy. Left at
+	**		the operating system's default unless called. Only takes effect when called from <code>init()</code>.
+	**	
+	**	@param size Size of the socket's receive buffer, in bytes.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setReceiveBufferSize(int size)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the receive buffer size; server is already running.");
+		
+		receiveBufferSize = Integer.valueOf(size);
+	}
+	
+	/**
+	**	Sets SO_SNDBUF. Left at the operating system's default unless called. Only takes effect when
+	**		called from <code>init()</code>.
+	**	
+	**	@param size Size of the socket's send buffer, in bytes.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setSendBufferSize(int size)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the send buffer size; server is already running.");
+		
+		sendBufferSize = Integer.valueOf(size);
+	}
+	
+	/**
+	**	Has the server keep a <code>Session</code> for every peer it hears from, dropping it (and calling
+	**		<code>peerExpired</code>) once the peer has sent nothing for the timeout. Off unless called. Only
+	**		takes effect when called from <code>init()</code>.
+	**	
+	**	@param timeout How long a peer may be quiet before its session expires, or 0 for no session table.
+	**	@param unit Unit of the timeout.
+	**	
+	**	@throws IllegalStateException If the server is already running.
+	**/
+	protected void setSessionTimeout(long timeout, TimeUnit unit)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the session timeout; server is already running.");
+		if (timeout < 0)
+			throw new IllegalArgumentException("Session timeout can't be negative, got " + timeout);
+		
+		sessionTimeout = unit.toNanos(timeout);
+	}
+	
+	/**
+	**	@return The pool the copies made by <code>send</code> are borrowed from.
+	**/
+	protected BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+	
+	/**
+	**	@param address A peer's address.
+	**	
+	**	@return The peer's session, or null if it has none or the server keeps no session table.
+	**/
+	protected Session getSession(SocketAddress address)
+	{
+		if (sessions == null)
+			return null;
+		return sessions.get(address);
+	}
+	
+	/**
+	**	@return Every current session, empty if the server keeps no session table. Safe to iterate from
+	**		any thread while sessions come and go.
+	**/
+	protected Collection<Session> getSessions()
+	{
+		if (sessions == null)
+			return Collections.emptyList();
+		return sessions.values();
+	}
+	
+	/**
+	**	Sends a datagram. The data is copied into a pooled buffer and queued, so this returns right away
+	**		and the buffer can be reused as soon as it does; the server's thread sends everything queued each
+	**		time it wakes up. Safe to call from any thread.
+	**	
+	**	@param target Address to send to.
+	**	@param data Datagram to send, already flipped. Its position is left where it was.
+	**/
+	protected void send(SocketAddress target, ByteBuffer data)
+	{
+		outbound.add(target, data);
+		if (Thread.currentThread() != loopThread && wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+	
+	/**
+	**	Sends the same datagram to every peer with a session. Does nothing if the server keeps no session table.
+	**	
+	**	@param data Datagram to send, already flipped. Its position is left where it was.
+	**	
+	**	@return Number of peers the datagram was queued for.
+	**/
+	protected int broadcast(ByteBuffer data)
+	{
+		int count = 0;
+		for (Session session : getSessions())
+		{
+			outbound.add(session.getAddress(), data);
+			++count;
+		}
+		if (count > 0 && Thread.currentThread() != loopThread && wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+		return count;
+	}
+	
+	/**
+	**	Stops the server and closes its socket.
+	**/
+	protected void shutdown()
+	{
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; automatically invoked by the server's thread.
+	**/
+	public void run()
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(maxDatagramSize);
+		long sweepInterval = sessionTimeout / 4;
+		long nextSweep = System.nanoTime() + sweepInterval;
+		while (running)
+		{
+			try
+			{
+				if (sessions == null)
+					selector.select();
+				else
+					selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextSweep - System.nanoTime())));
+				wakeupPending.set(false);
+				
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext())
+				{
+					SelectionKey ready = i.next();
+					i.remove();
+					if (ready.isValid() && ready.isReadable())
+						receive(buffer);
+				}
+				flush();
+				
+				if (sessions != null && System.nanoTime() - nextSweep >= 0)
+				{
+					expireSessions();
+					nextSweep = System.nanoTime() + sweepInterval;
+				}
+			}
+			catch (IOException ioe)
+			{
+				ioe.printStackTrace();
+			}
+			catch (ClosedSelectorException cse)
+			{
+				cse.printStackTrace();
+			}
+		}
+		
+		outbound.clear();
+		try
+		{
+			channel.close();
+			selector.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+	
+	private void receive(ByteBuffer buffer) throws IOException
+	{
+		for (int n = 0; n < receiveBatch; ++n)
+		{
+			buffer.clear();
+			SocketAddress from = channel.receive(buffer);
+			if (from == null)
+				return;
+			buffer.flip();
+			
+			Session session = null;
+			if (sessions != null)
+			{
+				session = sessions.get(from);
+				if (session == null)
+				{
+					session = new Session(from, getAttachment());
+					sessions.put(from, session);
+					newPeer(session);
+				}
+				session.received(System.nanoTime());
+			}
+			
+			try
+			{
+				receiveData(from, session, buffer);
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void flush()
+	{
+		if (outbound.isEmpty() && (key.interestOps() & SelectionKey.OP_WRITE) == 0)
+			return;
+		
+		if (outbound.flush(channel) < 0)
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		else
+			key.interestOps(SelectionKey.OP_READ);
+	}
+	
+	private void expireSessions()
+	{
+		long now = System.nanoTime();
+		Iterator<Session> i = sessions.values().iterator();
+		while (i.hasNext())
+		{
+			Session session = i.next();
+			if (now - session.getLastReceived() >= sessionTimeout)
+			{
+				i.remove();
+				peerExpired(session);
+			}
+		}
+	}
+	
+	private void terminalInput()
+	{
+		Scanner console = new Scanner(System.in);
+		String input;
+		while (running)
+		{
+			input = console.nextLine();
+			receiveConsole(input);
+		}
+	}
+}
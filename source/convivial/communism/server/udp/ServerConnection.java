@@ -0,0 +1,309 @@
+package convivial.communism.server.udp;
+
+import convivial.communism.server.DatagramListener;
+import convivial.communism.server.tcp.BufferPool;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+**	Represents a connection to a udp-based server. UDP has no connections, so "connecting" only fixes
+**		the address datagrams go to and are accepted from; nothing is sent until <code>send</code> is called,
+**		and the server finds out about the client from its first datagram. Implement a
+**		<code>DatagramListener</code> to hear back from the server.
+**	
+**	<p>The connection runs a read thread and Selector of its own. Each time it wakes up it receives up
+**		to <code>setReceiveBatch</code> datagrams in a row into one reusable direct buffer, then sends
+**		everything queued with <code>send</code>.</p>
+**/
+public class ServerConnection implements Runnable
+{
+	private BufferPool bufferPool;
+	private DatagramChannel channel;
+	private Selector selector;
+	private SelectionKey channelKey;
+	private DatagramListener dl;
+	private DatagramQueue outbound;
+	private AtomicBoolean wakeupPending;
+	private int maxDatagramSize, receiveBatch;
+	private volatile Thread thread;
+	private volatile boolean running;
+	
+	/**
+	**	Gets ready to connect to a server, but does not connect to one yet.
+	**		Note that this constructor also does not set any <code>DatagramListener</code>.
+	**/
+	public ServerConnection()
+	{
+		bufferPool = BufferPool.getDefault();
+		wakeupPending = new AtomicBoolean();
+		maxDatagramSize = Server.DEFAULT_MAX_DATAGRAM_SIZE;
+		receiveBatch = Server.DEFAULT_RECEIVE_BATCH;
+	}
+	
+	/**
+	**	Gets ready to connect to a server, but does not connect to one yet.
+	**	
+	**	@param dl Object to receive incoming datagrams and disconnect notifications.
+	**/
+	public ServerConnection(DatagramListener dl)
+	{
+		this();
+		this.dl = dl;
+	}
+	
+	/**
+	**	Connects to the indicated server using the intended port.
+	**	
+	**	@param host Internet Address, in a string, representing the server to connect to.
+	**	@param port Port to connect to.
+	**	@param attachment Object to have the channel hold on to.
+	**	@param dl Object to receive datagrams from the channel, may be null.
+	**	
+	**	@throws UnknownHostException If the host could not be resolved.
+	**	@throws IOException If the channel could not be opened.
+	**/
+	public ServerConnection(String host, int port, Object attachment, DatagramListener dl) throws UnknownHostException, IOException
+	{
+		this(dl);
+		connect(host, port, attachment);
+	}
+	
+	/**
+	**	@param dl Object to receive incoming datagrams and disconnect notifications.
+	**/
+	public void setListener(DatagramListener dl)
+	{
+		this.dl = dl;
+	}
+	
+	/**
+	**	@return True between a successful <code>connect</code> and being disconnected.
+	**/
+	public boolean isConnected()
+	{
+		return running;
+	}
+	
+	/**
+	**	Sets the pool the copies made by <code>send</code> are borrowed from. Defaults to <code>BufferPool.getDefault()</code>.
+	**	
+	**	@param bufferPool Pool of direct buffers for the connection to use.
+	**	
+	**	@throws IllegalStateException If the connection is already connected.
+	**/
+	public void setBufferPool(BufferPool bufferPool)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the buffer pool; connection is already connected.");
+		
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	**	Sets the largest datagram the connection receives; anything longer is cut short. Defaults to
+	**		<code>Server.DEFAULT_MAX_DATAGRAM_SIZE</code>.
+	**	
+	**	@param size Size of the receive buffer, in bytes.
+	**	
+	**	@throws IllegalStateException If the connection is already connected.
+	**/
+	public void setMaxDatagramSize(int size)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the datagram size; connection is already connected.");
+		if (size < 1)
+			throw new IllegalArgumentException("Datagram size must be positive, got " + size);
+		
+		maxDatagramSize = size;
+	}
+	
+	/**
+	**	Sets how many datagrams are received in a row before the connection sends what's queued and
+	**		checks its selector again. Defaults to <code>Server.DEFAULT_RECEIVE_BATCH</code>.
+	**	
+	**	@param batch Most datagrams received per wakeup, at least 1.
+	**	
+	**	@throws IllegalStateException If the connection is already connected.
+	**/
+	public void setReceiveBatch(int batch)
+	{
+		if (running)
+			throw new IllegalStateException("Cannot change the receive batch; connection is already connected.");
+		if (batch < 1)
+			throw new IllegalArgumentException("Receive batch must be at least 1, got " + batch);
+		
+		receiveBatch = batch;
+	}
+	
+	/**
+	**	Connects to the indicated server using the intended port, and starts the read thread.
+	**	
+	**	@param host Internet Address, in a string, representing the server to connect to.
+	**	@param port Port to connect to.
+	**	@param attachment Object to have the channel hold on to.
+	**	
+	**	@throws UnknownHostException If the host could not be resolved.
+	**	@throws IOException If the channel could not be opened.
+	**	@throws IllegalStateException If the connection is already connected.
+	**/
+	public void connect(String host, int port, Object attachment) throws UnknownHostException, IOException
+	{
+		if (running)
+			throw new IllegalStateException("Cannot connect; connection is already connected.");
+		
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
+		outbound = new DatagramQueue(bufferPool);
+		selector = Selector.open();
+		channel = DatagramChannel.open();
+		try
+		{
+			channel.connect(address);
+			channel.configureBlocking(false);
+			channelKey = channel.register(selector, SelectionKey.OP_READ, attachment);
+		}
+		catch (IOException ioe)
+		{
+			channel.close();
+			selector.close();
+			throw ioe;
+		}
+		
+		running = true;
+		new Thread(this, "DatagramConnection").start();
+	}
+	
+	/**
+	**	<font color=RED><b>DO NOT CALL</b></font>; automatically invoked by the connection's read thread.
+	**/
+	public void run()
+	{
+		thread = Thread.currentThread();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(maxDatagramSize);
+		while (running)
+		{
+			try
+			{
+				selector.select();
+				wakeupPending.set(false);
+				
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext())
+				{
+					SelectionKey key = i.next();
+					i.remove();
+					if (key.isValid() && key.isReadable())
+						receive(key, buffer);
+				}
+				if (running)
+					flush();
+			}
+			catch (PortUnreachableException pue)
+			{
+				close();
+			}
+			catch (IOException ioe)
+			{
+				if (running)
+					ioe.printStackTrace();
+			}
+			catch (ClosedSelectorException cse)
+			{
+				
+			}
+		}
+		
+		outbound.clear();
+		try
+		{
+			channel.close();
+			selector.close();
+		}
+		catch (IOException ioe)
+		{
+			ioe.printStackTrace();
+		}
+	}
+	
+	/**
+	**	Disconnects from the server and stops the read thread, then tells the listener.
+	**	
+	**	@throws IllegalStateException If the connection isn't connected.
+	**/
+	public void disconnect()
+	{
+		if (!close())
+			throw new IllegalStateException("Cannot disconnect; connection is not connected.");
+	}
+	
+	/**
+	**	Sends a datagram to the server. The data is copied into a pooled buffer and queued, so this
+	**		returns right away and the buffer can be reused as soon as it does; the read thread sends
+	**		everything queued each time it wakes up. Safe to call from any thread.
+	**	
+	**	@param data Datagram to send, already flipped. Its position is left where it was.
+	**	
+	**	@throws IllegalStateException If the connection isn't connected.
+	**/
+	public void send(ByteBuffer data)
+	{
+		if (!running)
+			throw new IllegalStateException("Cannot send; connection is not connected.");
+		
+		outbound.add(null, data);
+		if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+	
+	private void receive(SelectionKey key, ByteBuffer buffer) throws IOException
+	{
+		for (int n = 0; n < receiveBatch; ++n)
+		{
+			buffer.clear();
+			if (channel.receive(buffer) == null)
+				return;
+			buffer.flip();
+			
+			if (dl != null)
+			{
+				try
+				{
+					dl.receiveData(key, channel, buffer);
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	private void flush()
+	{
+		if (outbound.isEmpty() && (channelKey.interestOps() & SelectionKey.OP_WRITE) == 0)
+			return;
+		
+		if (outbound.flush(channel) < 0)
+			channelKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		else
+			channelKey.interestOps(SelectionKey.OP_READ);
+	}
+	
+	private boolean close()
+	{
+		synchronized (this)
+		{
+			if (!running)
+				return false;
+			running = false;
+		}
+		selector.wakeup();
+		if (dl != null)
+			dl.disconnected();
+		return true;
+	}
+}
@@ -0,0 +1,68 @@
+package convivial.communism.server.udp;
+
+import java.net.SocketAddress;
+
+/**
+**	What a <code>Server</code> remembers about a peer it has heard from, when it keeps a session table
+**		(see <code>Server.setSessionTimeout</code>). A session starts with the peer's first datagram and
+**		ends once the peer has been quiet for the timeout.
+**/
+public class Session
+{
+	private SocketAddress address;
+	private volatile Object attachment;
+	private volatile long lastReceived;
+	
+	/**
+	**	@param address The peer's address.
+	**	@param attachment Object to keep with the session.
+	**/
+	Session(SocketAddress address, Object attachment)
+	{
+		this.address = address;
+		this.attachment = attachment;
+		lastReceived = System.nanoTime();
+	}
+	
+	/**
+	**	@return The peer's address, where replies go.
+	**/
+	public SocketAddress getAddress()
+	{
+		return address;
+	}
+	
+	/**
+	**	@return Object kept with the session, as returned by the server's <code>getAttachment</code> or set since.
+	**/
+	public Object getAttachment()
+	{
+		return attachment;
+	}
+	
+	/**
+	**	@param attachment Object to keep with the session.
+	**/
+	public void setAttachment(Object attachment)
+	{
+		this.attachment = attachment;
+	}
+	
+	/**
+	**	@return When the peer's last datagram arrived, in <code>System.nanoTime()</code> terms.
+	**/
+	public long getLastReceived()
+	{
+		return lastReceived;
+	}
+	
+	/**
+	**	Notes that a datagram just arrived from the peer.
+	**	
+	**	@param now Current <code>System.nanoTime()</code>.
+	**/
+	void received(long now)
+	{
+		lastReceived = now;
+	}
+}
@@ -1,2 +1,2 @@
-javadoc -d docs convivial.communism.server.tcp convivial.communism.server.example convivial.communism.server
+javadoc -d docs convivial.communism.server.tcp convivial.communism.server.example convivial.communism.server.udp convivial.communism.server.codec convivial.communism.server.log convivial.communism.server.bench convivial.communism.server
 pause
\ No newline at end of file
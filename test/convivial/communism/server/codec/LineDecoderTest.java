@@ -0,0 +1,127 @@
+package convivial.communism.server.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+**	Checks <code>LineDecoder</code>: every line in a read comes out, a line or a CR LF split across reads
+**		comes out once and whole, a line that runs past the maximum fails and is dropped, and
+**		<code>Line.matches</code> ignores case and surrounding whitespace.
+**/
+public class LineDecoderTest
+{
+	public static void main(String[] args) throws Exception
+	{
+		splitsSeveralLinesInOneRead();
+		joinsLinesSplitAcrossReads();
+		joinsCrLfSplitAcrossReads();
+		rejectsPendingLineOverMaximum();
+		matchesIgnoringCaseAndWhitespace();
+		System.out.println("LineDecoderTest passed");
+	}
+	
+	private static void splitsSeveralLinesInOneRead() throws Exception
+	{
+		LineDecoder decoder = new LineDecoder();
+		List<String> lines = feed(decoder, "one\ntwo\r\nthree\rfour");
+		check(lines.size() == 3, "expected 3 lines, got " + lines);
+		check(lines.get(0).equals("one") && lines.get(1).equals("two") && lines.get(2).equals("three"), "wrong lines: " + lines);
+		check(decoder.getPendingLength() == 4, "unfinished line not kept");
+		
+		lines = feed(decoder, "\n\n");
+		check(lines.size() == 2 && lines.get(0).equals("four") && lines.get(1).equals(""), "wrong lines after finishing: " + lines);
+	}
+	
+	private static void joinsLinesSplitAcrossReads() throws Exception
+	{
+		LineDecoder decoder = new LineDecoder();
+		List<String> lines = new ArrayList<String>();
+		for (String part : new String[] {"he", "ll", "o wor", "ld\nbye", "\n"})
+			lines.addAll(feed(decoder, part));
+		check(lines.size() == 2, "expected 2 lines, got " + lines);
+		check(lines.get(0).equals("hello world") && lines.get(1).equals("bye"), "wrong lines: " + lines);
+		check(decoder.getPendingLength() == 0, "bytes left over after the last line");
+	}
+	
+	private static void joinsCrLfSplitAcrossReads() throws Exception
+	{
+		LineDecoder decoder = new LineDecoder();
+		List<String> lines = feed(decoder, "first\r");
+		lines.addAll(feed(decoder, "\nsecond\r"));
+		lines.addAll(feed(decoder, "\n"));
+		check(lines.size() == 2, "CR LF split across reads made an extra line: " + lines);
+		check(lines.get(0).equals("first") && lines.get(1).equals("second"), "wrong lines: " + lines);
+		
+		// a lone CR at the end of a read is still a whole line break
+		lines = feed(decoder, "third\r");
+		lines.addAll(feed(decoder, "fourth\n"));
+		check(lines.size() == 2 && lines.get(0).equals("third") && lines.get(1).equals("fourth"), "lone CR lost a line: " + lines);
+	}
+	
+	private static void rejectsPendingLineOverMaximum() throws Exception
+	{
+		LineDecoder decoder = new LineDecoder(8);
+		check(feed(decoder, "12345").isEmpty(), "unfinished line came out");
+		try
+		{
+			feed(decoder, "6789");
+			check(false, "line over the maximum was accepted");
+		}
+		catch (LineTooLongException e)
+		{
+		}
+		check(decoder.getPendingLength() == 0, "line over the maximum wasn't dropped");
+		
+		// the decoder carries on with the next line, and a line of exactly the maximum is fine
+		List<String> lines = feed(decoder, "1234");
+		lines.addAll(feed(decoder, "5678\n"));
+		check(lines.size() == 1 && lines.get(0).equals("12345678"), "line of the maximum length refused: " + lines);
+		
+		try
+		{
+			feed(decoder, "123456789\n");
+			check(false, "complete line over the maximum was accepted");
+		}
+		catch (LineTooLongException e)
+		{
+		}
+	}
+	
+	private static void matchesIgnoringCaseAndWhitespace() throws Exception
+	{
+		LineDecoder decoder = new LineDecoder();
+		ByteBuffer in = ascii("  /Quit \t\n/quitter\n\n");
+		check(decoder.nextLine(in).matches("/quit"), "didn't match ignoring case and whitespace");
+		Line line = decoder.nextLine(in);
+		check(!line.matches("/quit"), "matched a longer line");
+		check(line.matches("/QUITTER"), "didn't match ignoring case");
+		line = decoder.nextLine(in);
+		check(line.matches("") && !line.matches("x"), "empty line matched wrongly");
+		check(decoder.nextLine(in) == null, "line out of nowhere");
+	}
+	
+	private static List<String> feed(LineDecoder decoder, String text) throws LineTooLongException
+	{
+		ByteBuffer in = ascii(text);
+		List<String> lines = new ArrayList<String>();
+		Line line;
+		while ((line = decoder.nextLine(in)) != null)
+			lines.add(line.toString());
+		check(!in.hasRemaining(), "read wasn't used up");
+		return lines;
+	}
+	
+	private static ByteBuffer ascii(String text)
+	{
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	private static void check(boolean condition, String message)
+	{
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,221 @@
+package convivial.communism.server.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+**	Checks <code>MessageLog</code> end to end on a scratch directory: offsets carry on across segments and
+**		across reopening the log, <code>replay</code> picks out a topic and a starting offset, retention
+**		deletes whole segments oldest first and never the active one, and a record torn by a crash is
+**		dropped when the log is opened again, with appending picking up where the last whole record ended.
+**		Segments are kept tiny so a few dozen messages fill several of them.
+**/
+public class MessageLogTest
+{
+	private static final int SEGMENT_SIZE = 512;
+	private static final int INDEX_INTERVAL = 64;
+	
+	public static void main(String[] args) throws IOException
+	{
+		File root = new File(System.getProperty("java.io.tmpdir"), "MessageLogTest-" + System.nanoTime());
+		try
+		{
+			replaysAcrossSegments(new File(root, "replay"));
+			findsOffsetsByTime(new File(root, "time"));
+			deletesOldSegments(new File(root, "retention"));
+			recoversAfterReopening(new File(root, "reopen"));
+			dropsTornRecord(new File(root, "torn"));
+		}
+		finally
+		{
+			deleteAll(root);
+		}
+		System.out.println("MessageLogTest passed");
+	}
+	
+	private static void replaysAcrossSegments(File directory) throws IOException
+	{
+		MessageLog log = new MessageLog(directory, SEGMENT_SIZE, INDEX_INTERVAL);
+		for (int i = 0; i < 60; ++i)
+			check(log.append(i % 3 == 0 ? "a" : "b", message("message " + i)) == i, "offsets aren't consecutive at " + i);
+		check(log.getSegmentCount() > 3, "60 messages should fill several segments, got " + log.getSegmentCount());
+		check(log.getStartOffset() == 0 && log.getEndOffset() == 60, "bad offset range " + log.getStartOffset() + " to " + log.getEndOffset());
+		
+		Collector all = new Collector(-1);
+		check(log.replay(0, null, all) == 60, "didn't replay every message");
+		for (int i = 0; i < 60; ++i)
+			check(all.offsets.get(i) == i && all.texts.get(i).equals("message " + i), "replayed " + all.texts.get(i) + " at " + i);
+		
+		Collector topic = new Collector(-1);
+		log.replay(31, "a", topic);
+		check(topic.offsets.size() == 9 && topic.offsets.get(0) == 33 && topic.offsets.get(8) == 57, "topic replay got " + topic.offsets);
+		
+		Collector stopped = new Collector(5);
+		check(log.replay(17, null, stopped) == 5 && stopped.offsets.get(4) == 21, "replay didn't stop when asked");
+		
+		Collector none = new Collector(-1);
+		check(log.replay(60, null, none) == 0, "replayed past the end");
+		log.close();
+	}
+	
+	private static void findsOffsetsByTime(File directory) throws IOException
+	{
+		MessageLog log = new MessageLog(directory, SEGMENT_SIZE, INDEX_INTERVAL);
+		for (int i = 0; i < 40; ++i)
+			log.append("t", message("at " + i), 1000 + i * 10);
+		log.append("t", message("late"), 500); // moved up to match the last timestamp
+		
+		check(log.offsetFor(0) == 0, "time before everything should start at the beginning");
+		check(log.offsetFor(1200) == 20, "exact time found " + log.offsetFor(1200));
+		check(log.offsetFor(1205) == 21, "time between messages found " + log.offsetFor(1205));
+		check(log.offsetFor(1390) == 39, "last time found " + log.offsetFor(1390));
+		check(log.offsetFor(2000) == log.getEndOffset(), "time after everything should be the end");
+		log.close();
+	}
+	
+	private static void deletesOldSegments(File directory) throws IOException
+	{
+		MessageLog log = new MessageLog(directory, SEGMENT_SIZE, INDEX_INTERVAL);
+		long old = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2);
+		for (int i = 0; i < 20; ++i)
+			log.append("t", message("old " + i), old);
+		for (int i = 20; i < 60; ++i)
+			log.append("t", message("new " + i));
+		
+		int segments = log.getSegmentCount();
+		log.setRetention(0, 1, TimeUnit.DAYS);
+		int deleted = log.enforceRetention();
+		check(deleted > 0 && log.getSegmentCount() == segments - deleted, "age limit deleted " + deleted + " of " + segments);
+		check(log.getStartOffset() > 0 && log.getStartOffset() <= 20, "oldest kept offset after the age limit is " + log.getStartOffset());
+		
+		log.setRetention(SEGMENT_SIZE, 0, TimeUnit.DAYS);
+		log.enforceRetention();
+		check(log.getSegmentCount() <= 2, "size limit kept " + log.getSegmentCount() + " segments");
+		check(log.getSize() <= 2 * SEGMENT_SIZE, "size limit kept " + log.getSize() + " bytes");
+		
+		Collector kept = new Collector(-1);
+		log.replay(0, null, kept);
+		check(kept.offsets.get(0) == log.getStartOffset() && kept.offsets.get(kept.offsets.size() - 1) == 59, "replay after retention got " + kept.offsets);
+		
+		log.setRetention(1, 0, TimeUnit.DAYS);
+		log.enforceRetention();
+		check(log.getSegmentCount() == 1 && log.getEndOffset() == 60, "the active segment was deleted");
+		check(log.getUndeletedCount() == 0, log.getUndeletedCount() + " files of deleted segments are still there");
+		log.close();
+		
+		int files = 0;
+		for (String name : directory.list())
+		{
+			if (name.endsWith(".log"))
+				++files;
+		}
+		check(files <= 2, "deleted segments left " + files + " log files behind");
+	}
+	
+	private static void recoversAfterReopening(File directory) throws IOException
+	{
+		MessageLog log = new MessageLog(directory, SEGMENT_SIZE, INDEX_INTERVAL);
+		for (int i = 0; i < 25; ++i)
+			log.append("t", message("first " + i));
+		log.close();
+		
+		log = new MessageLog(directory, SEGMENT_SIZE, INDEX_INTERVAL);
+		check(log.getEndOffset() == 25, "reopened log ends at " + log.getEndOffset());
+		for (int i = 25; i < 60; ++i)
+			check(log.append("t", message("second " + i)) == i, "offsets didn't carry on after reopening at " + i);
+		
+		Collector all = new Collector(-1);
+		check(log.replay(0, null, all) == 60, "reopened log replayed " + all.offsets.size());
+		for (int i = 0; i < 60; ++i)
+			check(all.offsets.get(i) == i, "reopened log replayed offset " + all.offsets.get(i) + " at " + i);
+		log.close();
+	}
+	
+	private static void dropsTornRecord(File directory) throws IOException
+	{
+		MessageLog log = new MessageLog(directory, SEGMENT_SIZE, INDEX_INTERVAL);
+		for (int i = 0; i < 5; ++i)
+			log.append("t", message("whole " + i));
+		log.append("t", message("torn"));
+		log.close();
+		
+		// scribble over the last byte of the last record, as if the process died halfway through writing it
+		File segment = new File(directory, LogSegment.name(0, ".log"));
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		long end = 0;
+		while (true)
+		{
+			raf.seek(end);
+			int length = raf.readInt();
+			if (length == 0)
+				break;
+			end += length;
+		}
+		raf.seek(end - 1);
+		raf.write('!');
+		raf.close();
+		
+		log = new MessageLog(directory, SEGMENT_SIZE, INDEX_INTERVAL);
+		check(log.getEndOffset() == 5, "torn record wasn't dropped; log ends at " + log.getEndOffset());
+		check(log.append("t", message("again")) == 5, "append after recovery didn't reuse the torn record's offset");
+		Collector all = new Collector(-1);
+		log.replay(0, null, all);
+		check(all.texts.size() == 6 && all.texts.get(5).equals("again") && all.texts.get(4).equals("whole 4"), "recovered log replayed " + all.texts);
+		log.close();
+	}
+	
+	private static ByteBuffer message(String text)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(text.length());
+		for (int i = 0; i < text.length(); ++i)
+			buffer.put((byte) text.charAt(i));
+		buffer.flip();
+		return buffer;
+	}
+	
+	private static void check(boolean condition, String message)
+	{
+		if (!condition)
+			throw new AssertionError(message);
+	}
+	
+	private static void deleteAll(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+				deleteAll(child);
+		}
+		file.delete();
+	}
+	
+	private static class Collector implements ReplayListener
+	{
+		List<Long> offsets = new ArrayList<Long>();
+		List<String> texts = new ArrayList<String>();
+		private int limit;
+		
+		Collector(int limit)
+		{
+			this.limit = limit;
+		}
+		
+		public boolean message(long offset, long timestamp, String topic, ByteBuffer message)
+		{
+			StringBuilder sb = new StringBuilder();
+			while (message.hasRemaining())
+				sb.append((char) message.get());
+			offsets.add(offset);
+			texts.add(sb.toString());
+			return limit < 0 || offsets.size() < limit;
+		}
+	}
+}
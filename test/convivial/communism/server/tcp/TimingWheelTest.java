@@ -0,0 +1,138 @@
+package convivial.communism.server.tcp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+**	Checks <code>TimingWheel</code>: tasks run on the first tick at or after their deadline and never
+**		before, tasks more than a turn of the wheel away wait out the extra turns, cancelled tasks never
+**		run, and <code>selectTimeout</code> tells the owner how long it may sleep. Ticks are a whole second
+**		long so the time the test itself takes never moves a task into another tick.
+**/
+public class TimingWheelTest
+{
+	private static final long TICK = 1000000000L;
+	
+	public static void main(String[] args)
+	{
+		runsOnFirstTickAtOrAfterDeadline();
+		waitsOutWholeTurns();
+		runsInDeadlineOrderAcrossTicks();
+		skipsCancelledTasks();
+		reportsSelectTimeout();
+		System.out.println("TimingWheelTest passed");
+	}
+	
+	private static void runsOnFirstTickAtOrAfterDeadline()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		Counter counter = new Counter();
+		long now = System.nanoTime();
+		wheel.schedule(counter, 3 * TICK);
+		
+		check(wheel.expire(now + 2 * TICK) == 0 && counter.runs == 0, "task ran a tick early");
+		check(wheel.expire(now + 4 * TICK) == 1 && counter.runs == 1, "task didn't run once due");
+		check(wheel.expire(now + 5 * TICK) == 0 && counter.runs == 1, "task ran twice");
+	}
+	
+	private static void waitsOutWholeTurns()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		Counter counter = new Counter();
+		long now = System.nanoTime();
+		Timeout timeout = wheel.schedule(counter, 20 * TICK);
+		
+		// the task's bucket comes round at ticks 4 and 12 before its deadline at 20
+		for (int t = 1; t <= 19; ++t)
+			wheel.expire(now + t * TICK);
+		check(counter.runs == 0 && !timeout.isExpired(), "task ran before its turn of the wheel");
+		wheel.expire(now + 21 * TICK);
+		check(counter.runs == 1 && timeout.isExpired(), "task didn't run on its turn of the wheel");
+		
+		// jumping straight past several turns runs everything due at once
+		TimingWheel jumped = new TimingWheel(TICK, 8);
+		Counter far = new Counter();
+		now = System.nanoTime();
+		jumped.schedule(far, 5 * TICK);
+		jumped.schedule(far, 30 * TICK);
+		jumped.schedule(far, 100 * TICK);
+		check(jumped.expire(now + 31 * TICK) == 2, "jump didn't run the two tasks due");
+		check(jumped.expire(now + 101 * TICK) == 1, "jump didn't run the last task");
+	}
+	
+	private static void runsInDeadlineOrderAcrossTicks()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		final List<Integer> order = new ArrayList<Integer>();
+		long now = System.nanoTime();
+		for (final int delay : new int[] { 6, 2, 4 })
+		{
+			wheel.schedule(new Runnable()
+			{
+				public void run()
+				{
+					order.add(delay);
+				}
+			}, delay * TICK);
+		}
+		
+		for (int t = 1; t <= 8; ++t)
+			wheel.expire(now + t * TICK);
+		check(order.toString().equals("[2, 4, 6]"), "tasks ran out of order: " + order);
+	}
+	
+	private static void skipsCancelledTasks()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		Counter counter = new Counter();
+		long now = System.nanoTime();
+		
+		// cancelled before the owner has even filed it
+		Timeout early = wheel.schedule(counter, TICK);
+		check(early.cancel() && early.isCancelled(), "couldn't cancel a pending task");
+		check(!early.cancel(), "cancelled the same task twice");
+		
+		// cancelled after it has been filed in its bucket
+		Timeout late = wheel.schedule(counter, 3 * TICK);
+		wheel.expire(now + TICK);
+		check(late.cancel(), "couldn't cancel a filed task");
+		
+		Timeout kept = wheel.schedule(counter, 3 * TICK);
+		check(wheel.expire(now + 4 * TICK) == 1 && counter.runs == 1, "a cancelled task ran");
+		check(kept.isExpired() && !kept.cancel(), "cancelled a task that had already run");
+		check(wheel.selectTimeout(System.nanoTime()) == 0, "cancelled tasks still counted as scheduled");
+	}
+	
+	private static void reportsSelectTimeout()
+	{
+		TimingWheel wheel = new TimingWheel(TICK, 8);
+		check(wheel.nextTickDelay(System.nanoTime()) == -1, "empty wheel asked for a wakeup");
+		check(wheel.selectTimeout(System.nanoTime()) == 0, "empty wheel didn't block indefinitely");
+		
+		wheel.schedule(new Counter(), 5 * TICK);
+		long timeout = wheel.selectTimeout(System.nanoTime());
+		check(timeout >= 0 && timeout <= TICK / 1000000, "first tick's timeout out of range: " + timeout);
+		
+		long now = System.nanoTime();
+		wheel.expire(now + TICK);
+		long millis = wheel.selectTimeout(now + TICK);
+		check(millis >= 1 && millis <= TICK / 1000000, "timeout with a task filed out of range: " + millis);
+		check(wheel.selectTimeout(now + 10 * TICK) == 1, "overdue tick didn't ask for the shortest wait");
+	}
+	
+	private static void check(boolean condition, String message)
+	{
+		if (!condition)
+			throw new AssertionError(message);
+	}
+	
+	private static class Counter implements Runnable
+	{
+		int runs;
+		
+		public void run()
+		{
+			++runs;
+		}
+	}
+}
@@ -0,0 +1,5 @@
+javac -sourcepath ..\source convivial\communism\server\tcp\*.java convivial\communism\server\log\*.java convivial\communism\server\codec\*.java
+java -cp .;..\source convivial.communism.server.tcp.TimingWheelTest
+java -cp .;..\source convivial.communism.server.log.MessageLogTest
+java -cp .;..\source convivial.communism.server.codec.LineDecoderTest
+pause
\ No newline at end of file